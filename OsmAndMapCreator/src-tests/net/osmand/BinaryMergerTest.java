@@ -0,0 +1,77 @@
+package net.osmand;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import net.osmand.binary.BinaryIndexPart;
+import net.osmand.binary.BinaryMapIndexReader;
+import net.osmand.binary.OsmandOdb;
+import net.osmand.data.preparation.IndexCreator;
+import net.osmand.util.Algorithms;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BinaryMergerTest {
+
+	private File dir;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = Files.createTempDirectory("merger").toFile();
+	}
+
+	@After
+	public void tearDown() {
+		Algorithms.removeAllFiles(dir);
+	}
+
+	private File generate(String name) throws Exception {
+		File osm = new File(BinaryMergerTest.class.getResource("/net/osmand/data/multipolygon.osm").toURI());
+		IndexCreator creator = new IndexCreator(dir);
+		creator.setIndexMap(true);
+		creator.setIndexPOI(true);
+		creator.setMapFileName(name);
+		creator.generateIndexes(osm, IProgress.EMPTY_PROGRESS, null, null, null, null);
+		return new File(dir, name);
+	}
+
+	private int countParts(File f, int exceptField) throws Exception {
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try {
+			BinaryMapIndexReader reader = new BinaryMapIndexReader(raf, f);
+			int cnt = 0;
+			for (BinaryIndexPart p : reader.getIndexes()) {
+				if (p.getFieldNumber() != exceptField) {
+					cnt++;
+				}
+			}
+			return cnt;
+		} finally {
+			raf.close();
+		}
+	}
+
+	@Test
+	public void testCombinePartsIsReadable() throws Exception {
+		File first = generate("First.obf");
+		File second = generate("Second.obf");
+		File merged = new File(dir, "Merged.obf");
+		int poi = OsmandOdb.OsmAndStructure.POIINDEX_FIELD_NUMBER;
+		Set<Integer> combine = new HashSet<Integer>();
+		combine.add(poi);
+		new BinaryMerger().combineParts(merged, Arrays.asList(first, second), combine);
+
+		// copied parts of both files are read back after combined poi part till version confirm
+		int copied = countParts(first, poi) + countParts(second, poi);
+		assertTrue(copied > 0);
+		assertEquals(copied, countParts(merged, poi));
+	}
+}
@@ -185,6 +185,32 @@ public class MultipolygonTest {
 		assertFalse(testee.containsPoint(movepoly2.build().getCenterPoint()));
 	}
 
+	@Test
+	public void test_containsPointRaster()
+	{
+		MultipolygonBuilder bld = new MultipolygonBuilder();
+		bld.addOuterWay(scale(40, closedBaseCircle));
+		bld.addInnerWay(move(10, 10, closedBaseCircle));
+		Multipolygon testee = bld.build();
+		Ring outer = testee.getOuterRings().get(0);
+		Ring inner = testee.getInnerRings().get(0);
+		// answers are compared with checks of rings only, raster is created after first checks
+		// and its cells are already known in second pass
+		for (int k = 0; k < 2; k++) {
+			for (int i = 0; i <= 80; i++) {
+				for (int j = 0; j <= 80; j++) {
+					double lat = i * 1.1 - 44;
+					double lon = j * 1.1 - 44;
+					boolean expected = outer.containsPoint(lat, lon) && !inner.containsPoint(lat, lon);
+					assertEquals(expected, testee.containsPoint(lat, lon));
+				}
+			}
+		}
+		assertTrue(testee.containsPoint(0.5, 0.5));
+		assertFalse(testee.containsPoint(10.5, 10.5));
+		assertFalse(testee.containsPoint(41, 0));
+	}
+
 	@Test
 	public void test_multipolygon1twoWay2oneWay()
 	{
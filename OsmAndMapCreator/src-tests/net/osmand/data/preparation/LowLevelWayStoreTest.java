@@ -0,0 +1,332 @@
+package net.osmand.data.preparation;
+
+import static org.junit.Assert.*;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.set.hash.TLongHashSet;
+
+import java.io.ByteArrayOutputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.osmand.binary.MapZooms;
+import net.osmand.data.preparation.IndexVectorMapCreator.CombinedLowLevelWay;
+import net.osmand.osm.MapRenderingTypesEncoder;
+import net.osmand.osm.edit.Node;
+import net.osmand.osm.edit.OsmMapUtils;
+import net.osmand.util.Algorithms;
+
+import org.apache.commons.logging.LogFactory;
+import org.junit.Test;
+
+public class LowLevelWayStoreTest {
+
+	private static final int ZOOM_WAY_SMOOTHNESS = 2;
+	private static final int LIMIT = 10000;
+
+	// id, type (1 or 2), additional types count, additional types, nodes
+	private static final long[][] WAYS = {
+		{ 1, 1, 2, 3, 5, 1, 2, 3 },
+		// same additional types in other order, continues 1
+		{ 2, 1, 2, 5, 3, 3, 4, 5 },
+		// ends at start of 1
+		{ 3, 1, 2, 3, 5, 10, 11, 1 },
+		// starts at the same node as 2
+		{ 4, 1, 2, 3, 5, 3, 20, 21 },
+		// other type
+		{ 5, 2, 0, 5, 6 },
+		{ 6, 1, 2, 3, 5, 30, 31, 32, 30 },
+		// cycle of 2 ways
+		{ 7, 1, 2, 3, 5, 40, 41, 42 },
+		{ 8, 1, 2, 3, 5, 42, 43, 40 },
+		{ 9, 1, 2, 3, 5, 21, 22, 23 },
+		// other additional types
+		{ 10, 1, 1, 3, 23, 50, 51 },
+	};
+
+	private static Node node(long id) {
+		return new Node(50 + (id % 7) * 0.013, 10 + id * 0.011, id);
+	}
+
+	private static List<Node> nodes(long[] way) {
+		List<Node> nodes = new ArrayList<Node>();
+		for (int i = 3 + (int) way[2]; i < way.length; i++) {
+			nodes.add(node(way[i]));
+		}
+		return nodes;
+	}
+
+	private static TIntArrayList addTypes(long[] way) {
+		TIntArrayList addTypes = new TIntArrayList();
+		for (int i = 3; i < 3 + way[2]; i++) {
+			addTypes.add((int) way[i]);
+		}
+		return addTypes;
+	}
+
+	@Test
+	public void testCombineAsSqlTable() throws Exception {
+		MapRenderingTypesEncoder renderingTypes = new MapRenderingTypesEncoder("test");
+		MapZooms zooms = MapZooms.parseZooms("11-");
+		int zoom = zooms.getLevel(0).getMaxZoom();
+		int coastlineType = renderingTypes.getCoastlineRuleType().getInternalId();
+		IndexVectorMapCreator creator = new IndexVectorMapCreator(null, zooms, renderingTypes, ZOOM_WAY_SMOOTHNESS);
+
+		LowLevelWayStore store = new LowLevelWayStore();
+		Connection conn = (Connection) DBDialect.SQLITE_IN_MEMORY.getDatabaseConnection(null,
+				LogFactory.getLog(LowLevelWayStoreTest.class));
+		try {
+			Statement stat = conn.createStatement();
+			stat.executeUpdate("create table low_level_map_objects (id bigint primary key, start_node bigint, "
+					+ "end_node bigint, name varchar(1024), nodes binary, type binary, addType binary, level smallint)");
+			stat.executeUpdate("create index low_level_map_objects_ind on low_level_map_objects (id)");
+			stat.executeUpdate("create index low_level_map_objects_ind_st on low_level_map_objects (start_node, type)");
+			stat.executeUpdate("create index low_level_map_objects_ind_end on low_level_map_objects (end_node, type)");
+			stat.close();
+			PreparedStatement insert = conn.prepareStatement("insert into low_level_map_objects(id, start_node, "
+					+ "end_node, name, nodes, type, addType, level) values(?, ?, ?, ?, ?, ?, ?, ?)");
+			for (long[] way : WAYS) {
+				List<Node> nodes = nodes(way);
+				TIntArrayList types = new TIntArrayList(new int[] { coastlineType + (int) way[1] });
+				TIntArrayList addTypes = addTypes(way);
+				assertTrue(store.addWay(way[0], nodes, types, addTypes, ""));
+
+				ByteArrayOutputStream bNodes = new ByteArrayOutputStream();
+				for (Node n : nodes) {
+					Algorithms.writeInt(bNodes, Float.floatToRawIntBits((float) n.getLatitude()));
+					Algorithms.writeInt(bNodes, Float.floatToRawIntBits((float) n.getLongitude()));
+				}
+				insert.setLong(1, way[0]);
+				insert.setLong(2, nodes.get(0).getId());
+				insert.setLong(3, nodes.get(nodes.size() - 1).getId());
+				insert.setString(4, "");
+				insert.setBytes(5, bNodes.toByteArray());
+				insert.setBytes(6, toBytes(types));
+				insert.setBytes(7, toBytes(addTypes));
+				insert.setShort(8, (short) 0);
+				insert.executeUpdate();
+			}
+			insert.close();
+
+			List<CombinedLowLevelWay> expected = combineWithSql(conn, zoom, coastlineType);
+			List<CombinedLowLevelWay> combined = creator.combineLowLevelWays(store, 0, coastlineType, null);
+			assertEquals(expected.size(), combined.size());
+			for (int i = 0; i < expected.size(); i++) {
+				CombinedLowLevelWay e = expected.get(i);
+				CombinedLowLevelWay c = combined.get(i);
+				assertEquals(e.id, c.id);
+				assertEquals(e.types, c.types);
+				assertEquals(e.addTypes, c.addTypes);
+				assertTrue(c.names.isEmpty());
+				assertEquals(e.nodes.size(), c.nodes.size());
+				for (int j = 0; j < e.nodes.size(); j++) {
+					assertEquals(e.nodes.get(j).getId(), c.nodes.get(j).getId());
+					assertEquals(e.nodes.get(j).getLatitude(), c.nodes.get(j).getLatitude(), 0);
+					assertEquals(e.nodes.get(j).getLongitude(), c.nodes.get(j).getLongitude(), 0);
+				}
+			}
+		} finally {
+			conn.close();
+		}
+	}
+
+	@Test
+	public void testCopyWaysSortedById() {
+		LowLevelWayStore store = new LowLevelWayStore();
+		for (int i = WAYS.length - 1; i >= 0; i--) {
+			long[] way = WAYS[i];
+			assertTrue(store.addWay(way[0], nodes(way), new TIntArrayList(new int[] { (int) way[1], 0 }),
+					addTypes(way), "name" + way[0]));
+		}
+		// reversed types have to be sorted again
+		int[] typesTable = new int[64];
+		for (int i = 0; i < typesTable.length; i++) {
+			typesTable[i] = typesTable.length - 1 - i;
+		}
+		int[] order = store.getWaysSortedById();
+		LowLevelWayStore copy = new LowLevelWayStore();
+		for (int way : order) {
+			copy.addWay(store, way, typesTable, store.getNames(way));
+		}
+		assertEquals(WAYS.length, copy.size());
+		for (int i = 0; i < copy.size(); i++) {
+			int way = order[i];
+			assertEquals(WAYS[i][0], copy.getId(i));
+			assertEquals(store.getStartNode(way), copy.getStartNode(i));
+			assertEquals(store.getEndNode(way), copy.getEndNode(i));
+			assertEquals("name" + WAYS[i][0], copy.getNames(i));
+			TIntArrayList points = new TIntArrayList();
+			TIntArrayList copyPoints = new TIntArrayList();
+			store.getPoints(way, 0, points);
+			copy.getPoints(i, 0, copyPoints);
+			assertEquals(points, copyPoints);
+			for (boolean add : new boolean[] { false, true }) {
+				TIntArrayList types = store.getTypes(way, add);
+				for (int j = 0; j < types.size(); j++) {
+					types.set(j, typesTable[types.get(j)]);
+				}
+				types.sort();
+				assertEquals(types, copy.getTypes(i, add));
+			}
+		}
+	}
+
+	private static byte[] toBytes(TIntArrayList types) throws Exception {
+		ByteArrayOutputStream b = new ByteArrayOutputStream();
+		for (int j = 0; j < types.size(); j++) {
+			Algorithms.writeSmallInt(b, types.get(j));
+		}
+		return b.toByteArray();
+	}
+
+	private static void parseAndSort(TIntArrayList ts, byte[] bs) {
+		ts.clear();
+		if (bs != null && bs.length > 0) {
+			for (int j = 0; j < bs.length; j += 2) {
+				ts.add(Algorithms.parseSmallIntFromBytes(bs, j));
+			}
+		}
+		ts.sort();
+	}
+
+	private static List<Float> loadNodes(byte[] nodes) {
+		List<Float> l = new ArrayList<Float>();
+		for (int i = 0; i < nodes.length; i += 8) {
+			l.add(Float.intBitsToFloat(Algorithms.parseIntFromBytes(nodes, i)));
+			l.add(Float.intBitsToFloat(Algorithms.parseIntFromBytes(nodes, i + 4)));
+		}
+		return l;
+	}
+
+	/**
+	 * Combination with low_level_map_objects table as it was done before the store, for ways without names
+	 * (first way with the same types at the end point is combined)
+	 */
+	private static List<CombinedLowLevelWay> combineWithSql(Connection conn, int zoom, int coastlineType)
+			throws Exception {
+		List<CombinedLowLevelWay> result = new ArrayList<CombinedLowLevelWay>();
+		PreparedStatement startStat = conn.prepareStatement("SELECT id, end_node, nodes, name, type, addType "
+				+ "FROM low_level_map_objects WHERE start_node = ? AND level = ?");
+		PreparedStatement endStat = conn.prepareStatement("SELECT id, start_node, nodes, name, type, addType "
+				+ "FROM low_level_map_objects WHERE end_node = ? AND level = ?");
+		Statement selectStatement = conn.createStatement();
+		ResultSet rs = selectStatement.executeQuery("SELECT id, start_node, end_node, nodes, name, type, addType, "
+				+ "level FROM low_level_map_objects");
+		TLongHashSet visitedWays = new TLongHashSet();
+		while (rs.next()) {
+			long id = rs.getLong(1);
+			if (visitedWays.contains(id)) {
+				continue;
+			}
+			visitedWays.add(id);
+			long startNode = rs.getLong(2);
+			long endNode = rs.getLong(3);
+			TIntArrayList typeUse = new TIntArrayList();
+			TIntArrayList addtypeUse = new TIntArrayList();
+			parseAndSort(typeUse, rs.getBytes(6));
+			parseAndSort(addtypeUse, rs.getBytes(7));
+			List<Float> wayNodes = loadNodes(rs.getBytes(4));
+
+			boolean combined = true;
+			while (combined && wayNodes.size() < LIMIT) {
+				combined = false;
+				endStat.setLong(1, startNode);
+				endStat.setShort(2, (short) 0);
+				long[] cand = readCandidate(endStat, visitedWays, typeUse, addtypeUse);
+				if (cand != null) {
+					combined = true;
+					startNode = cand[1];
+					visitedWays.add(cand[0]);
+					List<Float> li = loadNodes(getNodes(conn, cand[0]));
+					wayNodes.remove(0);
+					wayNodes.remove(0);
+					li.addAll(wayNodes);
+					wayNodes = li;
+				}
+			}
+			combined = true;
+			while (combined && wayNodes.size() < LIMIT) {
+				combined = false;
+				startStat.setLong(1, endNode);
+				startStat.setShort(2, (short) 0);
+				long[] cand = readCandidate(startStat, visitedWays, typeUse, addtypeUse);
+				if (cand != null) {
+					combined = true;
+					endNode = cand[1];
+					visitedWays.add(cand[0]);
+					List<Float> list = loadNodes(getNodes(conn, cand[0]));
+					wayNodes.addAll(list.subList(2, list.size()));
+				}
+			}
+
+			List<Node> wNodes = new ArrayList<Node>();
+			for (int i = 0; i < wayNodes.size(); i += 2) {
+				wNodes.add(new Node(wayNodes.get(i), wayNodes.get(i + 1), i == 0 ? startNode : endNode));
+			}
+			boolean skip;
+			if (startNode == endNode) {
+				skip = IndexVectorMapCreator.checkForSmallAreas(wNodes, zoom + Math.min(ZOOM_WAY_SMOOTHNESS / 2, 3),
+						3, 4);
+			} else {
+				skip = !typeUse.contains(coastlineType) && IndexVectorMapCreator.checkForSmallAreas(wNodes,
+						zoom + Math.min(ZOOM_WAY_SMOOTHNESS / 2, 3), 2, 8);
+			}
+			if (!skip) {
+				List<Node> res = new ArrayList<Node>();
+				OsmMapUtils.simplifyDouglasPeucker(wNodes, zoom - 1 + 8 + ZOOM_WAY_SMOOTHNESS, 3, res, false);
+				if (res.size() > 0) {
+					CombinedLowLevelWay w = new CombinedLowLevelWay();
+					w.id = id;
+					w.nodes = res;
+					w.types = typeUse;
+					w.addTypes = addtypeUse;
+					result.add(w);
+				}
+			}
+		}
+		rs.close();
+		selectStatement.close();
+		startStat.close();
+		endStat.close();
+		return result;
+	}
+
+	/**
+	 * @return id and other end node of the first not visited way with the same types or null
+	 */
+	private static long[] readCandidate(PreparedStatement stat, TLongHashSet visitedWays, TIntArrayList typeUse,
+			TIntArrayList addtypeUse) throws Exception {
+		ResultSet fs = stat.executeQuery();
+		TIntArrayList temp = new TIntArrayList();
+		TIntArrayList tempAdd = new TIntArrayList();
+		try {
+			while (fs.next()) {
+				if (!visitedWays.contains(fs.getLong(1))) {
+					parseAndSort(temp, fs.getBytes(5));
+					parseAndSort(tempAdd, fs.getBytes(6));
+					if (temp.equals(typeUse) && tempAdd.equals(addtypeUse)) {
+						return new long[] { fs.getLong(1), fs.getLong(2) };
+					}
+				}
+			}
+			return null;
+		} finally {
+			fs.close();
+		}
+	}
+
+	private static byte[] getNodes(Connection conn, long id) throws Exception {
+		Statement s = conn.createStatement();
+		try {
+			ResultSet rs = s.executeQuery("SELECT nodes FROM low_level_map_objects WHERE id = " + id);
+			rs.next();
+			return rs.getBytes(1);
+		} finally {
+			s.close();
+		}
+	}
+}
@@ -0,0 +1,51 @@
+package net.osmand.data.preparation;
+
+import static org.junit.Assert.*;
+
+import gnu.trove.list.array.TLongArrayList;
+
+import java.io.File;
+
+import org.junit.Test;
+
+public class MapObjectStoreTest {
+
+	private static void add(MapObjectStore store, long id) throws Exception {
+		store.add(id, id % 2 == 0, new byte[] { (byte) id, 1, 2, 3 }, null, new byte[] { 0, (byte) id }, null,
+				"name" + id);
+	}
+
+	private static void assertNext(MapObjectStore store, long id) throws Exception {
+		assertTrue(store.next(id));
+		assertEquals(id % 2 == 0, store.isArea());
+		assertEquals((byte) id, store.getCoordinates()[0]);
+		assertNull(store.getInnerPolygons());
+		assertEquals((byte) id, store.getTypes()[1]);
+		assertNull(store.getAdditionalTypes());
+		assertEquals("name" + id, store.getName());
+	}
+
+	@Test
+	public void testRepeatedAndMissingIds() throws Exception {
+		File file = File.createTempFile("mapobjects", ".dat");
+		MapObjectStore store = MapObjectStore.create(file);
+		try {
+			for (long id = 1; id <= 5; id++) {
+				add(store, id);
+			}
+			// object 3 is in two rtree leaves, 7 is not stored, 2 is not in the order
+			TLongArrayList order = new TLongArrayList(new long[] { 5, 3, 1, 7, 3, 4 });
+			store.prepareReading(order);
+			assertNext(store, 5);
+			assertNext(store, 3);
+			assertNext(store, 1);
+			assertFalse(store.next(7));
+			assertNext(store, 3);
+			assertNext(store, 4);
+			assertFalse(store.next(2));
+		} finally {
+			store.delete();
+		}
+		assertFalse(file.exists());
+	}
+}
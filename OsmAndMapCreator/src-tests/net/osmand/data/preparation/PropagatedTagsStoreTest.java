@@ -0,0 +1,41 @@
+package net.osmand.data.preparation;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class PropagatedTagsStoreTest {
+
+	private static byte[] record(int length, int seed) {
+		byte[] b = new byte[length];
+		for (int i = 0; i < length; i++) {
+			b[i] = (byte) (seed + i);
+		}
+		return b;
+	}
+
+	@Test
+	public void testRecordStraddlingBuffer() throws Exception {
+		File file = File.createTempFile("propagated", ".tags");
+		PropagatedTagsStore store = new PropagatedTagsStore(file);
+		try {
+			// length of second record fits into buffer, its data is written after buffer is flushed
+			byte[] first = record((1 << 16) - 10, 1);
+			byte[] second = record(100, 2);
+			store.link(1, store.addRecord(first, first.length));
+			store.link(2, store.addRecord(second, second.length));
+			List<byte[]> res = store.getRecords(2);
+			assertEquals(1, res.size());
+			assertTrue(Arrays.equals(second, res.get(0)));
+			res = store.getRecords(1);
+			assertTrue(Arrays.equals(first, res.get(0)));
+		} finally {
+			store.close();
+		}
+		assertFalse(file.exists());
+	}
+}
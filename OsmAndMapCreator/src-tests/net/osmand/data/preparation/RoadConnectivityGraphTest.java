@@ -0,0 +1,70 @@
+package net.osmand.data.preparation;
+
+import static org.junit.Assert.*;
+
+import gnu.trove.map.hash.TLongObjectHashMap;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import net.osmand.osm.edit.Node;
+
+import org.junit.Test;
+
+public class RoadConnectivityGraphTest {
+
+	private static final Map<String, String> PRIMARY = Collections.singletonMap("highway", "primary");
+
+	private static final Node A = new Node(50, 10, 1);
+	private static final Node B = new Node(50, 10.01, 2);
+	private static final Node C = new Node(50.01, 10.02, 3);
+	private static final Node D = new Node(50.02, 10.02, 4);
+	private static final Node E = new Node(50, 10.02, 5);
+
+	// base roads 1 (A-B) and 2 (C-D) are connected by car roads 10 (B-E) and 11 (E-C)
+	private static void addRoad(RoadConnectivityGraph graph, long id) {
+		if (id == 1) {
+			graph.addRoad(1, Arrays.asList(A, B), 0);
+			graph.addBaseRoad(1, Arrays.asList(A, B), PRIMARY);
+		} else if (id == 2) {
+			graph.addRoad(2, Arrays.asList(C, D), 0);
+			graph.addBaseRoad(2, Arrays.asList(C, D), PRIMARY);
+		} else if (id == 10) {
+			graph.addRoad(10, Arrays.asList(B, E), 0);
+		} else if (id == 11) {
+			graph.addRoad(11, Arrays.asList(E, C), 0);
+		}
+	}
+
+	private static RoadConnectivityGraph createGraph(long... ids) {
+		RoadConnectivityGraph graph = new RoadConnectivityGraph();
+		for (long id : ids) {
+			addRoad(graph, id);
+		}
+		return graph;
+	}
+
+	@Test
+	public void testMergedShardsFindSameRoads() {
+		TLongObjectHashMap<long[]> expected = createGraph(1, 2, 10, 11).findMissingBaseRoads(
+				new TLongObjectHashMap<long[]>());
+		assertEquals(2, expected.size());
+		assertTrue(expected.containsKey(10));
+		assertTrue(expected.containsKey(11));
+
+		// roads ending at shard border are connected only by roads of other shard
+		List<RoadConnectivityGraph> shards = Arrays.asList(createGraph(1, 10), createGraph(2, 11));
+		assertTrue(shards.get(0).findMissingBaseRoads(new TLongObjectHashMap<long[]>()).isEmpty());
+		RoadConnectivityGraph merged = RoadConnectivityGraph.merge(shards);
+		TLongObjectHashMap<long[]> res = merged.findMissingBaseRoads(new TLongObjectHashMap<long[]>());
+		assertEquals(expected.size(), res.size());
+		for (long id : expected.keys()) {
+			assertArrayEquals(expected.get(id), res.get(id));
+		}
+		assertTrue(shards.get(0).containsRoad(10));
+		assertFalse(shards.get(0).containsRoad(11));
+		assertTrue(shards.get(1).containsRoad(11));
+	}
+}
@@ -0,0 +1,106 @@
+package crosby.binary.file;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Reads fileblocks sequentially from the stream, but inflates and decodes them on a pool of worker threads.
+ * Decoded blocks are passed to the handler in the calling thread in the original file order.
+ */
+public class ParallelBlockInputStream<T> {
+
+	public interface BlockDecoder<T> {
+		/** Called in the reading thread */
+		boolean skipBlock(FileBlockPosition block);
+
+		/** Called in worker thread with inflated block */
+		T decode(FileBlock block) throws IOException;
+	}
+
+	public interface DecodedBlockHandler<T> {
+		/** Called in the reading thread in file order */
+		void handleBlock(T decoded) throws IOException;
+	}
+
+	private final InputStream input;
+	private final int threads;
+	private final BlockDecoder<T> decoder;
+	private final DecodedBlockHandler<T> handler;
+
+	public ParallelBlockInputStream(InputStream input, int threads, BlockDecoder<T> decoder,
+			DecodedBlockHandler<T> handler) {
+		this.input = input;
+		this.threads = Math.max(1, threads);
+		this.decoder = decoder;
+		this.handler = handler;
+	}
+
+	public void process() throws IOException {
+		ExecutorService service = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "PbfBlockDecoder");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		// keep limited number of blocks in memory
+		int window = threads * 2;
+		LinkedList<Future<T>> queue = new LinkedList<Future<T>>();
+		try {
+			DataInputStream datinput = new DataInputStream(input);
+			while (input.available() > 0) {
+				final FileBlockHead head = FileBlockHead.readHead(input);
+				if (decoder.skipBlock(head)) {
+					head.skipContents(input);
+					continue;
+				}
+				final byte[] buf = new byte[head.getDatasize()];
+				datinput.readFully(buf);
+				queue.add(service.submit(new Callable<T>() {
+					@Override
+					public T call() throws Exception {
+						return decoder.decode(head.parseData(buf));
+					}
+				}));
+				if (queue.size() >= window) {
+					deliver(queue.poll());
+				}
+			}
+			while (!queue.isEmpty()) {
+				deliver(queue.poll());
+			}
+		} finally {
+			service.shutdownNow();
+		}
+	}
+
+	private void deliver(Future<T> f) throws IOException {
+		T decoded;
+		try {
+			decoded = f.get();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IOException(cause);
+		}
+		handler.handleBlock(decoded);
+	}
+}
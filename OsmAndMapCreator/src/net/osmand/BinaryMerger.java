@@ -2,6 +2,7 @@ package net.osmand;
 
 
 import static net.osmand.data.preparation.IndexCreator.REMOVE_POI_DB;
+import gnu.trove.map.hash.TLongObjectHashMap;
 import gnu.trove.set.hash.TLongHashSet;
 
 import java.io.File;
@@ -25,6 +26,14 @@ import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
@@ -275,8 +284,8 @@ public class BinaryMerger {
 		namesakesStreetNodes.put(city, streetNodes);
 	}
 
-	private void combineAddressIndex(String name, BinaryMapIndexWriter writer, AddressRegion[] addressRegions, BinaryMapIndexReader[] indexes)
-			throws IOException {
+	private void combineAddressIndex(String name, BinaryMapIndexWriter writer, final AddressRegion[] addressRegions,
+			final BinaryMapIndexReader[] indexes, ExecutorService executor) throws IOException {
 		Set<String> attributeTagsTableSet = new TreeSet<String>();
 		for (int i = 0; i != addressRegions.length; i++) {
 			AddressRegion region = addressRegions[i];
@@ -291,13 +300,27 @@ public class BinaryMerger {
 		while (it.hasNext()) {
 			tagRules.put(it.next(), it.previousIndex());
 		}
-		for (int type : BinaryMapAddressReaderAdapter.CITY_TYPES) {
+		for (final int type : BinaryMapAddressReaderAdapter.CITY_TYPES) {
 			Map<City, BinaryMapIndexReader> cityMap = new HashMap<City, BinaryMapIndexReader>();
+			// every input is read by its own thread
+			List<Future<List<City>>> loaded = new ArrayList<Future<List<City>>>();
+			for (int i = 0; i < addressRegions.length; i++) {
+				final AddressRegion region = addressRegions[i];
+				final BinaryMapIndexReader index = indexes[i];
+				loaded.add(executor.submit(new Callable<List<City>>() {
+					@Override
+					public List<City> call() throws Exception {
+						List<City> cities = index.getCities(region, null, type);
+						for (City city : cities) {
+							normalizePostcode(city, extractCountryName(index));
+						}
+						return cities;
+					}
+				}));
+			}
 			for (int i = 0; i < addressRegions.length; i++) {
-				AddressRegion region = addressRegions[i];
 				final BinaryMapIndexReader index = indexes[i];
-				for (City city : index.getCities(region, null, type)) {
-					normalizePostcode(city, extractCountryName(index));
+				for (City city : getResult(loaded.get(i))) {
 					if (cityMap.containsKey(city)) {
 						cityMap.remove(city);
 					}
@@ -350,71 +373,61 @@ public class BinaryMerger {
 		return ((long) MapUtils.get31TileNumberX(loc.getLongitude()) << 31 | (long) MapUtils.get31TileNumberY(loc.getLatitude()));
 	}
 
-	private void combinePoiIndex(String name, BinaryMapIndexWriter writer, long dateCreated, PoiRegion[] poiRegions, BinaryMapIndexReader[] indexes)
-			throws IOException, SQLException {
-		final int[] writtenPoiCount = {0};
+	private void combinePoiIndex(String name, BinaryMapIndexWriter writer, long dateCreated, final PoiRegion[] poiRegions,
+			final BinaryMapIndexReader[] indexes, ExecutorService executor) throws IOException, SQLException {
+		int writtenPoiCount = 0;
 		MapRenderingTypesEncoder renderingTypes = new MapRenderingTypesEncoder(null, name);
 		boolean overwriteIds = false;
 		final IndexPoiCreator indexPoiCreator = new IndexPoiCreator(renderingTypes, overwriteIds);
 		indexPoiCreator.createDatabaseStructure(new File(new File(System.getProperty("user.dir")), IndexCreator.getPoiFileName(name)));
-		final Map<Long, List<Amenity>> amenityRelations = new HashMap<Long, List<Amenity>>();
+		// type and subtype of relation amenities by location (amenities themselves are not kept)
+		final TLongObjectHashMap<List<String>> amenityRelations = new TLongObjectHashMap<List<String>>();
 		final TLongHashSet set = new TLongHashSet();
-		final long[] generatedRelationId = {-1};
+		long generatedRelationId = -1;
+		// inputs are decoded in parallel and consumed in the order of files (first file wins)
+		List<PoiReader> readers = new ArrayList<PoiReader>();
 		for (int i = 0; i < poiRegions.length; i++) {
-			BinaryMapIndexReader index = indexes[i];
-			final TLongHashSet file = new TLongHashSet();
-			log.info("Region: " + extractRegionName(index));
-			index.searchPoi(BinaryMapIndexReader.buildSearchPoiRequest(
-					0, Integer.MAX_VALUE, 0, Integer.MAX_VALUE, -1,
-					BinaryMapIndexReader.ACCEPT_ALL_POI_TYPE_FILTER,
-					new ResultMatcher<Amenity>() {
-						@Override
-						public boolean publish(Amenity amenity) {
-							try {
-								boolean isRelation = amenity.getId() < 0;
-								if (isRelation) {
-									long j = latlon(amenity);
-									List<Amenity> list;
-									if (!amenityRelations.containsKey(j)) {
-										list = new ArrayList<Amenity>(1);
-										amenityRelations.put(j, list);
-									} else {
-										list = amenityRelations.get(j);
-									}
-									boolean unique = true;
-									for (Amenity a : list) {
-										if (a.getType() == amenity.getType() &&
-												Algorithms.objectEquals(a.getSubType(), amenity.getSubType())) {
-											unique = false;
-											break;
-										}
-									}
-									if (unique) {
-										amenity.setId(generatedRelationId[0]--);
-										amenityRelations.get(j).add(amenity);
-										indexPoiCreator.insertAmenityIntoPoi(amenity);
-										writtenPoiCount[0]++;
-									}
-								} else {
-									if (!set.contains(amenity.getId())) {
-										file.add(amenity.getId());
-										indexPoiCreator.insertAmenityIntoPoi(amenity);
-										writtenPoiCount[0]++;
-									}
-								}
-								return false;
-							} catch (SQLException e) {
-								throw new RuntimeException(e);
+			PoiReader r = new PoiReader(indexes[i]);
+			readers.add(r);
+			executor.execute(r);
+		}
+		try {
+			for (PoiReader r : readers) {
+				log.info("Region: " + extractRegionName(r.index));
+				final TLongHashSet file = new TLongHashSet();
+				List<Amenity> batch;
+				while ((batch = r.take()) != null) {
+					for (Amenity amenity : batch) {
+						boolean isRelation = amenity.getId() < 0;
+						if (isRelation) {
+							long j = latlon(amenity);
+							List<String> list = amenityRelations.get(j);
+							if (list == null) {
+								list = new ArrayList<String>(1);
+								amenityRelations.put(j, list);
+							}
+							String type = amenity.getType().getKeyName() + "/" + amenity.getSubType();
+							if (!list.contains(type)) {
+								list.add(type);
+								amenity.setId(generatedRelationId--);
+								indexPoiCreator.insertAmenityIntoPoi(amenity);
+								writtenPoiCount++;
+							}
+						} else {
+							if (!set.contains(amenity.getId())) {
+								file.add(amenity.getId());
+								indexPoiCreator.insertAmenityIntoPoi(amenity);
+								writtenPoiCount++;
 							}
-
-						}
-
-						@Override
-						public boolean isCancelled() {
-							return false;
 						}
-					}));
-			set.addAll(file);
+					}
+				}
+				set.addAll(file);
+			}
+		} finally {
+			for (PoiReader r : readers) {
+				r.cancel();
+			}
 		}
 		indexPoiCreator.writeBinaryPoiIndex(writer, name, null);
 		indexPoiCreator.commitAndClosePoiFile(dateCreated);
@@ -422,7 +435,101 @@ public class BinaryMerger {
 		if (REMOVE_POI_DB) {
 			indexPoiCreator.removePoiFile();
 		}
-		log.info("Written " + writtenPoiCount[0] + " POI.");
+		log.info("Written " + writtenPoiCount + " POI.");
+	}
+
+	/**
+	 * Decodes all amenities of one file in batches into a bounded queue
+	 */
+	private static class PoiReader implements Runnable {
+		private static final int BATCH = 1000;
+		private static final List<Amenity> END = Collections.emptyList();
+
+		private final BinaryMapIndexReader index;
+		private final BlockingQueue<List<Amenity>> queue = new ArrayBlockingQueue<List<Amenity>>(16);
+		private volatile boolean cancelled;
+		private volatile Exception error;
+
+		PoiReader(BinaryMapIndexReader index) {
+			this.index = index;
+		}
+
+		@Override
+		public void run() {
+			try {
+				final List<List<Amenity>> current = new ArrayList<List<Amenity>>();
+				current.add(new ArrayList<Amenity>(BATCH));
+				index.searchPoi(BinaryMapIndexReader.buildSearchPoiRequest(0, Integer.MAX_VALUE, 0, Integer.MAX_VALUE, -1,
+						BinaryMapIndexReader.ACCEPT_ALL_POI_TYPE_FILTER, new ResultMatcher<Amenity>() {
+							@Override
+							public boolean publish(Amenity amenity) {
+								List<Amenity> batch = current.get(0);
+								batch.add(amenity);
+								if (batch.size() >= BATCH) {
+									put(batch);
+									current.set(0, new ArrayList<Amenity>(BATCH));
+								}
+								return false;
+							}
+
+							@Override
+							public boolean isCancelled() {
+								return cancelled;
+							}
+						}));
+				put(current.get(0));
+			} catch (Exception e) {
+				error = e;
+			} finally {
+				put(END);
+			}
+		}
+
+		private void put(List<Amenity> batch) {
+			try {
+				while (!cancelled && !queue.offer(batch, 1, TimeUnit.SECONDS)) {
+					// wait for consumer
+				}
+			} catch (InterruptedException e) {
+				cancelled = true;
+			}
+		}
+
+		List<Amenity> take() throws IOException {
+			List<Amenity> batch;
+			try {
+				batch = queue.take();
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			}
+			if (batch == END) {
+				if (error != null) {
+					throw new IOException(error);
+				}
+				return null;
+			}
+			return batch;
+		}
+
+		void cancel() {
+			cancelled = true;
+			queue.clear();
+		}
+	}
+
+	private static <T> T getResult(Future<T> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			} else if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
 	}
 
 	public static void copyBinaryPart(CodedOutputStream ous, byte[] BUFFER, RandomAccessFile raf, long fp, int length)
@@ -445,19 +552,43 @@ public class BinaryMerger {
 	}
 
 	public void combineParts(File fileToExtract, List<File> files, Set<Integer> combineParts) throws IOException, SQLException {
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1,
+				Math.min(files.size(), Runtime.getRuntime().availableProcessors())));
+		try {
+			combineParts(fileToExtract, files, combineParts, executor);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private void combineParts(File fileToExtract, List<File> files, Set<Integer> combineParts, ExecutorService executor)
+			throws IOException, SQLException {
 		BinaryMapIndexReader[] indexes = new BinaryMapIndexReader[files.size()];
-		RandomAccessFile[] rafs = new RandomAccessFile[files.size()];
+		final RandomAccessFile[] rafs = new RandomAccessFile[files.size()];
 		long dateCreated = 0;
 		int version = -1;
-		// Go through all files and validate consistency
-		int c = 0;
 		for (File f : files) {
 			if (f.getAbsolutePath().equals(fileToExtract.getAbsolutePath())) {
 				System.err.println("Error : Input file is equal to output file " + f.getAbsolutePath());
 				return;
 			}
-			rafs[c] = new RandomAccessFile(f.getAbsolutePath(), "r");
-			indexes[c] = new BinaryMapIndexReader(rafs[c], f);
+		}
+		// read structure of all files in parallel
+		List<Future<BinaryMapIndexReader>> opened = new ArrayList<Future<BinaryMapIndexReader>>();
+		for (int k = 0; k < files.size(); k++) {
+			final File f = files.get(k);
+			final int ind = k;
+			opened.add(executor.submit(new Callable<BinaryMapIndexReader>() {
+				@Override
+				public BinaryMapIndexReader call() throws Exception {
+					rafs[ind] = new RandomAccessFile(f.getAbsolutePath(), "r");
+					return new BinaryMapIndexReader(rafs[ind], f);
+				}
+			}));
+		}
+		// Go through all files and validate consistency
+		for (int c = 0; c < files.size(); c++) {
+			indexes[c] = getResult(opened.get(c));
 			dateCreated = Math.max(dateCreated, indexes[c].getDateCreated());
 			if (version == -1) {
 				version = indexes[c].getVersion();
@@ -467,49 +598,72 @@ public class BinaryMerger {
 					return;
 				}
 			}
-			c++;
 		}
 
 		// write files
 		RandomAccessFile rafToExtract = new RandomAccessFile(fileToExtract, "rw");
-		BinaryMapIndexWriter writer = new BinaryMapIndexWriter(rafToExtract, dateCreated);
-		CodedOutputStream ous = writer.getCodedOutStream();
-		byte[] BUFFER_TO_READ = new byte[BUFFER_SIZE];
-		AddressRegion[] addressRegions = new AddressRegion[files.size()];
-		PoiRegion[] poiRegions = new PoiRegion[files.size()];
-		for (int k = 0; k < indexes.length; k++) {
-			BinaryMapIndexReader index = indexes[k];
-			RandomAccessFile raf = rafs[k];
-			for (int i = 0; i < index.getIndexes().size(); i++) {
-				BinaryIndexPart part = index.getIndexes().get(i);
-				if (combineParts.contains(part.getFieldNumber())) {
-					if (part.getFieldNumber() == OsmandOdb.OsmAndStructure.ADDRESSINDEX_FIELD_NUMBER) {
-						addressRegions[k] = (AddressRegion) part;
-					} else if (part.getFieldNumber() == OsmandOdb.OsmAndStructure.POIINDEX_FIELD_NUMBER) {
-						poiRegions[k] = (PoiRegion) part;
+		try {
+			BinaryMapIndexWriter writer = new BinaryMapIndexWriter(rafToExtract, dateCreated);
+			CodedOutputStream ous = writer.getCodedOutStream();
+			AddressRegion[] addressRegions = new AddressRegion[files.size()];
+			PoiRegion[] poiRegions = new PoiRegion[files.size()];
+			for (int k = 0; k < indexes.length; k++) {
+				BinaryMapIndexReader index = indexes[k];
+				RandomAccessFile raf = rafs[k];
+				for (int i = 0; i < index.getIndexes().size(); i++) {
+					BinaryIndexPart part = index.getIndexes().get(i);
+					if (combineParts.contains(part.getFieldNumber())) {
+						if (part.getFieldNumber() == OsmandOdb.OsmAndStructure.ADDRESSINDEX_FIELD_NUMBER) {
+							addressRegions[k] = (AddressRegion) part;
+						} else if (part.getFieldNumber() == OsmandOdb.OsmAndStructure.POIINDEX_FIELD_NUMBER) {
+							poiRegions[k] = (PoiRegion) part;
+						}
+					} else {
+						ous.writeTag(part.getFieldNumber(), WireFormat.WIRETYPE_FIXED32_LENGTH_DELIMITED);
+						writeInt(ous, part.getLength());
+						writer.writeRawSections(raf.getChannel(), files.get(k).getName(), part.getFilePointer(),
+								part.getFilePointer() + part.getLength());
+						System.out.println(MessageFormat.format("{2} part {0} is extracted {1} bytes",
+								new Object[]{part.getName(), part.getLength(), part.getPartName()}));
 					}
-				} else {
-					ous.writeTag(part.getFieldNumber(), WireFormat.WIRETYPE_FIXED32_LENGTH_DELIMITED);
-					writeInt(ous, part.getLength());
-					copyBinaryPart(ous, BUFFER_TO_READ, raf, part.getFilePointer(), part.getLength());
-					System.out.println(MessageFormat.format("{2} part {0} is extracted {1} bytes",
-							new Object[]{part.getName(), part.getLength(), part.getPartName()}));
 				}
 			}
+			String nm = fileToExtract.getName();
+			int i = nm.indexOf('_');
+			if (i > 0) {
+				nm = nm.substring(0, i);
+			}
+			if (combineParts.contains(OsmandOdb.OsmAndStructure.ADDRESSINDEX_FIELD_NUMBER)) {
+				combineAddressIndex(nm, writer, addressRegions, indexes, executor);
+			}
+			if (combineParts.contains(OsmandOdb.OsmAndStructure.POIINDEX_FIELD_NUMBER)) {
+				combinePoiIndex(nm, writer, dateCreated, poiRegions, indexes, executor);
+			}
+			ous.writeInt32(OsmandOdb.OsmAndStructure.VERSIONCONFIRM_FIELD_NUMBER, version);
+			writer.flush();
+		} finally {
+			rafToExtract.close();
 		}
-		String nm = fileToExtract.getName();
-		int i = nm.indexOf('_');
-		if (i > 0) {
-			nm = nm.substring(0, i);
-		}
-		if (combineParts.contains(OsmandOdb.OsmAndStructure.ADDRESSINDEX_FIELD_NUMBER)) {
-			combineAddressIndex(nm, writer, addressRegions, indexes);
-		}
-		if (combineParts.contains(OsmandOdb.OsmAndStructure.POIINDEX_FIELD_NUMBER)) {
-			combinePoiIndex(nm, writer, dateCreated, poiRegions, indexes);
+	}
+
+	private static boolean extractObf(File zip, File tmp) throws IOException {
+		boolean found = false;
+		ZipInputStream zis = new ZipInputStream(new FileInputStream(zip));
+		try {
+			ZipEntry ze;
+			while ((ze = zis.getNextEntry()) != null) {
+				String name = ze.getName();
+				if (!ze.isDirectory() && name.endsWith(".obf")) {
+					FileOutputStream fout = new FileOutputStream(tmp);
+					Algorithms.streamCopy(zis, fout);
+					fout.close();
+					found = true;
+				}
+			}
+		} finally {
+			zis.close();
 		}
-		ous.writeInt32(OsmandOdb.OsmAndStructure.VERSIONCONFIRM_FIELD_NUMBER, version);
-		ous.flush();
+		return found;
 	}
 
 	public void merger(String[] args) throws IOException, SQLException {
@@ -521,34 +675,40 @@ public class BinaryMerger {
 		List<File> parts = new ArrayList<File>();
 		List<File> toDelete = new ArrayList<File>();
 		Set<Integer> combineParts = new HashSet<Integer>();
-		for (int i = 0; i < args.length; i++) {
-			if (args[i].startsWith("--")) {
-				combineParts.add(COMBINE_ARGS.get(args[i]));
-			} else if (outputFile == null) {
-				outputFile = new File(args[i]);
-			} else {
-				File file = new File(args[i]);
-				if (file.getName().endsWith(".zip")) {
-					File tmp = File.createTempFile(file.getName(), "obf");
-					ZipInputStream zis = new ZipInputStream(new FileInputStream(file));
-					ZipEntry ze;
-					while ((ze = zis.getNextEntry()) != null) {
-						String name = ze.getName();
-						if (!ze.isDirectory() && name.endsWith(".obf")) {
-							FileOutputStream fout = new FileOutputStream(tmp);
-							Algorithms.streamCopy(zis, fout);
-							fout.close();
-							parts.add(tmp);
-						}
-					}
-					zis.close();
-					tmp.deleteOnExit();
-					toDelete.add(tmp);
-
+		// zip files are extracted in parallel
+		ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		Map<File, Future<Boolean>> extracted = new HashMap<File, Future<Boolean>>();
+		try {
+			for (int i = 0; i < args.length; i++) {
+				if (args[i].startsWith("--")) {
+					combineParts.add(COMBINE_ARGS.get(args[i]));
+				} else if (outputFile == null) {
+					outputFile = new File(args[i]);
 				} else {
-					parts.add(file);
+					final File file = new File(args[i]);
+					if (file.getName().endsWith(".zip")) {
+						final File tmp = File.createTempFile(file.getName(), "obf");
+						tmp.deleteOnExit();
+						toDelete.add(tmp);
+						parts.add(tmp);
+						extracted.put(tmp, executor.submit(new Callable<Boolean>() {
+							@Override
+							public Boolean call() throws Exception {
+								return extractObf(file, tmp);
+							}
+						}));
+					} else {
+						parts.add(file);
+					}
+				}
+			}
+			for (Map.Entry<File, Future<Boolean>> e : extracted.entrySet()) {
+				if (!getResult(e.getValue())) {
+					parts.remove(e.getKey());
 				}
 			}
+		} finally {
+			executor.shutdownNow();
 		}
 		if (combineParts.isEmpty()) {
 			combineParts.addAll(COMBINE_ARGS.values());
@@ -192,6 +192,14 @@ public class MainUtilities {
 		String fn = DataExtractionSettings.getSettings().getMapRenderingTypesFile();
 		String regionName = subArgsArray[0];
 		MapRenderingTypesEncoder types = new MapRenderingTypesEncoder(fn, regionName);
+		for (int i = 1; i < subArgsArray.length; i++) {
+			String arg = subArgsArray[i];
+			int eq = arg.indexOf('=');
+			if (!arg.startsWith("--") || eq == -1 || !ic.setOption(arg.substring(2, eq), arg.substring(eq + 1))) {
+				throw new IllegalArgumentException("Unknown option " + arg + ", supported options: "
+						+ Arrays.toString(IndexCreator.OPTIONS));
+			}
+		}
 		ic.generateIndexes(new File(subArgsArray[0]),
 				new ConsoleProgressImplementation(), null, MapZooms.getDefault(), types,
 				log);
@@ -200,8 +208,9 @@ public class MainUtilities {
 	private static void printSynopsys() {
 		System.out.println("This utility provides access to all other console utilities of OsmAnd,");
 		System.out.println("each utility has own argument list and own synopsys. Here is the list:");
-		System.out.println("\t\t generate-obf <path to osm file>: simple way to generate obf file in place. "
-				+ "\t\t\t	Another supported options generate-map, generate-address, generate-poi, generate-roads (generate obf partially)");
+		System.out.println("\t\t generate-obf <path to osm file> <optional --option=value>: simple way to generate obf file in place. "
+				+ "\t\t\t	Another supported options generate-map, generate-address, generate-poi, generate-roads (generate obf partially)."
+				+ "\t\t\t	Generation options: " + Arrays.toString(IndexCreator.OPTIONS));
 		System.out.println("\t\t check-ocean-tile <lat> <lon> <zoom=11>: checks ocean or land tile is in bz2 list");
 		System.out.println("\t\t generate-ocean-tile <coastline osm file> <optional output file>: creates ocean tiles 12 zoom");
 		System.out.println("\t\t generate-java-style <pathtostyle> <pathtooutputfolder>: prints rendering style as java interpreted code");
@@ -27,6 +27,12 @@ public class Multipolygon {
 	private float minLon = 180;
 	private long id;
 
+	// points checked before raster is built (raster pays off only for many checks)
+	private static final int RASTER_CHECKS = 1 << 10;
+	private static final int MAX_RASTER_SIZE = 1 << 9;
+	private int checks;
+	private volatile Raster raster;
+
 
 	public Multipolygon(List<Ring> outer, List<Ring> inner, long id) {
 		outerRings = outer;
@@ -71,6 +77,8 @@ public class Multipolygon {
 	}
 
 	private void updateRings() {
+		raster = null;
+		checks = 0;
 		maxLat = -90;
 		minLat = 90;
 		maxLon = -180;
@@ -112,7 +120,36 @@ public class Multipolygon {
 				maxLon + 0.3 < longitude || minLon - 0.3 > longitude) {
 			return false;
 		}
+		Raster r = raster;
+		if (r == null) {
+			if (checks++ < RASTER_CHECKS) {
+				return checkRings(latitude, longitude);
+			}
+			r = createRaster();
+		}
+		int cell = r.getCell(latitude, longitude);
+		if (cell < 0) {
+			return checkRings(latitude, longitude);
+		}
+		byte st = r.cells[cell];
+		if (st == Raster.INSIDE || st == Raster.OUTSIDE) {
+			return st == Raster.INSIDE;
+		}
+		boolean contains = checkRings(latitude, longitude);
+		if (st == Raster.UNKNOWN) {
+			r.cells[cell] = contains ? Raster.INSIDE : Raster.OUTSIDE;
+		}
+		return contains;
+	}
+
+	private synchronized Raster createRaster() {
+		if (raster == null) {
+			raster = new Raster(this);
+		}
+		return raster;
+	}
 
+	private boolean checkRings(double latitude, double longitude) {
 		Ring containedInOuter = null;
 		// use a sortedset to get the smallest outer containing the point
 		for (Ring outer : outerRings) {
@@ -161,6 +198,83 @@ public class Multipolygon {
 
 	}
 
+	/**
+	 * Grid over bbox of multipolygon. Cells crossed by bboxes of ring edges are marked as boundary,
+	 * all points of other cells are either inside or outside, so cell is classified by the first point checked.
+	 */
+	private static class Raster {
+		static final byte UNKNOWN = 0;
+		static final byte INSIDE = 1;
+		static final byte OUTSIDE = 2;
+		static final byte BOUNDARY = 3;
+
+		final double minLat;
+		final double minLon;
+		final double cellHeight;
+		final double cellWidth;
+		final int rows;
+		final int cols;
+		final byte[] cells;
+
+		Raster(Multipolygon mp) {
+			int edges = 0;
+			for (Ring r : mp.outerRings) {
+				edges += r.getBorder().size();
+			}
+			for (Ring r : mp.innerRings) {
+				edges += r.getBorder().size();
+			}
+			int size = Math.max(1, Math.min(MAX_RASTER_SIZE, (int) Math.sqrt(edges) * 2));
+			minLat = mp.minLat;
+			minLon = mp.minLon;
+			rows = size;
+			cols = size;
+			cellHeight = ((double) mp.maxLat - mp.minLat) / rows;
+			cellWidth = ((double) mp.maxLon - mp.minLon) / cols;
+			cells = new byte[rows * cols];
+			markBoundary(mp.outerRings);
+			markBoundary(mp.innerRings);
+		}
+
+		private void markBoundary(List<Ring> rings) {
+			for (Ring r : rings) {
+				List<Node> border = r.getBorder();
+				for (int i = 0; i < border.size(); i++) {
+					Node a = border.get(i);
+					Node b = border.get(i == border.size() - 1 ? 0 : i + 1);
+					int r0 = row(Math.min(a.getLatitude(), b.getLatitude()));
+					int r1 = row(Math.max(a.getLatitude(), b.getLatitude()));
+					int c0 = col(Math.min(a.getLongitude(), b.getLongitude()));
+					int c1 = col(Math.max(a.getLongitude(), b.getLongitude()));
+					for (int y = r0; y <= r1; y++) {
+						for (int x = c0; x <= c1; x++) {
+							cells[y * cols + x] = BOUNDARY;
+						}
+					}
+				}
+			}
+		}
+
+		private int row(double lat) {
+			return cellHeight <= 0 ? 0 : Math.max(0, Math.min(rows - 1, (int) ((lat - minLat) / cellHeight)));
+		}
+
+		private int col(double lon) {
+			return cellWidth <= 0 ? 0 : Math.max(0, Math.min(cols - 1, (int) ((lon - minLon) / cellWidth)));
+		}
+
+		/**
+		 * @return index of cell or -1 if point is outside of grid
+		 */
+		int getCell(double lat, double lon) {
+			if (cellHeight <= 0 || cellWidth <= 0 || lat < minLat || lon < minLon
+					|| lat > minLat + cellHeight * rows || lon > minLon + cellWidth * cols) {
+				return -1;
+			}
+			return row(lat) * cols + col(lon);
+		}
+	}
+
 	public int countOuterPolygons() {
 		return zeroSizeIfNull(outerRings);
 	}
@@ -37,6 +37,11 @@ public class Ring implements Comparable<Ring> {
 	 */
 	private double area = -1;
 
+	/**
+	 * edges of the border by latitude bands, built on first check of a point
+	 */
+	private EdgeBands edgeBands;
+
 
 	/**
 	 * Construct a Ring with a list of ways
@@ -79,7 +84,12 @@ public class Ring implements Comparable<Ring> {
 	 * @return yes if the point is inside the ring
 	 */
 	public boolean containsPoint(double latitude, double longitude) {
-		return MapAlgorithms.containsPoint(getBorder(), latitude, longitude);
+		EdgeBands b = edgeBands;
+		if (b == null) {
+			b = new EdgeBands(getBorder());
+			edgeBands = b;
+		}
+		return b.containsPoint(latitude, longitude);
 	}
 
 	/**
@@ -219,6 +229,117 @@ public class Ring implements Comparable<Ring> {
 		return geometryFactory.createLinearRing(coordinates.toCoordinateArray());
 	}
 
+	/**
+	 * Ray casting (to the west as {@link MapAlgorithms#containsPoint(List, double, double)}, also counting the
+	 * edge between the last and the first node) which checks only edges crossing the latitude band of the point.
+	 */
+	private static final class EdgeBands {
+		private static final int MAX_BANDS = 1 << 12;
+
+		private final double[] lats;
+		private final double[] lons;
+		private final double minLat;
+		private final double maxLat;
+		private final double minLon;
+		private final double bandHeight;
+		// edges of band i are bandEdges[bandStarts[i] .. bandStarts[i + 1]),
+		// edge k connects nodes k and k + 1, the last edge connects first and last nodes
+		private final int[] bandStarts;
+		private final int[] bandEdges;
+
+		EdgeBands(List<Node> border) {
+			int n = border.size();
+			lats = new double[n];
+			lons = new double[n];
+			double minLt = 90, maxLt = -90, minLn = 180;
+			for (int i = 0; i < n; i++) {
+				Node node = border.get(i);
+				lats[i] = node.getLatitude();
+				lons[i] = node.getLongitude();
+				minLt = Math.min(minLt, lats[i]);
+				maxLt = Math.max(maxLt, lats[i]);
+				minLn = Math.min(minLn, lons[i]);
+			}
+			minLat = minLt;
+			maxLat = maxLt;
+			minLon = minLn;
+			int bands = Math.max(1, Math.min(MAX_BANDS, n / 8));
+			bandHeight = (maxLat - minLat) / bands;
+			bandStarts = new int[bands + 1];
+			for (int e = 0; e < n; e++) {
+				for (int b = band(edgeMinLat(e)); b <= band(edgeMaxLat(e)); b++) {
+					bandStarts[b + 1]++;
+				}
+			}
+			for (int b = 0; b < bands; b++) {
+				bandStarts[b + 1] += bandStarts[b];
+			}
+			bandEdges = new int[bandStarts[bands]];
+			int[] pos = new int[bands];
+			for (int e = 0; e < n; e++) {
+				for (int b = band(edgeMinLat(e)); b <= band(edgeMaxLat(e)); b++) {
+					bandEdges[bandStarts[b] + pos[b]++] = e;
+				}
+			}
+		}
+
+		private int band(double lat) {
+			if (bandHeight <= 0) {
+				return 0;
+			}
+			int b = (int) ((lat - minLat) / bandHeight);
+			return Math.max(0, Math.min(bandStarts.length - 2, b));
+		}
+
+		private int second(int e) {
+			return e == lats.length - 1 ? 0 : e + 1;
+		}
+
+		private double edgeMinLat(int e) {
+			return Math.min(lats[e], lats[second(e)]);
+		}
+
+		private double edgeMaxLat(int e) {
+			return Math.max(lats[e], lats[second(e)]);
+		}
+
+		boolean containsPoint(double latitude, double longitude) {
+			if (lats.length == 0 || latitude < minLat || latitude > maxLat || longitude < minLon) {
+				return false;
+			}
+			int b = band(latitude);
+			int intersections = 0;
+			for (int k = bandStarts[b]; k < bandStarts[b + 1]; k++) {
+				int e = bandEdges[k];
+				if (rayIntersects(e, second(e), latitude, longitude)) {
+					intersections++;
+				}
+			}
+			return intersections % 2 == 1;
+		}
+
+		private boolean rayIntersects(int node, int node2, double latitude, double longitude) {
+			// a node below, b node above
+			int a = lats[node] < lats[node2] ? node : node2;
+			int b = a == node2 ? node : node2;
+			if (latitude == lats[a] || latitude == lats[b]) {
+				latitude += 0.00000001d;
+			}
+			if (latitude < lats[a] || latitude > lats[b]) {
+				return false;
+			}
+			if (longitude < Math.min(lons[a], lons[b])) {
+				return false;
+			}
+			if (lons[a] == lons[b] && longitude == lons[a]) {
+				// the node on the boundary
+				return true;
+			}
+			double lon = lons[b] - (lats[b] - latitude) * (lons[b] - lons[a]) / (lats[b] - lats[a]);
+			return lon <= longitude;
+		}
+	}
+
 	/**
 	 * Use area size as comparable metric
 	 */
@@ -1,13 +1,27 @@
 package net.osmand.data.diff;
 
+import gnu.trove.list.array.TLongArrayList;
 import gnu.trove.map.hash.TLongObjectHashMap;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.Collections;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
 
+import net.osmand.ResultMatcher;
+import net.osmand.binary.BinaryIndexPart;
 import net.osmand.binary.BinaryMapDataObject;
+import net.osmand.binary.BinaryMapIndexReader;
 import net.osmand.binary.BinaryMapIndexReader.MapIndex;
+import net.osmand.binary.BinaryMapIndexReader.MapRoot;
+import net.osmand.binary.BinaryMapIndexReader.TagValuePair;
 import net.osmand.binary.MapZooms.MapZoomPair;
 import rtree.RTreeException;
 
@@ -51,43 +65,221 @@ public class ObfDiffGenerator {
 		generateDiff(start, end, result);
 	}
 
+	/**
+	 * Objects are not kept in memory: for every zoom start file is read into id-sorted fingerprints
+	 * (16 bytes per object), end file is streamed and only new or changed objects are kept,
+	 * then start file is read again to create deletion markers for ids missing in end file.
+	 */
 	private void generateDiff(File start, File end, File result) throws IOException, RTreeException {
-		ObfFileInMemory fStart = new ObfFileInMemory();
-		fStart.readObfFiles(Collections.singletonList(start));
-		ObfFileInMemory fEnd = new ObfFileInMemory();
-		fEnd.readObfFiles(Collections.singletonList(end));
-		// TODO Compare POI, Transport, Routing
-		// TODO compare zoom level 13-14 and pick up only area, point objects (not line objects!)
-		fStart.filterAllZoomsBelow(15);
-		fEnd.filterAllZoomsBelow(15);
-		MapIndex mi = fEnd.getMapIndex();
-		int deleteId = mi.decodingRules.size() + 1;
-		mi.initMapEncodingRule(0, deleteId, OSMAND_CHANGE_TAG, OSMAND_CHANGE_VALUE);
-		System.out.println("Comparing the files...");
-		for (MapZoomPair mz : fStart.getZooms()) {
-			TLongObjectHashMap<BinaryMapDataObject> startData = fStart.get(mz);
-			TLongObjectHashMap<BinaryMapDataObject> endData = fEnd.get(mz);
-			if (endData == null) {
-				continue;
+		File startFile = ObfFileInMemory.unpackIfGzip(start);
+		File endFile = ObfFileInMemory.unpackIfGzip(end);
+		RandomAccessFile startRaf = new RandomAccessFile(startFile, "r");
+		RandomAccessFile endRaf = new RandomAccessFile(endFile, "r");
+		try {
+			BinaryMapIndexReader startReader = new BinaryMapIndexReader(startRaf, startFile);
+			BinaryMapIndexReader endReader = new BinaryMapIndexReader(endRaf, endFile);
+			ObfFileInMemory fDiff = new ObfFileInMemory();
+			fDiff.updateTimestamp(endReader.getDateCreated());
+			// TODO Compare POI, Transport, Routing
+			// TODO compare zoom level 13-14 and pick up only area, point objects (not line objects!)
+			MapIndex mi = fDiff.getMapIndex();
+			int deleteId = mi.decodingRules.size() + 1;
+			mi.initMapEncodingRule(0, deleteId, OSMAND_CHANGE_TAG, OSMAND_CHANGE_VALUE);
+			Set<MapZoomPair> startZooms = getZooms(startReader, 15);
+			System.out.println("Comparing the files...");
+			for (MapZoomPair mz : getZooms(endReader, 15)) {
+				if (!startZooms.contains(mz)) {
+					compareZoom(fDiff, null, endReader, mz, deleteId);
+				} else {
+					compareZoom(fDiff, startReader, endReader, mz, deleteId);
+				}
+			}
+			System.out.println("Finished comparing.");
+			startReader.close();
+			endReader.close();
+			if (result.exists()) {
+				result.delete();
 			}
-			for (Long idx : startData.keys()) {
-				BinaryMapDataObject objE = endData.get(idx);
-				BinaryMapDataObject objS = startData.get(idx);
-				if (objE == null) {
-					// Object with this id is not present in the second obf
-					BinaryMapDataObject obj = new BinaryMapDataObject(idx, objS.getCoordinates(), null,
-							objS.getObjectType(), objS.isArea(), new int[] { deleteId }, null);
-					endData.put(idx, obj);
-				} else if (objE.compareBinary(objS)) {
-					endData.remove(idx);
+			fDiff.writeFile(result);
+		} finally {
+			startRaf.close();
+			endRaf.close();
+			if (startFile != start) {
+				startFile.delete();
+			}
+			if (endFile != end) {
+				endFile.delete();
+			}
+		}
+	}
+
+	private static Set<MapZoomPair> getZooms(BinaryMapIndexReader reader, int minZoom) {
+		Set<MapZoomPair> zooms = new LinkedHashSet<MapZoomPair>();
+		for (BinaryIndexPart p : reader.getIndexes()) {
+			if (p instanceof MapIndex) {
+				for (MapRoot mr : ((MapIndex) p).getRoots()) {
+					if (mr.getMaxZoom() >= minZoom) {
+						zooms.add(new MapZoomPair(mr.getMinZoom(), mr.getMaxZoom()));
+					}
+				}
+			}
+		}
+		return zooms;
+	}
+
+	private void compareZoom(final ObfFileInMemory fDiff, BinaryMapIndexReader startReader,
+			BinaryMapIndexReader endReader, final MapZoomPair mz, final int deleteId) throws IOException {
+		// fingerprints of start objects sorted by id
+		final TLongArrayList ids = new TLongArrayList();
+		final TLongArrayList fingerprints = new TLongArrayList();
+		if (startReader != null) {
+			fDiff.searchMapObjects(startReader, mz.getMinZoom(), new DiffMatcher() {
+				@Override
+				public boolean publish(BinaryMapDataObject obj) {
+					ids.add(obj.getId());
+					fingerprints.add(fingerprint(obj));
+					return false;
+				}
+			});
+		}
+		final long[] sortedIds = ids.toArray();
+		final long[] sortedFingerprints = fingerprints.toArray();
+		ids.clear(0);
+		fingerprints.clear(0);
+		sort(sortedIds, sortedFingerprints, 0, sortedIds.length - 1);
+		final BitSet present = new BitSet(sortedIds.length);
+		final List<BinaryMapDataObject> changed = new ArrayList<BinaryMapDataObject>();
+		fDiff.searchMapObjects(endReader, mz.getMinZoom(), new DiffMatcher() {
+			@Override
+			public boolean publish(BinaryMapDataObject obj) {
+				int i = Arrays.binarySearch(sortedIds, obj.getId());
+				if (i >= 0) {
+					present.set(i);
+					if (sortedFingerprints[i] == fingerprint(obj)) {
+						return false;
+					}
 				}
+				changed.add(obj);
+				return false;
 			}
+		});
+		fDiff.putMapObjects(mz, changed, true);
+		changed.clear();
+		if (startReader != null && present.cardinality() < sortedIds.length) {
+			final TLongObjectHashMap<BinaryMapDataObject> diffData = fDiff.get(mz);
+			fDiff.searchMapObjects(startReader, mz.getMinZoom(), new DiffMatcher() {
+				@Override
+				public boolean publish(BinaryMapDataObject objS) {
+					long idx = objS.getId();
+					int i = Arrays.binarySearch(sortedIds, idx);
+					if (i >= 0 && !present.get(i) && !diffData.containsKey(idx)) {
+						// Object with this id is not present in the second obf
+						BinaryMapDataObject obj = new BinaryMapDataObject(idx, objS.getCoordinates(), null,
+								objS.getObjectType(), objS.isArea(), new int[] { deleteId }, null);
+						diffData.put(idx, obj);
+					}
+					return false;
+				}
+			});
+		}
+	}
+
+	private abstract static class DiffMatcher implements ResultMatcher<BinaryMapDataObject> {
+		@Override
+		public boolean isCancelled() {
+			return false;
+		}
+	}
+
+	/**
+	 * Hash of geometry, types and names (types and names are compared by tag and value,
+	 * as encoding rules of two files are different)
+	 */
+	static long fingerprint(BinaryMapDataObject o) {
+		long h = mix(o.isArea() ? 1 : 2, o.getPointsLength());
+		for (int i = 0; i < o.getPointsLength(); i++) {
+			h = mix(h, ((long) o.getPoint31XTile(i) << 32) | (o.getPoint31YTile(i) & 0xffffffffL));
 		}
-		System.out.println("Finished comparing.");
-		if (result.exists()) {
-			result.delete();
+		int[][] inner = o.getPolygonInnerCoordinates();
+		if (inner != null) {
+			for (int[] ring : inner) {
+				h = mix(h, ring.length);
+				for (int c : ring) {
+					h = mix(h, c);
+				}
+			}
+		}
+		MapIndex mi = o.getMapIndex();
+		h = mix(h, typesHash(mi, o.getTypes()));
+		h = mix(h, typesHash(mi, o.getAdditionalTypes()));
+		long names = 0;
+		Map<Integer, String> objectNames = o.getOrderedObjectNames();
+		if (objectNames != null) {
+			for (Entry<Integer, String> e : objectNames.entrySet()) {
+				TagValuePair tv = mi.decodeType(e.getKey());
+				names += stringHash((tv == null ? "#" + e.getKey() : tv.tag) + "=" + e.getValue());
+			}
+		}
+		return mix(h, names);
+	}
+
+	private static long typesHash(MapIndex mi, int[] types) {
+		// order of types depends on encoding rules
+		long h = 0;
+		if (types != null) {
+			for (int t : types) {
+				TagValuePair tv = mi.decodeType(t);
+				h += stringHash(tv == null ? "#" + t : tv.tag + "=" + tv.value);
+			}
+		}
+		return h;
+	}
+
+	private static long stringHash(String s) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < s.length(); i++) {
+			h = (h ^ s.charAt(i)) * 0x100000001b3L;
+		}
+		return h;
+	}
+
+	private static long mix(long h, long v) {
+		h = (h ^ v) * 0x9E3779B97F4A7C15L;
+		return h ^ (h >>> 31);
+	}
+
+	private static void sort(long[] keys, long[] values, int lo, int hi) {
+		while (lo < hi) {
+			long pivot = keys[(lo + hi) >>> 1];
+			int i = lo;
+			int j = hi;
+			while (i <= j) {
+				while (keys[i] < pivot) {
+					i++;
+				}
+				while (keys[j] > pivot) {
+					j--;
+				}
+				if (i <= j) {
+					long k = keys[i];
+					keys[i] = keys[j];
+					keys[j] = k;
+					long v = values[i];
+					values[i] = values[j];
+					values[j] = v;
+					i++;
+					j--;
+				}
+			}
+			// recurse into smaller part
+			if (j - lo < hi - i) {
+				sort(keys, values, lo, j);
+				lo = i;
+			} else {
+				sort(keys, values, i, hi);
+				hi = j;
+			}
 		}
-		fEnd.writeFile(result);
 	}
 
 	
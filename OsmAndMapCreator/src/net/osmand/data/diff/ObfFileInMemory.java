@@ -215,21 +215,27 @@ public class ObfFileInMemory {
 		return timestamp;
 	}
 
+	/**
+	 * @return file itself or unpacked copy of gzipped file (should be deleted after use)
+	 */
+	public static File unpackIfGzip(File inputFile) throws IOException {
+		if (!inputFile.getName().endsWith(".gz")) {
+			return inputFile;
+		}
+		File nonGzip = new File(inputFile.getParentFile(), inputFile.getName().substring(0, inputFile.getName().length() - 3));
+		GZIPInputStream gzin = new GZIPInputStream(new FileInputStream(inputFile));
+		FileOutputStream fous = new FileOutputStream(nonGzip);
+		Algorithms.streamCopy(gzin, fous);
+		fous.close();
+		gzin.close();
+		return nonGzip;
+	}
+
 	public void readObfFiles(List<File> files) throws IOException {
 		// TODO READ POI, Routing, Transport
 		for (int i = 0; i < files.size(); i++) {
 			File inputFile = files.get(i);
-			File nonGzip = inputFile;
-			boolean gzip = false;
-			if(inputFile.getName().endsWith(".gz")) {
-				nonGzip = new File(inputFile.getParentFile(), inputFile.getName().substring(0, inputFile.getName().length() - 3));
-				GZIPInputStream gzin = new GZIPInputStream(new FileInputStream(inputFile));
-				FileOutputStream fous = new FileOutputStream(nonGzip);
-				Algorithms.streamCopy(gzin, fous);
-				fous.close();
-				gzin.close();
-				gzip = true;
-			}
+			File nonGzip = unpackIfGzip(inputFile);
 			RandomAccessFile raf = new RandomAccessFile(nonGzip, "r");
 			BinaryMapIndexReader indexReader = new BinaryMapIndexReader(raf, nonGzip);
 			for (BinaryIndexPart p : indexReader.getIndexes()) {
@@ -245,7 +251,7 @@ public class ObfFileInMemory {
 			updateTimestamp(indexReader.getDateCreated());
 			indexReader.close();
 			raf.close();
-			if(gzip) {
+			if (nonGzip != inputFile) {
 				nonGzip.delete();
 			}
 		}
@@ -253,6 +259,26 @@ public class ObfFileInMemory {
 
 	private TLongObjectHashMap<BinaryMapDataObject> getBinaryMapData(BinaryMapIndexReader index, int zoom) throws IOException {
 		final TLongObjectHashMap<BinaryMapDataObject> result = new TLongObjectHashMap<>();
+		searchMapObjects(index, zoom, new ResultMatcher<BinaryMapDataObject>() {
+			@Override
+			public boolean publish(BinaryMapDataObject obj) {
+				result.put(obj.getId(), obj);
+				return false;
+			}
+
+			@Override
+			public boolean isCancelled() {
+				return false;
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Passes all map objects of the zoom to the matcher without keeping them
+	 */
+	public void searchMapObjects(BinaryMapIndexReader index, int zoom, ResultMatcher<BinaryMapDataObject> matcher)
+			throws IOException {
 		for (BinaryIndexPart p : index.getIndexes()) {
 			if(p instanceof MapIndex) {
 				MapIndex m = ((MapIndex) p);
@@ -268,22 +294,10 @@ public class ObfFileInMemory {
 								return true;
 							}
 						},
-						new ResultMatcher<BinaryMapDataObject>() {
-							@Override
-							public boolean publish(BinaryMapDataObject obj) {
-								result.put(obj.getId(), obj);
-								return false;
-							}
-
-							@Override
-							public boolean isCancelled() {
-								return false;
-							}
-						});
+						matcher);
 				index.searchMapIndex(req, m);
 			} 
 		}
-		return result;
 	}
 	
 	private List<Amenity> getPoiData(BinaryMapIndexReader index) throws IOException {
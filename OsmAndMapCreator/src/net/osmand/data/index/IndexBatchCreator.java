@@ -14,6 +14,7 @@ import java.net.URL;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.Iterator;
@@ -56,6 +57,13 @@ import rtree.RTree;
 public class IndexBatchCreator {
 
 	private static final int INMEM_LIMIT = 2000;
+	// rough estimates of resources used by generation per MB of pbf data
+	private static final int ESTIMATE_BASE_HEAP_MB = 512;
+	private static final int ESTIMATE_HEAP_PER_MB = 3;
+	private static final int ESTIMATE_INMEM_DB_PER_MB = 10;
+	private static final int ESTIMATE_DISK_PER_MB = 12;
+	// uncompressed osm is ~10 times larger than pbf
+	private static final int OSM_XML_TO_PBF = 10;
 
 	protected static final Log log = PlatformUtil.getLog(IndexBatchCreator.class);
 
@@ -104,6 +112,14 @@ public class IndexBatchCreator {
 
 	private String renderingTypesFile;
 
+	private int parallelJobs = 1;
+	private long memoryBudgetMb = Runtime.getRuntime().maxMemory() >> 20;
+	private long diskBudgetMb = -1;
+	private IndexBatchScheduler scheduler;
+	// options of index creator (see IndexCreator.OPTIONS)
+	private Map<String, String> generationOptions = new LinkedHashMap<String, String>();
+	private File statisticsDir;
+
 
 	public static void main(String[] args) {
 		IndexBatchCreator creator = new IndexBatchCreator();
@@ -293,6 +309,30 @@ public class IndexBatchCreator {
 		}
 		renderingTypesFile = process.getAttribute("renderingTypesFile");
 
+		String sparallelJobs = process.getAttribute("parallelJobs");
+		if (sparallelJobs != null && sparallelJobs.length() > 0) {
+			parallelJobs = Integer.parseInt(sparallelJobs);
+		}
+		String smemoryBudget = process.getAttribute("memoryBudgetMb");
+		if (smemoryBudget != null && smemoryBudget.length() > 0) {
+			memoryBudgetMb = Long.parseLong(smemoryBudget);
+		}
+		String sdiskBudget = process.getAttribute("diskBudgetMb");
+		if (sdiskBudget != null && sdiskBudget.length() > 0) {
+			diskBudgetMb = Long.parseLong(sdiskBudget);
+		}
+
+		for (String option : IndexCreator.OPTIONS) {
+			String value = process.getAttribute(option);
+			if (value != null && value.length() > 0) {
+				generationOptions.put(option, value);
+			}
+		}
+		String sstatisticsDir = process.getAttribute("statisticsDir");
+		if (sstatisticsDir != null && sstatisticsDir.length() > 0) {
+			statisticsDir = new File(sstatisticsDir);
+		}
+
 		String osmDbDialect = process.getAttribute("osmDbDialect");
 		if(osmDbDialect != null && osmDbDialect.length() > 0){
 			try {
@@ -311,16 +351,66 @@ public class IndexBatchCreator {
 	}
 
 	public void runBatch(List<RegionCountries> countriesToDownload ){
-		Set<String> alreadyGeneratedFiles = new LinkedHashSet<String>();
-		if(!countriesToDownload.isEmpty()){
-			downloadFilesAndGenerateIndex(countriesToDownload, alreadyGeneratedFiles);
+		Set<String> alreadyGeneratedFiles = Collections.synchronizedSet(new LinkedHashSet<String>());
+		// be independent of previous results (jobs running concurrently use different rtree files)
+		RTree.clearCache();
+		long diskBudget = diskBudgetMb >= 0 ? diskBudgetMb : workDir.getUsableSpace() >> 20;
+		scheduler = new IndexBatchScheduler(parallelJobs, memoryBudgetMb, diskBudget);
+		try {
+			if(!countriesToDownload.isEmpty()){
+				downloadFilesAndGenerateIndex(countriesToDownload, alreadyGeneratedFiles);
+			}
+			generatedIndexes(alreadyGeneratedFiles);
+			scheduler.finish();
+		} catch (InterruptedException e) {
+			log.error("Batch generation is interrupted", e);
+		} finally {
+			scheduler = null;
+		}
+		log.info("GENERATING INDEXES FINISHED ");
+	}
+
+	/**
+	 * Generates index in a scheduler thread as soon as estimated resources are available
+	 * (index is generated in the calling thread if batch is not running)
+	 */
+	protected void scheduleIndex(final File file, final String rName, final RegionSpecificData rdata,
+			final Set<String> alreadyGeneratedFiles) throws InterruptedException {
+		if (scheduler == null) {
+			generateIndex(file, rName, rdata, alreadyGeneratedFiles);
+			return;
+		}
+		DBDialect osmDb = getOsmDbDialect(file);
+		long dataMb = file.length() >> 20;
+		if (file.getName().endsWith(".osm")) {
+			dataMb /= OSM_XML_TO_PBF;
+		}
+		long memoryMb = ESTIMATE_BASE_HEAP_MB + ESTIMATE_HEAP_PER_MB * dataMb;
+		long diskMb = ESTIMATE_DISK_PER_MB * dataMb;
+		if (osmDb == DBDialect.SQLITE_IN_MEMORY) {
+			memoryMb += ESTIMATE_INMEM_DB_PER_MB * dataMb;
 		}
-		generatedIndexes(alreadyGeneratedFiles);
+		alreadyGeneratedFiles.add(file.getName());
+		scheduler.submit(file.getName(), memoryMb, diskMb, new Runnable() {
+			@Override
+			public void run() {
+				generateIndex(file, rName, rdata, alreadyGeneratedFiles);
+			}
+		});
+	}
+
+	private DBDialect getOsmDbDialect(File file) {
+		DBDialect osmDb = this.osmDbDialect;
+		if(file.length() / 1024 / 1024 > INMEM_LIMIT && osmDb == DBDialect.SQLITE_IN_MEMORY) {
+			osmDb = DBDialect.SQLITE;
+		}
+		return osmDb;
 	}
 
 
 
-	protected void downloadFilesAndGenerateIndex(List<RegionCountries> countriesToDownload, Set<String> alreadyGeneratedFiles){
+	protected void downloadFilesAndGenerateIndex(List<RegionCountries> countriesToDownload, Set<String> alreadyGeneratedFiles)
+			throws InterruptedException {
 		// clean before downloading
 //		for(File f : osmDirFiles.listFiles()){
 //			log.info("Delete old file " + f.getName());  //$NON-NLS-1$
@@ -346,9 +436,10 @@ public class IndexBatchCreator {
 						continue;
 					}
 				}
+				// next region is downloaded while scheduled ones are generated
 				File toSave = downloadFile(url,  fileName);
 				if (toSave != null) {
-					generateIndex(toSave, regionName, regionSpecificData, alreadyGeneratedFiles);
+					scheduleIndex(toSave, regionName, regionSpecificData, alreadyGeneratedFiles);
 				}
 			}
 		}
@@ -456,7 +547,7 @@ public class IndexBatchCreator {
 		}
 	}
 
-	protected void generatedIndexes(Set<String> alreadyGeneratedFiles) {
+	protected void generatedIndexes(Set<String> alreadyGeneratedFiles) throws InterruptedException {
 		for (File f : getSortedFiles(osmDirFiles)) {
 			if (alreadyGeneratedFiles.contains(f.getName())) {
 				continue;
@@ -472,18 +563,19 @@ public class IndexBatchCreator {
 						continue;
 					}
 				}
-				generateIndex(f, null, null, alreadyGeneratedFiles);
+				scheduleIndex(f, null, null, alreadyGeneratedFiles);
 			}
 		}
-		log.info("GENERATING INDEXES FINISHED ");
 	}
 
 
 
 	protected void generateIndex(File file, String rName, RegionSpecificData rdata, Set<String> alreadyGeneratedFiles) {
 		try {
-			// be independent of previous results
-			RTree.clearCache();
+			if (scheduler == null) {
+				// be independent of previous results
+				RTree.clearCache();
+			}
 
 			String regionName = file.getName();
 			log.warn("-------------------------------------------");
@@ -497,10 +589,9 @@ public class IndexBatchCreator {
 			} else {
 				rName = Algorithms.capitalizeFirstLetterAndLowercase(rName);
 			}
-			DBDialect osmDb = this.osmDbDialect;
-			if(file.length() / 1024 / 1024 > INMEM_LIMIT && osmDb == DBDialect.SQLITE_IN_MEMORY) {
+			DBDialect osmDb = getOsmDbDialect(file);
+			if (osmDb != this.osmDbDialect) {
 				log.warn("Switching SQLITE in memory dialect to SQLITE");
-				osmDb = DBDialect.SQLITE;
 			}
 			IndexCreator indexCreator = new IndexCreator(workDir);
 			boolean worldMaps = rName.toLowerCase().contains("world") ;
@@ -534,6 +625,16 @@ public class IndexBatchCreator {
 
 			String mapFileName = regionName + "_" + IndexConstants.BINARY_MAP_VERSION + IndexConstants.BINARY_MAP_INDEX_EXT;
 			indexCreator.setMapFileName(mapFileName);
+			for (String option : generationOptions.keySet()) {
+				indexCreator.setOption(option, generationOptions.get(option));
+			}
+			if (statisticsDir != null) {
+				indexCreator.setStatisticsFile(new File(statisticsDir, mapFileName + ".stats.json"));
+			}
+			if (parallelJobs > 1) {
+				// regions generated concurrently in the same working directory
+				indexCreator.setNodesDBFile(new File(workDir, mapFileName + "." + IndexCreator.TEMP_NODES_DB));
+			}
 			try {
 				alreadyGeneratedFiles.add(file.getName());
 				Log warningsAboutMapData = null;
@@ -549,7 +650,7 @@ public class IndexBatchCreator {
 					fh = new FileHandler(logFileName.getAbsolutePath(), 10*1000*1000, 1, true);
 					fh.setFormatter(new SimpleFormatter());
 					fh.setLevel(Level.ALL);
-					Jdk14Logger jdk14Logger = new Jdk14Logger("tempLogger");
+					Jdk14Logger jdk14Logger = new Jdk14Logger("tempLogger." + mapFileName);
 					jdk14Logger.getLogger().setLevel(Level.ALL);
 					jdk14Logger.getLogger().setUseParentHandlers(false);
 					jdk14Logger.getLogger().addHandler(fh);
@@ -559,7 +660,8 @@ public class IndexBatchCreator {
 				} catch (IOException e1) {
 					e1.printStackTrace();
 				}
-				if (fh != null) {
+				// general log of concurrent jobs is not split between their logs
+				if (fh != null && parallelJobs <= 1) {
 					LogManager.getLogManager().getLogger("").addHandler(fh);
 				}
 				try {
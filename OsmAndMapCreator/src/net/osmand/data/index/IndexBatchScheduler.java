@@ -0,0 +1,96 @@
+package net.osmand.data.index;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import net.osmand.PlatformUtil;
+
+import org.apache.commons.logging.Log;
+
+/**
+ * Runs index generation jobs concurrently within memory and temporary disk budget.
+ * Job is admitted when its estimated usage fits into the budget left by running jobs,
+ * job exceeding the whole budget is admitted only when nothing else is running.
+ * {@link #submit(String, long, long, Runnable)} blocks the caller till job is admitted,
+ * so caller could prepare (download) the next job meanwhile running ones are generated.
+ */
+public class IndexBatchScheduler {
+
+	private static final Log log = PlatformUtil.getLog(IndexBatchScheduler.class);
+
+	private final int maxJobs;
+	private final long memoryBudgetMb;
+	private final long diskBudgetMb;
+	private final ExecutorService executor;
+
+	private int running;
+	private long memoryUsedMb;
+	private long diskUsedMb;
+
+	public IndexBatchScheduler(int maxJobs, long memoryBudgetMb, long diskBudgetMb) {
+		if (maxJobs < 1) {
+			throw new IllegalArgumentException("At least one job should run " + maxJobs);
+		}
+		this.maxJobs = maxJobs;
+		this.memoryBudgetMb = memoryBudgetMb;
+		this.diskBudgetMb = diskBudgetMb;
+		this.executor = Executors.newFixedThreadPool(maxJobs);
+	}
+
+	public int getMaxJobs() {
+		return maxJobs;
+	}
+
+	private boolean fits(long memoryMb, long diskMb) {
+		if (running == 0) {
+			return true;
+		}
+		return running < maxJobs && memoryUsedMb + memoryMb <= memoryBudgetMb && diskUsedMb + diskMb <= diskBudgetMb;
+	}
+
+	public void submit(final String name, final long memoryMb, final long diskMb, final Runnable job)
+			throws InterruptedException {
+		synchronized (this) {
+			while (!fits(memoryMb, diskMb)) {
+				wait();
+			}
+			running++;
+			memoryUsedMb += memoryMb;
+			diskUsedMb += diskMb;
+			log.info("Start " + name + " (estimated " + memoryMb + " MB heap, " + diskMb + " MB disk), running jobs "
+					+ running + ", used " + memoryUsedMb + " of " + memoryBudgetMb + " MB heap, " + diskUsedMb
+					+ " of " + diskBudgetMb + " MB disk");
+		}
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					job.run();
+				} catch (RuntimeException e) {
+					log.error("Job " + name + " failed", e);
+				} finally {
+					release(memoryMb, diskMb);
+				}
+			}
+		});
+	}
+
+	private synchronized void release(long memoryMb, long diskMb) {
+		running--;
+		memoryUsedMb -= memoryMb;
+		diskUsedMb -= diskMb;
+		notifyAll();
+	}
+
+	/**
+	 * Waits till all submitted jobs are finished and stops threads
+	 */
+	public void finish() throws InterruptedException {
+		synchronized (this) {
+			while (running > 0) {
+				wait();
+			}
+		}
+		executor.shutdown();
+	}
+}
@@ -14,6 +14,7 @@ import org.apache.commons.logging.LogFactory;
 import rtree.Element;
 import rtree.Pack;
 import rtree.RTree;
+import rtree.RTreeBulkLoader;
 import rtree.RTreeException;
 
 public class AbstractIndexPartCreator {
@@ -106,7 +107,7 @@ public class AbstractIndexPartCreator {
 			if (!nodeIsLastSubTree(tree, rootIndex)) {
 				// there is a bug for small files in packing method
 				new Pack().packTree(tree, packFileName);
-				tree.getFileHdr().getFile().close();
+				RTree.releaseFile(tree.getFileName());
 				file = new File(nonPackFileName);
 				file.delete();
 
@@ -118,4 +119,13 @@ public class AbstractIndexPartCreator {
 		}
 		return tree;
 	}
+
+	public static RTree buildRtreeFile(RTreeBulkLoader loader, String packFileName) throws IOException {
+		try {
+			return loader.build(packFileName);
+		} catch (RTreeException e) {
+			log.error("Error building rtree", e); //$NON-NLS-1$
+			throw new IOException(e);
+		}
+	}
 }
@@ -7,9 +7,11 @@ import gnu.trove.list.array.TLongArrayList;
 import gnu.trove.map.TIntObjectMap;
 
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -72,6 +74,7 @@ import net.osmand.data.preparation.IndexPoiCreator.PoiAdditionalType;
 import net.osmand.data.preparation.IndexPoiCreator.PoiCreatorCategories;
 import net.osmand.data.preparation.IndexPoiCreator.PoiTileBox;
 import net.osmand.osm.MapRenderingTypes.MapRulType;
+import net.osmand.osm.MapRoutingTypes;
 import net.osmand.osm.MapRoutingTypes.MapPointName;
 import net.osmand.osm.MapRoutingTypes.MapRouteType;
 import net.osmand.osm.edit.Node;
@@ -93,7 +96,10 @@ public class BinaryMapIndexWriter {
 	private static final boolean USE_DEPRECATED_POI_NAME_STRUCTURE = true;
 
 	private RandomAccessFile raf;
+	// null if coded stream is supplied
+	private BufferedFileOutput output;
 	private CodedOutputStream codedOutStream;
+	private final BinaryWriterStatistics stats = new BinaryWriterStatistics();
 
 	protected static final int SHIFT_COORDINATES = BinaryMapIndexReader.SHIFT_COORDINATES;
 	public int MASK_TO_READ = ~((1 << SHIFT_COORDINATES) - 1);
@@ -145,23 +151,8 @@ public class BinaryMapIndexWriter {
 
 	public BinaryMapIndexWriter(final RandomAccessFile raf, long timestamp) throws IOException {
 		this.raf = raf;
-		codedOutStream = CodedOutputStream.newInstance(new OutputStream() {
-			@Override
-			public void write(int b) throws IOException {
-				raf.write(b);
-			}
-
-			@Override
-			public void write(byte[] b) throws IOException {
-				raf.write(b);
-			}
-
-			@Override
-			public void write(byte[] b, int off, int len) throws IOException {
-				raf.write(b, off, len);
-			}
-
-		});
+		output = new BufferedFileOutput(raf);
+		codedOutStream = CodedOutputStream.newInstance(output);
 		codedOutStream.writeUInt32(OsmandOdb.OsmAndStructure.VERSION_FIELD_NUMBER, IndexConstants.BINARY_MAP_VERSION);
 		codedOutStream.writeInt64(OsmandOdb.OsmAndStructure.DATECREATED_FIELD_NUMBER, timestamp);
 		state.push(OSMAND_STRUCTURE_INIT);
@@ -184,6 +175,9 @@ public class BinaryMapIndexWriter {
 
 	public long getFilePointer() throws IOException {
 		codedOutStream.flush();
+		if (output != null) {
+			return output.getPosition();
+		}
 		return raf.getFilePointer();
 		// return codedOutStream.getWrittenBytes(); // doesn't work with route section rewrite (should not take into account)
 	}
@@ -192,24 +186,33 @@ public class BinaryMapIndexWriter {
 		return codedOutStream;
 	}
 
+	public BinaryWriterStatistics getStatistics() {
+		return stats;
+	}
+
+	private int writeReference(BinaryFileReference ref, long pointerToCalculateShiftTo) throws IOException {
+		if (output != null) {
+			return ref.writeReference(output, pointerToCalculateShiftTo);
+		}
+		codedOutStream.flush();
+		return ref.writeReference(raf, pointerToCalculateShiftTo);
+	}
+
 	private int writeInt32Size() throws IOException {
 		long filePointer = getFilePointer();
 		BinaryFileReference ref = stackSizes.pop();
-		codedOutStream.flush();
-		int length = ref.writeReference(raf, filePointer);
-		return length;
+		return writeReference(ref, filePointer);
 	}
 
 	private int prewriteInt32Size() throws IOException {
 		long filePointer = getFilePointer();
 		BinaryFileReference ref = stackSizes.peek();
-		codedOutStream.flush();
-		int length = ref.writeReference(raf, filePointer);
-		return length;
+		return writeReference(ref, filePointer);
 	}
 
 	public void startWriteMapIndex(String name) throws IOException {
 		pushState(MAP_INDEX_INIT, OSMAND_STRUCTURE_INIT);
+		stats.startSection("map");
 		codedOutStream.writeTag(OsmandOdb.OsmAndStructure.MAPINDEX_FIELD_NUMBER, WireFormat.WIRETYPE_FIXED32_LENGTH_DELIMITED);
 		preserveInt32Size();
 		if (name != null) {
@@ -220,11 +223,13 @@ public class BinaryMapIndexWriter {
 	public void endWriteMapIndex() throws IOException {
 		popState(MAP_INDEX_INIT);
 		int len = writeInt32Size();
+		stats.endSection("map", len);
 		log.info("MAP INDEX SIZE : " + len);
 	}
 
 	public void startWriteRouteIndex(String name) throws IOException {
 		pushState(ROUTE_INDEX_INIT, OSMAND_STRUCTURE_INIT);
+		stats.startSection("route");
 		codedOutStream.writeTag(OsmandOdb.OsmAndStructure.ROUTINGINDEX_FIELD_NUMBER, WireFormat.WIRETYPE_FIXED32_LENGTH_DELIMITED);
 		preserveInt32Size();
 		if (name != null) {
@@ -236,23 +241,21 @@ public class BinaryMapIndexWriter {
 	public void endWriteRouteIndex() throws IOException {
 		popState(ROUTE_INDEX_INIT);
 		int len = writeInt32Size();
-		log.info("- ROUTE TYPE SIZE SIZE " + BinaryMapIndexWriter.ROUTE_TYPES_SIZE); //$NON-NLS-1$
-		log.info("- ROUTE COORDINATES SIZE " + BinaryMapIndexWriter.ROUTE_COORDINATES_SIZE + " COUNT " + BinaryMapIndexWriter.ROUTE_COORDINATES_COUNT); //$NON-NLS-1$
-		log.info("- ROUTE POINTS SIZE " + BinaryMapIndexWriter.ROUTE_POINTS_SIZE);
-		log.info("- ROUTE STRING SIZE " + BinaryMapIndexWriter.ROUTE_STRING_DATA_SIZE); //$NON-NLS-1$
-		log.info("- ROUTE ID SIZE " + BinaryMapIndexWriter.ROUTE_ID_SIZE); //$NON-NLS-1$
-		log.info("-- ROUTE_DATA " + BinaryMapIndexWriter.ROUTE_DATA_SIZE); //$NON-NLS-1$
-		ROUTE_TYPES_SIZE = ROUTE_DATA_SIZE = ROUTE_POINTS_SIZE = ROUTE_ID_SIZE =
-				ROUTE_COORDINATES_COUNT = ROUTE_COORDINATES_SIZE = 0;
+		stats.endSection("route", len);
 		log.info("ROUTE INDEX SIZE : " + len);
 	}
 
 	public void simulateWriteEndRouteIndex() throws IOException {
 		checkPeekState(ROUTE_INDEX_INIT);
 		int len = prewriteInt32Size();
+		// sections are written again
+		stats.clearBlocks("route");
 		log.info("PREROUTE INDEX SIZE : " + len);
 	}
 
+	/**
+	 * Writer should be flushed before the file is accessed directly
+	 */
 	public RandomAccessFile getRaf() {
 		return raf;
 	}
@@ -277,6 +280,7 @@ public class BinaryMapIndexWriter {
 		popState(MAP_ROOT_LEVEL_INIT);
 		stackBounds.pop();
 		int len = writeInt32Size();
+		stats.addSize("map.levels", len, 1);
 		log.info("MAP level SIZE : " + len);
 	}
 
@@ -298,31 +302,59 @@ public class BinaryMapIndexWriter {
 	}
 
 	public void writeMapEncodingRules(Map<String, MapRulType> types) throws IOException {
+		writeMergedMapEncodingRules(Collections.singletonList(types));
+	}
+
+	/**
+	 * Writes rules of several encoders (shards of one region) as one table,
+	 * rules with the same key get the same target id and summary frequency
+	 */
+	public void writeMergedMapEncodingRules(List<Map<String, MapRulType>> typesList) throws IOException {
 		checkPeekState(MAP_INDEX_INIT);
 
-		ArrayList<MapRulType> out = new ArrayList<MapRulType>();
+		Map<String, List<MapRulType>> types = new LinkedHashMap<String, List<MapRulType>>();
+		final Map<String, Integer> freqs = new HashMap<String, Integer>();
+		for (Map<String, MapRulType> m : typesList) {
+			for (Entry<String, MapRulType> e : m.entrySet()) {
+				List<MapRulType> rules = types.get(e.getKey());
+				if (rules == null) {
+					rules = new ArrayList<MapRulType>();
+					types.put(e.getKey(), rules);
+					freqs.put(e.getKey(), 0);
+				}
+				rules.add(e.getValue());
+				freqs.put(e.getKey(), freqs.get(e.getKey()) + e.getValue().getFreq());
+			}
+		}
+		ArrayList<String> out = new ArrayList<String>();
 		int highestTargetId = types.size();
 		// 1. prepare map rule type to write
-		for (MapRulType t : types.values()) {
-			if (t.getFreq() == 0 || !t.isMap()) {
-				t.setTargetId(highestTargetId++);
+		for (Entry<String, List<MapRulType>> e : types.entrySet()) {
+			if (freqs.get(e.getKey()) == 0 || !e.getValue().get(0).isMap()) {
+				int targetId = highestTargetId++;
+				for (MapRulType t : e.getValue()) {
+					t.setTargetId(targetId);
+				}
 			} else {
-				out.add(t);
+				out.add(e.getKey());
 			}
 		}
 
 		// 2. sort by frequency and assign ids
-		Collections.sort(out, new Comparator<MapRulType>() {
+		Collections.sort(out, new Comparator<String>() {
 			@Override
-			public int compare(MapRulType o1, MapRulType o2) {
-				return o2.getFreq() - o1.getFreq();
+			public int compare(String o1, String o2) {
+				return freqs.get(o2) - freqs.get(o1);
 			}
 		});
 
 		for (int i = 0; i < out.size(); i++) {
 			MapEncodingRule.Builder builder = OsmandOdb.OsmAndMapIndex.MapEncodingRule.newBuilder();
-			MapRulType rule = out.get(i);
-			rule.setTargetId(i + 1);
+			List<MapRulType> rules = types.get(out.get(i));
+			for (MapRulType t : rules) {
+				t.setTargetId(i + 1);
+			}
+			MapRulType rule = rules.get(0);
 
 			builder.setTag(rule.getTag());
 			if (rule.getValue() != null) {
@@ -340,21 +372,47 @@ public class BinaryMapIndexWriter {
 	}
 
 	public void writeRouteEncodingRules(List<MapRouteType> types) throws IOException {
+		writeMergedRouteEncodingRules(Collections.singletonList(types));
+	}
+
+	/**
+	 * Writes route rules of several creators (shards of one region) as one table,
+	 * rules with the same tag and value get the same target id and summary frequency
+	 */
+	public void writeMergedRouteEncodingRules(List<List<MapRouteType>> typesList) throws IOException {
 		checkPeekState(ROUTE_INDEX_INIT);
 
-		ArrayList<MapRouteType> out = new ArrayList<MapRouteType>(types);
+		Map<String, List<MapRouteType>> types = new LinkedHashMap<String, List<MapRouteType>>();
+		final Map<String, Integer> freqs = new HashMap<String, Integer>();
+		for (List<MapRouteType> l : typesList) {
+			for (MapRouteType t : l) {
+				String key = MapRoutingTypes.constructRuleKey(t.getTag(), t.getValue());
+				List<MapRouteType> rules = types.get(key);
+				if (rules == null) {
+					rules = new ArrayList<MapRouteType>();
+					types.put(key, rules);
+					freqs.put(key, 0);
+				}
+				rules.add(t);
+				freqs.put(key, freqs.get(key) + t.getFreq());
+			}
+		}
+		ArrayList<String> out = new ArrayList<String>(types.keySet());
 		// 2. sort by frequency and assign ids
-		Collections.sort(out, new Comparator<MapRouteType>() {
+		Collections.sort(out, new Comparator<String>() {
 			@Override
-			public int compare(MapRouteType o1, MapRouteType o2) {
-				return o2.getFreq() - o1.getFreq();
+			public int compare(String o1, String o2) {
+				return freqs.get(o2) - freqs.get(o1);
 			}
 		});
 
 		for (int i = 0; i < out.size(); i++) {
 			RouteEncodingRule.Builder builder = OsmandOdb.OsmAndRoutingIndex.RouteEncodingRule.newBuilder();
-			MapRouteType rule = out.get(i);
-			rule.setTargetId(i + 1);
+			List<MapRouteType> rules = types.get(out.get(i));
+			for (MapRouteType t : rules) {
+				t.setTargetId(i + 1);
+			}
+			MapRouteType rule = rules.get(0);
 
 			builder.setTag(rule.getTag());
 			if (rule.getValue() != null) {
@@ -453,22 +511,6 @@ public class BinaryMapIndexWriter {
 		writeInt32Size();
 	}
 
-	// debug data about size of map index
-	public static int COORDINATES_SIZE = 0;
-	public static int COORDINATES_COUNT = 0;
-	public static int ID_SIZE = 0;
-	public static int TYPES_SIZE = 0;
-	public static int MAP_DATA_SIZE = 0;
-	public static int STRING_TABLE_SIZE = 0;
-
-	public static int ROUTE_ID_SIZE = 0;
-	public static int ROUTE_TYPES_SIZE = 0;
-	public static int ROUTE_COORDINATES_SIZE = 0;
-	public static int ROUTE_COORDINATES_COUNT = 0;
-	public static int ROUTE_POINTS_SIZE = 0;
-	public static int ROUTE_DATA_SIZE = 0;
-	public static int ROUTE_STRING_DATA_SIZE = 0;
-
 	public MapDataBlock.Builder createWriteMapDataBlock(long baseid) throws IOException {
 		MapDataBlock.Builder builder = MapDataBlock.newBuilder();
 		builder.setBaseId(baseid);
@@ -486,14 +528,13 @@ public class BinaryMapIndexWriter {
 			StringTable st = bs.build();
 			builder.setStringTable(st);
 			int size = st.getSerializedSize();
-			ROUTE_STRING_DATA_SIZE += CodedOutputStream.computeTagSize(OsmandOdb.MapDataBlock.STRINGTABLE_FIELD_NUMBER)
-					+ CodedOutputStream.computeRawVarint32Size(size) + size;
+			stats.addSize("route.strings", CodedOutputStream.computeTagSize(OsmandOdb.MapDataBlock.STRINGTABLE_FIELD_NUMBER)
+					+ CodedOutputStream.computeRawVarint32Size(size) + size);
 		}
 		codedOutStream.writeTag(OsmAndMapIndex.MapRootLevel.BLOCKS_FIELD_NUMBER, FieldType.MESSAGE.getWireType());
-		codedOutStream.flush();
-		ref.writeReference(raf, getFilePointer());
+		writeReference(ref, getFilePointer());
 		RouteDataBlock block = builder.build();
-		ROUTE_DATA_SIZE += block.getSerializedSize();
+		stats.addSize("route.blocks", block.getSerializedSize(), 1);
 		codedOutStream.writeMessageNoTag(block);
 	}
 
@@ -524,25 +565,24 @@ public class BinaryMapIndexWriter {
 			Map<MapRouteType, String> names, Map<String, Integer> stringTable, List<MapPointName> pointNames, RouteDataBlock.Builder dataBlock,
 			boolean allowCoordinateSimplification, boolean writePointId)
 			throws IOException {
+		long startNanos = System.nanoTime();
 		RouteData.Builder builder = RouteData.newBuilder();
 		builder.setRouteId(diffId);
-		ROUTE_ID_SIZE += CodedOutputStream.computeInt64Size(RouteData.ROUTEID_FIELD_NUMBER, diffId);
+		stats.addSize("route.ids", CodedOutputStream.computeInt64Size(RouteData.ROUTEID_FIELD_NUMBER, diffId));
 		// types
 		mapDataBuf.clear();
 		for (int i = 0; i < types.length; i++) {
 			writeRawVarint32(mapDataBuf, types[i]);
 		}
 		builder.setTypes(ByteString.copyFrom(mapDataBuf.toArray()));
-		ROUTE_TYPES_SIZE += CodedOutputStream.computeTagSize(RouteData.TYPES_FIELD_NUMBER)
-				+ CodedOutputStream.computeRawVarint32Size(mapDataBuf.size()) + mapDataBuf.size();
+		stats.addSize("route.types", CodedOutputStream.computeTagSize(RouteData.TYPES_FIELD_NUMBER)
+				+ CodedOutputStream.computeRawVarint32Size(mapDataBuf.size()) + mapDataBuf.size());
 		// coordinates and point types
 		int pcalcx = pleft >> ROUTE_SHIFT_COORDINATES;
 		int pcalcy = ptop >> ROUTE_SHIFT_COORDINATES;
 		mapDataBuf.clear();
 		typesDataBuf.clear();
 		for (int k = 0; k < points.length; k++) {
-			ROUTE_COORDINATES_COUNT++;
-
 			int tx = (points[k].x >> ROUTE_SHIFT_COORDINATES) - pcalcx;
 			int ty = (points[k].y >> ROUTE_SHIFT_COORDINATES) - pcalcy;
 			writeRawVarint32(mapDataBuf, CodedOutputStream.encodeZigZag32(tx));
@@ -560,11 +600,11 @@ public class BinaryMapIndexWriter {
 			}
 		}
 		builder.setPoints(ByteString.copyFrom(mapDataBuf.toArray()));
-		ROUTE_COORDINATES_SIZE += CodedOutputStream.computeTagSize(RouteData.POINTS_FIELD_NUMBER)
-				+ CodedOutputStream.computeRawVarint32Size(mapDataBuf.size()) + mapDataBuf.size();
+		stats.addSize("route.coordinates", CodedOutputStream.computeTagSize(RouteData.POINTS_FIELD_NUMBER)
+				+ CodedOutputStream.computeRawVarint32Size(mapDataBuf.size()) + mapDataBuf.size(), points.length);
 		builder.setPointTypes(ByteString.copyFrom(typesDataBuf.toArray()));
-		ROUTE_TYPES_SIZE += CodedOutputStream.computeTagSize(RouteData.POINTTYPES_FIELD_NUMBER)
-				+ CodedOutputStream.computeRawVarint32Size(typesDataBuf.size()) + typesDataBuf.size();
+		stats.addSize("route.pointTypes", CodedOutputStream.computeTagSize(RouteData.POINTTYPES_FIELD_NUMBER)
+				+ CodedOutputStream.computeRawVarint32Size(typesDataBuf.size()) + typesDataBuf.size());
 
 		if (pointNames.size() > 0) {
 			mapDataBuf.clear();
@@ -578,7 +618,7 @@ public class BinaryMapIndexWriter {
 				}
 				writeRawVarint32(mapDataBuf, ls);
 			}
-			ROUTE_STRING_DATA_SIZE += mapDataBuf.size();
+			stats.addSize("route.strings", mapDataBuf.size());
 			builder.setPointNames(ByteString.copyFrom(mapDataBuf.toArray()));
 		}
 
@@ -593,11 +633,12 @@ public class BinaryMapIndexWriter {
 				}
 				writeRawVarint32(mapDataBuf, ls);
 			}
-			ROUTE_STRING_DATA_SIZE += mapDataBuf.size();
+			stats.addSize("route.strings", mapDataBuf.size());
 			builder.setStringNames(ByteString.copyFrom(mapDataBuf.toArray()));
 		}
-
-		return builder.build();
+		RouteData data = builder.build();
+		stats.addObject("route.data", data.getSerializedSize(), startNanos);
+		return data;
 	}
 
 	public void writeMapDataBlock(MapDataBlock.Builder builder, Map<String, Integer> stringTable, BinaryFileReference ref)
@@ -613,15 +654,14 @@ public class BinaryMapIndexWriter {
 		StringTable st = bs.build();
 		builder.setStringTable(st);
 		int size = st.getSerializedSize();
-		STRING_TABLE_SIZE += CodedOutputStream.computeTagSize(OsmandOdb.MapDataBlock.STRINGTABLE_FIELD_NUMBER)
-				+ CodedOutputStream.computeRawVarint32Size(size) + size;
+		stats.addSize("map.strings", CodedOutputStream.computeTagSize(OsmandOdb.MapDataBlock.STRINGTABLE_FIELD_NUMBER)
+				+ CodedOutputStream.computeRawVarint32Size(size) + size);
 
 		codedOutStream.writeTag(OsmAndMapIndex.MapRootLevel.BLOCKS_FIELD_NUMBER, FieldType.MESSAGE.getWireType());
 
-		codedOutStream.flush();
-		ref.writeReference(raf, getFilePointer());
+		writeReference(ref, getFilePointer());
 		MapDataBlock block = builder.build();
-		MAP_DATA_SIZE += block.getSerializedSize();
+		stats.addSize("map.blocks", block.getSerializedSize(), 1);
 		codedOutStream.writeMessageNoTag(block);
 	}
 
@@ -633,6 +673,7 @@ public class BinaryMapIndexWriter {
 			int[] addtypeUse, Map<MapRulType, String> names, Map<Integer, String> namesDiff, Map<String, Integer> stringTable, MapDataBlock.Builder dataBlock,
 			boolean allowCoordinateSimplification)
 			throws IOException {
+		long startNanos = System.nanoTime();
 		MapData.Builder data = MapData.newBuilder();
 		// calculate size
 		mapDataBuf.clear();
@@ -654,8 +695,8 @@ public class BinaryMapIndexWriter {
 				delta = skipSomeNodes(coordinates, len, i, x, y, false);
 			}
 		}
-		COORDINATES_SIZE += CodedOutputStream.computeRawVarint32Size(mapDataBuf.size())
-				+ CodedOutputStream.computeTagSize(MapData.COORDINATES_FIELD_NUMBER) + mapDataBuf.size();
+		stats.addSize("map.coordinates", CodedOutputStream.computeRawVarint32Size(mapDataBuf.size())
+				+ CodedOutputStream.computeTagSize(MapData.COORDINATES_FIELD_NUMBER) + mapDataBuf.size(), len);
 		if (area) {
 			data.setAreaCoordinates(ByteString.copyFrom(mapDataBuf.toArray()));
 		} else {
@@ -699,15 +740,16 @@ public class BinaryMapIndexWriter {
 			writeRawVarint32(mapDataBuf, typeUse[i]);
 		}
 		data.setTypes(ByteString.copyFrom(mapDataBuf.toArray()));
-		TYPES_SIZE += CodedOutputStream.computeTagSize(OsmandOdb.MapData.TYPES_FIELD_NUMBER)
-				+ CodedOutputStream.computeRawVarint32Size(mapDataBuf.size()) + mapDataBuf.size();
+		stats.addSize("map.types", CodedOutputStream.computeTagSize(OsmandOdb.MapData.TYPES_FIELD_NUMBER)
+				+ CodedOutputStream.computeRawVarint32Size(mapDataBuf.size()) + mapDataBuf.size());
 		if (addtypeUse != null && addtypeUse.length > 0) {
 			mapDataBuf.clear();
 			for (int i = 0; i < addtypeUse.length; i++) {
 				writeRawVarint32(mapDataBuf, addtypeUse[i]);
 			}
 			data.setAdditionalTypes(ByteString.copyFrom(mapDataBuf.toArray()));
-			TYPES_SIZE += CodedOutputStream.computeTagSize(OsmandOdb.MapData.ADDITIONALTYPES_FIELD_NUMBER);
+			stats.addSize("map.types", CodedOutputStream.computeTagSize(OsmandOdb.MapData.ADDITIONALTYPES_FIELD_NUMBER)
+					+ CodedOutputStream.computeRawVarint32Size(mapDataBuf.size()) + mapDataBuf.size());
 		}
 
 		mapDataBuf.clear();
@@ -733,12 +775,14 @@ public class BinaryMapIndexWriter {
 				writeRawVarint32(mapDataBuf, ls);
 			}
 		}
-		STRING_TABLE_SIZE += mapDataBuf.size();
+		stats.addSize("map.strings", mapDataBuf.size());
 		data.setStringNames(ByteString.copyFrom(mapDataBuf.toArray()));
 
 		data.setId(diffId);
-		ID_SIZE += CodedOutputStream.computeSInt64Size(OsmandOdb.MapData.ID_FIELD_NUMBER, diffId);
-		return data.build();
+		stats.addSize("map.ids", CodedOutputStream.computeSInt64Size(OsmandOdb.MapData.ID_FIELD_NUMBER, diffId));
+		MapData res = data.build();
+		stats.addObject("map.data", res.getSerializedSize(), startNanos);
+		return res;
 	}
 
 	public static class RoutePointToWrite {
@@ -783,6 +827,7 @@ public class BinaryMapIndexWriter {
 
 	public void startWriteAddressIndex(String name, Collection<String> additionalTags) throws IOException {
 		pushState(ADDRESS_INDEX_INIT, OSMAND_STRUCTURE_INIT);
+		stats.startSection("address");
 		codedOutStream.writeTag(OsmandOdb.OsmAndStructure.ADDRESSINDEX_FIELD_NUMBER, WireFormat.WIRETYPE_FIXED32_LENGTH_DELIMITED);
 		preserveInt32Size();
 
@@ -801,6 +846,7 @@ public class BinaryMapIndexWriter {
 	public void endWriteAddressIndex() throws IOException {
 		popState(ADDRESS_INDEX_INIT);
 		int len = writeInt32Size();
+		stats.endSection("address", len);
 		log.info("ADDRESS INDEX SIZE : " + len);
 	}
 
@@ -815,10 +861,9 @@ public class BinaryMapIndexWriter {
 			BinaryFileReference ref = res.get(entry.getKey());
 
 			codedOutStream.writeTag(OsmAndAddressNameIndexData.ATOM_FIELD_NUMBER, FieldType.MESSAGE.getWireType());
-			codedOutStream.flush();
 			long pointer = getFilePointer();
 			if (ref != null) {
-				ref.writeReference(raf, getFilePointer());
+				writeReference(ref, pointer);
 			}
 			AddressNameIndexData.Builder builder = AddressNameIndexData.newBuilder();
 			// collapse same name ?
@@ -857,6 +902,7 @@ public class BinaryMapIndexWriter {
 		}
 
 		int len = writeInt32Size();
+		stats.addSize("address.names", len, 1);
 		log.info("ADDRESS NAME INDEX SIZE : " + len);
 	}
 
@@ -902,7 +948,6 @@ public class BinaryMapIndexWriter {
 		cityInd.setY(cy);
 		cityInd.setShiftToCityBlockIndex(0);
 		codedOutStream.writeMessageNoTag(cityInd.build());
-		codedOutStream.flush();
 		return BinaryFileReference.createShiftReference(getFilePointer() - 4, startMessage);
 
 	}
@@ -911,10 +956,9 @@ public class BinaryMapIndexWriter {
 			BinaryFileReference ref, Map<String, Integer> tagRules) throws IOException {
 		checkPeekState(CITY_INDEX_INIT);
 		codedOutStream.writeTag(CitiesIndex.BLOCKS_FIELD_NUMBER, FieldType.MESSAGE.getWireType());
-		codedOutStream.flush();
 		long startMessage = getFilePointer();
 		long startCityBlock = ref.getStartPointer();
-		ref.writeReference(raf, startMessage);
+		writeReference(ref, startMessage);
 		CityBlockIndex.Builder cityInd = OsmandOdb.CityBlockIndex.newBuilder();
 		cityInd.setShiftToCityIndex((int) (startMessage - startCityBlock));
 		long currentPointer = startMessage + 4 + CodedOutputStream.computeTagSize(CityBlockIndex.SHIFTTOCITYINDEX_FIELD_NUMBER);
@@ -962,6 +1006,7 @@ public class BinaryMapIndexWriter {
 	public void endCityBlockIndex() throws IOException {
 		popState(CITY_INDEX_INIT);
 		int length = writeInt32Size();
+		stats.addSize("address.cities", length, 1);
 		log.info("CITIES size " + length);
 	}
 
@@ -1106,6 +1151,7 @@ public class BinaryMapIndexWriter {
 
 	public void startWriteTransportIndex(String name) throws IOException {
 		pushState(TRANSPORT_INDEX_INIT, OSMAND_STRUCTURE_INIT);
+		stats.startSection("transport");
 		codedOutStream.writeTag(OsmandOdb.OsmAndStructure.TRANSPORTINDEX_FIELD_NUMBER, WireFormat.WIRETYPE_FIXED32_LENGTH_DELIMITED);
 		stackBounds.push(new Bounds(0, 0, 0, 0)); // for transport stops tree
 		preserveInt32Size();
@@ -1118,6 +1164,7 @@ public class BinaryMapIndexWriter {
 		popState(TRANSPORT_INDEX_INIT);
 		int len = writeInt32Size();
 		stackBounds.pop();
+		stats.endSection("transport", len);
 		log.info("TRANSPORT INDEX SIZE : " + len);
 	}
 
@@ -1314,6 +1361,7 @@ public class BinaryMapIndexWriter {
 
 	public long startWritePoiIndex(String name, int left31, int right31, int bottom31, int top31) throws IOException {
 		pushState(POI_INDEX_INIT, OSMAND_STRUCTURE_INIT);
+		stats.startSection("poi");
 		codedOutStream.writeTag(OsmandOdb.OsmAndStructure.POIINDEX_FIELD_NUMBER, WireFormat.WIRETYPE_FIXED32_LENGTH_DELIMITED);
 		stackBounds.push(new Bounds(0, 0, 0, 0)); // for poi index tree
 		preserveInt32Size();
@@ -1334,6 +1382,7 @@ public class BinaryMapIndexWriter {
 		popState(POI_INDEX_INIT);
 		int len = writeInt32Size();
 		stackBounds.pop();
+		stats.endSection("poi", len);
 		log.info("POI INDEX SIZE : " + len);
 	}
 
@@ -1428,8 +1477,7 @@ public class BinaryMapIndexWriter {
 		for (Map.Entry<String, Set<PoiTileBox>> e : namesIndex.entrySet()) {
 			codedOutStream.writeTag(OsmandOdb.OsmAndPoiNameIndex.DATA_FIELD_NUMBER, FieldType.MESSAGE.getWireType());
 			BinaryFileReference nameTableRef = indexedTable.get(e.getKey());
-			codedOutStream.flush();
-			nameTableRef.writeReference(raf, getFilePointer());
+			writeReference(nameTableRef, getFilePointer());
 
 			OsmAndPoiNameIndex.OsmAndPoiNameIndexData.Builder builder = OsmAndPoiNameIndex.OsmAndPoiNameIndexData.newBuilder();
 			List<PoiTileBox> tileBoxes = new ArrayList<PoiTileBox>(e.getValue());
@@ -1581,10 +1629,9 @@ public class BinaryMapIndexWriter {
 		codedOutStream.writeTag(OsmandOdb.OsmAndPoiIndex.POIDATA_FIELD_NUMBER, WireFormat.WIRETYPE_FIXED32_LENGTH_DELIMITED);
 		long pointer = getFilePointer();
 		preserveInt32Size();
-		codedOutStream.flush();
 		// write shift to that data
 		for (int i = 0; i < fpPoiBox.size(); i++) {
-			fpPoiBox.get(i).writeReference(raf, pointer);
+			writeReference(fpPoiBox.get(i), pointer);
 		}
 
 		codedOutStream.writeUInt32(OsmandOdb.OsmAndPoiBoxData.ZOOM_FIELD_NUMBER, zoom);
@@ -1661,17 +1708,54 @@ public class BinaryMapIndexWriter {
 
 	public void flush() throws IOException {
 		codedOutStream.flush();
+		if (output != null) {
+			output.flush();
+		}
+	}
+
+	/**
+	 * Appends index sections [start, end) of binary file written by another writer.
+	 * All pointers inside sections are relative, so they are copied as is.
+	 */
+	public void writeRawSections(File file, long start, long end) throws IOException {
+		RandomAccessFile src = new RandomAccessFile(file, "r");
+		try {
+			writeRawSections(src.getChannel(), file.getName(), start, end);
+		} finally {
+			src.close();
+		}
+	}
+
+	/**
+	 * Copies bytes [start, end) of the channel (channel position is not changed) without buffering them in memory
+	 */
+	public void writeRawSections(FileChannel in, String name, long start, long end) throws IOException {
+		checkPeekState(OSMAND_STRUCTURE_INIT);
+		flush();
+		FileChannel out = raf.getChannel();
+		long pointer = raf.getFilePointer();
+		long length = end - start;
+		long written = 0;
+		out.position(pointer);
+		while (written < length) {
+			long w = in.transferTo(start + written, length - written, out);
+			if (w <= 0) {
+				throw new EOFException("Unexpected end of " + name);
+			}
+			written += w;
+		}
+		raf.seek(pointer + length);
 	}
 
 	public void close() throws IOException {
 		checkPeekState(OSMAND_STRUCTURE_INIT);
 		codedOutStream.writeInt32(OsmandOdb.OsmAndStructure.VERSIONCONFIRM_FIELD_NUMBER, IndexConstants.BINARY_MAP_VERSION);
-		codedOutStream.flush();
+		flush();
 	}
 
 	public void preclose() throws IOException {
 		codedOutStream.writeInt32(OsmandOdb.OsmAndStructure.VERSIONCONFIRM_FIELD_NUMBER, IndexConstants.BINARY_MAP_VERSION);
-		codedOutStream.flush();
+		flush();
 	}
 
 }
@@ -0,0 +1,144 @@
+package net.osmand.data.preparation;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.apache.commons.logging.Log;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Bytes, object counts and encoding time of sections and blocks written by one {@link BinaryMapIndexWriter}.
+ * Keys are names of sections with blocks separated by dot ("map", "map.coordinates").
+ * Not thread safe, every writer has its own statistics.
+ */
+public class BinaryWriterStatistics {
+
+	public static class Metric {
+		private long bytes;
+		private long count;
+		private long nanos;
+
+		public long getBytes() {
+			return bytes;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public long getTimeMs() {
+			return nanos / 1000000;
+		}
+	}
+
+	private final Map<String, Metric> metrics = new LinkedHashMap<String, Metric>();
+	private final Map<String, Long> started = new HashMap<String, Long>();
+
+	public Metric get(String key) {
+		Metric m = metrics.get(key);
+		if (m == null) {
+			m = new Metric();
+			metrics.put(key, m);
+		}
+		return m;
+	}
+
+	public Map<String, Metric> getMetrics() {
+		return metrics;
+	}
+
+	public void addSize(String key, long bytes) {
+		get(key).bytes += bytes;
+	}
+
+	public void addSize(String key, long bytes, long count) {
+		Metric m = get(key);
+		m.bytes += bytes;
+		m.count += count;
+	}
+
+	/**
+	 * Counts object encoded since startNanos ({@link System#nanoTime()})
+	 */
+	public void addObject(String key, long bytes, long startNanos) {
+		Metric m = get(key);
+		m.bytes += bytes;
+		m.count++;
+		m.nanos += System.nanoTime() - startNanos;
+	}
+
+	public void startSection(String section) {
+		started.put(section, System.nanoTime());
+	}
+
+	public void endSection(String section, long bytes) {
+		Long start = started.remove(section);
+		addObject(section, bytes, start == null ? System.nanoTime() : start);
+	}
+
+	/**
+	 * Removes metrics of the section blocks (section is written again)
+	 */
+	public void clearBlocks(String section) {
+		Iterator<String> it = metrics.keySet().iterator();
+		while (it.hasNext()) {
+			if (it.next().startsWith(section + ".")) {
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Adds metrics of sections written by another writer
+	 */
+	public void merge(BinaryWriterStatistics other) {
+		for (Entry<String, Metric> e : other.metrics.entrySet()) {
+			Metric m = get(e.getKey());
+			m.bytes += e.getValue().bytes;
+			m.count += e.getValue().count;
+			m.nanos += e.getValue().nanos;
+		}
+	}
+
+	public JSONObject toJSON() {
+		try {
+			JSONObject res = new JSONObject();
+			for (Entry<String, Metric> e : metrics.entrySet()) {
+				JSONObject m = new JSONObject();
+				m.put("bytes", e.getValue().getBytes());
+				m.put("count", e.getValue().getCount());
+				m.put("timeMs", e.getValue().getTimeMs());
+				res.put(e.getKey(), m);
+			}
+			return res;
+		} catch (JSONException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public void writeJSON(File file) throws IOException {
+		Writer w = new FileWriter(file);
+		try {
+			w.write(toJSON().toString(2));
+		} catch (JSONException e) {
+			throw new IllegalStateException(e);
+		} finally {
+			w.close();
+		}
+	}
+
+	public void log(Log log) {
+		for (Entry<String, Metric> e : metrics.entrySet()) {
+			Metric m = e.getValue();
+			log.info(e.getKey() + " : " + m.getBytes() + " bytes, count " + m.getCount() + ", " + m.getTimeMs() + " ms");
+		}
+	}
+}
@@ -0,0 +1,171 @@
+package net.osmand.data.preparation;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TLongArrayList;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Output of binary file with large buffer over file channel. Position is known without flushing,
+ * so references (sizes and shifts) pointing into the buffer are patched in memory and the rest
+ * are collected into patch table which is written sorted by position.
+ * File should not be accessed directly till {@link #flush()}, after flush position of the file could be changed.
+ */
+public class BufferedFileOutput extends OutputStream {
+
+	public static final int DEFAULT_BUFFER_SIZE = 1 << 22;
+	private static final int PATCH_TABLE_LIMIT = 1 << 16;
+
+	private final FileChannel channel;
+	private final ByteBuffer buffer;
+	// position of buffer start in file, -1 to read it from file
+	private long bufferStart = -1;
+
+	private final TLongArrayList patchPositions = new TLongArrayList();
+	private final TIntArrayList patchValues = new TIntArrayList();
+	private final ByteBuffer patch = ByteBuffer.allocate(4);
+
+	public BufferedFileOutput(RandomAccessFile raf) {
+		this(raf, DEFAULT_BUFFER_SIZE);
+	}
+
+	public BufferedFileOutput(RandomAccessFile raf, int bufferSize) {
+		this.channel = raf.getChannel();
+		this.buffer = ByteBuffer.allocate(bufferSize);
+	}
+
+	public long getPosition() throws IOException {
+		if (bufferStart < 0) {
+			bufferStart = channel.position();
+		}
+		return bufferStart + buffer.position();
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (!buffer.hasRemaining()) {
+			flushBuffer();
+		}
+		buffer.put((byte) b);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (len > buffer.remaining()) {
+			flushBuffer();
+			if (len >= buffer.capacity()) {
+				writeFully(ByteBuffer.wrap(b, off, len));
+				return;
+			}
+		}
+		buffer.put(b, off, len);
+	}
+
+	/**
+	 * Writes int (big endian as {@link RandomAccessFile#writeInt(int)}) at already written position
+	 */
+	public void writeInt(long position, int value) throws IOException {
+		long start = getPosition() - buffer.position();
+		if (position >= start) {
+			if (position + 4 > start + buffer.position()) {
+				throw new IllegalArgumentException("Position " + position + " is not written yet");
+			}
+			buffer.putInt((int) (position - start), value);
+		} else {
+			patchPositions.add(position);
+			patchValues.add(value);
+		}
+	}
+
+	private void writeFully(ByteBuffer bb) throws IOException {
+		getPosition();
+		while (bb.hasRemaining()) {
+			bufferStart += channel.write(bb);
+		}
+	}
+
+	private void flushBuffer() throws IOException {
+		buffer.flip();
+		writeFully(buffer);
+		buffer.clear();
+		if (patchPositions.size() > PATCH_TABLE_LIMIT) {
+			writePatches();
+		}
+	}
+
+	private void writePatches() throws IOException {
+		if (patchPositions.isEmpty()) {
+			return;
+		}
+		long[] positions = patchPositions.toArray();
+		int[] values = patchValues.toArray();
+		patchPositions.resetQuick();
+		patchValues.resetQuick();
+		sort(positions, values, 0, positions.length - 1);
+		for (int i = 0; i < positions.length; i++) {
+			patch.clear();
+			patch.putInt(values[i]);
+			patch.flip();
+			long p = positions[i];
+			while (patch.hasRemaining()) {
+				p += channel.write(patch, p);
+			}
+		}
+	}
+
+	private static void sort(long[] keys, int[] values, int lo, int hi) {
+		while (lo < hi) {
+			long pivot = keys[(lo + hi) >>> 1];
+			int i = lo;
+			int j = hi;
+			while (i <= j) {
+				while (keys[i] < pivot) {
+					i++;
+				}
+				while (keys[j] > pivot) {
+					j--;
+				}
+				if (i <= j) {
+					long k = keys[i];
+					keys[i] = keys[j];
+					keys[j] = k;
+					int v = values[i];
+					values[i] = values[j];
+					values[j] = v;
+					i++;
+					j--;
+				}
+			}
+			// recurse into smaller part
+			if (j - lo < hi - i) {
+				sort(keys, values, lo, j);
+				lo = i;
+			} else {
+				sort(keys, values, i, hi);
+				hi = j;
+			}
+		}
+	}
+
+	/**
+	 * Writes buffer and all patches, file position is at the end of written data
+	 */
+	@Override
+	public void flush() throws IOException {
+		flushBuffer();
+		writePatches();
+		bufferStart = -1;
+	}
+
+	/**
+	 * Flushes data, file is not closed
+	 */
+	@Override
+	public void close() throws IOException {
+		flush();
+	}
+}
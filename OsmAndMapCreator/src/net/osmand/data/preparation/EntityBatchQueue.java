@@ -0,0 +1,101 @@
+package net.osmand.data.preparation;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import net.osmand.osm.edit.Entity;
+
+/**
+ * Bounded queue to pass entities from producer thread to consumer thread by batches.
+ * Producer should always call {@link #finish(Throwable)}, consumer receives null batch after the last one
+ * and gets producer error rethrown. Consumer could {@link #cancel()} iteration, so producer stops.
+ */
+public class EntityBatchQueue {
+
+	public static final int BATCH_SIZE = 1000;
+	private static final Entity[] END = new Entity[0];
+
+	private final BlockingQueue<Entity[]> queue;
+	private Entity[] current = new Entity[BATCH_SIZE];
+	private int currentSize = 0;
+	private volatile boolean cancelled;
+	private volatile Throwable error;
+
+	public EntityBatchQueue(int capacityInBatches) {
+		queue = new ArrayBlockingQueue<Entity[]>(capacityInBatches);
+	}
+
+	/**
+	 * @return false if consumer cancelled processing
+	 */
+	public boolean add(Entity e) throws InterruptedException {
+		current[currentSize++] = e;
+		if (currentSize == BATCH_SIZE) {
+			Entity[] b = current;
+			current = new Entity[BATCH_SIZE];
+			currentSize = 0;
+			return put(b);
+		}
+		return !cancelled;
+	}
+
+	private boolean put(Entity[] batch) throws InterruptedException {
+		while (!cancelled) {
+			if (queue.offer(batch, 100, TimeUnit.MILLISECONDS)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Flushes not full batch and marks end of stream (error could be null)
+	 */
+	public void finish(Throwable error) throws InterruptedException {
+		if (currentSize > 0 && error == null) {
+			put(Arrays.copyOf(current, currentSize));
+		}
+		current = null;
+		currentSize = 0;
+		this.error = error;
+		put(END);
+	}
+
+	/**
+	 * @return next batch or null when all entities were consumed or iteration was cancelled
+	 */
+	public Entity[] takeBatch() throws SQLException, InterruptedException {
+		Entity[] b = null;
+		while (b == null) {
+			if (cancelled) {
+				return null;
+			}
+			b = queue.poll(100, TimeUnit.MILLISECONDS);
+		}
+		if (b == END) {
+			if (error instanceof SQLException) {
+				throw (SQLException) error;
+			} else if (error instanceof RuntimeException) {
+				throw (RuntimeException) error;
+			} else if (error instanceof Error) {
+				throw (Error) error;
+			} else if (error != null) {
+				throw new IllegalStateException(error);
+			}
+			return null;
+		}
+		return b;
+	}
+
+	public void cancel() {
+		cancelled = true;
+		queue.clear();
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+}
@@ -0,0 +1,107 @@
+package net.osmand.data.preparation;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Manifest of imported osm db stored in working directory, so the db could be reused by next generation.
+ * Import is considered completed only if it was finished for the same input (files and settings)
+ * and all its files still exist. Manifest is written atomically.
+ */
+public class ImportedDbManifest {
+
+	private static final Log log = LogFactory.getLog(ImportedDbManifest.class);
+
+	private static final String INPUT = "input";
+	private static final String IMPORTED = "imported";
+	private static final String FILES = "files";
+
+	private final File file;
+	private final Properties props = new Properties();
+
+	private ImportedDbManifest(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * @param input description of input files and settings, manifest of other input is discarded
+	 */
+	public static ImportedDbManifest load(File file, String input) throws IOException {
+		ImportedDbManifest manifest = new ImportedDbManifest(file);
+		if (file.exists()) {
+			InputStream is = new FileInputStream(file);
+			try {
+				manifest.props.load(is);
+			} finally {
+				is.close();
+			}
+			if (!input.equals(manifest.props.getProperty(INPUT))) {
+				log.info("Input has changed since previous run, manifest " + file.getName() + " is discarded");
+				manifest.props.clear();
+			}
+		}
+		manifest.props.setProperty(INPUT, input);
+		return manifest;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public boolean isImportCompleted() {
+		if (props.getProperty(IMPORTED) == null) {
+			return false;
+		}
+		String files = props.getProperty(FILES, "");
+		for (String f : files.split(File.pathSeparator)) {
+			if (f.length() > 0 && !new File(f).exists()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public void completeImport(File... files) throws IOException {
+		StringBuilder b = new StringBuilder();
+		for (File f : files) {
+			if (f != null) {
+				if (b.length() > 0) {
+					b.append(File.pathSeparator);
+				}
+				b.append(f.getAbsolutePath());
+			}
+		}
+		props.setProperty(IMPORTED, String.valueOf(System.currentTimeMillis()));
+		props.setProperty(FILES, b.toString());
+		save();
+	}
+
+	private void save() throws IOException {
+		File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+		OutputStream os = new FileOutputStream(tmp);
+		try {
+			props.store(os, "Imported osm db");
+		} finally {
+			os.close();
+		}
+		if (file.exists() && !file.delete()) {
+			throw new IOException("Can't replace " + file.getAbsolutePath());
+		}
+		if (!tmp.renameTo(file)) {
+			throw new IOException("Can't rename " + tmp.getAbsolutePath());
+		}
+	}
+
+	public void delete() {
+		props.clear();
+		file.delete();
+	}
+}
@@ -12,13 +12,21 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.GZIPInputStream;
 
 import net.osmand.IProgress;
 import net.osmand.IndexConstants;
 import net.osmand.binary.MapZooms;
 import net.osmand.data.Multipolygon;
+import net.osmand.data.preparation.NodeLocationStore.NodeLocationStoreType;
+import net.osmand.data.preparation.OsmDbAccessor.OsmDbEntityRouter;
 import net.osmand.data.preparation.OsmDbAccessor.OsmDbVisitor;
 import net.osmand.data.preparation.address.IndexAddressCreator;
 import net.osmand.impl.ConsoleProgressImplementation;
@@ -68,6 +76,14 @@ public class IndexCreator {
 	public static final String TEMP_NODES_DB = "nodes.tmp.odb";
 
 	public static final int STEP_MAIN = 4;
+	public static final int DEFAULT_SHARD_ZOOM = 10;
+
+	/**
+	 * Generation options which could be set by name (batch.xml process attributes, command line)
+	 */
+	public static final String[] OPTIONS = { "parallelMainIteration", "pbfDecodingThreads", "reuseImportedDb",
+			"parallelBinaryWriting", "shards", "shardZoom", "propagatedTagsOnDisk", "statisticsFile",
+			"nodeLocationStore", "lowLevelWaysThreads" };
 
 	private File workingDir = null;
 
@@ -95,12 +111,27 @@ public class IndexCreator {
 	private boolean deleteOsmDB = true;
 	private boolean deleteDatabaseIndexes = true;
 	private boolean backwardCompatibleIds = false;
+	private boolean parallelMainIteration = false;
+	private int pbfDecodingThreads = Math.min(4, Runtime.getRuntime().availableProcessors());
+	private boolean reuseImportedDb = false;
+	private boolean parallelBinaryWriting = false;
+	private int shards = 1;
+	private int shardZoom = DEFAULT_SHARD_ZOOM;
+	private boolean propagatedTagsOnDisk = false;
+	private int lowLevelWaysThreads = Runtime.getRuntime().availableProcessors();
+	private ImportedDbManifest importedDbManifest;
+	private File statisticsFile;
+	private BinaryWriterStatistics statistics;
 
 	private File dbFile;
+	private NodeLocationStoreType nodeLocationStoreType = NodeLocationStoreType.SQLITE;
+	private NodeLocationStore nodeLocationStore;
 	 
 	private File mapFile;
 	private RandomAccessFile mapRAFile;
 	private Connection mapConnection;
+	private Connection routeConnection;
+	private Connection transportConnection;
 
 	public static final int DEFAULT_CITY_ADMIN_LEVEL = 8;
 	private String cityAdminLevel = "" + DEFAULT_CITY_ADMIN_LEVEL;
@@ -124,6 +155,103 @@ public class IndexCreator {
 		this.backwardCompatibleIds = backwardCompatibleIds;
 	}
 
+	/**
+	 * Main pass runs map, routing, address, transport and poi creators in separate threads, every creator
+	 * gets own copy of entities (with height tags) and writes to own database
+	 */
+	public void setParallelMainIteration(boolean parallelMainIteration) {
+		this.parallelMainIteration = parallelMainIteration;
+	}
+
+	/**
+	 * Completed import is recorded in manifest in working dir and osm db is kept till binary file is written,
+	 * so next generation of the same input (e.g. after failure) reuses osm db without importing osm files again.
+	 * All other steps are always repeated.
+	 */
+	public void setReuseImportedDb(boolean reuseImportedDb) {
+		this.reuseImportedDb = reuseImportedDb;
+	}
+
+	/**
+	 * Index sections are written concurrently into temporary files and then copied into binary file
+	 */
+	public void setParallelBinaryWriting(boolean parallelBinaryWriting) {
+		this.parallelBinaryWriting = parallelBinaryWriting;
+	}
+
+	/**
+	 * Map and routing sections are built by spatial shards in parallel: region is split into tiles of shardZoom
+	 * (see {@link SpatialShards}), every shard indexes objects it owns in its own thread. Low level ways of all
+	 * shards are combined together and shards are written as one map and one route section with common rules.
+	 */
+	public void setShards(int shards, int shardZoom) {
+		this.shards = shards;
+		this.shardZoom = shardZoom;
+	}
+
+	/**
+	 * Tags propagated by relations to their members are kept in temporary files in working dir instead of memory
+	 */
+	public void setPropagatedTagsOnDisk(boolean propagatedTagsOnDisk) {
+		this.propagatedTagsOnDisk = propagatedTagsOnDisk;
+	}
+
+	/**
+	 * Sizes and encoding time of binary file sections are written to the file (json) after generation
+	 */
+	public void setStatisticsFile(File statisticsFile) {
+		this.statisticsFile = statisticsFile;
+	}
+
+	/**
+	 * @return statistics of the last written binary file or null
+	 */
+	public BinaryWriterStatistics getStatistics() {
+		return statistics;
+	}
+
+	public void setPbfDecodingThreads(int pbfDecodingThreads) {
+		this.pbfDecodingThreads = pbfDecodingThreads;
+	}
+
+	/**
+	 * Threads to combine low level ways of map levels
+	 */
+	public void setLowLevelWaysThreads(int lowLevelWaysThreads) {
+		this.lowLevelWaysThreads = lowLevelWaysThreads;
+	}
+
+	/**
+	 * Sets generation option by name (see {@link #OPTIONS})
+	 * @return false if option is unknown
+	 */
+	public boolean setOption(String name, String value) {
+		if (name.equals("parallelMainIteration")) {
+			setParallelMainIteration(Boolean.parseBoolean(value));
+		} else if (name.equals("pbfDecodingThreads")) {
+			setPbfDecodingThreads(Integer.parseInt(value));
+		} else if (name.equals("reuseImportedDb")) {
+			setReuseImportedDb(Boolean.parseBoolean(value));
+		} else if (name.equals("parallelBinaryWriting")) {
+			setParallelBinaryWriting(Boolean.parseBoolean(value));
+		} else if (name.equals("shards")) {
+			setShards(Integer.parseInt(value), shardZoom);
+		} else if (name.equals("shardZoom")) {
+			setShards(shards, Integer.parseInt(value));
+		} else if (name.equals("propagatedTagsOnDisk")) {
+			setPropagatedTagsOnDisk(Boolean.parseBoolean(value));
+		} else if (name.equals("statisticsFile")) {
+			setStatisticsFile(new File(value));
+		} else if (name.equals("nodeLocationStore")) {
+			setNodeLocationStoreType(NodeLocationStoreType.valueOf(value.toUpperCase()));
+		} else if (name.equals("lowLevelWaysThreads")) {
+			setLowLevelWaysThreads(Integer.parseInt(value));
+		} else {
+			return false;
+		}
+		return true;
+	}
+
 	public void setIndexRouting(boolean indexRouting) {
 		this.indexRouting = indexRouting;
 	}
@@ -172,6 +300,14 @@ public class IndexCreator {
 		dbFile = file;
 	}
 	
+	public void setNodeLocationStoreType(NodeLocationStoreType nodeLocationStoreType) {
+		this.nodeLocationStoreType = nodeLocationStoreType;
+	}
+	
+	private File getNodeLocationStoreFile() {
+		return new File(dbFile.getParentFile(), dbFile.getName() + ".nodes");
+	}
+	
 	public void setSRTMData(File file) {
 		heightData = new IndexHeightData();
 		heightData.setSrtmData(file);
@@ -196,6 +332,14 @@ public class IndexCreator {
 		return getMapFileName() + ".tmp"; //$NON-NLS-1$
 	}
 
+	public String getTempRouteDBFileName() {
+		return getMapFileName() + ".route.tmp"; //$NON-NLS-1$
+	}
+
+	public String getTempTransportDBFileName() {
+		return getMapFileName() + ".transport.tmp"; //$NON-NLS-1$
+	}
+
 	public void setDialects(DBDialect osmDBdialect, DBDialect mapIndexDBDialect) {
 		if (osmDBdialect != null) {
 			this.osmDBdialect = osmDBdialect;
@@ -260,10 +404,14 @@ public class IndexCreator {
 
 	/* ***** END OF GETTERS/SETTERS ***** */
 
-	private void iterateMainEntity(Entity e, OsmDbAccessorContext ctx) throws SQLException {
+	private void processHeight(Entity e) {
 		if (heightData != null && e instanceof Way) {
 			heightData.proccess((Way) e);
 		}
+	}
+
+	private void iterateMainEntity(Entity e, OsmDbAccessorContext ctx) throws SQLException {
+		processHeight(e);
 		if (indexPOI) {
 			indexPoiCreator.iterateEntity(e, ctx, false);
 		}
@@ -341,8 +489,10 @@ public class IndexCreator {
 			dbCreator.setNodeIds(previous.getNodeIds());
 			dbCreator.setWayIds(previous.getWayIds());
 			dbCreator.setRelationIds(previous.getRelationIds());
+			dbCreator.setTagsCodec(previous.getTagsCodec());
 		}
 		dbCreator.setBackwardCompatibleIds(backwardCompatibleIds);
+		dbCreator.setNodeLocationStore(nodeLocationStore);
 		try {
 			setGeneralProgress(progress, "[15 / 100]"); //$NON-NLS-1$
 			progress.startTask(Messages.getString("IndexCreator.LOADING_FILE") + readFile.getAbsolutePath(), -1); //$NON-NLS-1$
@@ -350,6 +500,11 @@ public class IndexCreator {
 			dbCreator.initDatabase(osmDBdialect, accessor.getDbConn(), createTables);
 			storage.getFilters().add(dbCreator);
 			if (pbfFile) {
+				((OsmBaseStoragePbf) storage).setDecodingThreads(pbfDecodingThreads);
+				if (addFilter == null) {
+					// untagged nodes go directly to node location store (if it is used)
+					((OsmBaseStoragePbf) storage).setDenseNodeFilter(dbCreator);
+				}
 				((OsmBaseStoragePbf) storage).parseOSMPbf(stream, progress, false);
 			} else {
 				storage.parseOSM(stream, progress, streamFile, false);
@@ -372,10 +527,12 @@ public class IndexCreator {
 	private OsmDbAccessor initDbAccessor(File[] readFile, IProgress progress, IOsmStorageFilter addFilter,
 			boolean generateUniqueIds, boolean overwriteIds, boolean regeenerateNewIds) throws IOException, SQLException, InterruptedException, XmlPullParserException {
 		OsmDbAccessor accessor = new OsmDbAccessor();
+		boolean resumeImport = importedDbManifest != null && importedDbManifest.isImportCompleted();
 		if (dbFile == null) {
 			dbFile = new File(workingDir, TEMP_NODES_DB);
-			if (osmDBdialect.databaseFileExists(dbFile)) {
+			if (osmDBdialect.databaseFileExists(dbFile) && !resumeImport) {
 				osmDBdialect.removeDatabase(dbFile);
+				NodeLocationStore.removeStore(getNodeLocationStoreFile());
 			}
 		}
 		int shift = readFile.length < 16 ? 4 : (readFile.length < 64 ? 6 : 11);
@@ -383,12 +540,19 @@ public class IndexCreator {
 			throw new UnsupportedOperationException();
 		}
 		int mapInd = 0;
+		boolean registerCities = false;
 		Connection dbConn = (Connection) getDatabaseConnection(dbFile.getAbsolutePath(), osmDBdialect);
 		Statement stat = dbConn.createStatement();
 		boolean exists = osmDBdialect.checkTableIfExists("input", stat);
+		File storeFile = getNodeLocationStoreFile();
 		if(exists) {
 			ResultSet rs = stat.executeQuery("SELECT shift, ind, file, length from input");
-			boolean recreate = indexAddress;
+			// cities are registered while osm file is read, so they are loaded from db only for completed import
+			boolean recreate = indexAddress && !resumeImport;
+			if ((nodeLocationStoreType != NodeLocationStoreType.SQLITE) != storeFile.exists()) {
+				log.info("Node location store has changed in the prepared osm index.");
+				recreate = true;
+			}
 			List<File> filteredOut = new ArrayList<File>();
 			int maxInd = 0;
 			while(rs.next() && !recreate) {
@@ -420,10 +584,12 @@ public class IndexCreator {
 			if(recreate) {
 				osmDBdialect.closeDatabase(dbConn);
 				osmDBdialect.removeDatabase(dbFile);
+				NodeLocationStore.removeStore(storeFile);
 				dbConn = (Connection) getDatabaseConnection(dbFile.getAbsolutePath(), osmDBdialect);
 				stat = dbConn.createStatement();
 				stat.execute("CREATE TABLE input(shift int, ind int, file varchar, length int)");
 			} else {
+				registerCities = indexAddress;
 				ArrayList<File> list = new ArrayList<File>(Arrays.asList(readFile));
 				list.removeAll(filteredOut);
 				readFile = list.toArray(new File[list.size()]);
@@ -432,7 +598,8 @@ public class IndexCreator {
 		} else {
 			stat.execute("CREATE TABLE input(shift int, ind int, file varchar, length int)");
 		}
-		
+		nodeLocationStore = NodeLocationStore.create(nodeLocationStoreType, storeFile);
+		accessor.setNodeLocationStore(nodeLocationStore);
 		accessor.setDbConn(dbConn, osmDBdialect);
 		boolean shiftIds = generateUniqueIds || overwriteIds ;
 		OsmDbCreator dbCreator = null;
@@ -448,15 +615,18 @@ public class IndexCreator {
 			mapInd++;
 		}
 		stat.close();
-				// load cities names
-//				accessor.iterateOverEntities(progress, EntityType.NODE,  new OsmDbVisitor() {
-//					@Override
-//					public void iterateEntity(Entity e, OsmDbAccessorContext ctx) {
-//						indexAddressCreator.registerCityIfNeeded(e);
-//					}
-//				});
 		osmDBdialect.commitDatabase(dbConn);
 		accessor.initDatabase(null);
+		if (registerCities) {
+			// load cities names
+			progress.startTask(Messages.getString("IndexCreator.PROCESS_OSM_NODES"), accessor.getAllNodes());
+			accessor.iterateOverEntities(progress, EntityType.NODE, new OsmDbVisitor() {
+				@Override
+				public void iterateEntity(Entity e, OsmDbAccessorContext ctx) {
+					indexAddressCreator.registerCityIfNeeded(e);
+				}
+			});
+		}
 		return accessor;
 	}
 
@@ -465,17 +635,21 @@ public class IndexCreator {
 		mapFile = new File(workingDir, getMapFileName());
 		// to save space
 		mapFile.getParentFile().mkdirs();
-		File tempDBMapFile = new File(workingDir, getTempMapDBFileName());
-		mapIndexDBDialect.removeDatabase(tempDBMapFile);
-		mapConnection = (Connection) getDatabaseConnection(tempDBMapFile.getAbsolutePath(), mapIndexDBDialect);
-		mapConnection.setAutoCommit(false);
+		mapConnection = openTempDatabase(getTempMapDBFileName(), true);
+		// routing and transport have own databases to be filled and read independently
+		if (indexRouting) {
+			routeConnection = openTempDatabase(getTempRouteDBFileName(), true);
+		}
+		if (indexTransport) {
+			transportConnection = openTempDatabase(getTempTransportDBFileName(), true);
+		}
 
 		// 2.2 create rtree map
 		if (indexMap) {
 			indexMapCreator.createDatabaseStructure(mapConnection, mapIndexDBDialect, getRTreeMapIndexNonPackFileName());
 		}
 		if (indexRouting) {
-			indexRouteCreator.createDatabaseStructure(mapConnection, mapIndexDBDialect, getRTreeRouteIndexNonPackFileName());
+			indexRouteCreator.createDatabaseStructure(routeConnection, mapIndexDBDialect, getRTreeRouteIndexNonPackFileName());
 		}
 		if (indexAddress) {
 			indexAddressCreator.createDatabaseStructure(mapConnection, mapIndexDBDialect);
@@ -484,7 +658,26 @@ public class IndexCreator {
 			indexPoiCreator.createDatabaseStructure(getPoiFile());
 		}
 		if (indexTransport) {
-			indexTransportCreator.createDatabaseStructure(mapConnection, mapIndexDBDialect, getRTreeTransportStopsFileName());
+			indexTransportCreator.createDatabaseStructure(transportConnection, mapIndexDBDialect, getRTreeTransportStopsFileName());
+		}
+	}
+
+	private Connection openTempDatabase(String fileName, boolean create) throws SQLException {
+		File file = new File(workingDir, fileName);
+		if (create) {
+			mapIndexDBDialect.removeDatabase(file);
+		}
+		Connection conn = (Connection) getDatabaseConnection(file.getAbsolutePath(), mapIndexDBDialect);
+		conn.setAutoCommit(false);
+		return conn;
+	}
+
+	private void closeTempDatabase(Connection conn, String fileName) throws SQLException {
+		conn.commit();
+		conn.close();
+		File file = new File(workingDir, fileName);
+		if (mapIndexDBDialect.databaseFileExists(file) && deleteDatabaseIndexes) {
+			mapIndexDBDialect.removeDatabase(file);
 		}
 	}
 
@@ -565,6 +758,7 @@ public class IndexCreator {
 			progress.finishTask();
 			writer.close();
 			mapRAFile.close();
+			writeStatistics(writer);
 			log.info("Finish writing binary file"); //$NON-NLS-1$
 		} catch (RuntimeException e) {
 			log.error("Log exception", e); //$NON-NLS-1$
@@ -611,15 +805,24 @@ public class IndexCreator {
 		if (renderingTypes == null) {
 			renderingTypes = new MapRenderingTypesEncoder(null, regionName);
 		}
-		this.indexTransportCreator = new IndexTransportCreator();
-		this.indexPoiCreator = new IndexPoiCreator(renderingTypes, overwriteIds);
-		this.indexAddressCreator = new IndexAddressCreator(logMapDataWarn);
-		this.indexMapCreator = new IndexVectorMapCreator(logMapDataWarn, mapZooms, renderingTypes,
-				zoomWaySmoothness);
-		this.indexRouteCreator = new IndexRouteCreator(renderingTypes, logMapDataWarn, generateLowLevel);
-
-		// init address
-		indexAddressCreator.initSettings(cityAdminLevel);
+		// map and routing are indexed by shards, shards are created when osm db is ready
+		boolean sharded = shards > 1 && !recreateOnlyBinaryFile && (indexMap || indexRouting);
+		boolean shardMap = indexMap;
+		boolean shardRouting = indexRouting;
+		List<IndexCreator> shardCreators = new ArrayList<IndexCreator>();
+		if (sharded) {
+			indexMap = false;
+			indexRouting = false;
+		}
+		createIndexCreators(mapZooms, renderingTypes, logMapDataWarn, overwriteIds);
+		importedDbManifest = null;
+		if (reuseImportedDb && !recreateOnlyBinaryFile && !sharded) {
+			importedDbManifest = ImportedDbManifest.load(new File(workingDir, getMapFileName() + ".manifest"),
+					getInputDescription(readFile, generateUniqueIds, overwriteIds));
+			if (importedDbManifest.isImportCompleted()) {
+				log.info("Reuse imported osm db");
+			}
+		}
 
 		// Main generation method
 		try {
@@ -629,12 +832,16 @@ public class IndexCreator {
 			// do not create temp map file and rtree files
 			if (recreateOnlyBinaryFile) {
 				mapFile = new File(workingDir, getMapFileName());
-				File tempDBMapFile = new File(workingDir, getTempMapDBFileName());
-				mapConnection = (Connection) getDatabaseConnection(tempDBMapFile.getAbsolutePath(), mapIndexDBDialect);
-				mapConnection.setAutoCommit(false);
+				mapConnection = openTempDatabase(getTempMapDBFileName(), false);
+				if (indexRouting) {
+					routeConnection = openTempDatabase(getTempRouteDBFileName(), false);
+				}
+				if (indexTransport) {
+					transportConnection = openTempDatabase(getTempTransportDBFileName(), false);
+				}
 				try {
 					if (indexMap) {
-						indexMapCreator.createRTreeFiles(getRTreeMapIndexPackFileName());
+						indexMapCreator.createRTreeFiles(getRTreeMapIndexNonPackFileName(), getRTreeMapIndexPackFileName());
 					}
 					if (indexRouting) {
 						indexRouteCreator.createRTreeFiles(getRTreeRouteIndexPackFileName());
@@ -650,6 +857,9 @@ public class IndexCreator {
 				// 2. Create index connections and index structure
 				createDatabaseIndexesStructure();
 				OsmDbAccessor accessor = initDbAccessor(readFile, progress, addFilter, generateUniqueIds, overwriteIds, false);
+				if (importedDbManifest != null) {
+					importedDbManifest.completeImport(dbFile, nodeLocationStore == null ? null : nodeLocationStore.getFile());
+				}
 
 				// 3. Processing all entries
 				// 3.1 write all cities
@@ -657,18 +867,28 @@ public class IndexCreator {
 				// 3.2 index address relations
 				indexRelations(accessor, progress);
 				// 3.3 MAIN iterate over all entities
-				iterateMainEntities(accessor, progress);
+				if (!sharded || indexPOI || indexAddress || indexTransport) {
+					iterateMainEntities(accessor, progress);
+				}
+				if (sharded) {
+					SpatialShards spatialShards = createShards(accessor, progress, shardMap, shardRouting, mapZooms,
+							renderingTypes, logMapDataWarn, shardCreators);
+					iterateShardEntities(accessor, progress, spatialShards, shardCreators);
+				}
 				accessor.closeReadingConnection();
 				// do not delete first db connection
 				if (accessor.getDbConn() != null) {
 					osmDBdialect.commitDatabase(accessor.getDbConn());
 					osmDBdialect.closeDatabase(accessor.getDbConn());
 				}
-				if (deleteOsmDB) {
-					osmDBdialect.removeDatabase(dbFile);
+				if (deleteOsmDB && importedDbManifest == null) {
+					deleteOsmDB();
 				}
 
 				// 3.4 combine all low level ways and simplify them
+				if (sharded) {
+					processShardLowLevelWays(progress, shardCreators);
+				}
 				if (indexMap || indexRouting) {
 					setGeneralProgress(progress, "[90 / 100]");
 					if (indexMap) {
@@ -679,11 +899,15 @@ public class IndexCreator {
 					if (indexRouting) {
 						progress.startTask(Messages.getString("IndexCreator.INDEX_LO_LEVEL_WAYS"), -1);
 						indexRouteCreator.processingLowLevelWays(progress);
+						IndexRouteCreator.appendMissingRoadsForBaseMap(Collections.singletonList(indexRouteCreator));
 					}
 
 				}
 
 				// 4. packing map rtree indexes
+				if (sharded) {
+					packShardRtreeFiles(progress, shardCreators);
+				}
 				if (indexMap) {
 					setGeneralProgress(progress, "[90 / 100]"); //$NON-NLS-1$
 					progress.startTask(Messages.getString("IndexCreator.PACK_RTREE_MAP"), -1); //$NON-NLS-1$
@@ -701,46 +925,64 @@ public class IndexCreator {
 			}
 
 			// 5. Writing binary file
-			if (indexMap || indexAddress || indexTransport || indexPOI || indexRouting) {
+			if (indexMap || indexAddress || indexTransport || indexPOI || indexRouting || sharded) {
 				if (mapFile.exists()) {
 					mapFile.delete();
 				}
 				mapRAFile = new RandomAccessFile(mapFile, "rw");
-				BinaryMapIndexWriter writer = new BinaryMapIndexWriter(mapRAFile, lastModifiedDate == null ? System.currentTimeMillis() :
-					lastModifiedDate.longValue());
-				if (indexMap) {
+				long timestamp = lastModifiedDate == null ? System.currentTimeMillis() : lastModifiedDate.longValue();
+				BinaryMapIndexWriter writer = new BinaryMapIndexWriter(mapRAFile, timestamp);
+				// shards are written as one map and one route section
+				List<IndexCreator> creators = sharded ? shardCreators : Collections.singletonList(this);
+				List<IndexVectorMapCreator> mapCreators = getMapCreators(creators);
+				List<IndexRouteCreator> routeCreators = getRouteCreators(creators);
+				if (parallelBinaryWriting) {
 					setGeneralProgress(progress, "[95 of 100]");
-					progress.startTask("Writing map index to binary file...", -1);
-					indexMapCreator.writeBinaryMapIndex(writer, regionName);
-				}
-				if (indexRouting) {
-					setGeneralProgress(progress, "[95 of 100]");
-					progress.startTask("Writing route index to binary file...", -1);
-					indexRouteCreator.writeBinaryRouteIndex(mapFile, writer, regionName, generateLowLevel);
-				}
+					progress.startTask("Writing index sections to binary file...", -1);
+					writeBinarySectionsInParallel(writer, timestamp, mapCreators, routeCreators);
+				} else {
+					if (!mapCreators.isEmpty()) {
+						setGeneralProgress(progress, "[95 of 100]");
+						progress.startTask("Writing map index to binary file...", -1);
+						IndexVectorMapCreator.writeBinaryMapIndex(writer, regionName, mapCreators);
+					}
+					if (!routeCreators.isEmpty()) {
+						setGeneralProgress(progress, "[95 of 100]");
+						progress.startTask("Writing route index to binary file...", -1);
+						IndexRouteCreator.writeBinaryRouteIndex(writer, regionName, routeCreators);
+					}
 
-				if (indexAddress) {
-					setGeneralProgress(progress, "[95 of 100]");
-					progress.startTask("Writing address index to binary file...", -1);
-					indexAddressCreator.writeBinaryAddressIndex(writer, regionName, progress);
-				}
+					if (indexAddress) {
+						setGeneralProgress(progress, "[95 of 100]");
+						progress.startTask("Writing address index to binary file...", -1);
+						indexAddressCreator.writeBinaryAddressIndex(writer, regionName, progress);
+					}
 
-				if (indexPOI) {
-					setGeneralProgress(progress, "[95 of 100]");
-					progress.startTask("Writing poi index to binary file...", -1);
-					indexPoiCreator.writeBinaryPoiIndex(writer, regionName, progress);
-				}
+					if (indexPOI) {
+						setGeneralProgress(progress, "[95 of 100]");
+						progress.startTask("Writing poi index to binary file...", -1);
+						indexPoiCreator.writeBinaryPoiIndex(writer, regionName, progress);
+					}
 
-				if (indexTransport) {
-					setGeneralProgress(progress, "[95 of 100]");
-					progress.startTask("Writing transport index to binary file...", -1);
-					indexTransportCreator.writeBinaryTransportIndex(writer, regionName, mapConnection);
+					if (indexTransport) {
+						setGeneralProgress(progress, "[95 of 100]");
+						progress.startTask("Writing transport index to binary file...", -1);
+						indexTransportCreator.writeBinaryTransportIndex(writer, regionName, transportConnection);
+					}
 				}
 				progress.finishTask();
 				writer.close();
 				mapRAFile.close();
+				writeStatistics(writer);
 				log.info("Finish writing binary file"); //$NON-NLS-1$
 			}
+			if (importedDbManifest != null) {
+				importedDbManifest.delete();
+				importedDbManifest = null;
+				if (deleteOsmDB) {
+					deleteOsmDB();
+				}
+			}
 		} catch (RuntimeException e) {
 			log.error("Log exception", e); //$NON-NLS-1$
 			throw e;
@@ -754,65 +996,452 @@ public class IndexCreator {
 			log.error("Log exception", e); //$NON-NLS-1$
 			throw e;
 		} finally {
+			indexMap = shardMap;
+			indexRouting = shardRouting;
 			try {
-				indexPoiCreator.commitAndClosePoiFile(lastModifiedDate);
-				if (REMOVE_POI_DB) {
-					indexPoiCreator.removePoiFile();
-				}
-				indexAddressCreator.closeAllPreparedStatements();
-				indexTransportCreator.commitAndCloseFiles(getRTreeTransportStopsFileName(), getRTreeTransportStopsPackFileName(),
-						deleteDatabaseIndexes);
-				indexMapCreator.commitAndCloseFiles(getRTreeMapIndexNonPackFileName(), getRTreeMapIndexPackFileName(),
-						deleteDatabaseIndexes);
-				indexRouteCreator.commitAndCloseFiles(getRTreeRouteIndexNonPackFileName(), getRTreeRouteIndexPackFileName(),
-						deleteDatabaseIndexes);
-
-				if (mapConnection != null) {
-					mapConnection.commit();
-					mapConnection.close();
-					mapConnection = null;
-					File tempDBFile = new File(workingDir, getTempMapDBFileName());
-					if (mapIndexDBDialect.databaseFileExists(tempDBFile) && deleteDatabaseIndexes) {
-						// do not delete it for now
-						mapIndexDBDialect.removeDatabase(tempDBFile);
-					}
+				for (IndexCreator shard : shardCreators) {
+					shard.closeIndexFiles();
 				}
+			} finally {
+				closeIndexFiles();
+			}
+		}
+	}
+
+	private void createIndexCreators(MapZooms mapZooms, MapRenderingTypesEncoder renderingTypes, Log logMapDataWarn,
+			boolean overwriteIds) {
+		this.indexTransportCreator = new IndexTransportCreator();
+		// poi and routing are iterated in own threads in parallel main iteration and encoder is not thread safe,
+		// they use only tags conversion and route types of encoder which don't depend on types registered by map
+		this.indexPoiCreator = new IndexPoiCreator(parallelMainIteration ? renderingTypes.newInstance() : renderingTypes,
+				overwriteIds);
+		this.indexAddressCreator = new IndexAddressCreator(logMapDataWarn);
+		this.indexMapCreator = new IndexVectorMapCreator(logMapDataWarn, mapZooms, renderingTypes,
+				zoomWaySmoothness);
+		indexMapCreator.setLowLevelWaysThreads(lowLevelWaysThreads);
+		this.indexRouteCreator = new IndexRouteCreator(parallelMainIteration ? renderingTypes.newInstance()
+				: renderingTypes, logMapDataWarn, generateLowLevel);
+		if (propagatedTagsOnDisk) {
+			indexPoiCreator.tagsTransform.setStoreFile(new File(workingDir, getMapFileName() + ".poi.tags"));
+			indexMapCreator.tagsTransformer.setStoreFile(new File(workingDir, getMapFileName() + ".map.tags"));
+			indexRouteCreator.tagsTransformer.setStoreFile(new File(workingDir, getMapFileName() + ".route.tags"));
+		}
 
+		// init address
+		indexAddressCreator.initSettings(cityAdminLevel);
+	}
+
+	private void closeIndexFiles() throws IOException {
+		try {
+			indexPoiCreator.tagsTransform.close();
+			indexMapCreator.tagsTransformer.close();
+			indexRouteCreator.tagsTransformer.close();
+			indexPoiCreator.commitAndClosePoiFile(lastModifiedDate);
+			if (REMOVE_POI_DB) {
+				indexPoiCreator.removePoiFile();
+			}
+			indexAddressCreator.closeAllPreparedStatements();
+			indexTransportCreator.commitAndCloseFiles(getRTreeTransportStopsFileName(), getRTreeTransportStopsPackFileName(),
+					deleteDatabaseIndexes);
+			indexMapCreator.commitAndCloseFiles(getRTreeMapIndexNonPackFileName(), getRTreeMapIndexPackFileName(),
+					deleteDatabaseIndexes);
+			indexRouteCreator.commitAndCloseFiles(getRTreeRouteIndexNonPackFileName(), getRTreeRouteIndexPackFileName(),
+					deleteDatabaseIndexes);
+
+			if (mapConnection != null) {
+				closeTempDatabase(mapConnection, getTempMapDBFileName());
+				mapConnection = null;
+			}
+			if (routeConnection != null) {
+				closeTempDatabase(routeConnection, getTempRouteDBFileName());
+				routeConnection = null;
+			}
+			if (transportConnection != null) {
+				closeTempDatabase(transportConnection, getTempTransportDBFileName());
+				transportConnection = null;
+			}
+
+
+		} catch (SQLException e) {
+			e.printStackTrace();
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+		}
+	}
+
+
+	private void writeStatistics(BinaryMapIndexWriter writer) throws IOException {
+		statistics = writer.getStatistics();
+		statistics.log(log);
+		if (statisticsFile != null) {
+			statistics.writeJSON(statisticsFile);
+		}
+	}
+
+	private abstract class BinarySectionWriter implements Callable<BinarySectionWriter> {
+		private final File file;
+		private final long timestamp;
+		private long start;
+		private long end;
+		private BinaryWriterStatistics statistics;
+
+		public BinarySectionWriter(String name, long timestamp) {
+			this.file = new File(mapFile.getAbsolutePath() + "." + name + ".section");
+			this.timestamp = timestamp;
+		}
+
+		public File getFile() {
+			return file;
+		}
+
+		protected abstract void writeSection(BinaryMapIndexWriter writer) throws IOException, SQLException;
+
+		@Override
+		public BinarySectionWriter call() throws IOException, SQLException {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.setLength(0);
+				// section file is a valid binary file, only sections are used
+				BinaryMapIndexWriter writer = new BinaryMapIndexWriter(raf, timestamp);
+				start = writer.getFilePointer();
+				writeSection(writer);
+				end = writer.getFilePointer();
+				writer.flush();
+				statistics = writer.getStatistics();
+			} finally {
+				raf.close();
+			}
+			return this;
+		}
+	}
+
+	private void writeBinarySectionsInParallel(BinaryMapIndexWriter writer, long timestamp,
+			final List<IndexVectorMapCreator> mapCreators, final List<IndexRouteCreator> routeCreators)
+			throws IOException, SQLException {
+		// every section uses only own database (address - map database, route and transport - own databases)
+		List<BinarySectionWriter> sections = new ArrayList<BinarySectionWriter>();
+		if (!mapCreators.isEmpty()) {
+			sections.add(new BinarySectionWriter("map", timestamp) {
+				@Override
+				protected void writeSection(BinaryMapIndexWriter w) throws IOException, SQLException {
+					IndexVectorMapCreator.writeBinaryMapIndex(w, regionName, mapCreators);
+				}
+			});
+		}
+		if (!routeCreators.isEmpty()) {
+			sections.add(new BinarySectionWriter("route", timestamp) {
+				@Override
+				protected void writeSection(BinaryMapIndexWriter w) throws IOException, SQLException {
+					IndexRouteCreator.writeBinaryRouteIndex(w, regionName, routeCreators);
+				}
+			});
+		}
+		if (indexAddress) {
+			sections.add(new BinarySectionWriter("address", timestamp) {
+				@Override
+				protected void writeSection(BinaryMapIndexWriter w) throws IOException, SQLException {
+					indexAddressCreator.writeBinaryAddressIndex(w, regionName, new ConsoleProgressImplementation(1));
+				}
+			});
+		}
+		if (indexPOI) {
+			sections.add(new BinarySectionWriter("poi", timestamp) {
+				@Override
+				protected void writeSection(BinaryMapIndexWriter w) throws IOException, SQLException {
+					indexPoiCreator.writeBinaryPoiIndex(w, regionName, new ConsoleProgressImplementation(1));
+				}
+			});
+		}
+		if (indexTransport) {
+			sections.add(new BinarySectionWriter("transport", timestamp) {
+				@Override
+				protected void writeSection(BinaryMapIndexWriter w) throws IOException, SQLException {
+					indexTransportCreator.writeBinaryTransportIndex(w, regionName, transportConnection);
+				}
+			});
+		}
+		if (sections.isEmpty()) {
+			return;
+		}
+		ExecutorService service = Executors.newFixedThreadPool(sections.size());
+		try {
+			List<Future<BinarySectionWriter>> futures = new ArrayList<Future<BinarySectionWriter>>();
+			for (BinarySectionWriter s : sections) {
+				futures.add(service.submit(s));
+			}
+			// sections are copied in the same order as they are written sequentially
+			for (Future<BinarySectionWriter> f : futures) {
+				BinarySectionWriter s = getSectionResult(f);
+				writer.writeRawSections(s.getFile(), s.start, s.end);
+				writer.getStatistics().merge(s.statistics);
+				s.getFile().delete();
+			}
+		} finally {
+			service.shutdownNow();
+			for (BinarySectionWriter s : sections) {
+				s.getFile().delete();
+			}
+		}
+	}
 
-			} catch (SQLException e) {
-				e.printStackTrace();
-			} catch (RuntimeException e) {
-				e.printStackTrace();
+	private BinarySectionWriter getSectionResult(Future<BinarySectionWriter> f) throws IOException, SQLException {
+		try {
+			return f.get();
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof SQLException) {
+				throw (SQLException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
 			}
+			throw new IllegalStateException(cause);
 		}
 	}
 
+	private void deleteOsmDB() throws IOException {
+		osmDBdialect.removeDatabase(dbFile);
+		if (nodeLocationStore != null) {
+			nodeLocationStore.delete();
+		}
+	}
+
+	private String getInputDescription(File[] readFile, boolean generateUniqueIds, boolean overwriteIds) {
+		StringBuilder b = new StringBuilder();
+		b.append(indexMap).append(indexRouting).append(indexPOI).append(indexAddress).append(indexTransport);
+		b.append(generateUniqueIds).append(overwriteIds).append(nodeLocationStoreType);
+		for (File f : readFile) {
+			b.append(';').append(f.getAbsolutePath()).append(',').append(f.length()).append(',')
+					.append(f.lastModified());
+		}
+		return b.toString();
+	}
 
 	private void iterateMainEntities(OsmDbAccessor accessor, IProgress progress) throws SQLException, InterruptedException {
+		OsmDbVisitor[] visitors;
+		if (parallelMainIteration) {
+			visitors = getParallelMainVisitors();
+		} else {
+			visitors = new OsmDbVisitor[] { new OsmDbVisitor() {
+				@Override
+				public void iterateEntity(Entity e, OsmDbAccessorContext ctx) throws SQLException {
+					iterateMainEntity(e, ctx);
+				}
+			} };
+		}
 		setGeneralProgress(progress, "[50 / 100]");
 		progress.startTask(Messages.getString("IndexCreator.PROCESS_OSM_NODES"), accessor.getAllNodes());
+		accessor.iterateOverEntities(progress, EntityType.NODE, visitors, true);
+		setGeneralProgress(progress, "[70 / 100]");
+		progress.startTask(Messages.getString("IndexCreator.PROCESS_OSM_WAYS"), accessor.getAllWays());
+		accessor.iterateOverEntities(progress, EntityType.WAY, visitors, true);
+		setGeneralProgress(progress, "[85 / 100]");
+		progress.startTask(Messages.getString("IndexCreator.PROCESS_OSM_REL"), accessor.getAllRelations());
+		accessor.iterateOverEntities(progress, EntityType.RELATION, visitors, true);
+	}
+
+	/**
+	 * Splits region by density of tagged nodes and creates index creator for every shard
+	 */
+	private SpatialShards createShards(OsmDbAccessor accessor, IProgress progress, boolean map, boolean routing,
+			MapZooms mapZooms, MapRenderingTypesEncoder renderingTypes, Log logMapDataWarn, List<IndexCreator> shardCreators)
+			throws SQLException, InterruptedException, IOException {
+		final SpatialShards spatialShards = new SpatialShards(shardZoom);
+		progress.startTask("Splitting region into shards...", accessor.getAllNodes());
 		accessor.iterateOverEntities(progress, EntityType.NODE, new OsmDbVisitor() {
 			@Override
-			public void iterateEntity(Entity e, OsmDbAccessorContext ctx) throws SQLException {
-				iterateMainEntity(e, ctx);
+			public void iterateEntity(Entity e, OsmDbAccessorContext ctx) {
+				spatialShards.register(((Node) e).getLatitude(), ((Node) e).getLongitude());
 			}
 		});
+		spatialShards.split(shards);
+		log.info("Region is split into " + spatialShards.size() + " shards");
+		for (int i = 0; i < spatialShards.size(); i++) {
+			IndexCreator shard = new IndexCreator(workingDir);
+			shard.indexMap = map;
+			shard.indexRouting = routing;
+			shard.generateLowLevel = generateLowLevel;
+			shard.zoomWaySmoothness = zoomWaySmoothness;
+			// low level ways of all shards are combined together by levels
+			shard.lowLevelWaysThreads = lowLevelWaysThreads;
+			shard.regionName = regionName;
+			shard.mapFileName = getMapFileName() + "." + i + ".shard";
+			shard.mapIndexDBDialect = mapIndexDBDialect;
+			shard.deleteDatabaseIndexes = deleteDatabaseIndexes;
+			shard.boundary = boundary;
+			// height data is thread safe
+			shard.heightData = heightData;
+			shard.createIndexCreators(mapZooms, renderingTypes.newInstance(), logMapDataWarn, false);
+			shard.indexMapCreator.setShard(spatialShards, i);
+			shardCreators.add(shard);
+			shard.createDatabaseIndexesStructure();
+		}
+		return spatialShards;
+	}
+
+	/**
+	 * All relations are passed to every shard (to exclude multipolygon ways and propagate tags),
+	 * nodes and ways are passed only to the shard owning them
+	 */
+	private void iterateShardEntities(OsmDbAccessor accessor, IProgress progress, final SpatialShards spatialShards,
+			List<IndexCreator> shardCreators) throws SQLException, InterruptedException {
+		OsmDbVisitor[] relationVisitors = new OsmDbVisitor[shardCreators.size()];
+		OsmDbVisitor[] visitors = new OsmDbVisitor[shardCreators.size()];
+		for (int i = 0; i < visitors.length; i++) {
+			final IndexCreator shard = shardCreators.get(i);
+			relationVisitors[i] = new OsmDbVisitor() {
+				@Override
+				public void iterateEntity(Entity e, OsmDbAccessorContext ctx) throws SQLException {
+					shard.indexRelation(e, ctx);
+				}
+			};
+			visitors[i] = new OsmDbVisitor() {
+				@Override
+				public void iterateEntity(Entity e, OsmDbAccessorContext ctx) throws SQLException {
+					shard.iterateMainEntity(e, ctx);
+				}
+			};
+		}
+		OsmDbEntityRouter router = new OsmDbEntityRouter() {
+			@Override
+			public int getVisitor(Entity e) {
+				return spatialShards.getShard(e);
+			}
+		};
+		setGeneralProgress(progress, "[30 / 100]");
+		progress.startTask(Messages.getString("IndexCreator.PREINDEX_BOUNDARIES_RELATIONS"), accessor.getAllRelations());
+		accessor.iterateOverEntities(progress, EntityType.RELATION, relationVisitors, true);
+		// relations are not used by map and routing in main pass
+		setGeneralProgress(progress, "[50 / 100]");
+		progress.startTask(Messages.getString("IndexCreator.PROCESS_OSM_NODES"), accessor.getAllNodes());
+		accessor.iterateOverEntities(progress, EntityType.NODE, visitors, router, true);
 		setGeneralProgress(progress, "[70 / 100]");
 		progress.startTask(Messages.getString("IndexCreator.PROCESS_OSM_WAYS"), accessor.getAllWays());
-		accessor.iterateOverEntities(progress, EntityType.WAY, new OsmDbVisitor() {
-			@Override
-			public void iterateEntity(Entity e, OsmDbAccessorContext ctx) throws SQLException {
-				iterateMainEntity(e, ctx);
+		accessor.iterateOverEntities(progress, EntityType.WAY, visitors, router, true);
+	}
+
+	private static List<IndexVectorMapCreator> getMapCreators(List<IndexCreator> creators) {
+		List<IndexVectorMapCreator> res = new ArrayList<IndexVectorMapCreator>();
+		for (IndexCreator c : creators) {
+			if (c.indexMap) {
+				res.add(c.indexMapCreator);
 			}
-		});
-		setGeneralProgress(progress, "[85 / 100]");
-		progress.startTask(Messages.getString("IndexCreator.PROCESS_OSM_REL"), accessor.getAllRelations());
-		accessor.iterateOverEntities(progress, EntityType.RELATION, new OsmDbVisitor() {
-			@Override
-			public void iterateEntity(Entity e, OsmDbAccessorContext ctx) throws SQLException {
-				iterateMainEntity(e, ctx);
+		}
+		return res;
+	}
+
+	private static List<IndexRouteCreator> getRouteCreators(List<IndexCreator> creators) {
+		List<IndexRouteCreator> res = new ArrayList<IndexRouteCreator>();
+		for (IndexCreator c : creators) {
+			if (c.indexRouting) {
+				res.add(c.indexRouteCreator);
 			}
-		});
+		}
+		return res;
+	}
+
+	/**
+	 * Low level ways of all shards are combined together and dead ends of base roads are connected using roads
+	 * of all shards, so result doesn't depend on shards
+	 */
+	private void processShardLowLevelWays(IProgress progress, List<IndexCreator> shardCreators) throws SQLException {
+		List<IndexVectorMapCreator> mapCreators = getMapCreators(shardCreators);
+		List<IndexRouteCreator> routeCreators = getRouteCreators(shardCreators);
+		setGeneralProgress(progress, "[90 / 100]");
+		if (!mapCreators.isEmpty()) {
+			int lowLevelWays = 0;
+			for (IndexVectorMapCreator c : mapCreators) {
+				lowLevelWays += c.getLowLevelWays();
+			}
+			progress.startTask(Messages.getString("IndexCreator.INDEX_LO_LEVEL_WAYS"), lowLevelWays);
+			IndexVectorMapCreator.processingLowLevelWays(mapCreators, progress);
+		}
+		if (!routeCreators.isEmpty()) {
+			progress.startTask(Messages.getString("IndexCreator.INDEX_LO_LEVEL_WAYS"), -1);
+			for (IndexRouteCreator c : routeCreators) {
+				c.processingLowLevelWays(progress);
+			}
+			IndexRouteCreator.appendMissingRoadsForBaseMap(routeCreators);
+		}
+	}
+
+	private void packShardRtreeFiles(IProgress progress, List<IndexCreator> shardCreators) throws IOException {
+		setGeneralProgress(progress, "[90 / 100]"); //$NON-NLS-1$
+		progress.startTask(Messages.getString("IndexCreator.PACK_RTREE_MAP"), -1); //$NON-NLS-1$
+		for (IndexCreator shard : shardCreators) {
+			if (shard.indexMap) {
+				shard.indexMapCreator.packRtreeFiles(shard.getRTreeMapIndexNonPackFileName(),
+						shard.getRTreeMapIndexPackFileName());
+			}
+			if (shard.indexRouting) {
+				shard.indexRouteCreator.packRtreeFiles(shard.getRTreeRouteIndexNonPackFileName(),
+						shard.getRTreeRouteIndexPackFileName());
+			}
+		}
+	}
+
+	private OsmDbVisitor[] getParallelMainVisitors() {
+		List<OsmDbVisitor> visitors = new ArrayList<OsmDbVisitor>();
+		// every visitor runs in own thread with own copy of entity, so height tags are added by every visitor
+		// (tiles cache is shared), creators have own databases and map creator is the only user of its encoder
+		if (indexMap) {
+			visitors.add(new OsmDbVisitor() {
+				@Override
+				public void iterateEntity(Entity e, OsmDbAccessorContext ctx) throws SQLException {
+					processHeight(e);
+					if (boundary == null || checkBoundary(e)) {
+						indexMapCreator.iterateMainEntity(e, ctx);
+					}
+				}
+			});
+		}
+		if (indexRouting) {
+			visitors.add(new OsmDbVisitor() {
+				@Override
+				public void iterateEntity(Entity e, OsmDbAccessorContext ctx) throws SQLException {
+					processHeight(e);
+					indexRouteCreator.iterateMainEntity(e, ctx);
+				}
+			});
+		}
+		if (indexPOI) {
+			visitors.add(new OsmDbVisitor() {
+				@Override
+				public void iterateEntity(Entity e, OsmDbAccessorContext ctx) throws SQLException {
+					processHeight(e);
+					indexPoiCreator.iterateEntity(e, ctx, false);
+				}
+			});
+		}
+		if (indexAddress) {
+			visitors.add(new OsmDbVisitor() {
+				@Override
+				public void iterateEntity(Entity e, OsmDbAccessorContext ctx) throws SQLException {
+					indexAddressCreator.iterateMainEntity(e, ctx);
+				}
+			});
+		}
+		if (indexTransport) {
+			visitors.add(new OsmDbVisitor() {
+				@Override
+				public void iterateEntity(Entity e, OsmDbAccessorContext ctx) throws SQLException {
+					indexTransportCreator.iterateMainEntity(e, ctx);
+				}
+			});
+		}
+		if (visitors.isEmpty()) {
+			visitors.add(new OsmDbVisitor() {
+				@Override
+				public void iterateEntity(Entity e, OsmDbAccessorContext ctx) throws SQLException {
+				}
+			});
+		}
+		return visitors.toArray(new OsmDbVisitor[visitors.size()]);
 	}
 
 	private void indexRelations(OsmDbAccessor accessor, IProgress progress) throws SQLException, InterruptedException {
@@ -822,27 +1451,9 @@ public class IndexCreator {
 			accessor.iterateOverEntities(progress, EntityType.RELATION, new OsmDbVisitor() {
 				@Override
 				public void iterateEntity(Entity e, OsmDbAccessorContext ctx) throws SQLException {
-					if (indexAddress) {
-						//indexAddressCreator.indexAddressRelation((Relation) e, ctx); streets needs loaded boundaries !!!
-						indexAddressCreator.indexBoundariesRelation(e, ctx);
-					}
-					if (indexMap) {
-						indexMapCreator.indexMapRelationsAndMultiPolygons(e, ctx);
-					}
-					if (indexRouting) {
-						indexRouteCreator.indexRelations(e, ctx);
-					}
-					if (indexPOI) {
-						indexPoiCreator.iterateRelation((Relation) e, ctx);
-					}
-					if (indexTransport) {
-						indexTransportCreator.indexRelations((Relation) e, ctx);
-					}
+					indexRelation(e, ctx);
 				}
 			});
-			if (indexMap) {
-				indexMapCreator.createMapIndexTableIndexes(mapConnection);
-			}
 			if (indexAddress) {
 				setGeneralProgress(progress, "[40 / 100]"); //$NON-NLS-1$
 				progress.startTask(Messages.getString("IndexCreator.PREINDEX_BOUNDARIES_WAYS"), accessor.getAllWays()); //$NON-NLS-1$
@@ -872,6 +1483,25 @@ public class IndexCreator {
 		}
 	}
 
+	private void indexRelation(Entity e, OsmDbAccessorContext ctx) throws SQLException {
+		if (indexAddress) {
+			//indexAddressCreator.indexAddressRelation((Relation) e, ctx); streets needs loaded boundaries !!!
+			indexAddressCreator.indexBoundariesRelation(e, ctx);
+		}
+		if (indexMap) {
+			indexMapCreator.indexMapRelationsAndMultiPolygons(e, ctx);
+		}
+		if (indexRouting) {
+			indexRouteCreator.indexRelations(e, ctx);
+		}
+		if (indexPOI) {
+			indexPoiCreator.iterateRelation((Relation) e, ctx);
+		}
+		if (indexTransport) {
+			indexTransportCreator.indexRelations((Relation) e, ctx);
+		}
+	}
+
 	private void writeAllCities(OsmDbAccessor accessor, IProgress progress) throws SQLException,
 			InterruptedException {
 		if (indexAddress) {
@@ -935,13 +1565,6 @@ public class IndexCreator {
 		//new File(file),
 
 		log.info("WHOLE GENERATION TIME :  " + (System.currentTimeMillis() - time)); //$NON-NLS-1$
-		log.info("COORDINATES_SIZE " + BinaryMapIndexWriter.COORDINATES_SIZE + " count " + BinaryMapIndexWriter.COORDINATES_COUNT); //$NON-NLS-1$ //$NON-NLS-2$
-		log.info("TYPES_SIZE " + BinaryMapIndexWriter.TYPES_SIZE); //$NON-NLS-1$
-		log.info("ID_SIZE " + BinaryMapIndexWriter.ID_SIZE); //$NON-NLS-1$
-		log.info("- COORD_TYPES_ID SIZE " + (BinaryMapIndexWriter.COORDINATES_SIZE + BinaryMapIndexWriter.TYPES_SIZE + BinaryMapIndexWriter.ID_SIZE)); //$NON-NLS-1$
-		log.info("- MAP_DATA_SIZE " + BinaryMapIndexWriter.MAP_DATA_SIZE); //$NON-NLS-1$
-		log.info("- STRING_TABLE_SIZE " + BinaryMapIndexWriter.STRING_TABLE_SIZE); //$NON-NLS-1$
-		log.info("-- MAP_DATA_AND_STRINGS SIZE " + (BinaryMapIndexWriter.MAP_DATA_SIZE + BinaryMapIndexWriter.STRING_TABLE_SIZE)); //$NON-NLS-1$
 
 	}
 
@@ -352,6 +352,12 @@ public class IndexHeightData {
 			lt -= 1;
 		}
 		int id = getTileId(lt, ln);
+		TileData tileData = getTileData(id);
+		return tileData.getHeight(lonDelta, latDelta, neighboors);
+	}
+
+	// tiles are loaded once and only read afterwards, so height data could be shared by threads
+	private synchronized TileData getTileData(int id) {
 		TileData tileData = map.get(id);
 		if(tileData == null) {
 			tileData = new TileData(id);
@@ -364,8 +370,7 @@ public class IndexHeightData {
 				log.error(e.getMessage(), e);
 			}
 		}
-		
-		return tileData.getHeight(lonDelta, latDelta, neighboors);
+		return tileData;
 	}
 	
 	public static int getTileId(int lat, int lon) {
@@ -3,6 +3,7 @@ package net.osmand.data.preparation;
 import gnu.trove.TIntCollection;
 import gnu.trove.iterator.TIntIterator;
 import gnu.trove.iterator.TIntObjectIterator;
+import gnu.trove.iterator.TLongObjectIterator;
 import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.list.array.TLongArrayList;
 import gnu.trove.map.hash.TIntObjectHashMap;
@@ -13,7 +14,6 @@ import gnu.trove.set.hash.TLongHashSet;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -21,6 +21,7 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -34,13 +35,11 @@ import java.util.Set;
 import java.util.TreeMap;
 
 import net.osmand.IProgress;
-import net.osmand.binary.BinaryMapIndexReader;
 import net.osmand.binary.OsmandOdb.IdTable;
 import net.osmand.binary.OsmandOdb.OsmAndRoutingIndex.RouteDataBlock;
 import net.osmand.binary.OsmandOdb.RestrictionData;
 import net.osmand.binary.OsmandOdb.RestrictionData.Builder;
 import net.osmand.binary.OsmandOdb.RouteData;
-import net.osmand.binary.RouteDataObject;
 import net.osmand.data.LatLon;
 import net.osmand.data.preparation.BinaryMapIndexWriter.RoutePointToWrite;
 import net.osmand.osm.MapRenderingTypes;
@@ -58,7 +57,6 @@ import net.osmand.osm.edit.OsmMapUtils;
 import net.osmand.osm.edit.Relation;
 import net.osmand.osm.edit.Relation.RelationMember;
 import net.osmand.osm.edit.Way;
-import net.osmand.osm.util.CheckRoadConnectivity;
 import net.osmand.util.Algorithms;
 import net.osmand.util.MapUtils;
 
@@ -66,10 +64,9 @@ import org.apache.commons.logging.Log;
 
 import rtree.Element;
 import rtree.IllegalValueException;
-import rtree.LeafElement;
 import rtree.RTree;
+import rtree.RTreeBulkLoader;
 import rtree.RTreeException;
-import rtree.RTreeInsertException;
 import rtree.Rect;
 
 public class IndexRouteCreator extends AbstractIndexPartCreator {
@@ -80,6 +77,8 @@ public class IndexRouteCreator extends AbstractIndexPartCreator {
 	private final static String CONFLICT_NAME = "#CONFLICT";
 	private RTree routeTree = null;
 	private RTree baserouteTree = null;
+	private RTreeBulkLoader routeTreeLoader = null;
+	private RTreeBulkLoader baserouteTreeLoader = null;
 	private MapRoutingTypes routeTypes;
 	TagsTransformer tagsTransformer = new TagsTransformer();
 
@@ -123,6 +122,8 @@ public class IndexRouteCreator extends AbstractIndexPartCreator {
 	private PreparedStatement basemapRouteInsertStat;
 	private MapRenderingTypesEncoder renderingTypes;
 	private boolean generateLowLevel;
+	// to connect dead ends of base roads, only for low level
+	private RoadConnectivityGraph roadGraph;
 
 
 	private class RouteMissingPoints {
@@ -152,6 +153,9 @@ public class IndexRouteCreator extends AbstractIndexPartCreator {
 		this.logMapDataWarn = logMapDataWarn;
 		this.generateLowLevel = generateLowLevel;
 		this.routeTypes = new MapRoutingTypes(renderingTypes);
+		if (generateLowLevel) {
+			roadGraph = new RoadConnectivityGraph();
+		}
 	}
 	public void indexRelations(Entity e, OsmDbAccessorContext ctx) throws SQLException {
 		indexHighwayRestrictions(e, ctx);
@@ -190,7 +194,10 @@ public class IndexRouteCreator extends AbstractIndexPartCreator {
 					tagsTransformer.addPropogatedTags(n);
 				}
 				routeTypes.encodePointTypes(e, pointTypes, pointNames, false);
-				addWayToIndex(e.getId(), e.getNodes(), mapRouteInsertStat, routeTree, outTypes, pointTypes, pointNames, names);
+				addWayToIndex(e.getId(), e.getNodes(), mapRouteInsertStat, routeTreeLoader, outTypes, pointTypes, pointNames, names);
+				if (roadGraph != null && RoadConnectivityGraph.isCarRoad(tags)) {
+					roadGraph.addRoad(e.getId(), e.getNodes(), RoadConnectivityGraph.getOneway(tags));
+				}
 			}
 			if (generateLowLevel) {
 				encoded = routeTypes.encodeBaseEntity(tags, outTypes, names) && e.getNodes().size() >= 2;
@@ -199,8 +206,9 @@ public class IndexRouteCreator extends AbstractIndexPartCreator {
 					long id = e.getId();
 					List<Node> result = simplifyRouteForBaseSection(source, id);
 					routeTypes.encodePointTypes(e, pointTypes, pointNames, true);
-					addWayToIndex(e.getId(), result, basemapRouteInsertStat, baserouteTree, outTypes, pointTypes,
+					addWayToIndex(e.getId(), result, basemapRouteInsertStat, baserouteTreeLoader, outTypes, pointTypes,
 							pointNames, names);
+					roadGraph.addBaseRoad(e.getId(), result, tags);
 					// generalizeWay(e);
 
 				}
@@ -275,7 +283,7 @@ public class IndexRouteCreator extends AbstractIndexPartCreator {
 		}
 
 	}
-	private void addWayToIndex(long id, List<Node> nodes, PreparedStatement insertStat, RTree rTree,
+	private void addWayToIndex(long id, List<Node> nodes, PreparedStatement insertStat, RTreeBulkLoader rTree,
 			TIntArrayList outTypes,	TLongObjectHashMap<TIntArrayList> pointTypes,
 			TLongObjectHashMap<TIntObjectHashMap<String>> pointNamesRaw, Map<MapRoutingTypes.MapRouteType, String> names ) throws SQLException {
 		boolean init = false;
@@ -346,11 +354,9 @@ public class IndexRouteCreator extends AbstractIndexPartCreator {
 
 			addBatch(insertStat, false);
 			try {
-				rTree.insert(new LeafElement(new Rect(minX, minY, maxX, maxY), id));
-			} catch (RTreeInsertException e1) {
-				throw new IllegalArgumentException(e1);
-			} catch (IllegalValueException e1) {
-				throw new IllegalArgumentException(e1);
+				rTree.add(minX, minY, maxX, maxY, id);
+			} catch (IOException e1) {
+				throw new IllegalStateException(e1);
 			}
 		}
 	}
@@ -498,19 +504,11 @@ public class IndexRouteCreator extends AbstractIndexPartCreator {
 		stat.executeUpdate("create index " +TABLE_BASEROUTE + CREATE_IND);
 		stat.close();
 		mapRouteInsertStat = createStatementRouteObjInsert(mapConnection, false);
-		try {
-			routeTree = new RTree(rtreeMapIndexNonPackFileName);
-		} catch (RTreeException e) {
-			throw new IOException(e);
-		}
+		routeTreeLoader = new RTreeBulkLoader(rtreeMapIndexNonPackFileName);
 		pStatements.put(mapRouteInsertStat, 0);
 		if (generateLowLevel) {
 			basemapRouteInsertStat = createStatementRouteObjInsert(mapConnection, true);
-			try {
-				baserouteTree = new RTree(rtreeMapIndexNonPackFileName + "b");
-			} catch (RTreeException e) {
-				throw new IOException(e);
-			}
+			baserouteTreeLoader = new RTreeBulkLoader(rtreeMapIndexNonPackFileName + "b");
 			pStatements.put(basemapRouteInsertStat, 0);
 		}
 	}
@@ -524,6 +522,14 @@ public class IndexRouteCreator extends AbstractIndexPartCreator {
 	public void commitAndCloseFiles(String rTreeMapIndexNonPackFileName, String rTreeMapIndexPackFileName, boolean deleteDatabaseIndexes)
 			throws IOException, SQLException {
 		// delete map rtree files
+		if (routeTreeLoader != null) {
+			routeTreeLoader.close();
+			routeTreeLoader = null;
+		}
+		if (baserouteTreeLoader != null) {
+			baserouteTreeLoader.close();
+			baserouteTreeLoader = null;
+		}
 		deleteRouteTreeFiles(rTreeMapIndexNonPackFileName, rTreeMapIndexPackFileName, deleteDatabaseIndexes, routeTree);
 		if(generateLowLevel) {
 			deleteRouteTreeFiles(rTreeMapIndexNonPackFileName+"b", rTreeMapIndexPackFileName+"b", deleteDatabaseIndexes, baserouteTree);
@@ -534,8 +540,7 @@ public class IndexRouteCreator extends AbstractIndexPartCreator {
 	private void deleteRouteTreeFiles(String rTreeMapIndexNonPackFileName, String rTreeMapIndexPackFileName, boolean deleteDatabaseIndexes,
 			RTree rte) throws IOException {
 		if (rte != null) {
-			RandomAccessFile file = rte.getFileHdr().getFile();
-			file.close();
+			RTree.releaseFile(rte.getFileName());
 		}
 		if (rTreeMapIndexNonPackFileName != null) {
 			File f = new File(rTreeMapIndexNonPackFileName);
@@ -599,105 +604,166 @@ public class IndexRouteCreator extends AbstractIndexPartCreator {
 	}
 
 	public void packRtreeFiles(String rTreeRouteIndexNonPackFileName, String rTreeRouteIndexPackFileName) throws IOException {
-		routeTree = packRtreeFile(routeTree, rTreeRouteIndexNonPackFileName, rTreeRouteIndexPackFileName);
+		routeTree = buildRtreeFile(routeTreeLoader, rTreeRouteIndexPackFileName);
+		routeTreeLoader = null;
 		if (generateLowLevel) {
-			baserouteTree = packRtreeFile(baserouteTree, rTreeRouteIndexNonPackFileName + "b",
-					rTreeRouteIndexPackFileName + "b");
+			baserouteTree = buildRtreeFile(baserouteTreeLoader, rTreeRouteIndexPackFileName + "b");
+			baserouteTreeLoader = null;
 		}
 	}
 
-	public void writeBinaryRouteIndex(File fl, BinaryMapIndexWriter writer, String regionName, boolean generateLowLevel) throws IOException, SQLException {
-		closePreparedStatements(mapRouteInsertStat);
-		if(basemapRouteInsertStat != null) {
-			closePreparedStatements(basemapRouteInsertStat);
+	public void writeBinaryRouteIndex(BinaryMapIndexWriter writer, String regionName, boolean generateLowLevel) throws IOException, SQLException {
+		writeBinaryRouteIndex(writer, regionName, Collections.singletonList(this));
+	}
+
+	/**
+	 * Writes one route index of creators (shards of one region or one creator): rules are common,
+	 * boxes of all creators are written before blocks and blocks are read from database of their creator
+	 */
+	public static void writeBinaryRouteIndex(BinaryMapIndexWriter writer, String regionName,
+			List<IndexRouteCreator> creators) throws IOException, SQLException {
+		List<List<MapRouteType>> rules = new ArrayList<List<MapRouteType>>();
+		for (IndexRouteCreator c : creators) {
+			c.closePreparedStatements(c.mapRouteInsertStat);
+			if (c.basemapRouteInsertStat != null) {
+				c.closePreparedStatements(c.basemapRouteInsertStat);
+			}
+			c.mapConnection.commit();
+			rules.add(c.routeTypes.getEncodingRuleTypes());
 		}
-		mapConnection.commit();
 
 		try {
 			writer.startWriteRouteIndex(regionName);
 			// write map encoding rules
-			// save position
-			writer.writeRouteEncodingRules(routeTypes.getEncodingRuleTypes());
-			RandomAccessFile raf = writer.getRaf();
-			writer.flush();
-			long fp = raf.getFilePointer();
-
-			// 1st write
-			writeRouteSections(writer);
-			String fname = null;
-			if (baserouteTree != null) {
-				// prewrite end of file to read it
-				writer.simulateWriteEndRouteIndex();
-				writer.preclose();
-				writer.flush();
-
-				// use file to recalulate tree
-				raf.seek(0);
-				appendMissingRoadsForBaseMap(mapConnection, new BinaryMapIndexReader(raf, fl));
-				// repack
-				fname = baserouteTree.getFileName();
-				baserouteTree = packRtreeFile(baserouteTree, fname, fname + "p");
-
-				// seek to previous position
-				raf.seek(fp);
-				raf.getChannel().truncate(fp);
-
-				// 2nd write
-				writeRouteSections(writer);
+			writer.writeMergedRouteEncodingRules(rules);
+			List<TLongObjectHashMap<BinaryFileReference>> route = new ArrayList<TLongObjectHashMap<BinaryFileReference>>();
+			List<TLongObjectHashMap<BinaryFileReference>> base = new ArrayList<TLongObjectHashMap<BinaryFileReference>>();
+			for (IndexRouteCreator c : creators) {
+				route.add(c.writeBinaryRouteIndexHeader(writer, c.routeTree, false));
+			}
+			for (IndexRouteCreator c : creators) {
+				base.add(c.baserouteTree == null ? null : c.writeBinaryRouteIndexHeader(writer, c.baserouteTree, true));
+			}
+			for (int i = 0; i < creators.size(); i++) {
+				IndexRouteCreator c = creators.get(i);
+				c.writeBinaryRouteIndexBlocks(writer, c.routeTree, false, route.get(i));
+			}
+			for (int i = 0; i < creators.size(); i++) {
+				IndexRouteCreator c = creators.get(i);
+				if (c.baserouteTree != null) {
+					c.writeBinaryRouteIndexBlocks(writer, c.baserouteTree, true, base.get(i));
+				}
 			}
 			writer.endWriteRouteIndex();
 			writer.flush();
-			if (generateLowLevel) {
-				baserouteTree = null;
-				new File(fname + "p").delete();
-			}
 		} catch (RTreeException e) {
 			throw new IllegalStateException(e);
 		}
 	}
-	private TLongObjectHashMap<BinaryFileReference> writeRouteSections(BinaryMapIndexWriter writer) throws IOException,
-			SQLException, RTreeException {
-		TLongObjectHashMap<BinaryFileReference> route = writeBinaryRouteIndexHeader(writer, routeTree, false);
-		TLongObjectHashMap<BinaryFileReference> base = null;
-		if (baserouteTree != null) {
-			base = writeBinaryRouteIndexHeader(writer, baserouteTree, true);
-		}
-		writeBinaryRouteIndexBlocks(writer, routeTree, false, route);
-		if (baserouteTree != null) {
-			writeBinaryRouteIndexBlocks(writer, baserouteTree, true, base);
-		}
-		return base;
+
+	/**
+	 * Adds roads connecting dead ends of base roads to base network. Creators are shards of one region (or one
+	 * creator), roads are searched in graph of all shards, so result doesn't depend on shards.
+	 * Should be called after low level ways are processed and before rtree files are packed.
+	 */
+	public static void appendMissingRoadsForBaseMap(List<IndexRouteCreator> creators) throws SQLException {
+		List<RoadConnectivityGraph> graphs = new ArrayList<RoadConnectivityGraph>();
+		for (IndexRouteCreator c : creators) {
+			if (c.roadGraph == null) {
+				return;
+			}
+			graphs.add(c.roadGraph);
+		}
+		mergeBaseIntersections(creators);
+		TLongObjectHashMap<long[]> intersections = new TLongObjectHashMap<long[]>();
+		for (IndexRouteCreator c : creators) {
+			TLongObjectIterator<RouteMissingPoints> it = c.basemapNodesToReinsert.iterator();
+			while (it.hasNext()) {
+				it.advance();
+				TLongArrayList pnts = new TLongArrayList();
+				for (Long p : it.value().pointsMap.values()) {
+					pnts.add(p);
+				}
+				intersections.put(it.key(), pnts.toArray());
+			}
+		}
+		TLongObjectHashMap<long[]> map = RoadConnectivityGraph.merge(graphs).findMissingBaseRoads(intersections);
+		// road is added to base section of creator which has it
+		List<TLongObjectHashMap<long[]>> toAdd = new ArrayList<TLongObjectHashMap<long[]>>();
+		for (int i = 0; i < creators.size(); i++) {
+			toAdd.add(new TLongObjectHashMap<long[]>());
+		}
+		TLongObjectIterator<long[]> mit = map.iterator();
+		while (mit.hasNext()) {
+			mit.advance();
+			int owner = 0;
+			while (owner < creators.size() - 1 && !graphs.get(owner).containsRoad(mit.key())) {
+				owner++;
+			}
+			toAdd.get(owner).put(mit.key(), mit.value());
+		}
+		for (int i = 0; i < creators.size(); i++) {
+			creators.get(i).roadGraph = null;
+			creators.get(i).appendBaseRoads(toAdd.get(i));
+		}
+		// added roads could intersect base roads of other shards
+		mergeBaseIntersections(creators);
+	}
+
+	/**
+	 * Point removed from base road of one shard is intersection if it is also a point of base road of other shard
+	 * (as it is for points visited twice in one creator)
+	 */
+	private static void mergeBaseIntersections(List<IndexRouteCreator> creators) {
+		for (IndexRouteCreator c : creators) {
+			TLongObjectIterator<Long> it = c.basemapRemovedNodes.iterator();
+			while (it.hasNext()) {
+				it.advance();
+				if (it.value() == -1) {
+					continue;
+				}
+				for (IndexRouteCreator o : creators) {
+					if (o != c && o.basemapRemovedNodes.containsKey(it.key())) {
+						c.putIntersection(it.key(), it.value());
+						it.setValue(-1l);
+						break;
+					}
+				}
+			}
+		}
 	}
 
-	private void appendMissingRoadsForBaseMap(Connection conn, BinaryMapIndexReader reader) throws IOException, SQLException {
-		TLongObjectHashMap<RouteDataObject> map = new CheckRoadConnectivity().collectDisconnectedRoads(reader);
-		// to add
-		PreparedStatement ps = conn.prepareStatement(COPY_BASE);
-		for(RouteDataObject rdo : map.valueCollection()) {
-			//addWayToIndex(id, nodes, insertStat, rTree)
+	private void appendBaseRoads(TLongObjectHashMap<long[]> roads) throws SQLException {
+		if (roads.isEmpty()) {
+			return;
+		}
+		// copied roads should be already inserted
+		executePendingPreparedStatements();
+		PreparedStatement ps = mapConnection.prepareStatement(COPY_BASE);
+		TLongObjectIterator<long[]> mit = roads.iterator();
+		while (mit.hasNext()) {
+			mit.advance();
+			long id = mit.key();
+			long[] pnts = mit.value();
 			int minX = Integer.MAX_VALUE;
 			int maxX = 0;
 			int minY = Integer.MAX_VALUE;
 			int maxY = 0;
-			long id = rdo.getId();
-			for(int i = 0; i < rdo.getPointsLength(); i++) {
-				int x = rdo.getPoint31XTile(i);
-				int y = rdo.getPoint31YTile(i);
+			for (int i = 0; i < pnts.length; i++) {
+				int x = (int) (pnts[i] >> 31);
+				int y = (int) (pnts[i] & ((1l << 31) - 1));
 				minX = Math.min(minX, x);
 				maxX = Math.max(maxX, x);
 				minY = Math.min(minY, y);
 				maxY = Math.max(maxY, y);
-				long point = (x << 31) + y;
-				registerBaseIntersectionPoint(point, false, id, i, i);
+				registerBaseIntersectionPoint(pnts[i], false, id, i, i);
 			}
 			ps.setLong(1, id);
 			ps.execute();
 			try {
-				baserouteTree.insert(new LeafElement(new Rect(minX, minY, maxX, maxY), id));
-			} catch (RTreeInsertException e1) {
-				throw new IllegalArgumentException(e1);
-			} catch (IllegalValueException e1) {
-				throw new IllegalArgumentException(e1);
+				baserouteTreeLoader.add(minX, minY, maxX, maxY, id);
+			} catch (IOException e1) {
+				throw new IllegalStateException(e1);
 			}
 		}
 		ps.close();
@@ -843,7 +909,7 @@ public class IndexRouteCreator extends AbstractIndexPartCreator {
 				outTypes.add(gw.mainType);
 				outTypes.addAll(gw.addtypes);
 				try {
-					addWayToIndex(gw.id, nodes, basemapRouteInsertStat, baserouteTree, outTypes, pointTypes,
+					addWayToIndex(gw.id, nodes, basemapRouteInsertStat, baserouteTreeLoader, outTypes, pointTypes,
 							pointNames, names);
 				} catch (SQLException e) {
 					throw new IllegalStateException(e);
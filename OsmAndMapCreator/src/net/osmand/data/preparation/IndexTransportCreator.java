@@ -40,10 +40,9 @@ import org.apache.commons.logging.LogFactory;
 
 import rtree.Element;
 import rtree.IllegalValueException;
-import rtree.LeafElement;
 import rtree.RTree;
+import rtree.RTreeBulkLoader;
 import rtree.RTreeException;
-import rtree.RTreeInsertException;
 import rtree.Rect;
 
 public class IndexTransportCreator extends AbstractIndexPartCreator {
@@ -56,6 +55,7 @@ public class IndexTransportCreator extends AbstractIndexPartCreator {
 	private PreparedStatement transStopsStat;
 	private PreparedStatement transRouteGeometryStat;
 	private RTree transportStopsTree;
+	private RTreeBulkLoader transportStopsTreeLoader;
 	private Map<Long, Relation> masterRoutes = new HashMap<Long, Relation>();
 	// Note: in future when we need more information from stop_area relation, it is better to memorize relations itself
 	// now we need only specific names of stops and platforms
@@ -139,7 +139,8 @@ public class IndexTransportCreator extends AbstractIndexPartCreator {
 
 
 	public void packRTree(String rtreeTransportStopsFileName, String rtreeTransportStopsPackFileName) throws IOException {
-		transportStopsTree = packRtreeFile(transportStopsTree, rtreeTransportStopsFileName, rtreeTransportStopsPackFileName);
+		transportStopsTree = buildRtreeFile(transportStopsTreeLoader, rtreeTransportStopsPackFileName);
+		transportStopsTreeLoader = null;
 	}
 
 	public void indexRelations(Relation e, OsmDbAccessorContext ctx) throws SQLException {
@@ -205,15 +206,11 @@ public class IndexTransportCreator extends AbstractIndexPartCreator {
 //        }
 		stat.close();
 
-		try {
-			File file = new File(rtreeStopsFileName);
-			if (file.exists()) {
-				file.delete();
-			}
-			transportStopsTree = new RTree(file.getAbsolutePath());
-		} catch (RTreeException e) {
-			throw new IOException(e);
+		File file = new File(rtreeStopsFileName);
+		if (file.exists()) {
+			file.delete();
 		}
+		transportStopsTreeLoader = new RTreeBulkLoader(file.getAbsolutePath());
 		transRouteStat = conn.prepareStatement("insert into transport_route(id, type, operator, ref, name, name_en, dist) values(?, ?, ?, ?, ?, ?, ?)");
 		transRouteStopsStat = conn.prepareStatement("insert into transport_route_stop(route, stop, ord) values(?, ?, ?)");
 		transStopsStat = conn.prepareStatement("insert into transport_stop(id, latitude, longitude, name, name_en) values(?, ?, ?, ?, ?)");
@@ -279,11 +276,9 @@ public class IndexTransportCreator extends AbstractIndexPartCreator {
 				int y = (int) MapUtils.getTileNumberY(24, s.getLocation().getLatitude());
 				addBatch(transStopsStat);
 				try {
-					transportStopsTree.insert(new LeafElement(new Rect(x, y, x, y), s.getId()));
-				} catch (RTreeInsertException e) {
-					throw new IllegalArgumentException(e);
-				} catch (IllegalValueException e) {
-					throw new IllegalArgumentException(e);
+					transportStopsTreeLoader.add(x, y, x, y, s.getId());
+				} catch (IOException e) {
+					throw new IllegalStateException(e);
 				}
 				visitedStops.add(s.getId());
 			}
@@ -438,8 +433,12 @@ public class IndexTransportCreator extends AbstractIndexPartCreator {
 
 	public void commitAndCloseFiles(String rtreeStopsFileName, String rtreeStopsPackFileName, boolean deleteDatabaseIndexes) throws IOException, SQLException {
 		// delete transport rtree files
+		if (transportStopsTreeLoader != null) {
+			transportStopsTreeLoader.close();
+			transportStopsTreeLoader = null;
+		}
 		if (transportStopsTree != null) {
-			transportStopsTree.getFileHdr().getFile().close();
+			RTree.releaseFile(transportStopsTree.getFileName());
 			File f = new File(rtreeStopsFileName);
 			if (f.exists() && deleteDatabaseIndexes) {
 				f.delete();
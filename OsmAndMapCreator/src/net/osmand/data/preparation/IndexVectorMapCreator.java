@@ -2,27 +2,32 @@ package net.osmand.data.preparation;
 
 
 import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TLongArrayList;
 import gnu.trove.map.hash.TLongObjectHashMap;
 import gnu.trove.set.hash.TLongHashSet;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import net.osmand.IProgress;
 import net.osmand.binary.MapZooms;
@@ -51,11 +56,10 @@ import net.osmand.util.MapUtils;
 import org.apache.commons.logging.Log;
 
 import rtree.Element;
-import rtree.IllegalValueException;
-import rtree.LeafElement;
+import rtree.PackedRTreeReader;
 import rtree.RTree;
+import rtree.RTreeBulkLoader;
 import rtree.RTreeException;
-import rtree.RTreeInsertException;
 import rtree.Rect;
 
 public class IndexVectorMapCreator extends AbstractIndexPartCreator {
@@ -90,14 +94,18 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
 	TagsTransformer tagsTransformer = new TagsTransformer();
 	TIntArrayList addtypeUse = new TIntArrayList(8);
 
-	private PreparedStatement mapBinaryStat;
-	private PreparedStatement mapLowLevelBinaryStat;
+	private MapObjectStore mapObjects;
+	// low level ways to combine by levels
+	private LowLevelWayStore[] lowLevelStores;
+	private int lowLevelWaysThreads = Runtime.getRuntime().availableProcessors();
 	private int lowLevelWays = -1;
 	private RTree[] mapTree = null;
-	private Connection mapConnection;
+	private RTreeBulkLoader[] mapTreeLoaders = null;
 
 	private int zoomWaySmoothness = 0;
 	private final Log logMapDataWarn;
+	private SpatialShards shards;
+	private int shard;
 
 	public TLongHashSet generatedIds = new TLongHashSet();
 	private static boolean USE_OLD_GEN_ID = false;
@@ -153,6 +161,16 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
 		this.zoomWaySmoothness = zoomWaySmoothness;
 		this.renderingTypes = renderingTypes;
 		lowLevelWays = -1;
+		lowLevelStores = new LowLevelWayStore[mapZooms.size()];
+	}
+
+	/**
+	 * Multipolygons are indexed only if their outer ring belongs to the shard,
+	 * relations are still processed to exclude member ways and propagate tags.
+	 */
+	public void setShard(SpatialShards shards, int shard) {
+		this.shards = shards;
+		this.shard = shard;
 	}
 
 	public void indexMapRelationsAndMultiPolygons(Entity e, OsmDbAccessorContext ctx) throws SQLException {
@@ -213,6 +231,9 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
 				// don't index this
 				continue;
 			}
+			if (shards != null && shards.getShard(out.getBorder(), e.getId()) != shard) {
+				continue;
+			}
 
 			// innerWays are new closed ways
 			List<List<Node>> innerWays = new ArrayList<List<Node>>();
@@ -264,7 +285,7 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
 				}
 				innerWays = newinnerWays;
 			}
-			insertBinaryMapRenderObjectIndex(mapTree[level], outerWay, innerWays, namesUse, id, true, typeUse, addtypeUse, true);
+			insertBinaryMapRenderObjectIndex(mapTreeLoaders[level], outerWay, innerWays, namesUse, id, true, typeUse, addtypeUse);
 
 		}
 	}
@@ -316,181 +337,311 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
 		return lowLevelWays;
 	}
 
-	private void loadNodes(byte[] nodes, List<Float> toPut) {
-		toPut.clear();
-		for (int i = 0; i < nodes.length;) {
-			int lat = Algorithms.parseIntFromBytes(nodes, i);
-			i += 4;
-			int lon = Algorithms.parseIntFromBytes(nodes, i);
-			i += 4;
-			toPut.add(Float.intBitsToFloat(lat));
-			toPut.add(Float.intBitsToFloat(lon));
-		}
+	private static class LowLevelWayCandidate {
+		public int way;
+		public Map<MapRulType, String> names;
+		public int namesCount = 0;
+	}
+
+	static class CombinedLowLevelWay {
+		public long id;
+		// index of first way in the store and creator which has it
+		public int way;
+		public int creator;
+		public List<Node> nodes;
+		public Map<MapRulType, String> names;
+		public TIntArrayList types;
+		public TIntArrayList addTypes;
+	}
+
+	/**
+	 * Threads to combine low level ways, levels are combined in parallel (in the calling thread if it is 1)
+	 */
+	public void setLowLevelWaysThreads(int lowLevelWaysThreads) {
+		this.lowLevelWaysThreads = Math.max(1, lowLevelWaysThreads);
+	}
+
+	public void processingLowLevelWays(IProgress progress) {
+		processingLowLevelWays(Collections.singletonList(this), progress);
 	}
 
-	private void parseAndSort(TIntArrayList ts, byte[] bs) {
-		ts.clear();
-		if (bs != null && bs.length > 0) {
-			for (int j = 0; j < bs.length; j += 2) {
-				ts.add(Algorithms.parseSmallIntFromBytes(bs, j));
+	/**
+	 * Rule types of several creators (shards of one region) by common ids, types with the same key
+	 * have the same common id, so low level ways of all creators could be combined together
+	 */
+	static class CommonRuleTypes {
+		// common id -> type of first creator with the key
+		private final List<MapRulType> types = new ArrayList<MapRulType>();
+		private final Map<MapRulType, Integer> ids = new IdentityHashMap<MapRulType, Integer>();
+		// creator -> internal id -> common id and creator -> common id -> internal id
+		private final int[][] toCommon;
+		private final int[][] fromCommon;
+
+		final Comparator<MapRulType> comparator = new Comparator<MapRulType>() {
+
+			@Override
+			public int compare(MapRulType o1, MapRulType o2) {
+				int lhs = o1.getOrder();
+				int rhs = o2.getOrder();
+				if (lhs == rhs) {
+					lhs = getCommonId(o1);
+					rhs = getCommonId(o2);
+				}
+				return lhs < rhs ? -1 : (lhs == rhs ? 0 : 1);
+			}
+		};
+
+		CommonRuleTypes(List<IndexVectorMapCreator> creators) {
+			Map<String, Integer> keys = new HashMap<String, Integer>();
+			toCommon = new int[creators.size()][];
+			for (int c = 0; c < creators.size(); c++) {
+				Map<String, MapRulType> rules = creators.get(c).renderingTypes.getEncodingRuleTypes();
+				int max = 0;
+				for (MapRulType rt : rules.values()) {
+					max = Math.max(max, rt.getInternalId());
+				}
+				toCommon[c] = new int[max + 1];
+				Arrays.fill(toCommon[c], -1);
+				for (Map.Entry<String, MapRulType> e : rules.entrySet()) {
+					Integer id = keys.get(e.getKey());
+					if (id == null) {
+						id = types.size();
+						keys.put(e.getKey(), id);
+						types.add(e.getValue());
+						ids.put(e.getValue(), id);
+					}
+					toCommon[c][e.getValue().getInternalId()] = id;
+				}
+			}
+			fromCommon = new int[creators.size()][types.size()];
+			for (int c = 0; c < creators.size(); c++) {
+				Arrays.fill(fromCommon[c], -1);
+				for (int i = 0; i < toCommon[c].length; i++) {
+					if (toCommon[c][i] != -1) {
+						fromCommon[c][toCommon[c][i]] = i;
+					}
+				}
 			}
 		}
-		ts.sort();
-	}
 
-	private static class LowLevelWayCandidate {
-		public byte[] nodes;
-		public long wayId;
-		public long otherNodeId;
-		public Map<MapRulType, String> names;
-		public int namesCount = 0;
+		MapRulType getType(int commonId) {
+			return types.get(commonId);
+		}
+
+		int getCommonId(MapRulType commonType) {
+			return ids.get(commonType);
+		}
 
+		int[] getCommonIds(int creator) {
+			return toCommon[creator];
+		}
 
+		// way types and names of the creator which has the way
+		void convertToCreator(CombinedLowLevelWay w, IndexVectorMapCreator c) {
+			int[] table = fromCommon[w.creator];
+			for (TIntArrayList t : new TIntArrayList[] { w.types, w.addTypes }) {
+				for (int i = 0; i < t.size(); i++) {
+					t.setQuick(i, table[t.getQuick(i)]);
+				}
+				t.sort();
+			}
+			Map<MapRulType, String> names = new TreeMap<MapRulType, String>(c.comparator);
+			for (Map.Entry<MapRulType, String> e : w.names.entrySet()) {
+				names.put(c.renderingTypes.getTypeByInternalId(table[getCommonId(e.getKey())]), e.getValue());
+			}
+			w.names = names;
+		}
 	}
 
-	public List<LowLevelWayCandidate> readLowLevelCandidates(ResultSet fs,
-			List<LowLevelWayCandidate> l, TIntArrayList temp, TIntArrayList tempAdd, TLongHashSet visitedWays) throws SQLException {
-		l.clear();
-		while (fs.next()) {
-			if (!visitedWays.contains(fs.getLong(1))) {
-				parseAndSort(temp, fs.getBytes(5));
-				parseAndSort(tempAdd, fs.getBytes(6));
-				if(temp.equals(typeUse) && tempAdd.equals(addtypeUse)){
-					LowLevelWayCandidate llwc = new LowLevelWayCandidate();
-					llwc.wayId = fs.getLong(1);
-					llwc.names = decodeNames(fs.getString(4), new HashMap<MapRulType, String>());
-					llwc.nodes = fs.getBytes(3);
-					llwc.otherNodeId = fs.getLong(2);
-					for(MapRulType mr : namesUse.keySet()) {
-						if(Algorithms.objectEquals(namesUse.get(mr), llwc.names.get(mr))) {
-							llwc.namesCount++;
-						}
+	/**
+	 * Combines low level ways of creators (shards of one region or one creator) together in the order of ids,
+	 * so result doesn't depend on shards. Combined way is indexed by creator of its first way.
+	 */
+	public static void processingLowLevelWays(final List<IndexVectorMapCreator> creators, IProgress progress) {
+		IndexVectorMapCreator first = creators.get(0);
+		final CommonRuleTypes rules = new CommonRuleTypes(creators);
+		final int coastlineType = rules.getCommonIds(0)[first.renderingTypes.getCoastlineRuleType().getInternalId()];
+		int levels = first.lowLevelStores.length;
+		int[] sizes = new int[levels];
+		for (IndexVectorMapCreator c : creators) {
+			for (int level = 0; level < levels; level++) {
+				sizes[level] += c.lowLevelStores[level] == null ? 0 : c.lowLevelStores[level].size();
+			}
+		}
+		ExecutorService service = first.lowLevelWaysThreads > 1 ?
+				Executors.newFixedThreadPool(Math.min(first.lowLevelWaysThreads, levels)) : null;
+		try {
+			List<Future<List<CombinedLowLevelWay>>> futures = new ArrayList<Future<List<CombinedLowLevelWay>>>();
+			for (int level = 0; service != null && level < levels; level++) {
+				final int lvl = level;
+				futures.add(sizes[level] == 0 ? null : service.submit(new Callable<List<CombinedLowLevelWay>>() {
+					@Override
+					public List<CombinedLowLevelWay> call() {
+						return combineLowLevelWays(creators, lvl, rules, coastlineType);
 					}
-					l.add(llwc);
+				}));
+			}
+			// objects are added level by level in the order of ways, so result doesn't depend on threads
+			for (int level = 0; level < levels; level++) {
+				if (sizes[level] == 0) {
+					continue;
 				}
+				List<CombinedLowLevelWay> combined = service == null ?
+						combineLowLevelWays(creators, level, rules, coastlineType) :
+						getCombinedWays(futures.get(level));
+				for (CombinedLowLevelWay w : combined) {
+					IndexVectorMapCreator c = creators.get(w.creator);
+					c.insertBinaryMapRenderObjectIndex(c.mapTreeLoaders[level], w.nodes, null, w.names, w.id, false,
+							w.types, w.addTypes);
+				}
+				progress.progress(sizes[level]);
+			}
+		} finally {
+			if (service != null) {
+				service.shutdownNow();
 			}
 		}
-		return l;
 	}
 
-	public void processingLowLevelWays(IProgress progress) throws SQLException {
-		mapLowLevelBinaryStat.executeBatch();
-		mapLowLevelBinaryStat.close();
-		pStatements.remove(mapLowLevelBinaryStat);
-		mapLowLevelBinaryStat = null;
-		mapConnection.commit();
-
-		PreparedStatement startStat = mapConnection.prepareStatement("SELECT id, end_node, nodes, name, type, addType FROM low_level_map_objects"
-				+ " WHERE start_node = ? AND level = ?");
-		PreparedStatement endStat = mapConnection.prepareStatement("SELECT id, start_node, nodes, name, type, addType FROM low_level_map_objects"
-				+ " WHERE end_node = ? AND level = ?");
-		Statement selectStatement = mapConnection.createStatement();
-		ResultSet rs = selectStatement.executeQuery("SELECT id, start_node, end_node, nodes, name, type, addType, level FROM low_level_map_objects");
-		TLongHashSet visitedWays = new TLongHashSet();
-		ArrayList<Float> list = new ArrayList<Float>(100);
-		TIntArrayList temp = new TIntArrayList();
-		TIntArrayList tempAdd = new TIntArrayList();
-		while (rs.next()) {
-			if (lowLevelWays != -1) {
-				progress.progress(1);
-			}
-			long id = rs.getLong(1);
-			if (visitedWays.contains(id)) {
-				continue;
-			}
-			visitedWays.add(id);
+	private static List<CombinedLowLevelWay> combineLowLevelWays(List<IndexVectorMapCreator> creators, int level,
+			CommonRuleTypes rules, int coastlineType) {
+		TIntArrayList owners = new TIntArrayList();
+		LowLevelWayStore store = mergeLowLevelWays(creators, level, rules, owners);
+		List<CombinedLowLevelWay> combined = creators.get(0).combineLowLevelWays(store, level, coastlineType, rules);
+		for (CombinedLowLevelWay w : combined) {
+			w.creator = owners.get(w.way);
+			rules.convertToCreator(w, creators.get(w.creator));
+		}
+		return combined;
+	}
 
-			int level = rs.getInt(8);
-			int zoom = mapZooms.getLevel(level).getMaxZoom();
+	// ways of the level of all creators in the order of ids with common rule ids, owners are their creators
+	private static LowLevelWayStore mergeLowLevelWays(List<IndexVectorMapCreator> creators, int level,
+			CommonRuleTypes rules, TIntArrayList owners) {
+		LowLevelWayStore[] stores = new LowLevelWayStore[creators.size()];
+		int[][] order = new int[creators.size()][];
+		int[] pos = new int[creators.size()];
+		for (int c = 0; c < creators.size(); c++) {
+			stores[c] = creators.get(c).lowLevelStores[level];
+			order[c] = stores[c] == null ? new int[0] : stores[c].getWaysSortedById();
+			creators.get(c).lowLevelStores[level] = null;
+		}
+		LowLevelWayStore res = new LowLevelWayStore();
+		while (true) {
+			int next = -1;
+			for (int c = 0; c < stores.length; c++) {
+				if (pos[c] < order[c].length && (next == -1 ||
+						stores[c].getId(order[c][pos[c]]) < stores[next].getId(order[next][pos[next]]))) {
+					next = c;
+				}
+			}
+			if (next == -1) {
+				break;
+			}
+			int way = order[next][pos[next]++];
+			int[] table = rules.getCommonIds(next);
+			res.addWay(stores[next], way, table, convertNames(stores[next].getNames(way), table));
+			owners.add(next);
+		}
+		return res;
+	}
 
-			long startNode = rs.getLong(2);
-			long endNode = rs.getLong(3);
+	private static List<CombinedLowLevelWay> getCombinedWays(Future<List<CombinedLowLevelWay>> f) {
+		try {
+			return f.get();
+		} catch (InterruptedException e) {
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IllegalStateException(cause);
+		}
+	}
 
-			namesUse.clear();
-			decodeNames(rs.getString(5), namesUse);
-			parseAndSort(typeUse, rs.getBytes(6));
-			parseAndSort(addtypeUse, rs.getBytes(7));
- 
-			loadNodes(rs.getBytes(4), list);
-			ArrayList<Float> wayNodes = new ArrayList<Float>(list);
+	/**
+	 * Combines ways of the level by end points with the same types and names and simplifies them,
+	 * uses only the store of the level so levels could be processed in parallel
+	 * @param rules types of the store by common ids or null if store has own types
+	 */
+	List<CombinedLowLevelWay> combineLowLevelWays(LowLevelWayStore store, int level, int coastlineType,
+			CommonRuleTypes rules) {
+		int zoom = mapZooms.getLevel(level).getMaxZoom();
+		List<CombinedLowLevelWay> result = new ArrayList<CombinedLowLevelWay>();
+		store.prepareIndex();
+		BitSet visitedWays = new BitSet(store.size());
+		List<LowLevelWayCandidate> candidates = new ArrayList<LowLevelWayCandidate>();
+		TIntArrayList ways = new TIntArrayList();
+		TIntArrayList backward = new TIntArrayList();
+		TIntArrayList forward = new TIntArrayList();
+		TIntArrayList points = new TIntArrayList();
+		for (int way = 0; way < store.size(); way++) {
+			if (visitedWays.get(way)) {
+				continue;
+			}
+			visitedWays.set(way);
+			long startNode = store.getStartNode(way);
+			long endNode = store.getEndNode(way);
+			Map<MapRulType, String> names = decodeNames(store.getNames(way),
+					new TreeMap<MapRulType, String>(rules == null ? comparator : rules.comparator), rules);
+			// lat and lon of all points
+			int size = 2 * store.getPointsCount(way);
 
 			// combine startPoint with EndPoint
-			boolean combined = true;
-			List<LowLevelWayCandidate> candidates = new ArrayList<LowLevelWayCandidate>();
-			Comparator<LowLevelWayCandidate> cmpCandidates = new Comparator<LowLevelWayCandidate>() {
-				@Override
-				public int compare(LowLevelWayCandidate o1, LowLevelWayCandidate o2) {
-					return -Integer.compare(o1.namesCount, o2.namesCount);
-				}
-			};
-
-			while (combined && wayNodes.size() < LOW_LEVEL_COMBINE_WAY_POINS_LIMIT) {
-				combined = false;
-				endStat.setLong(1, startNode);
-				endStat.setShort(2, (short) level);
-				ResultSet fs = endStat.executeQuery();
-				readLowLevelCandidates(fs, candidates, temp, tempAdd, visitedWays);
-				fs.close();
-				LowLevelWayCandidate cand = getCandidate(candidates, cmpCandidates);
-				if (cand != null) {
-					combined = true;
-					startNode = cand.otherNodeId;
-					visitedWays.add(cand.wayId);
-					loadNodes(cand.nodes, list);
-					ArrayList<Float> li = new ArrayList<Float>(list);
-					// remove first lat/lon point
-					wayNodes.remove(0);
-					wayNodes.remove(0);
-					li.addAll(wayNodes);
-					wayNodes = li;
-					for (MapRulType rt : new ArrayList<MapRulType>(namesUse.keySet())) {
-						if (!Algorithms.objectEquals(namesUse.get(rt), cand.names.get(rt)) &&
-								!checkOneLocaleHasSameName(namesUse, cand.names, rt) ) {
-							namesUse.remove(rt);
-						}
-					}
+			backward.resetQuick();
+			while (size < LOW_LEVEL_COMBINE_WAY_POINS_LIMIT) {
+				LowLevelWayCandidate cand = getCandidate(store, way, store.getWays(startNode, false, ways),
+						visitedWays, names, candidates, rules);
+				if (cand == null) {
+					break;
 				}
+				startNode = store.getStartNode(cand.way);
+				visitedWays.set(cand.way);
+				backward.add(cand.way);
+				size += 2 * store.getPointsCount(cand.way) - 2;
+				retainSameNames(names, cand.names);
 			}
 
 			// combined end point
-			combined = true;
-			while (combined && wayNodes.size() < LOW_LEVEL_COMBINE_WAY_POINS_LIMIT) {
-				combined = false;
-				startStat.setLong(1, endNode);
-				startStat.setShort(2, (short) level);
-				ResultSet fs = startStat.executeQuery();
-				readLowLevelCandidates(fs, candidates, temp, tempAdd, visitedWays);
-				fs.close();
-				LowLevelWayCandidate cand = getCandidate(candidates, cmpCandidates);
-				if (cand != null) {
-					combined = true;
-					endNode = cand.otherNodeId;
-					visitedWays.add(cand.wayId);
-					loadNodes(cand.nodes, list);
-					for (int i = 2; i < list.size(); i++) {
-						wayNodes.add(list.get(i));
-					}
-					for (MapRulType rt : new ArrayList<MapRulType>(namesUse.keySet())) {
-						if (!Algorithms.objectEquals(namesUse.get(rt), cand.names.get(rt)) &&
-								!checkOneLocaleHasSameName(namesUse, cand.names, rt) ) {
-							namesUse.remove(rt);
-						}
-					}
+			forward.resetQuick();
+			while (size < LOW_LEVEL_COMBINE_WAY_POINS_LIMIT) {
+				LowLevelWayCandidate cand = getCandidate(store, way, store.getWays(endNode, true, ways),
+						visitedWays, names, candidates, rules);
+				if (cand == null) {
+					break;
 				}
+				endNode = store.getEndNode(cand.way);
+				visitedWays.set(cand.way);
+				forward.add(cand.way);
+				size += 2 * store.getPointsCount(cand.way) - 2;
+				retainSameNames(names, cand.names);
 			}
 
+			// ways found backward are added in reverse order, common points of ways are skipped
+			points.resetQuick();
+			for (int i = backward.size() - 1; i >= 0; i--) {
+				store.getPoints(backward.get(i), points.isEmpty() ? 0 : 1, points);
+			}
+			store.getPoints(way, points.isEmpty() ? 0 : 1, points);
+			for (int i = 0; i < forward.size(); i++) {
+				store.getPoints(forward.get(i), 1, points);
+			}
 			List<Node> wNodes = new ArrayList<Node>();
-			int wNsize = wayNodes.size();
-			for (int i = 0; i < wNsize; i += 2) {
-				wNodes.add(new Node(wayNodes.get(i), wayNodes.get(i + 1), i == 0 ? startNode : endNode));
+			for (int i = 0; i < points.size(); i += 2) {
+				wNodes.add(new Node(Float.intBitsToFloat(points.get(i)), Float.intBitsToFloat(points.get(i + 1)),
+						i == 0 ? startNode : endNode));
 			}
+			TIntArrayList types = store.getTypes(way, false);
 			boolean skip = false;
 			boolean cycle = startNode == endNode;
 			if (cycle) {
 				skip = checkForSmallAreas(wNodes, zoom  + Math.min(zoomWaySmoothness / 2, 3), 3, 4);
 			} else {
 				// coastline
-				if(!typeUse.contains(renderingTypes.getCoastlineRuleType().getInternalId())) {
+				if (!types.contains(coastlineType)) {
 					skip = checkForSmallAreas(wNodes, zoom  + Math.min(zoomWaySmoothness / 2, 3), 2, 8);
 				}
 			}
@@ -498,17 +649,30 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
 				List<Node> res = new ArrayList<Node>();
 				OsmMapUtils.simplifyDouglasPeucker(wNodes, zoom - 1 + 8 + zoomWaySmoothness, 3, res, false);
 				if (res.size() > 0) {
-					insertBinaryMapRenderObjectIndex(mapTree[level], res, null, namesUse, id, false, typeUse, addtypeUse, false);
+					CombinedLowLevelWay w = new CombinedLowLevelWay();
+					w.id = store.getId(way);
+					w.way = way;
+					w.nodes = res;
+					w.names = names;
+					w.types = types;
+					w.addTypes = store.getTypes(way, true);
+					result.add(w);
 				}
 			}
-
-			// end cycle
-
 		}
+		return result;
+	}
 
+	private void retainSameNames(Map<MapRulType, String> names, Map<MapRulType, String> candNames) {
+		for (MapRulType rt : new ArrayList<MapRulType>(names.keySet())) {
+			if (!Algorithms.objectEquals(names.get(rt), candNames.get(rt)) &&
+					!checkOneLocaleHasSameName(names, candNames, rt)) {
+				names.remove(rt);
+			}
+		}
 	}
 
-	private boolean checkOneLocaleHasSameName(TreeMap<MapRulType, String> nu1, Map<MapRulType, String> nu2,
+	private boolean checkOneLocaleHasSameName(Map<MapRulType, String> nu1, Map<MapRulType, String> nu2,
 			MapRulType rt) {
 		String tg = rt.getTag();
 		if(tg.startsWith("name:") || tg.equals("name")) {
@@ -523,15 +687,38 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
 		return false;
 	}
 
-	private LowLevelWayCandidate getCandidate(List<LowLevelWayCandidate> candidates,
-			Comparator<LowLevelWayCandidate> cmpCandidates) {
+	/**
+	 * @param ways ways at the end point in ascending order, first way with most equal names is selected
+	 */
+	private LowLevelWayCandidate getCandidate(LowLevelWayStore store, int way, TIntArrayList ways, BitSet visitedWays,
+			Map<MapRulType, String> names, List<LowLevelWayCandidate> candidates, CommonRuleTypes rules) {
+		candidates.clear();
+		for (int i = 0; i < ways.size(); i++) {
+			int w = ways.get(i);
+			if (!visitedWays.get(w) && store.hasSameTypes(way, w)) {
+				LowLevelWayCandidate llwc = new LowLevelWayCandidate();
+				llwc.way = w;
+				llwc.names = decodeNames(store.getNames(w), new HashMap<MapRulType, String>(), rules);
+				for (MapRulType mr : names.keySet()) {
+					if (Algorithms.objectEquals(names.get(mr), llwc.names.get(mr))) {
+						llwc.namesCount++;
+					}
+				}
+				candidates.add(llwc);
+			}
+		}
 		if(candidates.size() > 0) {
-			Collections.sort(candidates, cmpCandidates);
+			Collections.sort(candidates, new Comparator<LowLevelWayCandidate>() {
+				@Override
+				public int compare(LowLevelWayCandidate o1, LowLevelWayCandidate o2) {
+					return -Integer.compare(o1.namesCount, o2.namesCount);
+				}
+			});
 			LowLevelWayCandidate cand = candidates.get(0);
 			if(cand.namesCount > 0) {
 				return cand;
 			}
-			if(cand.names.isEmpty() && namesUse.isEmpty()) {
+			if(cand.names.isEmpty() && names.isEmpty()) {
 				return cand;
 			}
 
@@ -633,7 +820,7 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
 		}
 		if (res != null) {
 			validateDuplicate(originalId, id);
-			insertBinaryMapRenderObjectIndex(mapTree[level], res, null, namesUse, id, area, typeUse, addtypeUse, true);
+			insertBinaryMapRenderObjectIndex(mapTreeLoaders[level], res, null, namesUse, id, area, typeUse, addtypeUse);
 		}
 	}
 
@@ -651,38 +838,74 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
 
 
 	public void writeBinaryMapIndex(BinaryMapIndexWriter writer, String regionName) throws IOException, SQLException {
-		closePreparedStatements(mapBinaryStat, mapLowLevelBinaryStat);
-		mapConnection.commit();
+		writeBinaryMapIndex(writer, regionName, Collections.singletonList(this));
+	}
+
+	/**
+	 * Writes one map index of creators (shards of one region or one creator): rules are common, level has boxes
+	 * of all creators and blocks of creator are read from its own objects
+	 */
+	public static void writeBinaryMapIndex(BinaryMapIndexWriter writer, String regionName,
+			List<IndexVectorMapCreator> creators) throws IOException, SQLException {
+		MapZooms mapZooms = creators.get(0).mapZooms;
 		try {
 			writer.startWriteMapIndex(regionName);
 			// write map encoding rules
-			writer.writeMapEncodingRules(renderingTypes.getEncodingRuleTypes());
+			List<Map<String, MapRulType>> rules = new ArrayList<Map<String, MapRulType>>();
+			for (IndexVectorMapCreator c : creators) {
+				rules.add(c.renderingTypes.getEncodingRuleTypes());
+			}
+			writer.writeMergedMapEncodingRules(rules);
 
-			PreparedStatement selectData = mapConnection
-					.prepareStatement("SELECT area, coordinates, innerPolygons, types, additionalTypes, name FROM binary_map_objects WHERE id = ?");
+			List<PackedRTreeReader[]> readers = new ArrayList<PackedRTreeReader[]>();
+			for (IndexVectorMapCreator c : creators) {
+				readers.add(c.prepareMapReaders());
+			}
 
 			// write map levels and map index
-			TLongObjectHashMap<BinaryFileReference> treeHeader = new TLongObjectHashMap<BinaryFileReference>();
 			for (int i = 0; i < mapZooms.size(); i++) {
-				RTree rtree = mapTree[i];
-				long rootIndex = rtree.getFileHdr().getRootIndex();
-				rtree.Node root = rtree.getReadNode(rootIndex);
-				Rect rootBounds = calcBounds(root);
-				if (rootBounds != null) {
-					writer.startWriteMapLevelIndex(mapZooms.getLevel(i).getMinZoom(), mapZooms.getLevel(i).getMaxZoom(),
-							rootBounds.getMinX(), rootBounds.getMaxX(), rootBounds.getMinY(), rootBounds.getMaxY());
-					writeBinaryMapTree(root, rootBounds, rtree, writer, treeHeader);
-
-					writeBinaryMapBlock(root,  rootBounds, rtree, writer, selectData, treeHeader, new LinkedHashMap<String, Integer>(),
+				int[] levelBounds = null;
+				for (PackedRTreeReader[] r : readers) {
+					int[] b = r[i].getBounds(r[i].getRootIndex());
+					if (b != null && levelBounds == null) {
+						levelBounds = b.clone();
+					} else if (b != null) {
+						levelBounds[0] = Math.min(levelBounds[0], b[0]);
+						levelBounds[1] = Math.min(levelBounds[1], b[1]);
+						levelBounds[2] = Math.max(levelBounds[2], b[2]);
+						levelBounds[3] = Math.max(levelBounds[3], b[3]);
+					}
+				}
+				if (levelBounds == null) {
+					continue;
+				}
+				writer.startWriteMapLevelIndex(mapZooms.getLevel(i).getMinZoom(), mapZooms.getLevel(i).getMaxZoom(),
+						levelBounds[0], levelBounds[2], levelBounds[1], levelBounds[3]);
+				List<TLongObjectHashMap<BinaryFileReference>> treeHeaders =
+						new ArrayList<TLongObjectHashMap<BinaryFileReference>>();
+				for (PackedRTreeReader[] r : readers) {
+					long root = r[i].getRootIndex();
+					int[] rootBounds = r[i].getBounds(root);
+					TLongObjectHashMap<BinaryFileReference> treeHeader = new TLongObjectHashMap<BinaryFileReference>();
+					if (rootBounds != null) {
+						writeBinaryMapTree(r[i], root, rootBounds[0], rootBounds[1], rootBounds[2], rootBounds[3],
+								writer, treeHeader);
+					}
+					treeHeaders.add(treeHeader);
+				}
+				for (int k = 0; k < creators.size(); k++) {
+					PackedRTreeReader reader = readers.get(k)[i];
+					long root = reader.getRootIndex();
+					int[] rootBounds = reader.getBounds(root);
+					if (rootBounds != null) {
+						creators.get(k).writeBinaryMapBlock(reader, root, rootBounds[0], rootBounds[1], writer,
+								treeHeaders.get(k), new LinkedHashMap<String, Integer>(),
 								new LinkedHashMap<MapRulType, String>(), mapZooms.getLevel(i));
-
-					writer.endWriteMapLevelIndex();
+					}
 				}
+				writer.endWriteMapLevelIndex();
 			}
 
-
-			selectData.close();
-
 			writer.endWriteMapIndex();
 			writer.flush();
 		} catch (RTreeException e) {
@@ -690,6 +913,26 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
 		}
 	}
 
+	private PackedRTreeReader[] prepareMapReaders() throws IOException, RTreeException {
+		// packed trees are not modified anymore, so they are read directly from mapped files
+		PackedRTreeReader[] readers = new PackedRTreeReader[mapZooms.size()];
+		for (int i = 0; i < mapZooms.size(); i++) {
+			mapTree[i].flush();
+			readers[i] = new PackedRTreeReader(mapTree[i].getFileName());
+		}
+
+		// reorder objects to read them in the same order as they are written
+		TLongArrayList order = new TLongArrayList(mapObjects.size());
+		for (int i = 0; i < mapZooms.size(); i++) {
+			long root = readers[i].getRootIndex();
+			if (readers[i].getBounds(root) != null) {
+				collectObjectsOrder(readers[i], root, order);
+			}
+		}
+		mapObjects.prepareReading(order);
+		return readers;
+	}
+
 
 
 	private long convertBaseIdToGeneratedId(long baseId, int level) {
@@ -716,11 +959,17 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
 	}
 
 	private Map<MapRulType, String> decodeNames(String name, Map<MapRulType, String> tempNames) {
+		return decodeNames(name, tempNames, null);
+	}
+
+	// types by common ids of rules or own types if rules are null
+	private Map<MapRulType, String> decodeNames(String name, Map<MapRulType, String> tempNames,
+			CommonRuleTypes rules) {
 		int i = name.indexOf(SPECIAL_CHAR);
 		while (i != -1) {
 			int n = name.indexOf(SPECIAL_CHAR, i + 2);
 			int ch = (short) name.charAt(i + 1);
-			MapRulType rt = renderingTypes.getTypeByInternalId(ch);
+			MapRulType rt = rules == null ? renderingTypes.getTypeByInternalId(ch) : rules.getType(ch);
 			if (n == -1) {
 				tempNames.put(rt, name.substring(i + 2));
 			} else {
@@ -731,21 +980,48 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
 		return tempNames;
 	}
 
-	public void writeBinaryMapBlock(rtree.Node parent, Rect parentBounds, RTree r, BinaryMapIndexWriter writer, PreparedStatement selectData,
-			TLongObjectHashMap<BinaryFileReference> bounds, Map<String, Integer> tempStringTable, LinkedHashMap<MapRulType, String> tempNames, MapZoomPair level)
-			throws IOException, RTreeException, SQLException {
-		Element[] e = parent.getAllElements();
+	// encoded names with types converted by the table (type -> new type)
+	private static String convertNames(String name, int[] typesTable) {
+		int i = name.indexOf(SPECIAL_CHAR);
+		if (i == -1) {
+			return name;
+		}
+		char[] chars = name.toCharArray();
+		while (i != -1) {
+			chars[i + 1] = (char) typesTable[(short) chars[i + 1]];
+			i = name.indexOf(SPECIAL_CHAR, i + 2);
+		}
+		return new String(chars);
+	}
+
+	// same traversal as writeBinaryMapBlock
+	private void collectObjectsOrder(PackedRTreeReader r, long parent, TLongArrayList order) {
+		int total = r.getTotalElements(parent);
+		if (r.isLeaf(parent)) {
+			for (int i = 0; i < total; i++) {
+				order.add(r.getPtr(parent, i));
+			}
+		} else {
+			for (int i = 0; i < total; i++) {
+				collectObjectsOrder(r, r.getPtr(parent, i), order);
+			}
+		}
+	}
+
+	public void writeBinaryMapBlock(PackedRTreeReader r, long parent, int parentMinX, int parentMinY,
+			BinaryMapIndexWriter writer, TLongObjectHashMap<BinaryFileReference> bounds,
+			Map<String, Integer> tempStringTable, LinkedHashMap<MapRulType, String> tempNames, MapZoomPair level)
+			throws IOException, SQLException {
+		int total = r.getTotalElements(parent);
+		boolean leaf = r.isLeaf(parent);
 
 		MapDataBlock.Builder dataBlock = null;
-		BinaryFileReference ref = bounds.get(parent.getNodeIndex());
+		BinaryFileReference ref = bounds.get(parent);
 		long baseId = 0;
-		for (int i = 0; i < parent.getTotalElements(); i++) {
-			if (e[i].getElementType() == rtree.Node.LEAF_NODE) {
-				long id = e[i].getPtr();
-				selectData.setLong(1, id);
-				// selectData = mapConnection.prepareStatement("SELECT area, coordinates, innerPolygons, types, additionalTypes, name FROM binary_map_objects WHERE id = ?");
-				ResultSet rs = selectData.executeQuery();
-				if (rs.next()) {
+		for (int i = 0; i < total; i++) {
+			if (leaf) {
+				long id = r.getPtr(parent, i);
+				if (mapObjects.next(id)) {
 					long cid = convertGeneratedIdToObfWrite(id);
 					if (dataBlock == null) {
 						baseId = cid;
@@ -754,14 +1030,14 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
 
 					}
 					tempNames.clear();
-					decodeNames(rs.getString(6), tempNames);
-					byte[] types = rs.getBytes(4);
+					decodeNames(mapObjects.getName(), tempNames);
+					byte[] types = mapObjects.getTypes();
 					int[] typeUse = new int[types.length / 2];
 					for (int j = 0; j < types.length; j += 2) {
 						int ids = Algorithms.parseSmallIntFromBytes(types, j);
 						typeUse[j / 2] = renderingTypes.getTypeByInternalId(ids).getTargetId();
 					}
-					byte[] addTypes = rs.getBytes(5);
+					byte[] addTypes = mapObjects.getAdditionalTypes();
 					int[] addtypeUse = null ;
 					if (addTypes != null) {
 						addtypeUse = new int[addTypes.length / 2];
@@ -772,7 +1048,8 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
 					}
 
 
-					MapData mapData = writer.writeMapData(cid - baseId, parentBounds.getMinX(), parentBounds.getMinY(), rs.getBoolean(1), rs.getBytes(2), rs.getBytes(3),
+					MapData mapData = writer.writeMapData(cid - baseId, parentMinX, parentMinY, mapObjects.isArea(),
+							mapObjects.getCoordinates(), mapObjects.getInnerPolygons(),
 							typeUse, addtypeUse, tempNames, null, tempStringTable, dataBlock, level.getMaxZoom() > 15);
 					if(mapData != null) {
 						dataBlock.addDataObjects(mapData);
@@ -785,13 +1062,29 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
 		if (dataBlock != null) {
 			writer.writeMapDataBlock(dataBlock, tempStringTable, ref);
 		}
-		for (int i = 0; i < parent.getTotalElements(); i++) {
-			if (e[i].getElementType() != rtree.Node.LEAF_NODE) {
-				long ptr = e[i].getPtr();
-				rtree.Node ns = r.getReadNode(ptr);
-				writeBinaryMapBlock(ns, e[i].getRect(), r, writer, selectData, bounds, tempStringTable, tempNames,level);
+		if (!leaf) {
+			for (int i = 0; i < total; i++) {
+				writeBinaryMapBlock(r, r.getPtr(parent, i), r.getMinX(parent, i), r.getMinY(parent, i), writer,
+						bounds, tempStringTable, tempNames, level);
+			}
+		}
+	}
+
+	public static void writeBinaryMapTree(PackedRTreeReader r, long parent, int minX, int minY, int maxX, int maxY,
+			BinaryMapIndexWriter writer, TLongObjectHashMap<BinaryFileReference> bounds) throws IOException {
+		int total = r.getTotalElements(parent);
+		boolean leaf = r.isLeaf(parent);
+		BinaryFileReference ref = writer.startMapTreeElement(minX, maxX, minY, maxY, leaf && total > 0);
+		if (ref != null) {
+			bounds.put(parent, ref);
+		}
+		if (!leaf) {
+			for (int i = 0; i < total; i++) {
+				writeBinaryMapTree(r, r.getPtr(parent, i), r.getMinX(parent, i), r.getMinY(parent, i),
+						r.getMaxX(parent, i), r.getMaxY(parent, i), writer, bounds);
 			}
 		}
+		writer.endWriteMapTreeElement();
 	}
 
 	public static void writeBinaryMapTree(rtree.Node parent, Rect re, RTree r, BinaryMapIndexWriter writer, TLongObjectHashMap<BinaryFileReference> bounds)
@@ -816,132 +1109,36 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
 		writer.endWriteMapTreeElement();
 	}
 
-	public Rect calcBounds(rtree.Node n) {
-		Rect r = null;
-		Element[] e = n.getAllElements();
-		for (int i = 0; i < n.getTotalElements(); i++) {
-			Rect re = e[i].getRect();
-			if (r == null) {
-				try {
-					r = new Rect(re.getMinX(), re.getMinY(), re.getMaxX(), re.getMaxY());
-				} catch (IllegalValueException ex) {
-				}
-			} else {
-				r.expandToInclude(re);
-			}
-		}
-		return r;
-	}
-
 	public void createDatabaseStructure(Connection mapConnection, DBDialect dialect, String rtreeMapIndexNonPackFileName)
 			throws SQLException, IOException {
-		createMapIndexStructure(mapConnection);
-		this.mapConnection = mapConnection;
-		mapBinaryStat = createStatementMapBinaryInsert(mapConnection);
-		mapLowLevelBinaryStat = createStatementLowLevelMapBinaryInsert(mapConnection);
-		try {
-			mapTree = new RTree[mapZooms.size()];
-			for (int i = 0; i < mapZooms.size(); i++) {
-				File file = new File(rtreeMapIndexNonPackFileName + i);
-				if (file.exists()) {
-					file.delete();
-				}
-				mapTree[i] = new RTree(rtreeMapIndexNonPackFileName + i);
-				// very slow
-				// mapTree[i].getFileHdr().setBufferPolicy(true);
+		mapObjects = MapObjectStore.create(getMapObjectsFile(rtreeMapIndexNonPackFileName));
+		mapTreeLoaders = new RTreeBulkLoader[mapZooms.size()];
+		for (int i = 0; i < mapZooms.size(); i++) {
+			File file = new File(rtreeMapIndexNonPackFileName + i);
+			if (file.exists()) {
+				file.delete();
 			}
-		} catch (RTreeException e) {
-			throw new IOException(e);
+			// rectangles are spilled to non pack file and packed tree is written directly
+			mapTreeLoaders[i] = new RTreeBulkLoader(rtreeMapIndexNonPackFileName + i);
 		}
-		pStatements.put(mapBinaryStat, 0);
-		pStatements.put(mapLowLevelBinaryStat, 0);
-	}
-
-	public void createMapIndexTableIndexes(Connection conn) throws SQLException {
-		Statement stat = conn.createStatement();
-		stat.executeUpdate("create index binary_map_objects_ind on binary_map_objects (id)");
-		stat.executeUpdate("create index low_level_map_objects_ind on low_level_map_objects (id)");
-		stat.executeUpdate("create index low_level_map_objects_ind_st on low_level_map_objects (start_node, type)");
-		stat.executeUpdate("create index low_level_map_objects_ind_end on low_level_map_objects (end_node, type)");
-		stat.close();
-	}
-
-	private void createMapIndexStructure(Connection conn) throws SQLException {
-		Statement stat = conn.createStatement();
-		stat.executeUpdate("create table binary_map_objects (id bigint primary key, name varchar(4096), "
-				+ "area smallint, types binary, additionalTypes binary, coordinates binary, innerPolygons binary)");
-
-		stat.executeUpdate("create table low_level_map_objects (id bigint primary key, start_node bigint, "
-				+ "end_node bigint, name varchar(1024), nodes binary, type binary, addType binary, level smallint)");
-		stat.close();
-	}
-
-	private PreparedStatement createStatementMapBinaryInsert(Connection conn) throws SQLException {
-		return conn
-				.prepareStatement("insert into binary_map_objects(id, area, coordinates, innerPolygons, types, additionalTypes, name) values(?, ?, ?, ?, ?, ?, ?)");
 	}
 
-	private PreparedStatement createStatementLowLevelMapBinaryInsert(Connection conn) throws SQLException {
-		return conn
-				.prepareStatement("insert into low_level_map_objects(id, start_node, end_node, name, nodes, type, addType, level) values(?, ?, ?, ?, ?, ?, ?, ?)");
+	private static File getMapObjectsFile(String rtreeMapIndexNonPackFileName) {
+		return new File(rtreeMapIndexNonPackFileName + ".obj");
 	}
 
-	private void insertLowLevelMapBinaryObject(int level, int zoom, TIntArrayList types, TIntArrayList addTypes, long id, List<Node> in, TreeMap<MapRulType, String> namesUse)
-			throws SQLException {
+	private void insertLowLevelMapBinaryObject(int level, int zoom, TIntArrayList types, TIntArrayList addTypes, long id, List<Node> in, TreeMap<MapRulType, String> namesUse) {
 		lowLevelWays++;
 		List<Node> nodes = new ArrayList<Node>();
 		OsmMapUtils.simplifyDouglasPeucker(in, zoom + 8 + zoomWaySmoothness, 3, nodes, false);
-		boolean first = true;
-		long firstId = -1;
-		long lastId = -1;
-		ByteArrayOutputStream bNodes = new ByteArrayOutputStream();
-		ByteArrayOutputStream bTypes = new ByteArrayOutputStream();
-		ByteArrayOutputStream bAddtTypes = new ByteArrayOutputStream();
-		try {
-			for (Node n : nodes) {
-				if (n != null) {
-					if (first) {
-						firstId = n.getId();
-						first = false;
-					}
-					lastId = n.getId();
-					Algorithms.writeInt(bNodes, Float.floatToRawIntBits((float) n.getLatitude()));
-					Algorithms.writeInt(bNodes, Float.floatToRawIntBits((float) n.getLongitude()));
-				}
-			}
-		} catch (IOException e) {
-			throw new IllegalStateException(e);
+		if (lowLevelStores[level] == null) {
+			lowLevelStores[level] = new LowLevelWayStore();
 		}
-		if (firstId == -1) {
-			return;
-		}
-		for (int j = 0; j < types.size(); j++) {
-			try {
-				Algorithms.writeSmallInt(bTypes, types.get(j));
-			} catch (IOException e) {
-			}
-		}
-		for (int j = 0; j < addTypes.size(); j++) {
-			try {
-				Algorithms.writeSmallInt(bAddtTypes, addTypes.get(j));
-			} catch (IOException e) {
-			}
-		}
-		mapLowLevelBinaryStat.setLong(1, id);
-		mapLowLevelBinaryStat.setLong(2, firstId);
-		mapLowLevelBinaryStat.setLong(3, lastId);
-		mapLowLevelBinaryStat.setString(4, encodeNames(namesUse));
-		mapLowLevelBinaryStat.setBytes(5, bNodes.toByteArray());
-		mapLowLevelBinaryStat.setBytes(6, bTypes.toByteArray());
-		mapLowLevelBinaryStat.setBytes(7, bAddtTypes.toByteArray());
-		mapLowLevelBinaryStat.setShort(8, (short) level);
-
-		addBatch(mapLowLevelBinaryStat);
+		lowLevelStores[level].addWay(id, nodes, types, addTypes, encodeNames(namesUse));
 	}
 
-	private void insertBinaryMapRenderObjectIndex(RTree mapTree, Collection<Node> nodes, List<List<Node>> innerWays,
-			Map<MapRulType, String> names, long id, boolean area, TIntArrayList types, TIntArrayList addTypes, boolean commit)
-			throws SQLException {
+	private void insertBinaryMapRenderObjectIndex(RTreeBulkLoader mapTree, Collection<Node> nodes, List<List<Node>> innerWays,
+			Map<MapRulType, String> names, long id, boolean area, TIntArrayList types, TIntArrayList addTypes) {
 		boolean init = false;
 		int minX = Integer.MAX_VALUE;
 		int maxX = 0;
@@ -999,48 +1196,47 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
 			throw new IllegalStateException(es);
 		}
 		if (init) {
-			// conn.prepareStatement("insert into binary_map_objects(id, area, coordinates, innerPolygons, types, additionalTypes, name) values(?, ?, ?, ?, ?, ?, ?)");
-			mapBinaryStat.setLong(1, id);
-			mapBinaryStat.setBoolean(2, area);
-			mapBinaryStat.setBytes(3, bcoordinates.toByteArray());
-			mapBinaryStat.setBytes(4, binnercoord.toByteArray());
-			mapBinaryStat.setBytes(5, btypes.toByteArray());
-			mapBinaryStat.setBytes(6, badditionalTypes.toByteArray());
-			mapBinaryStat.setString(7, encodeNames(names));
-			addBatch(mapBinaryStat, commit);
 			try {
-				mapTree.insert(new LeafElement(new Rect(minX, minY, maxX, maxY), id));
-			} catch (RTreeInsertException e1) {
-				throw new IllegalArgumentException(e1);
-			} catch (IllegalValueException e1) {
-				throw new IllegalArgumentException(e1);
+				mapObjects.add(id, area, bcoordinates.toByteArray(), binnercoord.toByteArray(), btypes.toByteArray(),
+						badditionalTypes.toByteArray(), encodeNames(names));
+				mapTree.add(minX, minY, maxX, maxY, id);
+			} catch (IOException es) {
+				throw new IllegalStateException(es);
 			}
 		}
 	}
 
-	public void createRTreeFiles(String rTreeMapIndexPackFileName) throws RTreeException {
+	public void createRTreeFiles(String rTreeMapIndexNonPackFileName, String rTreeMapIndexPackFileName)
+			throws RTreeException, IOException {
 		mapTree = new RTree[mapZooms.size()];
 		for (int i = 0; i < mapZooms.size(); i++) {
 			mapTree[i] = new RTree(rTreeMapIndexPackFileName + i);
 		}
-
+		mapObjects = MapObjectStore.open(getMapObjectsFile(rTreeMapIndexNonPackFileName));
 	}
 
 	public void packRtreeFiles(String rTreeMapIndexNonPackFileName, String rTreeMapIndexPackFileName) throws IOException {
+		mapTree = new RTree[mapZooms.size()];
 		for (int i = 0; i < mapZooms.size(); i++) {
-			mapTree[i] = packRtreeFile(mapTree[i], rTreeMapIndexNonPackFileName + i, rTreeMapIndexPackFileName + i);
+			mapTree[i] = buildRtreeFile(mapTreeLoaders[i], rTreeMapIndexPackFileName + i);
 		}
+		mapTreeLoaders = null;
 	}
 
 	public void commitAndCloseFiles(String rTreeMapIndexNonPackFileName, String rTreeMapIndexPackFileName, boolean deleteDatabaseIndexes)
 			throws IOException, SQLException {
 
 		// delete map rtree files
+		if (mapTreeLoaders != null) {
+			for (RTreeBulkLoader l : mapTreeLoaders) {
+				l.close();
+			}
+			mapTreeLoaders = null;
+		}
 		if (mapTree != null) {
 			for (int i = 0; i < mapTree.length; i++) {
 				if (mapTree[i] != null) {
-					RandomAccessFile file = mapTree[i].getFileHdr().getFile();
-					file.close();
+					RTree.releaseFile(mapTree[i].getFileName());
 				}
 
 			}
@@ -1055,6 +1251,14 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
 				}
 			}
 		}
+		if (mapObjects != null) {
+			if (deleteDatabaseIndexes) {
+				mapObjects.delete();
+			} else {
+				mapObjects.close();
+			}
+			mapObjects = null;
+		}
 		closeAllPreparedStatements();
 
 	}
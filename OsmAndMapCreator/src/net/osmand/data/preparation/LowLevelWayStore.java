@@ -0,0 +1,262 @@
+package net.osmand.data.preparation;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TLongArrayList;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.osmand.osm.edit.Node;
+
+/**
+ * Low level (simplified) ways of one map level to combine them by end points. Ways are packed into one int array
+ * (points count, lat/lon float bits, sorted types, sorted additional types) and there are no objects per way
+ * except encoded names. Index of ways by start and end node is built with sorted arrays on first lookup,
+ * after that store is read only and could be read by several threads.
+ */
+class LowLevelWayStore {
+
+	private final TLongArrayList ids = new TLongArrayList();
+	private final TLongArrayList startNodes = new TLongArrayList();
+	private final TLongArrayList endNodes = new TLongArrayList();
+	private final TIntArrayList offsets = new TIntArrayList();
+	private final TIntArrayList data = new TIntArrayList();
+	private final List<String> names = new ArrayList<String>();
+
+	// node -> way index sorted by node
+	private long[] sortedStarts;
+	private int[] startWays;
+	private long[] sortedEnds;
+	private int[] endWays;
+
+	/**
+	 * @return false if there are no points
+	 */
+	public boolean addWay(long id, List<Node> nodes, TIntArrayList types, TIntArrayList addTypes, String encodedNames) {
+		int offset = data.size();
+		data.add(0);
+		long firstId = -1;
+		long lastId = -1;
+		int count = 0;
+		for (Node n : nodes) {
+			if (n != null) {
+				if (firstId == -1) {
+					firstId = n.getId();
+				}
+				lastId = n.getId();
+				data.add(Float.floatToRawIntBits((float) n.getLatitude()));
+				data.add(Float.floatToRawIntBits((float) n.getLongitude()));
+				count++;
+			}
+		}
+		if (firstId == -1) {
+			data.remove(offset, data.size() - offset);
+			return false;
+		}
+		data.setQuick(offset, count);
+		addSorted(types);
+		addSorted(addTypes);
+		ids.add(id);
+		startNodes.add(firstId);
+		endNodes.add(lastId);
+		offsets.add(offset);
+		names.add(encodedNames);
+		sortedStarts = null;
+		return true;
+	}
+
+	/**
+	 * Copies way of other store, types are converted by the table (type -> new type)
+	 */
+	public void addWay(LowLevelWayStore store, int way, int[] typesTable, String encodedNames) {
+		int offset = data.size();
+		data.add(store.data.toArray(store.offsets.getQuick(way), 1 + 2 * store.getPointsCount(way)));
+		addSorted(convertTypes(store.getTypes(way, false), typesTable));
+		addSorted(convertTypes(store.getTypes(way, true), typesTable));
+		ids.add(store.getId(way));
+		startNodes.add(store.getStartNode(way));
+		endNodes.add(store.getEndNode(way));
+		offsets.add(offset);
+		names.add(encodedNames);
+		sortedStarts = null;
+	}
+
+	private static TIntArrayList convertTypes(TIntArrayList types, int[] typesTable) {
+		for (int i = 0; i < types.size(); i++) {
+			types.setQuick(i, typesTable[types.getQuick(i)]);
+		}
+		return types;
+	}
+
+	private void addSorted(TIntArrayList types) {
+		int[] t = types.toArray();
+		Arrays.sort(t);
+		data.add(t.length);
+		data.add(t);
+	}
+
+	public int size() {
+		return ids.size();
+	}
+
+	public long getId(int way) {
+		return ids.getQuick(way);
+	}
+
+	public long getStartNode(int way) {
+		return startNodes.getQuick(way);
+	}
+
+	public long getEndNode(int way) {
+		return endNodes.getQuick(way);
+	}
+
+	public String getNames(int way) {
+		return names.get(way);
+	}
+
+	public int getPointsCount(int way) {
+		return data.getQuick(offsets.getQuick(way));
+	}
+
+	/**
+	 * @return lat/lon float bits of way points from the point (inclusive) appended to the list
+	 */
+	public void getPoints(int way, int from, TIntArrayList res) {
+		int offset = offsets.getQuick(way);
+		int count = data.getQuick(offset);
+		for (int i = offset + 1 + 2 * from; i < offset + 1 + 2 * count; i++) {
+			res.add(data.getQuick(i));
+		}
+	}
+
+	private int getTypesOffset(int way) {
+		int offset = offsets.getQuick(way);
+		return offset + 1 + 2 * data.getQuick(offset);
+	}
+
+	/**
+	 * @return sorted types (additional types if add is true)
+	 */
+	public TIntArrayList getTypes(int way, boolean add) {
+		int t = getTypesOffset(way);
+		if (add) {
+			t += data.getQuick(t) + 1;
+		}
+		int len = data.getQuick(t);
+		return new TIntArrayList(data.toArray(t + 1, len));
+	}
+
+	/**
+	 * @return true if ways have the same types and additional types
+	 */
+	public boolean hasSameTypes(int way1, int way2) {
+		int t1 = getTypesOffset(way1);
+		int t2 = getTypesOffset(way2);
+		// types and additional types with their lengths
+		for (int k = 0; k < 2; k++) {
+			int len = data.getQuick(t1);
+			if (len != data.getQuick(t2)) {
+				return false;
+			}
+			for (int i = 0; i <= len; i++) {
+				if (data.getQuick(t1 + i) != data.getQuick(t2 + i)) {
+					return false;
+				}
+			}
+			t1 += len + 1;
+			t2 += len + 1;
+		}
+		return true;
+	}
+
+	/**
+	 * @return indexes of ways sorted by id
+	 */
+	public int[] getWaysSortedById() {
+		long[] keys = ids.toArray();
+		int[] ways = new int[keys.length];
+		for (int i = 0; i < ways.length; i++) {
+			ways[i] = i;
+		}
+		sort(keys, ways, 0, keys.length - 1);
+		return ways;
+	}
+
+	/**
+	 * Builds index by end points, store should not be modified after
+	 */
+	public void prepareIndex() {
+		if (sortedStarts != null) {
+			return;
+		}
+		sortedStarts = startNodes.toArray();
+		startWays = new int[sortedStarts.length];
+		sortedEnds = endNodes.toArray();
+		endWays = new int[sortedEnds.length];
+		for (int i = 0; i < startWays.length; i++) {
+			startWays[i] = i;
+			endWays[i] = i;
+		}
+		sort(sortedStarts, startWays, 0, sortedStarts.length - 1);
+		sort(sortedEnds, endWays, 0, sortedEnds.length - 1);
+	}
+
+	/**
+	 * @param start ways starting at node or ending at node
+	 * @return indexes of ways in ascending order
+	 */
+	public TIntArrayList getWays(long node, boolean start, TIntArrayList res) {
+		prepareIndex();
+		long[] keys = start ? sortedStarts : sortedEnds;
+		int[] ways = start ? startWays : endWays;
+		res.resetQuick();
+		int i = Arrays.binarySearch(keys, node);
+		if (i < 0) {
+			return res;
+		}
+		while (i > 0 && keys[i - 1] == node) {
+			i--;
+		}
+		for (; i < keys.length && keys[i] == node; i++) {
+			res.add(ways[i]);
+		}
+		res.sort();
+		return res;
+	}
+
+	private static void sort(long[] keys, int[] values, int lo, int hi) {
+		while (lo < hi) {
+			long pivot = keys[(lo + hi) >>> 1];
+			int i = lo;
+			int j = hi;
+			while (i <= j) {
+				while (keys[i] < pivot) {
+					i++;
+				}
+				while (keys[j] > pivot) {
+					j--;
+				}
+				if (i <= j) {
+					long k = keys[i];
+					keys[i] = keys[j];
+					keys[j] = k;
+					int v = values[i];
+					values[i] = values[j];
+					values[j] = v;
+					i++;
+					j--;
+				}
+			}
+			// recurse into smaller part
+			if (j - lo < hi - i) {
+				sort(keys, values, lo, j);
+				lo = i;
+			} else {
+				sort(keys, values, i, hi);
+				hi = j;
+			}
+		}
+	}
+}
@@ -0,0 +1,298 @@
+package net.osmand.data.preparation;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TLongArrayList;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+/**
+ * Append-only file of binary map objects (coordinates, types and names prepared to be written to binary file).
+ * Before writing binary file objects are reordered in the order of rtree traversal,
+ * so writer reads them sequentially instead of looking up every object by id.
+ */
+class MapObjectStore {
+
+	private static final int BUFFER_SIZE = 1 << 16;
+	private static final String ORDERED_EXT = ".ord";
+
+	private final File file;
+	// index of records in file order
+	private final TLongArrayList ids = new TLongArrayList();
+	private final TIntArrayList lengths = new TIntArrayList();
+	private DataOutputStream out;
+
+	// current record of sequential reading
+	private DataInputStream in;
+	private boolean loaded;
+	private long id;
+	private boolean area;
+	private byte[] coordinates;
+	private byte[] innerPolygons;
+	private byte[] types;
+	private byte[] additionalTypes;
+	private String name;
+
+	private MapObjectStore(File file) {
+		this.file = file;
+	}
+
+	public static MapObjectStore create(File file) throws IOException {
+		MapObjectStore store = new MapObjectStore(file);
+		store.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+		return store;
+	}
+
+	/**
+	 * Opens file written previously (index of records is restored by reading file)
+	 */
+	public static MapObjectStore open(File file) throws IOException {
+		MapObjectStore store = new MapObjectStore(file);
+		DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+		try {
+			while (true) {
+				int len;
+				try {
+					len = store.readRecord(is);
+				} catch (EOFException e) {
+					break;
+				}
+				store.ids.add(store.id);
+				store.lengths.add(len);
+			}
+		} finally {
+			is.close();
+		}
+		store.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true), BUFFER_SIZE));
+		return store;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public int size() {
+		return ids.size();
+	}
+
+	public void add(long id, boolean area, byte[] coordinates, byte[] innerPolygons, byte[] types,
+			byte[] additionalTypes, String name) throws IOException {
+		int start = out.size();
+		out.writeLong(id);
+		out.writeBoolean(area);
+		writeBytes(coordinates);
+		writeBytes(innerPolygons);
+		writeBytes(types);
+		writeBytes(additionalTypes);
+		writeBytes(name == null ? null : name.getBytes("UTF-8"));
+		ids.add(id);
+		// size() overflows after 2Gb, but difference stays correct
+		lengths.add(out.size() - start);
+	}
+
+	private void writeBytes(byte[] b) throws IOException {
+		if (b == null) {
+			out.writeInt(-1);
+		} else {
+			out.writeInt(b.length);
+			out.write(b);
+		}
+	}
+
+	private static byte[] readBytes(DataInputStream is) throws IOException {
+		int len = is.readInt();
+		if (len < 0) {
+			return null;
+		}
+		byte[] b = new byte[len];
+		is.readFully(b);
+		return b;
+	}
+
+	private int readRecord(DataInputStream is) throws IOException {
+		id = is.readLong();
+		area = is.readBoolean();
+		coordinates = readBytes(is);
+		innerPolygons = readBytes(is);
+		types = readBytes(is);
+		additionalTypes = readBytes(is);
+		byte[] bname = readBytes(is);
+		name = bname == null ? null : new String(bname, "UTF-8");
+		return 9 + 5 * 4 + length(coordinates) + length(innerPolygons) + length(types) + length(additionalTypes)
+				+ length(bname);
+	}
+
+	private static int length(byte[] b) {
+		return b == null ? 0 : b.length;
+	}
+
+	/**
+	 * Rewrites objects in specified order (objects missing in the order are skipped, objects repeated in the order
+	 * are written several times) and starts sequential reading. Source file is read sequentially, records are
+	 * written directly to their positions in ordered file.
+	 */
+	public void prepareReading(TLongArrayList order) throws IOException {
+		out.flush();
+		int sz = ids.size();
+		// ids sorted with their positions in file
+		long[] sortedIds = ids.toArray();
+		int[] indexes = new int[sz];
+		for (int i = 0; i < sz; i++) {
+			indexes[i] = i;
+		}
+		sort(sortedIds, indexes, 0, sz - 1);
+		// record of every position in ordered file
+		long[] records = new long[order.size()];
+		int[] ranks = new int[order.size()];
+		long[] offsets = new long[order.size() + 1];
+		int ranked = 0;
+		for (int k = 0; k < order.size(); k++) {
+			int p = Arrays.binarySearch(sortedIds, order.get(k));
+			if (p >= 0) {
+				int i = indexes[p];
+				records[ranked] = i;
+				ranks[ranked] = ranked;
+				offsets[ranked + 1] = offsets[ranked] + lengths.get(i);
+				ranked++;
+			}
+		}
+		sortedIds = null;
+		indexes = null;
+		// positions sorted by record
+		sort(records, ranks, 0, ranked - 1);
+
+		File ordered = new File(file.getParentFile(), file.getName() + ORDERED_EXT);
+		RandomAccessFile raf = new RandomAccessFile(ordered, "rw");
+		DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+		try {
+			raf.setLength(offsets[ranked]);
+			byte[] buf = new byte[BUFFER_SIZE];
+			int r = 0;
+			for (int i = 0; i < sz && r < ranked; i++) {
+				int len = lengths.get(i);
+				if (len > buf.length) {
+					buf = new byte[len];
+				}
+				is.readFully(buf, 0, len);
+				for (; r < ranked && records[r] == i; r++) {
+					raf.seek(offsets[ranks[r]]);
+					raf.write(buf, 0, len);
+				}
+			}
+		} finally {
+			is.close();
+			raf.close();
+		}
+		closeReading();
+		in = new DataInputStream(new BufferedInputStream(new FileInputStream(ordered), BUFFER_SIZE));
+		loaded = false;
+	}
+
+	private static void sort(long[] keys, int[] values, int lo, int hi) {
+		while (lo < hi) {
+			long pivot = keys[(lo + hi) >>> 1];
+			int i = lo;
+			int j = hi;
+			while (i <= j) {
+				while (keys[i] < pivot) {
+					i++;
+				}
+				while (keys[j] > pivot) {
+					j--;
+				}
+				if (i <= j) {
+					long k = keys[i];
+					keys[i] = keys[j];
+					keys[j] = k;
+					int v = values[i];
+					values[i] = values[j];
+					values[j] = v;
+					i++;
+					j--;
+				}
+			}
+			// recurse into smaller part
+			if (j - lo < hi - i) {
+				sort(keys, values, lo, j);
+				lo = i;
+			} else {
+				sort(keys, values, i, hi);
+				hi = j;
+			}
+		}
+	}
+
+	/**
+	 * Moves to the next object in the order if it has specified id
+	 * @return false if object is missing
+	 */
+	public boolean next(long objectId) throws IOException {
+		if (!loaded) {
+			try {
+				readRecord(in);
+			} catch (EOFException e) {
+				return false;
+			}
+			loaded = true;
+		}
+		if (id != objectId) {
+			return false;
+		}
+		loaded = false;
+		return true;
+	}
+
+	public boolean isArea() {
+		return area;
+	}
+
+	public byte[] getCoordinates() {
+		return coordinates;
+	}
+
+	public byte[] getInnerPolygons() {
+		return innerPolygons;
+	}
+
+	public byte[] getTypes() {
+		return types;
+	}
+
+	public byte[] getAdditionalTypes() {
+		return additionalTypes;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	private void closeReading() throws IOException {
+		if (in != null) {
+			in.close();
+			in = null;
+		}
+	}
+
+	public void close() throws IOException {
+		closeReading();
+		if (out != null) {
+			out.close();
+			out = null;
+		}
+		new File(file.getParentFile(), file.getName() + ORDERED_EXT).delete();
+	}
+
+	public void delete() throws IOException {
+		close();
+		file.delete();
+	}
+}
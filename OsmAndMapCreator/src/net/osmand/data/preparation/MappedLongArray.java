@@ -0,0 +1,79 @@
+package net.osmand.data.preparation;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Growable array of longs backed by a memory mapped file.
+ * File is mapped by fixed size chunks so it could be bigger than 2Gb, not written elements are 0.
+ */
+class MappedLongArray {
+
+	private static final int CHUNK_SHIFT = 24; // 16M longs = 128 Mb per chunk
+	private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private final List<MappedByteBuffer> chunks = new ArrayList<MappedByteBuffer>();
+
+	public MappedLongArray(File file) throws IOException {
+		raf = new RandomAccessFile(file, "rw");
+		channel = raf.getChannel();
+		long chunksCount = (raf.length() + CHUNK_SIZE * 8l - 1) / (CHUNK_SIZE * 8l);
+		for (int i = 0; i < chunksCount; i++) {
+			mapChunk(i);
+		}
+	}
+
+	private MappedByteBuffer mapChunk(int i) throws IOException {
+		while (chunks.size() <= i) {
+			chunks.add(null);
+		}
+		MappedByteBuffer bf = channel.map(MapMode.READ_WRITE, ((long) i) * CHUNK_SIZE * 8l, CHUNK_SIZE * 8l);
+		chunks.set(i, bf);
+		return bf;
+	}
+
+	public long get(long index) {
+		int chunk = (int) (index >>> CHUNK_SHIFT);
+		if (chunk >= chunks.size()) {
+			return 0;
+		}
+		MappedByteBuffer bf = chunks.get(chunk);
+		if (bf == null) {
+			return 0;
+		}
+		return bf.getLong(((int) (index & CHUNK_MASK)) << 3);
+	}
+
+	public void set(long index, long value) throws IOException {
+		int chunk = (int) (index >>> CHUNK_SHIFT);
+		MappedByteBuffer bf = chunk < chunks.size() ? chunks.get(chunk) : null;
+		if (bf == null) {
+			bf = mapChunk(chunk);
+		}
+		bf.putLong(((int) (index & CHUNK_MASK)) << 3, value);
+	}
+
+	public void flush() {
+		for (MappedByteBuffer bf : chunks) {
+			if (bf != null) {
+				bf.force();
+			}
+		}
+	}
+
+	public void close() throws IOException {
+		flush();
+		chunks.clear();
+		channel.close();
+		raf.close();
+	}
+}
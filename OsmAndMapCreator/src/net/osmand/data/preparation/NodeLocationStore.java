@@ -0,0 +1,273 @@
+package net.osmand.data.preparation;
+
+import gnu.trove.map.hash.TLongObjectHashMap;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Off-heap storage of node coordinates (lat/lon packed as 2 ints with 1e-7 precision) indexed by node id.
+ * It is used instead of sql node table for nodes without tags, so ways could be resolved by direct lookup.
+ */
+public abstract class NodeLocationStore {
+
+	public enum NodeLocationStoreType {
+		// all nodes are stored in sqlite (default)
+		SQLITE,
+		// array indexed directly by id (suitable for big extracts & planet)
+		DENSE,
+		// sorted array of (id, location) with binary search (suitable for small extracts)
+		SPARSE
+	}
+
+	public static final long MISSING = 0;
+	private static final double COORD_PRECISION = 1e7;
+	// shift latitude to have only positive values, so 0 could mean missing node
+	private static final long LAT_SHIFT = 1000000000l;
+
+	// ids which couldn't be stored in array (negative or not in order)
+	protected final TLongObjectHashMap<Long> overflow = new TLongObjectHashMap<Long>();
+	protected final File file;
+	private boolean closed;
+
+	protected NodeLocationStore(File file) {
+		this.file = file;
+	}
+
+	public static NodeLocationStore create(NodeLocationStoreType type, File file) throws IOException {
+		NodeLocationStore store = null;
+		if (type == NodeLocationStoreType.DENSE) {
+			store = new DenseNodeLocationStore(file);
+		} else if (type == NodeLocationStoreType.SPARSE) {
+			store = new SparseNodeLocationStore(file);
+		}
+		if (store != null) {
+			store.loadOverflow();
+		}
+		return store;
+	}
+
+	public static void removeStore(File file) {
+		file.delete();
+		new File(file.getParentFile(), file.getName() + ".loc").delete();
+		new File(file.getParentFile(), file.getName() + ".ovf").delete();
+	}
+
+	private File getOverflowFile() {
+		return new File(file.getParentFile(), file.getName() + ".ovf");
+	}
+
+	private void loadOverflow() throws IOException {
+		File f = getOverflowFile();
+		if (f.exists()) {
+			DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+			try {
+				int sz = is.readInt();
+				for (int i = 0; i < sz; i++) {
+					overflow.put(is.readLong(), is.readLong());
+				}
+			} finally {
+				is.close();
+			}
+		}
+	}
+
+	protected void saveOverflow() throws IOException {
+		File f = getOverflowFile();
+		if (overflow.isEmpty()) {
+			f.delete();
+			return;
+		}
+		DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)));
+		try {
+			os.writeInt(overflow.size());
+			for (long id : overflow.keys()) {
+				os.writeLong(id);
+				os.writeLong(overflow.get(id));
+			}
+		} finally {
+			os.close();
+		}
+	}
+
+	public static long pack(double lat, double lon) {
+		long lt = Math.round(lat * COORD_PRECISION) + LAT_SHIFT;
+		int ln = (int) Math.round(lon * COORD_PRECISION);
+		return (lt << 32) | (ln & 0xffffffffl);
+	}
+
+	public static double unpackLatitude(long packed) {
+		return ((packed >>> 32) - LAT_SHIFT) / COORD_PRECISION;
+	}
+
+	public static double unpackLongitude(long packed) {
+		return ((int) packed) / COORD_PRECISION;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public void put(long id, double lat, double lon) throws IOException {
+		long packed = pack(lat, lon);
+		if (!putPacked(id, packed)) {
+			overflow.put(id, packed);
+		} else if (!overflow.isEmpty()) {
+			overflow.remove(id);
+		}
+	}
+
+	/**
+	 * @return packed location or {@link #MISSING}
+	 */
+	public long get(long id) {
+		if (!overflow.isEmpty()) {
+			Long l = overflow.get(id);
+			if (l != null) {
+				return l;
+			}
+		}
+		return getPacked(id);
+	}
+
+	public boolean contains(long id) {
+		return get(id) != MISSING;
+	}
+
+	protected abstract boolean putPacked(long id, long packed) throws IOException;
+
+	protected abstract long getPacked(long id);
+
+	public void flush() throws IOException {
+		saveOverflow();
+		flushArrays();
+	}
+
+	public void close() throws IOException {
+		if (!closed) {
+			saveOverflow();
+			closeArrays();
+			closed = true;
+		}
+	}
+
+	protected abstract void flushArrays() throws IOException;
+
+	protected abstract void closeArrays() throws IOException;
+
+	public void delete() throws IOException {
+		if (!closed) {
+			closeArrays();
+			closed = true;
+		}
+		removeStore(file);
+	}
+
+	private static class DenseNodeLocationStore extends NodeLocationStore {
+		private final MappedLongArray array;
+
+		public DenseNodeLocationStore(File file) throws IOException {
+			super(file);
+			array = new MappedLongArray(file);
+		}
+
+		@Override
+		protected boolean putPacked(long id, long packed) throws IOException {
+			if (id < 0) {
+				return false;
+			}
+			array.set(id, packed);
+			return true;
+		}
+
+		@Override
+		protected long getPacked(long id) {
+			if (id < 0) {
+				return MISSING;
+			}
+			return array.get(id);
+		}
+
+		@Override
+		protected void flushArrays() throws IOException {
+			array.flush();
+		}
+
+		@Override
+		protected void closeArrays() throws IOException {
+			array.close();
+		}
+	}
+
+	private static class SparseNodeLocationStore extends NodeLocationStore {
+		// first element of ids array keeps size
+		private final MappedLongArray ids;
+		private final MappedLongArray locations;
+		private long size;
+		private long lastId = Long.MIN_VALUE;
+
+		public SparseNodeLocationStore(File file) throws IOException {
+			super(file);
+			ids = new MappedLongArray(file);
+			locations = new MappedLongArray(new File(file.getParentFile(), file.getName() + ".loc"));
+			size = ids.get(0);
+			if (size > 0) {
+				lastId = ids.get(size);
+			}
+		}
+
+		@Override
+		protected boolean putPacked(long id, long packed) throws IOException {
+			if (id <= lastId) {
+				if (id == lastId) {
+					locations.set(size, packed);
+					return true;
+				}
+				return false;
+			}
+			size++;
+			ids.set(size, id);
+			locations.set(size, packed);
+			lastId = id;
+			return true;
+		}
+
+		@Override
+		protected long getPacked(long id) {
+			long lo = 1;
+			long hi = size;
+			while (lo <= hi) {
+				long mid = (lo + hi) >>> 1;
+				long v = ids.get(mid);
+				if (v < id) {
+					lo = mid + 1;
+				} else if (v > id) {
+					hi = mid - 1;
+				} else {
+					return locations.get(mid);
+				}
+			}
+			return MISSING;
+		}
+
+		@Override
+		protected void flushArrays() throws IOException {
+			ids.set(0, size);
+			ids.flush();
+			locations.flush();
+		}
+
+		@Override
+		protected void closeArrays() throws IOException {
+			ids.set(0, size);
+			ids.close();
+			locations.close();
+		}
+	}
+}
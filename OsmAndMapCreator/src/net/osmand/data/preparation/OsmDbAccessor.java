@@ -1,19 +1,27 @@
 package net.osmand.data.preparation;
 
 
-import java.io.UnsupportedEncodingException;
+import gnu.trove.iterator.TLongIterator;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.hash.TLongObjectHashMap;
+import gnu.trove.set.hash.TLongHashSet;
+
+import java.io.IOException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.Set;
 
 import net.osmand.IProgress;
 import net.osmand.osm.edit.Entity;
@@ -27,11 +35,23 @@ import net.osmand.osm.edit.Way;
 
 public class OsmDbAccessor implements OsmDbAccessorContext {
 
+	// 100 batches * 1000 entities
+	private static final int QUEUE_CAPACITY_BATCHES = 100;
+	// ids selected by one query loading relation members
+	private static final int BATCH_SIZE = 256;
+	private static final int DEFAULT_WAY_CACHE_NODES = 1 << 20;
+
 	//private static final Log log = LogFactory.getLog(OsmDbAccessor.class);
 
 	private PreparedStatement pselectNode;
 	private PreparedStatement pselectWay;
 	private PreparedStatement pselectRelation;
+	private PreparedStatement pselectNodes;
+	private PreparedStatement pselectWays;
+	private PreparedStatement pselectRelations;
+	private int wayCacheNodes = DEFAULT_WAY_CACHE_NODES;
+	private int cachedWayNodes;
+	private final LinkedHashMap<Long, WayData> wayCache = new LinkedHashMap<Long, WayData>(16, 0.75f, true);
 	private int allRelations;
 	private int allWays;
 	private int allNodes;
@@ -40,6 +60,9 @@ public class OsmDbAccessor implements OsmDbAccessorContext {
 	 
 	private Connection dbConn;
 	private DBDialect dialect;
+	private OsmTagsCodec tagsCodec = new OsmTagsCodec();
+	// locations of nodes without tags (not stored in db)
+	private NodeLocationStore nodeLocations;
 
 	private PreparedStatement iterateNodes;
 	private PreparedStatement iterateWays;
@@ -50,6 +73,13 @@ public class OsmDbAccessor implements OsmDbAccessorContext {
 		public void iterateEntity(Entity e, OsmDbAccessorContext ctx) throws SQLException;
 	}
 
+	/**
+	 * Distributes entities between visitors, so each entity is read once and passed to one visitor only
+	 */
+	public interface OsmDbEntityRouter {
+		public int getVisitor(Entity e);
+	}
+
 
 	public void initDatabase(OsmDbCreator dbCreator)
 			throws SQLException {
@@ -60,11 +90,20 @@ public class OsmDbAccessor implements OsmDbAccessorContext {
 			stmt.close();
 		}
 
+		tagsCodec = new OsmTagsCodec();
+		tagsCodec.loadDictionary(dialect, dbConn);
 		pselectNode = dbConn.prepareStatement("select n.latitude, n.longitude, n.tags from node n where n.id = ?"); //$NON-NLS-1$
 		pselectWay = dbConn.prepareStatement("select w.node, w.ord, w.tags, n.latitude, n.longitude, n.tags " + //$NON-NLS-1$
 				"from ways w left join node n on w.node = n.id where w.id = ? order by w.ord"); //$NON-NLS-1$
 		pselectRelation = dbConn.prepareStatement("select r.member, r.type, r.role, r.ord, r.tags " + //$NON-NLS-1$
 				"from relations r where r.id = ? and r.del = ? order by r.ord"); //$NON-NLS-1$
+		pselectNodes = dbConn.prepareStatement("select n.id, n.latitude, n.longitude, n.tags from node n " + //$NON-NLS-1$
+				"where n.id in (" + batchParameters() + ")"); //$NON-NLS-1$
+		pselectWays = dbConn.prepareStatement("select w.id, w.node, w.ord, w.tags, n.latitude, n.longitude, n.tags " + //$NON-NLS-1$
+				"from ways w left join node n on w.node = n.id where w.id in (" + batchParameters() + ") " + //$NON-NLS-1$
+				"order by w.id, w.ord"); //$NON-NLS-1$
+		pselectRelations = dbConn.prepareStatement("select r.id, r.member, r.type, r.role, r.ord, r.tags " + //$NON-NLS-1$
+				"from relations r where r.id in (" + batchParameters() + ") and r.del = 0 order by r.id, r.ord"); //$NON-NLS-1$
 
 		iterateNodes = dbConn
 				.prepareStatement("select n.id, n.latitude, n.longitude, n.tags from node n where length(n.tags) > 0"); //$NON-NLS-1$
@@ -101,106 +140,334 @@ public class OsmDbAccessor implements OsmDbAccessorContext {
 	}
 
 
+	/**
+	 * Loaded ways are kept in LRU cache bounded by total count of their nodes
+	 * (relations like boundaries share most of their ways), 0 disables cache
+	 */
+	public synchronized void setWayCacheNodes(int wayCacheNodes) {
+		this.wayCacheNodes = wayCacheNodes;
+		trimWayCache();
+	}
+
 	@Override
-	public void loadEntityWay(Way e) throws SQLException {
+	public synchronized void loadEntityWay(Way e) throws SQLException {
 		if (e.getEntityIds().isEmpty()) {
-			pselectWay.setLong(1, e.getId());
-			if (pselectWay.execute()) {
-				ResultSet rs = pselectWay.getResultSet();
-				while (rs.next()) {
-					int ord = rs.getInt(2);
-					if (ord == 0) {
-						readTags(e, rs.getBytes(3));
-					}
-					if (rs.getObject(5) != null) {
-						Node n = new Node(rs.getDouble(4), rs.getDouble(5), rs.getLong(1));
-						((Way) e).addNode(n);
-						readTags(n, rs.getBytes(6));
-					} else {
-						((Way) e).addNode(rs.getLong(1));
+			WayData data = wayCache.get(e.getId());
+			if (data == null) {
+				pselectWay.setLong(1, e.getId());
+				if (pselectWay.execute()) {
+					ResultSet rs = pselectWay.getResultSet();
+					data = new WayData();
+					while (rs.next()) {
+						data.addRow(rs, 0);
 					}
+					rs.close();
+					cacheWay(e.getId(), data);
 				}
-				rs.close();
+			}
+			if (data != null) {
+				initWay(e, data);
 			}
 		}
 	}
 
 	@Override
-	public void loadEntityRelation(Relation e) throws SQLException {
+	public synchronized void loadEntityRelation(Relation e) throws SQLException {
 		loadEntityRelation(e, 1);
 	}
 
-	public void loadEntityRelation(Relation e, int level) throws SQLException {
-		if (e.isDataLoaded()) { //data was already loaded, nothing to do
+	public synchronized void loadEntityRelation(Relation e, int level) throws SQLException {
+		loadEntityRelations(Collections.singletonList(e), level);
+	}
+
+	/**
+	 * Loads members of all relations (as {@link #loadEntityRelation(Relation)}) with few queries
+	 * selecting nodes, ways and nested relations by batches of ids
+	 */
+	@Override
+	public synchronized void loadEntityRelations(Collection<Relation> relations) throws SQLException {
+		loadEntityRelations(relations, 1);
+	}
+
+	private void loadEntityRelations(Collection<Relation> relations, int level) throws SQLException {
+		List<Relation> toLoad = new ArrayList<Relation>();
+		Set<Relation> visited = Collections.newSetFromMap(new IdentityHashMap<Relation, Boolean>());
+		TLongObjectHashMap<List<Relation>> withoutMembers = new TLongObjectHashMap<List<Relation>>();
+		for (Relation e : relations) {
+			if (e.isDataLoaded() || !visited.add(e)) { //data was already loaded, nothing to do
+				continue;
+			}
+			toLoad.add(e);
+			if (e.getMembers().isEmpty()) {
+				if (e.getModify() == Entity.MODIFY_DELETED) {
+					loadRelationMembers(e);
+				} else {
+					if (!withoutMembers.containsKey(e.getId())) {
+						withoutMembers.put(e.getId(), new ArrayList<Relation>());
+					}
+					withoutMembers.get(e.getId()).add(e);
+				}
+			}
+		}
+		loadRelationsMembers(withoutMembers);
+		if (level <= 0 || toLoad.isEmpty()) {
 			return;
 		}
-		Map<EntityId, Entity> map = new LinkedHashMap<EntityId, Entity>();
-		if (e.getMembers().isEmpty()) {
-			pselectRelation.setLong(1, e.getId());
-			pselectRelation.setInt(2, e.getModify() == Entity.MODIFY_DELETED ? 1 : 0);
-			if (pselectRelation.execute()) {
-				ResultSet rs = pselectRelation.getResultSet();
-				while (rs.next()) {
-					int ord = rs.getInt(4);
-					if (ord == 0 ) {
-						readTags(e, rs.getBytes(5));
-					}
-					e.addMember(rs.getLong(1), EntityType.values()[rs.getInt(2)], rs.getString(3));
+		TLongHashSet nodeIds = new TLongHashSet();
+		TLongHashSet wayIds = new TLongHashSet();
+		List<Relation> nested = new ArrayList<Relation>();
+		List<Map<EntityId, Entity>> maps = new ArrayList<Map<EntityId, Entity>>();
+		for (Relation e : toLoad) {
+			Map<EntityId, Entity> map = new LinkedHashMap<EntityId, Entity>();
+			for (RelationMember i : e.getMembers()) {
+				EntityId id = i.getEntityId();
+				if (id.getType() == EntityType.NODE) {
+					nodeIds.add(id.getId());
+				} else if (id.getType() == EntityType.WAY) {
+					wayIds.add(id.getId());
+				} else if (id.getType() == EntityType.RELATION && !map.containsKey(id)) {
+					Relation rel = new Relation(id.getId());
+					nested.add(rel);
+					map.put(id, rel);
 				}
-				rs.close();
 			}
+			maps.add(map);
 		}
-		Collection<RelationMember> ids = e.getMembers() ;
-		if (level > 0) {
-			for (RelationMember i : ids) {
-				if (i.getEntityId().getType() == EntityType.NODE) {
-					pselectNode.setLong(1, i.getEntityId().getId());
-					if (pselectNode.execute()) {
-						ResultSet rs = pselectNode.getResultSet();
-						Node n = null;
-						while (rs.next()) {
-							if (n == null) {
-								n = new Node(rs.getDouble(1), rs.getDouble(2), i.getEntityId().getId());
-								readTags(n, rs.getBytes(3));
-							}
-						}
-						map.put(i.getEntityId(), n);
-						rs.close();
+		TLongObjectHashMap<NodeData> nodes = loadNodes(nodeIds);
+		TLongObjectHashMap<WayData> ways = loadWays(wayIds);
+		loadEntityRelations(nested, level - 1);
+		for (int k = 0; k < toLoad.size(); k++) {
+			Relation e = toLoad.get(k);
+			Map<EntityId, Entity> map = maps.get(k);
+			for (RelationMember i : e.getMembers()) {
+				EntityId id = i.getEntityId();
+				if (id.getType() == EntityType.NODE) {
+					NodeData data = nodes.get(id.getId());
+					Node n;
+					if (data != null) {
+						n = new Node(data.lat, data.lon, id.getId());
+						readTags(n, data.tags);
+					} else {
+						n = getStoredNode(id.getId());
+					}
+					map.put(id, n);
+				} else if (id.getType() == EntityType.WAY) {
+					Way way = new Way(id.getId());
+					WayData data = ways.get(id.getId());
+					if (data != null) {
+						initWay(way, data);
 					}
-				} else if (i.getEntityId().getType() == EntityType.WAY) {
-					Way way = new Way(i.getEntityId().getId());
-					loadEntityWay(way);
-					map.put(i.getEntityId(), way);
-				} else if (i.getEntityId().getType() == EntityType.RELATION) {
-					Relation rel = new Relation(i.getEntityId().getId());
-					loadEntityRelation(rel, level - 1);
-					map.put(i.getEntityId(), rel);
+					map.put(id, way);
 				}
 			}
-
 			e.initializeLinks(map);
 			e.entityDataLoaded();
 		}
 	}
 
-	public void readTags(Entity e, byte[] tags){
-		if (tags != null) {
-			try {
-				int prev = 0;
-				List<String> vs = new ArrayList<String>();
-				for (int i = 0; i < tags.length; i++) {
-					if (tags[i] == 0) {
-						vs.add(new String(tags, prev, i - prev, "UTF-8"));
-						prev = i + 1;
+	private void loadRelationMembers(Relation e) throws SQLException {
+		pselectRelation.setLong(1, e.getId());
+		pselectRelation.setInt(2, e.getModify() == Entity.MODIFY_DELETED ? 1 : 0);
+		if (pselectRelation.execute()) {
+			ResultSet rs = pselectRelation.getResultSet();
+			while (rs.next()) {
+				int ord = rs.getInt(4);
+				if (ord == 0 ) {
+					readTags(e, rs.getBytes(5));
+				}
+				e.addMember(rs.getLong(1), EntityType.values()[rs.getInt(2)], rs.getString(3));
+			}
+			rs.close();
+		}
+	}
+
+	private void loadRelationsMembers(TLongObjectHashMap<List<Relation>> relations) throws SQLException {
+		if (relations.isEmpty()) {
+			return;
+		}
+		long[] ids = relations.keys();
+		for (int b = 0; b < ids.length; b += BATCH_SIZE) {
+			ResultSet rs = executeBatch(pselectRelations, ids, b);
+			while (rs.next()) {
+				List<Relation> list = relations.get(rs.getLong(1));
+				int ord = rs.getInt(5);
+				for (Relation e : list) {
+					if (ord == 0) {
+						readTags(e, rs.getBytes(6));
 					}
+					e.addMember(rs.getLong(2), EntityType.values()[rs.getInt(3)], rs.getString(4));
 				}
-				for(int i=0; i<vs.size(); i+=2) {
-					e.putTag(vs.get(i), vs.get(i+1));
+			}
+			rs.close();
+		}
+	}
+
+	private TLongObjectHashMap<NodeData> loadNodes(TLongHashSet nodeIds) throws SQLException {
+		TLongObjectHashMap<NodeData> nodes = new TLongObjectHashMap<NodeData>();
+		long[] ids = nodeIds.toArray();
+		for (int b = 0; b < ids.length; b += BATCH_SIZE) {
+			ResultSet rs = executeBatch(pselectNodes, ids, b);
+			while (rs.next()) {
+				long id = rs.getLong(1);
+				if (!nodes.containsKey(id)) {
+					NodeData data = new NodeData();
+					data.lat = rs.getDouble(2);
+					data.lon = rs.getDouble(3);
+					data.tags = rs.getBytes(4);
+					nodes.put(id, data);
+				}
+			}
+			rs.close();
+		}
+		return nodes;
+	}
+
+	private TLongObjectHashMap<WayData> loadWays(TLongHashSet wayIds) throws SQLException {
+		TLongObjectHashMap<WayData> ways = new TLongObjectHashMap<WayData>();
+		TLongArrayList toSelect = new TLongArrayList();
+		TLongIterator it = wayIds.iterator();
+		while (it.hasNext()) {
+			long id = it.next();
+			WayData data = wayCache.get(id);
+			if (data != null) {
+				ways.put(id, data);
+			} else {
+				toSelect.add(id);
+			}
+		}
+		long[] ids = toSelect.toArray();
+		for (int b = 0; b < ids.length; b += BATCH_SIZE) {
+			ResultSet rs = executeBatch(pselectWays, ids, b);
+			long id = 0;
+			WayData data = null;
+			while (rs.next()) {
+				if (data == null || rs.getLong(1) != id) {
+					id = rs.getLong(1);
+					data = new WayData();
+					ways.put(id, data);
+					cacheWay(id, data);
 				}
-			} catch (UnsupportedEncodingException e1) {
-				throw new RuntimeException(e1);
+				data.addRow(rs, 1);
+			}
+			rs.close();
+		}
+		return ways;
+	}
+
+	/**
+	 * Executes statement selecting by batch of ids starting from specified index (missing ids are
+	 * replaced with the first one)
+	 */
+	private static ResultSet executeBatch(PreparedStatement ps, long[] ids, int start) throws SQLException {
+		for (int i = 0; i < BATCH_SIZE; i++) {
+			ps.setLong(i + 1, start + i < ids.length ? ids[start + i] : ids[start]);
+		}
+		return ps.executeQuery();
+	}
+
+	private static String batchParameters() {
+		StringBuilder b = new StringBuilder();
+		for (int i = 0; i < BATCH_SIZE; i++) {
+			b.append(i == 0 ? "?" : ", ?");
+		}
+		return b.toString();
+	}
+
+	private void cacheWay(long id, WayData data) {
+		if (wayCacheNodes > 0 && data.size <= wayCacheNodes) {
+			WayData old = wayCache.put(id, data);
+			cachedWayNodes += data.size - (old == null ? 0 : old.size);
+			trimWayCache();
+		}
+	}
+
+	private void trimWayCache() {
+		Iterator<WayData> it = wayCache.values().iterator();
+		while (cachedWayNodes > wayCacheNodes && it.hasNext()) {
+			cachedWayNodes -= it.next().size;
+			it.remove();
+		}
+	}
+
+	private void initWay(Way e, WayData data) {
+		readTags(e, data.tags);
+		for (int i = 0; i < data.size; i++) {
+			if (data.nodeTags[i] != null) {
+				Node n = new Node(data.coordinates[2 * i], data.coordinates[2 * i + 1], data.nodeIds[i]);
+				e.addNode(n);
+				readTags(n, data.nodeTags[i]);
+			} else {
+				addStoredNode(e, data.nodeIds[i]);
+			}
+		}
+	}
+
+	private static class NodeData {
+		double lat;
+		double lon;
+		byte[] tags;
+	}
+
+	/**
+	 * Rows of selected way, node tags are null for nodes missing in db
+	 */
+	private static class WayData {
+		private static final byte[] NO_TAGS = new byte[0];
+		byte[] tags;
+		int size;
+		long[] nodeIds = new long[4];
+		double[] coordinates = new double[8];
+		byte[][] nodeTags = new byte[4][];
+
+		void addRow(ResultSet rs, int shift) throws SQLException {
+			if (rs.getInt(shift + 2) == 0) {
+				tags = rs.getBytes(shift + 3);
+			}
+			if (size == nodeIds.length) {
+				nodeIds = Arrays.copyOf(nodeIds, size * 2);
+				coordinates = Arrays.copyOf(coordinates, size * 4);
+				nodeTags = Arrays.copyOf(nodeTags, size * 2);
+			}
+			nodeIds[size] = rs.getLong(shift + 1);
+			if (rs.getObject(shift + 5) != null) {
+				coordinates[2 * size] = rs.getDouble(shift + 4);
+				coordinates[2 * size + 1] = rs.getDouble(shift + 5);
+				byte[] t = rs.getBytes(shift + 6);
+				nodeTags[size] = t == null ? NO_TAGS : t;
+			}
+			size++;
+		}
+	}
+
+	public void setNodeLocationStore(NodeLocationStore nodeLocations) {
+		this.nodeLocations = nodeLocations;
+	}
+
+	public NodeLocationStore getNodeLocationStore() {
+		return nodeLocations;
+	}
+
+	private Node getStoredNode(long id) {
+		if (nodeLocations != null) {
+			long l = nodeLocations.get(id);
+			if (l != NodeLocationStore.MISSING) {
+				return new Node(NodeLocationStore.unpackLatitude(l), NodeLocationStore.unpackLongitude(l), id);
 			}
 		}
+		return null;
+	}
+
+	private void addStoredNode(Way w, long id) {
+		Node n = getStoredNode(id);
+		if (n != null) {
+			w.addNode(n);
+		} else {
+			w.addNode(id);
+		}
+	}
+
+	public void readTags(Entity e, byte[] tags){
+		tagsCodec.decode(tags, e);
 	}
 
 	public int iterateOverEntities(IProgress progress, EntityType type, OsmDbVisitor visitor) throws SQLException, InterruptedException {
@@ -208,6 +475,25 @@ public class OsmDbAccessor implements OsmDbAccessorContext {
 	}
 
 	public int iterateOverEntities(IProgress progress, EntityType type, OsmDbVisitor visitor, boolean realCounts) throws SQLException, InterruptedException {
+		return iterateOverEntities(progress, type, new OsmDbVisitor[] { visitor }, realCounts);
+	}
+
+	/**
+	 * Iterates over entities and passes them to all visitors. Each visitor receives its own instance of entity
+	 * and runs in a separate consumer thread (first visitor runs in the calling thread and reports progress),
+	 * so visitors must not share mutable state between each other.
+	 */
+	public int iterateOverEntities(IProgress progress, EntityType type, OsmDbVisitor[] visitors, boolean realCounts)
+			throws SQLException, InterruptedException {
+		return iterateOverEntities(progress, type, visitors, null, realCounts);
+	}
+
+	/**
+	 * Same as {@link #iterateOverEntities(IProgress, EntityType, OsmDbVisitor[], boolean)} but if router is
+	 * specified entity is passed only to the visitor selected by router.
+	 */
+	public int iterateOverEntities(IProgress progress, EntityType type, OsmDbVisitor[] visitors,
+			OsmDbEntityRouter router, boolean realCounts) throws SQLException, InterruptedException {
 
 		PreparedStatement select;
 		int count = 0;
@@ -217,8 +503,10 @@ public class OsmDbAccessor implements OsmDbAccessorContext {
 			statement.close();
 		}
 
-		BlockingQueue<Entity> toProcess = new ArrayBlockingQueue<Entity>(100000);
-		AbstractProducer entityProducer = null;
+		EntityBatchQueue[] toProcess = new EntityBatchQueue[visitors.length];
+		for (int i = 0; i < visitors.length; i++) {
+			toProcess[i] = new EntityBatchQueue(QUEUE_CAPACITY_BATCHES);
+		}
 		if (type == EntityType.NODE) {
 			// filter out all nodes without tags
 			select = iterateNodes;
@@ -233,28 +521,87 @@ public class OsmDbAccessor implements OsmDbAccessorContext {
 			select = iterateRelations;
 			count = allRelations;
 		}
-		entityProducer = new EntityProducer(toProcess, type, select);
+		EntityProducer entityProducer = new EntityProducer(toProcess, type, select, router);
 		progress.startWork(count);
 
 		//produce
 		entityProducer.start();
+		List<EntityConsumer> consumers = new ArrayList<EntityConsumer>();
+		for (int i = 1; i < visitors.length; i++) {
+			EntityConsumer consumer = new EntityConsumer(toProcess, i, visitors[i]);
+			consumer.setName("EntityConsumer-" + i);
+			consumer.start();
+			consumers.add(consumer);
+		}
+		boolean success = false;
 		try {
-			// wait a little before starting taking entities from queue
-			Thread.sleep(150);
-		} catch (InterruptedException e) {
+			Entity[] batch;
+			while ((batch = toProcess[0].takeBatch()) != null) {
+				for (Entity e : batch) {
+					visitors[0].iterateEntity(e, this);
+				}
+				if (progress != null) {
+					progress.progress(batch.length);
+				}
+			}
+			success = true;
+		} finally {
+			if (!success) {
+				for (EntityBatchQueue q : toProcess) {
+					q.cancel();
+				}
+			}
+			for (EntityConsumer consumer : consumers) {
+				consumer.join();
+			}
+			entityProducer.join();
 		}
-
-		Entity entityToProcess = null;
-		Entity endEntity = entityProducer.getEndingEntity();
-		while ((entityToProcess = toProcess.take())  != endEntity) {
-			if (progress != null) {
-				progress.progress(1);
+		for (EntityConsumer consumer : consumers) {
+			if (consumer.error instanceof SQLException) {
+				throw (SQLException) consumer.error;
+			} else if (consumer.error instanceof RuntimeException) {
+				throw (RuntimeException) consumer.error;
+			} else if (consumer.error instanceof Error) {
+				throw (Error) consumer.error;
+			} else if (consumer.error != null) {
+				throw new IllegalStateException(consumer.error);
 			}
-			visitor.iterateEntity(entityToProcess, this);
 		}
 		return count;
 	}
 
+	private class EntityConsumer extends Thread {
+		private final EntityBatchQueue[] queues;
+		private final int ind;
+		private final OsmDbVisitor visitor;
+		private volatile Throwable error;
+
+		public EntityConsumer(EntityBatchQueue[] queues, int ind, OsmDbVisitor visitor) {
+			this.queues = queues;
+			this.ind = ind;
+			this.visitor = visitor;
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			try {
+				Entity[] batch;
+				while ((batch = queues[ind].takeBatch()) != null) {
+					for (Entity e : batch) {
+						visitor.iterateEntity(e, OsmDbAccessor.this);
+					}
+				}
+			} catch (Throwable e) {
+				error = e;
+				// stops producer and all other consumers
+				for (EntityBatchQueue q : queues) {
+					q.cancel();
+				}
+			}
+		}
+	}
+
 
 	public void computeRealCounts(Statement statement) throws SQLException {
 		if (!realCounts) {
@@ -279,6 +626,17 @@ public class OsmDbAccessor implements OsmDbAccessorContext {
 		if (pselectRelation != null) {
 			pselectRelation.close();
 		}
+		if (pselectNodes != null) {
+			pselectNodes.close();
+		}
+		if (pselectWays != null) {
+			pselectWays.close();
+		}
+		if (pselectRelations != null) {
+			pselectRelations.close();
+		}
+		wayCache.clear();
+		cachedWayNodes = 0;
 		if (iterateNodes != null) {
 			iterateNodes.close();
 		}
@@ -291,101 +649,123 @@ public class OsmDbAccessor implements OsmDbAccessorContext {
 		if (iterateWayBoundaries != null) {
 			iterateWayBoundaries.close();
 		}
-
-	}
-
-	public class AbstractProducer extends Thread {
-		private final Entity endingEntity = new Node(0,0,0);
-
-		public Entity getEndingEntity() {
-			return endingEntity;
+		if (nodeLocations != null) {
+			try {
+				nodeLocations.close();
+			} catch (IOException e) {
+				throw new SQLException(e);
+			}
 		}
-	}
 
+	}
 
-	public class EntityProducer extends AbstractProducer {
+	public class EntityProducer extends Thread {
 
-		private final BlockingQueue<Entity> toProcess;
+		private final EntityBatchQueue[] toProcess;
 		private final PreparedStatement select;
 		private final EntityType type;
-		private final boolean putEndingEntity;
-
-		public EntityProducer(BlockingQueue<Entity> toProcess, EntityType type, PreparedStatement select) {
-			this(toProcess,type,select,true);
-		}
+		private final OsmDbEntityRouter router;
 
-		public EntityProducer(BlockingQueue<Entity> toProcess, EntityType type, PreparedStatement select, boolean putEndingEntity) {
+		/**
+		 * Separate instance of each entity is created for every queue (or one instance for the queue selected by router)
+		 */
+		public EntityProducer(EntityBatchQueue[] toProcess, EntityType type, PreparedStatement select,
+				OsmDbEntityRouter router) {
 			this.toProcess = toProcess;
 			this.type = type;
 			this.select = select;
-			this.putEndingEntity = putEndingEntity;
+			this.router = router;
 			setDaemon(true);
 			setName("EntityProducer");
 		}
 
 		@Override
 		public void run() {
-			ResultSet rs;
+			Throwable error = null;
 			try {
 				select.execute();
-				rs = select.getResultSet();
-				// rs.setFetchSize(1000); !! not working for SQLite would case troubles probably
-				Entity prevEntity = null;
-				long prevId = Long.MIN_VALUE;
-				while (rs.next()) {
-					long curId = rs.getLong(1);
-					boolean newEntity = curId != prevId;
-					Entity e = prevEntity;
-					if (type == EntityType.NODE) {
-						e = new Node(rs.getDouble(2), rs.getDouble(3), curId);
-						readTags(e, rs.getBytes(4));
-					} else if (type == EntityType.WAY || type == EntityType.WAY_BOUNDARY) {
-						if (newEntity) {
-							e = new Way(curId);
-						}
-						int ord = rs.getInt(3);
-						if (ord == 0) {
-							readTags(e, rs.getBytes(4));
+				ResultSet rs = select.getResultSet();
+				try {
+					// rs.setFetchSize(1000); !! not working for SQLite would case troubles probably
+					Entity[] prevEntities = null;
+					long prevId = Long.MIN_VALUE;
+					while (rs.next()) {
+						long curId = rs.getLong(1);
+						boolean newEntity = curId != prevId;
+						Entity[] es = newEntity ? new Entity[router == null ? toProcess.length : 1] : prevEntities;
+						for (int k = 0; k < es.length; k++) {
+							es[k] = readEntity(rs, curId, newEntity ? null : es[k]);
 						}
-						if (rs.getObject(6) == null) {
-							((Way) e).addNode(rs.getLong(2));
-						} else {
-							Node n = new Node(rs.getDouble(5), rs.getDouble(6), rs.getLong(2));
-							readTags(n, rs.getBytes(7));
-							((Way) e).addNode(n);
+						if (newEntity) {
+							if (prevEntities != null && !putEntities(prevEntities)) {
+								return;
+							}
+							prevEntities = es;
 						}
-					} else {
-						e = new Relation(curId);
-						readTags(e, rs.getBytes(2));
-						e.setModify(rs.getInt(3) == 1 ? Entity.MODIFY_DELETED : Entity.MODIFY_UNKNOWN);
+						prevId = curId;
 					}
-					if (newEntity) {
-						if (prevEntity != null) {
-							toProcess.put(prevEntity);
-						}
-						prevEntity = e;
+					if (prevEntities != null) {
+						putEntities(prevEntities);
 					}
-					prevId = curId;
-				}
-				if (prevEntity != null) {
-					toProcess.put(prevEntity);
+				} finally {
+					rs.close();
 				}
-				rs.close();
-			} catch (SQLException e1) {
-				e1.printStackTrace();
-			} catch (InterruptedException e) {
-				e.printStackTrace();
+			} catch (Throwable e) {
+				error = e;
 			} finally {
-				if (putEndingEntity) {
+				for (EntityBatchQueue q : toProcess) {
 					try {
-						toProcess.put(getEndingEntity());
+						q.finish(error);
 					} catch (InterruptedException e) {
-						e.printStackTrace();
+						q.cancel();
 					}
 				}
 			}
 		}
 
+		private boolean putEntities(Entity[] es) throws InterruptedException {
+			if (router != null) {
+				return toProcess[router.getVisitor(es[0])].add(es[0]);
+			}
+			boolean active = false;
+			for (int k = 0; k < es.length; k++) {
+				active |= toProcess[k].add(es[k]);
+			}
+			return active;
+		}
+
+		private Entity readEntity(ResultSet rs, long curId, Entity prevEntity) throws SQLException {
+			Entity e = prevEntity;
+			if (type == EntityType.NODE) {
+				if (e != null) {
+					// duplicate row, keep first
+					return e;
+				}
+				e = new Node(rs.getDouble(2), rs.getDouble(3), curId);
+				readTags(e, rs.getBytes(4));
+			} else if (type == EntityType.WAY || type == EntityType.WAY_BOUNDARY) {
+				if (e == null) {
+					e = new Way(curId);
+				}
+				int ord = rs.getInt(3);
+				if (ord == 0) {
+					readTags(e, rs.getBytes(4));
+				}
+				if (rs.getObject(6) == null) {
+					addStoredNode((Way) e, rs.getLong(2));
+				} else {
+					Node n = new Node(rs.getDouble(5), rs.getDouble(6), rs.getLong(2));
+					readTags(n, rs.getBytes(7));
+					((Way) e).addNode(n);
+				}
+			} else if (e == null) {
+				e = new Relation(curId);
+				readTags(e, rs.getBytes(2));
+				e.setModify(rs.getInt(3) == 1 ? Entity.MODIFY_DELETED : Entity.MODIFY_UNKNOWN);
+			}
+			return e;
+		}
+
 	}
 
 	public void setDbConn(Connection dbConnection, DBDialect dialect) {
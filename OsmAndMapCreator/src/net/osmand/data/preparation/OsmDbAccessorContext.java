@@ -1,6 +1,7 @@
 package net.osmand.data.preparation;
 
 import java.sql.SQLException;
+import java.util.Collection;
 
 import net.osmand.osm.edit.Relation;
 import net.osmand.osm.edit.Way;
@@ -17,4 +18,9 @@ public interface OsmDbAccessorContext {
 	 * ways - loaded with tags and points, nodes with tags, relations with members and tags
 	 */
 	public void loadEntityRelation(Relation e) throws SQLException;
+
+	/**
+	 * Load one level members of all relations (members are selected by batches)
+	 */
+	public void loadEntityRelations(Collection<Relation> relations) throws SQLException;
 }
\ No newline at end of file
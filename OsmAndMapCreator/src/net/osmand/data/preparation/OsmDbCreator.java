@@ -5,7 +5,6 @@ import gnu.trove.map.hash.TLongObjectHashMap;
 import gnu.trove.set.TLongSet;
 import gnu.trove.set.hash.TLongHashSet;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
@@ -28,6 +27,7 @@ import net.osmand.osm.edit.OSMSettings.OSMTagKey;
 import net.osmand.osm.edit.Relation;
 import net.osmand.osm.edit.Relation.RelationMember;
 import net.osmand.osm.edit.Way;
+import net.osmand.osm.io.IOsmDenseNodeFilter;
 import net.osmand.osm.io.IOsmStorageFilter;
 import net.osmand.osm.io.OsmBaseStorage;
 import net.osmand.util.MapUtils;
@@ -35,7 +35,7 @@ import net.osmand.util.MapUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-public class OsmDbCreator implements IOsmStorageFilter {
+public class OsmDbCreator implements IOsmStorageFilter, IOsmDenseNodeFilter {
 
 	
 	private static final Log log = LogFactory.getLog(OsmDbCreator.class);
@@ -78,6 +78,9 @@ public class OsmDbCreator implements IOsmStorageFilter {
 	private TLongObjectHashMap<Long> generatedIds = new TLongObjectHashMap<Long>();
 	private TLongObjectHashMap<Long> hashes = new TLongObjectHashMap<Long>();
 	private TLongSet idSet = new TLongHashSet();
+	private OsmTagsCodec tagsCodec = new OsmTagsCodec();
+	// nodes without tags are stored only there (if specified)
+	private NodeLocationStore nodeLocations;
 	
 
 
@@ -101,11 +104,7 @@ public class OsmDbCreator implements IOsmStorageFilter {
 		boolean simpleConvertId = !ovewriteIds && shiftId > 0;
 		int ord = EntityType.valueOf(e).ordinal();
 		if (e instanceof Node) {
-			if (simpleConvertId) {
-				return getSimpleConvertId(id, EntityType.NODE, true);
-			}
-			int hash = getNodeHash(e);
-			return getConvertId(id, ord, hash);
+			return convertNodeId(id, ((Node) e).getLatitude(), ((Node) e).getLongitude());
 		} else if (e instanceof Way) {
 			TLongArrayList lids = ((Way) e).getNodeIds();
 			long hash = 0;
@@ -155,6 +154,16 @@ public class OsmDbCreator implements IOsmStorageFilter {
 		}
 	}
 
+	private long convertNodeId(long id, double lat, double lon) {
+		if (backwardComptibleIds) {
+			return id;
+		}
+		if (!ovewriteIds && shiftId > 0) {
+			return getSimpleConvertId(id, EntityType.NODE, true);
+		}
+		return getConvertId(id, EntityType.NODE.ordinal(), getNodeHash(lat, lon));
+	}
+
 	private long getSimpleConvertId(long id, EntityType type, boolean newId) {
 		if (generateNewIds) {
 			long key = (id << 2) + type.ordinal();
@@ -169,13 +178,29 @@ public class OsmDbCreator implements IOsmStorageFilter {
 		return (id << shiftId) + additionId;
 	}
 
-	private int getNodeHash(Entity e) {
-		int y = MapUtils.get31TileNumberY(((Node) e).getLatitude());
-		int x = MapUtils.get31TileNumberX(((Node) e).getLongitude());
+	private int getNodeHash(double lat, double lon) {
+		int y = MapUtils.get31TileNumberY(lat);
+		int x = MapUtils.get31TileNumberX(lon);
 		int hash = (x + y) >> 10;
 		return hash;
 	}
 	
+	public void setNodeLocationStore(NodeLocationStore nodeLocations) {
+		this.nodeLocations = nodeLocations;
+	}
+	
+	public OsmTagsCodec getTagsCodec() {
+		return tagsCodec;
+	}
+	
+	public void setTagsCodec(OsmTagsCodec tagsCodec) {
+		this.tagsCodec = tagsCodec;
+	}
+	
+	public NodeLocationStore getNodeLocationStore() {
+		return nodeLocations;
+	}
+	
 	public TLongHashSet getNodeIds() {
 		return nodeIds;
 	}
@@ -253,6 +278,9 @@ public class OsmDbCreator implements IOsmStorageFilter {
 			stat.executeUpdate("create index IdRIndex ON relations (id)"); //$NON-NLS-1$
 			stat.close();
 		}
+		if (!create && tagsCodec.getDictionarySize() == 0) {
+			tagsCodec.loadDictionary(dialect, dbConn);
+		}
 		initIds("node", nodeIds);
 		initIds("ways", wayIds);
 		initRelationIds("relations", relationIds);
@@ -297,6 +325,14 @@ public class OsmDbCreator implements IOsmStorageFilter {
 			prepRelations.executeBatch();
 		}
 		prepRelations.close();
+		tagsCodec.saveDictionary(dialect, dbConn);
+		if (nodeLocations != null) {
+			try {
+				nodeLocations.flush();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
 		if (delNode != null) {
 			delNode.close();
 		}
@@ -310,18 +346,18 @@ public class OsmDbCreator implements IOsmStorageFilter {
 	
 	
 	
-	private void checkEntityExists(Entity e, long id, boolean delete) throws SQLException {
+	private void checkEntityExists(EntityType type, long id, boolean delete) throws SQLException {
 		if (delNode == null) {
 			delNode = dbConn.prepareStatement("delete from node where id = ?"); //$NON-NLS-1$
 			delWays = dbConn.prepareStatement("delete from ways where id = ?"); //$NON-NLS-1$
 			delRelations = dbConn.prepareStatement("delete from relations where id = ? and del = ?"); //$NON-NLS-1$
 		}
 		boolean present = false;
-		if (e instanceof Node) {
+		if (type == EntityType.NODE) {
 			present = !nodeIds.add(id);
-		} else if (e instanceof Way) {
+		} else if (type == EntityType.WAY) {
 			present = !wayIds.add(id);
-		} else if (e instanceof Relation) {
+		} else if (type == EntityType.RELATION) {
 			long rid = (id << 1) | (delete ? 1 : 0); 
 			present = !relationIds.add(rid);
 		}
@@ -334,13 +370,13 @@ public class OsmDbCreator implements IOsmStorageFilter {
 		currentWaysCount = 0;
 		currentCountNode = 0;
 		currentRelationsCount = 0;
-		if (e instanceof Node) {
+		if (type == EntityType.NODE) {
 			delNode.setLong(1, id);
 			delNode.execute();
-		} else if (e instanceof Way) {
+		} else if (type == EntityType.WAY) {
 			delWays.setLong(1, id);
 			delWays.execute();
-		} else if (e instanceof Relation) {
+		} else if (type == EntityType.RELATION) {
 			delRelations.setLong(1, id);
 			delRelations.setLong(2, delete ? 1 : 0);
 			delRelations.execute();
@@ -359,19 +395,15 @@ public class OsmDbCreator implements IOsmStorageFilter {
 		}
 		try {
 			e.removeTags(tagsToIgnore);
-			ByteArrayOutputStream tags = new ByteArrayOutputStream();
-			try {
-				for (Entry<String, String> i : e.getTags().entrySet()) {
-					// UTF-8 default
-					tags.write(i.getKey().getBytes("UTF-8"));
-					tags.write(0);
-					tags.write(i.getValue().getBytes("UTF-8"));
-					tags.write(0);
+			byte[] tags = tagsCodec.encode(e.getTags());
+			long id = convertId(e);
+			if (nodeLocations != null && e instanceof Node) {
+				nodeLocations.put(id, ((Node) e).getLatitude(), ((Node) e).getLongitude());
+				if (e.getTags().isEmpty()) {
+					removeUntaggedNode(id);
+					return false;
 				}
-			} catch (IOException es) {
-				throw new RuntimeException(es);
 			}
-			long id = convertId(e);
 			boolean delete = AugmentedDiffsInspector.OSMAND_DELETE_VALUE.
 					equals(e.getTag(AugmentedDiffsInspector.OSMAND_DELETE_TAG));
 			if (e.getTags().isEmpty()) {
@@ -380,7 +412,7 @@ public class OsmDbCreator implements IOsmStorageFilter {
 				delete = true;
 			}
 			if (ovewriteIds || e instanceof Relation) {
-				checkEntityExists(e, id, delete);
+				checkEntityExists(EntityType.valueOf(e), id, delete);
 			}
 			if (e instanceof Node) {
 				currentCountNode++;
@@ -390,7 +422,7 @@ public class OsmDbCreator implements IOsmStorageFilter {
 				prepNode.setLong(1, id);
 				prepNode.setDouble(2, ((Node) e).getLatitude());
 				prepNode.setDouble(3, ((Node) e).getLongitude());
-				prepNode.setBytes(4, tags.toByteArray());
+				prepNode.setBytes(4, tags);
 				prepNode.addBatch();
 				if (currentCountNode >= BATCH_SIZE_OSM) {
 					prepNode.executeBatch();
@@ -406,7 +438,7 @@ public class OsmDbCreator implements IOsmStorageFilter {
 				for (int j = 0; j < nodeIds.size(); j++) {
 					currentWaysCount++;
 					if (ord == 0) {
-						prepWays.setBytes(4, tags.toByteArray());
+						prepWays.setBytes(4, tags);
 					}
 					prepWays.setLong(1, id);
 					prepWays.setLong(2, nodeIds.get(j));
@@ -426,7 +458,7 @@ public class OsmDbCreator implements IOsmStorageFilter {
 				for (RelationMember i : ((Relation) e).getMembers()) {
 					currentRelationsCount++;
 					if (ord == 0) {
-						prepRelations.setBytes(6, tags.toByteArray());
+						prepRelations.setBytes(6, tags);
 					}
 					prepRelations.setLong(1, id);
 					prepRelations.setLong(2, i.getEntityId().getId());
@@ -446,12 +478,54 @@ public class OsmDbCreator implements IOsmStorageFilter {
 
 		} catch (SQLException ex) {
 			log.error("Could not save in db (entity " + entityId + ") ", ex); //$NON-NLS-1$
+		} catch (IOException ex) {
+			throw new RuntimeException(ex);
 		}
 		// do not add to storage
 		return false;
 	}
 
 
+	// untagged node doesn't need to be stored in db, only remove previous version if needed
+	private void removeUntaggedNode(long id) throws SQLException {
+		if (ovewriteIds && nodeIds.contains(id)) {
+			checkEntityExists(EntityType.NODE, id, false);
+			nodeIds.remove(id);
+		}
+	}
+
+	@Override
+	public boolean consumeDenseNode(long id, int lat, int lon, String[] tags, int tagsLength) {
+		if (nodeLocations == null || VALIDATE_DUPLICATES) {
+			return false;
+		}
+		for (int i = 0; i < tagsLength; i += 2) {
+			if (!isTagToIgnore(tags[i])) {
+				return false;
+			}
+		}
+		double latitude = lat / IOsmDenseNodeFilter.COORDINATES_PRECISION;
+		double longitude = lon / IOsmDenseNodeFilter.COORDINATES_PRECISION;
+		long cid = convertNodeId(id, latitude, longitude);
+		try {
+			nodeLocations.put(cid, latitude, longitude);
+			removeUntaggedNode(cid);
+		} catch (SQLException ex) {
+			log.error("Could not save in db (node " + id + ") ", ex); //$NON-NLS-1$
+		} catch (IOException ex) {
+			throw new RuntimeException(ex);
+		}
+		return true;
+	}
+
+	private boolean isTagToIgnore(String tag) {
+		for (String t : tagsToIgnore) {
+			if (t.equals(tag)) {
+				return true;
+			}
+		}
+		return false;
+	}
 
 	public int getAllNodes() {
 		return allNodes;
@@ -0,0 +1,231 @@
+package net.osmand.data.preparation;
+
+import java.io.UnsupportedEncodingException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import net.osmand.osm.edit.Entity;
+
+/**
+ * Binary encoding of entity tags for temporary osm db.
+ * Format : FORMAT_MARKER, varint(number of tags), then for every key and value varint code
+ * ((dictionary id << 1) | 1) for string from dictionary or (length << 1) followed by UTF-8 bytes.
+ * Keys and frequent values are interned into dictionary which is stored in db table (ids are never changed).
+ * Old format (NUL separated UTF-8 strings) is still decoded.
+ */
+public class OsmTagsCodec {
+
+	private static final byte FORMAT_MARKER = 1;
+	private static final String DICTIONARY_TABLE = "tags_dictionary";
+	private static final int MAX_DICTIONARY_SIZE = 1 << 18;
+	private static final int MAX_INTERNED_VALUE_LENGTH = 32;
+	private static final int MAX_CANDIDATES = 1 << 16;
+	private static final byte[] EMPTY = new byte[0];
+
+	private final List<String> strings = new ArrayList<String>();
+	private final Map<String, Integer> ids = new HashMap<String, Integer>();
+	// values seen once (interned on second occurrence)
+	private final Map<String, Boolean> candidates = new HashMap<String, Boolean>();
+	private int savedSize = 0;
+
+	private byte[] buffer = new byte[256];
+	private int size;
+
+	public int getDictionarySize() {
+		return strings.size();
+	}
+
+	public static boolean checkDictionaryExists(DBDialect dialect, Connection conn) throws SQLException {
+		Statement st = conn.createStatement();
+		try {
+			return dialect.checkTableIfExists(DICTIONARY_TABLE, st);
+		} finally {
+			st.close();
+		}
+	}
+
+	public void loadDictionary(DBDialect dialect, Connection conn) throws SQLException {
+		if (!checkDictionaryExists(dialect, conn)) {
+			return;
+		}
+		Statement st = conn.createStatement();
+		ResultSet rs = st.executeQuery("select id, value from " + DICTIONARY_TABLE + " order by id");
+		while (rs.next()) {
+			int id = rs.getInt(1);
+			String value = rs.getString(2);
+			while (strings.size() <= id) {
+				strings.add(null);
+			}
+			strings.set(id, value);
+			ids.put(value, id);
+		}
+		rs.close();
+		st.close();
+		savedSize = strings.size();
+	}
+
+	public void saveDictionary(DBDialect dialect, Connection conn) throws SQLException {
+		if (!checkDictionaryExists(dialect, conn)) {
+			Statement st = conn.createStatement();
+			st.executeUpdate("create table " + DICTIONARY_TABLE + " (id int primary key, value varchar)");
+			st.close();
+		}
+		if (savedSize == strings.size()) {
+			return;
+		}
+		PreparedStatement ps = conn.prepareStatement("insert into " + DICTIONARY_TABLE + " values (?, ?)");
+		for (int i = savedSize; i < strings.size(); i++) {
+			ps.setInt(1, i);
+			ps.setString(2, strings.get(i));
+			ps.addBatch();
+		}
+		ps.executeBatch();
+		ps.close();
+		savedSize = strings.size();
+	}
+
+	public byte[] encode(Map<String, String> tags) {
+		if (tags.isEmpty()) {
+			return EMPTY;
+		}
+		size = 0;
+		writeByte(FORMAT_MARKER);
+		writeVarint(tags.size());
+		for (Entry<String, String> e : tags.entrySet()) {
+			writeString(e.getKey(), true);
+			writeString(e.getValue(), false);
+		}
+		byte[] res = new byte[size];
+		System.arraycopy(buffer, 0, res, 0, size);
+		return res;
+	}
+
+	private void writeString(String s, boolean key) {
+		Integer id = ids.get(s);
+		if (id == null && strings.size() < MAX_DICTIONARY_SIZE) {
+			boolean intern = key;
+			if (!intern && s.length() <= MAX_INTERNED_VALUE_LENGTH) {
+				intern = candidates.remove(s) != null;
+				if (!intern) {
+					if (candidates.size() >= MAX_CANDIDATES) {
+						candidates.clear();
+					}
+					candidates.put(s, Boolean.TRUE);
+				}
+			}
+			if (intern) {
+				id = strings.size();
+				strings.add(s);
+				ids.put(s, id);
+			}
+		}
+		if (id != null) {
+			writeVarint((id << 1) | 1);
+		} else {
+			byte[] bts;
+			try {
+				bts = s.getBytes("UTF-8");
+			} catch (UnsupportedEncodingException e) {
+				throw new RuntimeException(e);
+			}
+			writeVarint(bts.length << 1);
+			ensureCapacity(bts.length);
+			System.arraycopy(bts, 0, buffer, size, bts.length);
+			size += bts.length;
+		}
+	}
+
+	private void ensureCapacity(int add) {
+		if (size + add > buffer.length) {
+			byte[] nb = new byte[Math.max(buffer.length * 2, size + add)];
+			System.arraycopy(buffer, 0, nb, 0, size);
+			buffer = nb;
+		}
+	}
+
+	private void writeByte(int b) {
+		ensureCapacity(1);
+		buffer[size++] = (byte) b;
+	}
+
+	private void writeVarint(int value) {
+		while ((value & ~0x7F) != 0) {
+			writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		writeByte(value);
+	}
+
+	/**
+	 * Decodes tags directly into entity
+	 */
+	public void decode(byte[] tags, Entity e) {
+		if (tags == null || tags.length == 0) {
+			return;
+		}
+		try {
+			if (tags[0] != FORMAT_MARKER) {
+				decodeLegacy(tags, e);
+				return;
+			}
+			int[] pos = new int[] { 1 };
+			int cnt = readVarint(tags, pos);
+			for (int i = 0; i < cnt; i++) {
+				String k = readString(tags, pos);
+				String v = readString(tags, pos);
+				e.putTag(k, v);
+			}
+		} catch (UnsupportedEncodingException e1) {
+			throw new RuntimeException(e1);
+		}
+	}
+
+	private String readString(byte[] tags, int[] pos) throws UnsupportedEncodingException {
+		int code = readVarint(tags, pos);
+		if ((code & 1) == 1) {
+			return strings.get(code >>> 1);
+		}
+		int len = code >>> 1;
+		String s = new String(tags, pos[0], len, "UTF-8");
+		pos[0] += len;
+		return s;
+	}
+
+	private static int readVarint(byte[] tags, int[] pos) {
+		int result = 0;
+		int shift = 0;
+		while (true) {
+			byte b = tags[pos[0]++];
+			result |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return result;
+			}
+			shift += 7;
+		}
+	}
+
+	private static void decodeLegacy(byte[] tags, Entity e) throws UnsupportedEncodingException {
+		int prev = 0;
+		String key = null;
+		for (int i = 0; i < tags.length; i++) {
+			if (tags[i] == 0) {
+				String s = new String(tags, prev, i - prev, "UTF-8");
+				if (key == null) {
+					key = s;
+				} else {
+					e.putTag(key, s);
+					key = null;
+				}
+				prev = i + 1;
+			}
+		}
+	}
+}
@@ -0,0 +1,197 @@
+package net.osmand.data.preparation;
+
+import gnu.trove.list.array.TByteArrayList;
+import gnu.trove.list.array.TLongArrayList;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact store of records (tags propagated by one relation) linked to entities. Record is written once
+ * and every member keeps only primitive key of entity and position of record, so there are no objects per entity.
+ * Records are kept in byte array or appended to temporary file, links are sorted by key on first lookup
+ * and all records of entity are returned in the order they were linked.
+ */
+class PropagatedTagsStore {
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final File file;
+	private TByteArrayList memory;
+	private RandomAccessFile raf;
+	// pending (not written to file) tail of records
+	private byte[] buffer;
+	private int bufferLength;
+	private long flushed;
+	private long size;
+
+	private final TLongArrayList keys = new TLongArrayList();
+	private final TLongArrayList records = new TLongArrayList();
+	private boolean sorted = true;
+
+	/**
+	 * @param file temporary file to keep records or null to keep them in memory
+	 */
+	public PropagatedTagsStore(File file) throws IOException {
+		this.file = file;
+		if (file == null) {
+			memory = new TByteArrayList();
+		} else {
+			raf = new RandomAccessFile(file, "rw");
+			raf.setLength(0);
+			buffer = new byte[BUFFER_SIZE];
+		}
+	}
+
+	/**
+	 * @return position of record
+	 */
+	public long addRecord(byte[] data, int length) throws IOException {
+		long pos = size;
+		byte[] len = new byte[] { (byte) (length >>> 24), (byte) (length >>> 16), (byte) (length >>> 8), (byte) length };
+		if (memory != null) {
+			if (size + 4 + length > Integer.MAX_VALUE) {
+				throw new IllegalStateException("Propagated tags exceed 2 GB, use temporary file to store them");
+			}
+			memory.add(len);
+			memory.add(data, 0, length);
+		} else {
+			write(len, 4);
+			write(data, length);
+		}
+		size += 4 + length;
+		return pos;
+	}
+
+	private void write(byte[] data, int length) throws IOException {
+		if (bufferLength + length > buffer.length) {
+			flush();
+		}
+		if (length > buffer.length) {
+			raf.seek(flushed);
+			raf.write(data, 0, length);
+			flushed += length;
+		} else {
+			System.arraycopy(data, 0, buffer, bufferLength, length);
+			bufferLength += length;
+		}
+	}
+
+	private void flush() throws IOException {
+		if (bufferLength > 0) {
+			raf.seek(flushed);
+			raf.write(buffer, 0, bufferLength);
+			flushed += bufferLength;
+			bufferLength = 0;
+		}
+	}
+
+	public void link(long key, long record) {
+		int last = keys.size() - 1;
+		if (sorted && last >= 0 && compare(keys.getQuick(last), records.getQuick(last), key, record) > 0) {
+			sorted = false;
+		}
+		keys.add(key);
+		records.add(record);
+	}
+
+	/**
+	 * @return records linked to the key in the order of linking or null
+	 */
+	public List<byte[]> getRecords(long key) throws IOException {
+		if (keys.isEmpty()) {
+			return null;
+		}
+		if (!sorted) {
+			sort(0, keys.size() - 1);
+			sorted = true;
+		}
+		int i = keys.binarySearch(key);
+		if (i < 0) {
+			return null;
+		}
+		while (i > 0 && keys.getQuick(i - 1) == key) {
+			i--;
+		}
+		List<byte[]> res = new ArrayList<byte[]>();
+		for (; i < keys.size() && keys.getQuick(i) == key; i++) {
+			res.add(readRecord(records.getQuick(i)));
+		}
+		return res;
+	}
+
+	private byte[] readRecord(long pos) throws IOException {
+		if (memory != null) {
+			int p = (int) pos;
+			int length = ((memory.getQuick(p) & 0xff) << 24) | ((memory.getQuick(p + 1) & 0xff) << 16)
+					| ((memory.getQuick(p + 2) & 0xff) << 8) | (memory.getQuick(p + 3) & 0xff);
+			return memory.toArray(p + 4, length);
+		}
+		// length and data of record could be split between file and buffer
+		flush();
+		raf.seek(pos);
+		byte[] data = new byte[raf.readInt()];
+		raf.readFully(data);
+		return data;
+	}
+
+	private static int compare(long k1, long r1, long k2, long r2) {
+		if (k1 != k2) {
+			return k1 < k2 ? -1 : 1;
+		}
+		return r1 < r2 ? -1 : (r1 == r2 ? 0 : 1);
+	}
+
+	private void sort(int lo, int hi) {
+		while (lo < hi) {
+			int m = (lo + hi) >>> 1;
+			long pivotKey = keys.getQuick(m);
+			long pivotRecord = records.getQuick(m);
+			int i = lo;
+			int j = hi;
+			while (i <= j) {
+				while (compare(keys.getQuick(i), records.getQuick(i), pivotKey, pivotRecord) < 0) {
+					i++;
+				}
+				while (compare(keys.getQuick(j), records.getQuick(j), pivotKey, pivotRecord) > 0) {
+					j--;
+				}
+				if (i <= j) {
+					long k = keys.getQuick(i);
+					keys.setQuick(i, keys.getQuick(j));
+					keys.setQuick(j, k);
+					long r = records.getQuick(i);
+					records.setQuick(i, records.getQuick(j));
+					records.setQuick(j, r);
+					i++;
+					j--;
+				}
+			}
+			// recurse into smaller part
+			if (j - lo < hi - i) {
+				sort(lo, j);
+				lo = i;
+			} else {
+				sort(i, hi);
+				hi = j;
+			}
+		}
+	}
+
+	/**
+	 * Releases memory and deletes temporary file
+	 */
+	public void close() throws IOException {
+		keys.clear(0);
+		records.clear(0);
+		memory = null;
+		if (raf != null) {
+			raf.close();
+			raf = null;
+			file.delete();
+		}
+	}
+}
@@ -0,0 +1,384 @@
+package net.osmand.data.preparation;
+
+import gnu.trove.list.array.TByteArrayList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.hash.TLongObjectHashMap;
+import gnu.trove.set.hash.TIntHashSet;
+import gnu.trove.set.hash.TLongHashSet;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import net.osmand.osm.edit.Node;
+import net.osmand.util.MapUtils;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Compact graph of car roads and base (low zoom) roads collected while ways are iterated. It finds roads
+ * which connect dead ends of base roads to the rest of base network (as CheckRoadConnectivity does on
+ * written binary file), so route index doesn't have to be written and read back.
+ * Points are stored as (x31 << 31) + y31 in primitive arrays, ways are addressed by index of their first point.
+ */
+class RoadConnectivityGraph {
+
+	private static final Log log = LogFactory.getLog(RoadConnectivityGraph.class);
+
+	private static final Set<String> CAR_HIGHWAYS = new HashSet<String>(Arrays.asList("motorway", "motorway_link",
+			"trunk", "trunk_link", "primary", "primary_link", "secondary", "secondary_link", "tertiary",
+			"tertiary_link", "unclassified", "residential", "living_street", "service", "road", "track"));
+	private static final double SHORT_FERRY_DISTANCE = 1000;
+
+	// car roads
+	private final TLongArrayList wayIds = new TLongArrayList();
+	private final TIntArrayList wayStarts = new TIntArrayList();
+	private final TByteArrayList wayOneway = new TByteArrayList();
+	private final TLongArrayList points = new TLongArrayList();
+	// base roads
+	private final TLongArrayList baseIds = new TLongArrayList();
+	private final TIntArrayList baseStarts = new TIntArrayList();
+	private final TByteArrayList baseLinks = new TByteArrayList();
+	private final TLongArrayList basePoints = new TLongArrayList();
+	private final TLongHashSet registeredBaseIds = new TLongHashSet();
+
+	// sorted index of points to find roads at point
+	private long[] sortedPoints;
+	private int[] sortedPositions;
+	// all points of base roads (with intersections) sorted, point repeats once per road
+	private long[] sortedBasePoints;
+
+	private static long getPoint(Node n) {
+		long x31 = MapUtils.get31TileNumberX(n.getLongitude());
+		long y31 = MapUtils.get31TileNumberY(n.getLatitude());
+		return (x31 << 31) + y31;
+	}
+
+	private static int getX(long point) {
+		return (int) (point >> 31);
+	}
+
+	private static int getY(long point) {
+		return (int) (point & ((1l << 31) - 1));
+	}
+
+	public static boolean isCarRoad(Map<String, String> tags) {
+		if ("ferry".equals(tags.get("route"))) {
+			return true;
+		}
+		return CAR_HIGHWAYS.contains(tags.get("highway")) && !"no".equals(tags.get("motor_vehicle"))
+				&& !"no".equals(tags.get("motorcar"));
+	}
+
+	public static int getOneway(Map<String, String> tags) {
+		String oneway = tags.get("oneway");
+		if ("-1".equals(oneway) || "reverse".equals(oneway)) {
+			return -1;
+		}
+		if ("yes".equals(oneway) || "1".equals(oneway) || "true".equals(oneway)
+				|| "roundabout".equals(tags.get("junction"))) {
+			return 1;
+		}
+		return 0;
+	}
+
+	public void addRoad(long id, List<Node> nodes, int oneway) {
+		int start = points.size();
+		for (Node n : nodes) {
+			if (n != null) {
+				points.add(getPoint(n));
+			}
+		}
+		if (points.size() - start < 2) {
+			points.remove(start, points.size() - start);
+			return;
+		}
+		wayIds.add(id);
+		wayStarts.add(start);
+		wayOneway.add((byte) oneway);
+	}
+
+	/**
+	 * @param nodes points of base road after simplification
+	 */
+	public void addBaseRoad(long id, List<Node> nodes, Map<String, String> tags) {
+		registeredBaseIds.add(id);
+		int start = basePoints.size();
+		for (Node n : nodes) {
+			if (n != null) {
+				basePoints.add(getPoint(n));
+			}
+		}
+		int len = basePoints.size() - start;
+		if (len == 0) {
+			return;
+		}
+		long first = basePoints.get(start);
+		long last = basePoints.get(start + len - 1);
+		double dist = MapUtils.squareRootDist31(getX(first), getY(first), getX(last), getY(last));
+		if ("ferry".equals(tags.get("route")) && dist < SHORT_FERRY_DISTANCE) {
+			basePoints.remove(start, len);
+			return;
+		}
+		String hw = tags.get("highway");
+		baseIds.add(id);
+		baseStarts.add(start);
+		baseLinks.add((byte) (hw != null && hw.endsWith("link") ? 1 : 0));
+	}
+
+	/**
+	 * Merges graphs of shards. Every graph has roads in order of way ids (ways are iterated by id), so merged
+	 * graph has the same roads in the same order as graph built from all ways
+	 */
+	public static RoadConnectivityGraph merge(List<RoadConnectivityGraph> graphs) {
+		if (graphs.size() == 1) {
+			return graphs.get(0);
+		}
+		RoadConnectivityGraph res = new RoadConnectivityGraph();
+		int[] ways = new int[graphs.size()];
+		int g;
+		while ((g = nextRoad(graphs, ways, false)) != -1) {
+			RoadConnectivityGraph gr = graphs.get(g);
+			int w = ways[g]++;
+			int start = gr.wayStarts.get(w);
+			res.wayIds.add(gr.wayIds.get(w));
+			res.wayStarts.add(res.points.size());
+			res.wayOneway.add(gr.wayOneway.get(w));
+			res.points.add(gr.points.toArray(start, end(gr.wayStarts, gr.points, w) - start));
+		}
+		int[] bases = new int[graphs.size()];
+		while ((g = nextRoad(graphs, bases, true)) != -1) {
+			RoadConnectivityGraph gr = graphs.get(g);
+			int b = bases[g]++;
+			int start = gr.baseStarts.get(b);
+			res.baseIds.add(gr.baseIds.get(b));
+			res.baseStarts.add(res.basePoints.size());
+			res.baseLinks.add(gr.baseLinks.get(b));
+			res.basePoints.add(gr.basePoints.toArray(start, end(gr.baseStarts, gr.basePoints, b) - start));
+		}
+		for (RoadConnectivityGraph gr : graphs) {
+			res.registeredBaseIds.addAll(gr.registeredBaseIds);
+		}
+		return res;
+	}
+
+	// graph with the smallest id of next road or -1
+	private static int nextRoad(List<RoadConnectivityGraph> graphs, int[] positions, boolean base) {
+		int res = -1;
+		long min = 0;
+		for (int i = 0; i < graphs.size(); i++) {
+			TLongArrayList ids = base ? graphs.get(i).baseIds : graphs.get(i).wayIds;
+			if (positions[i] < ids.size() && (res == -1 || ids.get(positions[i]) < min)) {
+				res = i;
+				min = ids.get(positions[i]);
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * @return true if car road was added to this graph (roads are added in order of ids)
+	 */
+	public boolean containsRoad(long id) {
+		return wayIds.binarySearch(id) >= 0;
+	}
+
+	private static int end(TIntArrayList starts, TLongArrayList pnts, int way) {
+		return way + 1 < starts.size() ? starts.get(way + 1) : pnts.size();
+	}
+
+	private int getWay(int position) {
+		int w = wayStarts.binarySearch(position);
+		return w >= 0 ? w : -w - 2;
+	}
+
+	private int countBaseRoads(long point) {
+		int i = Arrays.binarySearch(sortedBasePoints, point);
+		if (i < 0) {
+			return 0;
+		}
+		int cnt = 1;
+		for (int j = i - 1; j >= 0 && sortedBasePoints[j] == point; j--) {
+			cnt++;
+		}
+		for (int j = i + 1; j < sortedBasePoints.length && sortedBasePoints[j] == point; j++) {
+			cnt++;
+		}
+		return cnt;
+	}
+
+	private void prepare(TLongObjectHashMap<long[]> baseIntersections) {
+		sortedPoints = points.toArray();
+		sortedPositions = new int[sortedPoints.length];
+		for (int i = 0; i < sortedPositions.length; i++) {
+			sortedPositions[i] = i;
+		}
+		sort(sortedPoints, sortedPositions, 0, sortedPoints.length - 1);
+		TLongArrayList all = new TLongArrayList();
+		TLongHashSet roadPoints = new TLongHashSet();
+		for (int b = 0; b < baseIds.size(); b++) {
+			roadPoints.clear();
+			for (int i = baseStarts.get(b); i < end(baseStarts, basePoints, b); i++) {
+				roadPoints.add(basePoints.get(i));
+			}
+			long[] intersections = baseIntersections.get(baseIds.get(b));
+			if (intersections != null) {
+				roadPoints.addAll(intersections);
+			}
+			all.addAll(roadPoints);
+		}
+		sortedBasePoints = all.toArray();
+		Arrays.sort(sortedBasePoints);
+	}
+
+	private static class Step {
+		final int position;
+		final double distance;
+		final Step parent;
+
+		Step(int position, double distance, Step parent) {
+			this.position = position;
+			this.distance = distance;
+			this.parent = parent;
+		}
+	}
+
+	/**
+	 * @param baseIntersections points inserted into base roads (way id -> points)
+	 * @return roads (id -> points) which connect dead ends of base roads to base network
+	 */
+	public TLongObjectHashMap<long[]> findMissingBaseRoads(TLongObjectHashMap<long[]> baseIntersections) {
+		prepare(baseIntersections);
+		TLongObjectHashMap<long[]> toAdd = new TLongObjectHashMap<long[]>();
+		int checked = 0;
+		int isolated = 0;
+		for (int b = 0; b < baseIds.size(); b++) {
+			if (baseLinks.get(b) != 0) {
+				continue;
+			}
+			long[] ends = new long[] { basePoints.get(baseStarts.get(b)),
+					basePoints.get(end(baseStarts, basePoints, b) - 1) };
+			for (long point : ends) {
+				if (countBaseRoads(point) != 1) {
+					continue;
+				}
+				checked++;
+				Step step = findConnection(baseIds.get(b), point);
+				if (step == null) {
+					isolated++;
+				}
+				for (; step != null; step = step.parent) {
+					int w = getWay(step.position);
+					long id = wayIds.get(w);
+					if (!registeredBaseIds.contains(id) && !toAdd.containsKey(id)) {
+						toAdd.put(id, points.toArray(wayStarts.get(w), end(wayStarts, points, w) - wayStarts.get(w)));
+					}
+				}
+			}
+		}
+		log.info("Base road ends checked " + checked + " isolated " + isolated + " roads to add " + toAdd.size());
+		return toAdd;
+	}
+
+	/**
+	 * Searches the nearest point of base network from the end of base road by car roads
+	 * @return last step of the path or null if end is isolated
+	 */
+	private Step findConnection(long baseId, long point) {
+		PriorityQueue<Step> queue = new PriorityQueue<Step>(16, new Comparator<Step>() {
+			@Override
+			public int compare(Step o1, Step o2) {
+				return Double.compare(o1.distance, o2.distance);
+			}
+		});
+		TIntHashSet visited = new TIntHashSet();
+		addRoadsAtPoint(queue, visited, point, baseId, -1, 0, null);
+		while (!queue.isEmpty()) {
+			Step s = queue.poll();
+			if (!visited.add(s.position)) {
+				continue;
+			}
+			int w = getWay(s.position);
+			// base road itself doesn't connect its end
+			boolean start = wayIds.get(w) == baseId;
+			int oneway = wayOneway.get(w);
+			for (int dir = 1; dir >= -1; dir -= 2) {
+				if (oneway * dir < 0) {
+					continue;
+				}
+				double dist = s.distance;
+				long prev = points.get(s.position);
+				for (int p = s.position + dir; p >= wayStarts.get(w) && p < end(wayStarts, points, w); p += dir) {
+					long pnt = points.get(p);
+					dist += MapUtils.squareRootDist31(getX(prev), getY(prev), getX(pnt), getY(pnt));
+					prev = pnt;
+					if (!start && countBaseRoads(pnt) > 0) {
+						return s;
+					}
+					if (visited.contains(p)) {
+						break;
+					}
+					addRoadsAtPoint(queue, visited, pnt, -1, p, dist, s);
+				}
+			}
+		}
+		return null;
+	}
+
+	private void addRoadsAtPoint(PriorityQueue<Step> queue, TIntHashSet visited, long point, long excludeId,
+			int excludePosition, double dist, Step parent) {
+		int i = Arrays.binarySearch(sortedPoints, point);
+		if (i < 0) {
+			return;
+		}
+		while (i > 0 && sortedPoints[i - 1] == point) {
+			i--;
+		}
+		for (; i < sortedPoints.length && sortedPoints[i] == point; i++) {
+			int pos = sortedPositions[i];
+			if (pos != excludePosition && !visited.contains(pos) && wayIds.get(getWay(pos)) != excludeId) {
+				queue.add(new Step(pos, dist, parent));
+			}
+		}
+	}
+
+	private static void sort(long[] keys, int[] values, int lo, int hi) {
+		while (lo < hi) {
+			long pivot = keys[(lo + hi) >>> 1];
+			int i = lo;
+			int j = hi;
+			while (i <= j) {
+				while (keys[i] < pivot) {
+					i++;
+				}
+				while (keys[j] > pivot) {
+					j--;
+				}
+				if (i <= j) {
+					long k = keys[i];
+					keys[i] = keys[j];
+					keys[j] = k;
+					int v = values[i];
+					values[i] = values[j];
+					values[j] = v;
+					i++;
+					j--;
+				}
+			}
+			// recurse into smaller part
+			if (j - lo < hi - i) {
+				sort(keys, values, lo, j);
+				lo = i;
+			} else {
+				sort(keys, values, i, hi);
+				hi = j;
+			}
+		}
+	}
+}
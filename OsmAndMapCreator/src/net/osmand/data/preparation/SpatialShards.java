@@ -0,0 +1,105 @@
+package net.osmand.data.preparation;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TIntLongHashMap;
+
+import java.util.Arrays;
+import java.util.List;
+
+import net.osmand.osm.edit.Entity;
+import net.osmand.osm.edit.Node;
+import net.osmand.osm.edit.Way;
+import net.osmand.util.MapUtils;
+
+/**
+ * Splits region into spatial shards by tiles of specified zoom. Tiles are ordered along Z-order curve and the
+ * curve is cut into ranges with similar count of registered points, so every shard is a compact area.
+ * Object crossing tile borders belongs to the shard of its first node.
+ */
+class SpatialShards {
+
+	public static final int MAX_ZOOM = 15;
+
+	private final int zoom;
+	private TIntLongHashMap histogram = new TIntLongHashMap();
+	// first tile key of every shard
+	private int[] starts = new int[] { 0 };
+
+	public SpatialShards(int zoom) {
+		if (zoom < 1 || zoom > MAX_ZOOM) {
+			throw new IllegalArgumentException("Shard zoom should be in [1, " + MAX_ZOOM + "] : " + zoom);
+		}
+		this.zoom = zoom;
+	}
+
+	public int getZoom() {
+		return zoom;
+	}
+
+	private int getTileKey(double lat, double lon) {
+		int x = MapUtils.get31TileNumberX(lon) >>> (31 - zoom);
+		int y = MapUtils.get31TileNumberY(lat) >>> (31 - zoom);
+		int key = 0;
+		for (int i = zoom - 1; i >= 0; i--) {
+			key = (key << 2) | (((x >> i) & 1) << 1) | ((y >> i) & 1);
+		}
+		return key;
+	}
+
+	/**
+	 * Registers point to estimate density of data before {@link #split(int)}
+	 */
+	public void register(double lat, double lon) {
+		histogram.adjustOrPutValue(getTileKey(lat, lon), 1, 1);
+	}
+
+	/**
+	 * Creates at most specified count of shards with similar count of registered points
+	 */
+	public void split(int shards) {
+		int[] keys = histogram.keys();
+		Arrays.sort(keys);
+		long total = 0;
+		for (int key : keys) {
+			total += histogram.get(key);
+		}
+		TIntArrayList list = new TIntArrayList();
+		list.add(0);
+		long sum = 0;
+		for (int key : keys) {
+			if (list.size() < shards && sum * shards >= total * list.size()) {
+				list.add(key);
+			}
+			sum += histogram.get(key);
+		}
+		starts = list.toArray();
+		histogram = null;
+	}
+
+	public int size() {
+		return starts.length;
+	}
+
+	public int getShard(double lat, double lon) {
+		int i = Arrays.binarySearch(starts, getTileKey(lat, lon));
+		return i >= 0 ? i : -i - 2;
+	}
+
+	public int getShard(List<Node> nodes, long id) {
+		for (Node n : nodes) {
+			if (n != null) {
+				return getShard(n.getLatitude(), n.getLongitude());
+			}
+		}
+		return (int) ((id & Long.MAX_VALUE) % starts.length);
+	}
+
+	public int getShard(Entity e) {
+		if (e instanceof Node) {
+			return getShard(((Node) e).getLatitude(), ((Node) e).getLongitude());
+		} else if (e instanceof Way) {
+			return getShard(((Way) e).getNodes(), e.getId());
+		}
+		return (int) ((e.getId() & Long.MAX_VALUE) % starts.length);
+	}
+}
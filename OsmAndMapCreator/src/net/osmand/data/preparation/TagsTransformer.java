@@ -1,9 +1,15 @@
 package net.osmand.data.preparation;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
@@ -14,14 +20,56 @@ import net.osmand.osm.MapRenderingTypesEncoder.EntityConvertApplyType;
 import net.osmand.osm.MapRenderingTypesEncoder;
 import net.osmand.osm.edit.Entity;
 import net.osmand.osm.edit.Entity.EntityId;
+import net.osmand.osm.edit.Entity.EntityType;
 import net.osmand.osm.edit.Relation;
 import net.osmand.osm.edit.Relation.RelationMember;
 import net.osmand.util.Algorithms;
 
+/**
+ * Propagated tags are not kept per entity: tags propagated by relation are encoded once
+ * (varint header of rule groups, keys and short values from dictionary) and members are linked to the record
+ * by primitive key. Tags of entity are built on lookup by applying its records in the order of registration.
+ */
 public class TagsTransformer {
-	Map<EntityId, Map<String, String>> propogatedTags = new LinkedHashMap<Entity.EntityId, Map<String, String>>();
 	final static String SPLIT_VALUE= "SPLITVL";
-	
+	private static final int ENTITY_TYPES = EntityType.values().length;
+	private static final int MAX_DICTIONARY_SIZE = 1 << 18;
+	private static final int MAX_INTERNED_VALUE_LENGTH = 32;
+	private static final int TEXT = 1;
+	private static final int HAS_VALUE = 2;
+
+	private PropagatedTagsStore propogatedTags;
+	private File storeFile;
+	private final List<String> strings = new ArrayList<String>();
+	private final Map<String, Integer> ids = new HashMap<String, Integer>();
+	private byte[] buffer = new byte[256];
+	private int size;
+
+	/**
+	 * Keeps propagated tags in temporary file instead of memory, should be called before tags are registered
+	 */
+	public void setStoreFile(File storeFile) {
+		if (propogatedTags != null) {
+			throw new IllegalStateException("Propagated tags are already registered");
+		}
+		this.storeFile = storeFile;
+	}
+
+	private PropagatedTagsStore getStore() {
+		if (propogatedTags == null) {
+			try {
+				propogatedTags = new PropagatedTagsStore(storeFile);
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		return propogatedTags;
+	}
+
+	private static long getKey(EntityId id) {
+		return id.getId() * ENTITY_TYPES + id.getType().ordinal();
+	}
+
 	public void handleRelationPropogatedTags(Relation e, MapRenderingTypesEncoder renderingTypes, OsmDbAccessorContext ctx, 
 			EntityConvertApplyType at) throws SQLException {
 
@@ -31,59 +79,53 @@ public class TagsTransformer {
 			if(ctx != null) {
 				ctx.loadEntityRelation((Relation) e);
 			}
-			for(RelationMember ids : ((Relation) e).getMembers()) {
-				if(!propogatedTags.containsKey(ids.getEntityId())) {
-					propogatedTags.put(ids.getEntityId(), new LinkedHashMap<String, String>());
+			size = 0;
+			writeVarint(propogated.size());
+			Iterator<Entry<MapRulType, Map<MapRulType, String>>> itMain = propogated.entrySet().iterator();
+			while (itMain.hasNext()) {
+				Entry<MapRulType, Map<MapRulType, String>> ev = itMain.next();
+				Map<MapRulType, String> pr = ev.getValue();
+				MapRulType propagateRule = ev.getKey();
+				writeVarint((pr.size() << 1) | (propagateRule.isRelationGroup() ? 1 : 0));
+				if (propagateRule.isRelationGroup()) {
+					writeString(propagateRule.getTag() + "__" + propagateRule.getValue() + "_", true);
 				}
-				Map<String, String> map = propogatedTags.get(ids.getEntityId());
-				Iterator<Entry<MapRulType, Map<MapRulType, String>>> itMain = propogated.entrySet().iterator();
-				while (itMain.hasNext()) {
-					Entry<MapRulType, Map<MapRulType, String>> ev = itMain.next();
-					Map<MapRulType, String> pr = ev.getValue();
-					MapRulType propagateRule = ev.getKey();
-					if (propagateRule.isRelationGroup()) {
-						Iterator<Entry<MapRulType, String>> it = pr.entrySet().iterator();
-						int modifier = 1;
-						String s = propagateRule.getTag() + "__" + propagateRule.getValue() + "_";
-						while (map.containsKey(s + modifier)) {
-							modifier++;
-						}
-						map.put(s + modifier, s);
-						while (it.hasNext()) {
-							Entry<MapRulType, String> es = it.next();
-							String key = es.getKey().getTag();
-							map.put(key + "_" + modifier, es.getValue());
-						}
-					} else {
-						Iterator<Entry<MapRulType, String>> it = pr.entrySet().iterator();
-						while (it.hasNext()) {
-							Entry<MapRulType, String> es = it.next();
-							String key = es.getKey().getTag();
-							if (es.getKey().isText() && map.containsKey(key)) {
-								String res = sortAndAttachUniqueValue(map.get(key), es.getValue());
-								map.put(key, res);
-							} else {
-								map.put(key, es.getValue());
-							}
-						}
-					}
+				Iterator<Entry<MapRulType, String>> it = pr.entrySet().iterator();
+				while (it.hasNext()) {
+					Entry<MapRulType, String> es = it.next();
+					writeTag(es.getKey().getTag(), es.getValue(), es.getKey().isText());
 				}
 			}
+			long record = addRecord();
+			for(RelationMember ids : ((Relation) e).getMembers()) {
+				getStore().link(getKey(ids.getEntityId()), record);
+			}
 		}
 	
 	}
 	
 	public void addPropogatedTags(Entity e) {
-		EntityId eid = EntityId.valueOf(e);
-		Map<String, String> proptags = propogatedTags.get(eid);
-		if (proptags != null) {
+		if (propogatedTags == null) {
+			return;
+		}
+		List<byte[]> records;
+		try {
+			records = propogatedTags.getRecords(getKey(EntityId.valueOf(e)));
+		} catch (IOException e1) {
+			throw new IllegalStateException(e1);
+		}
+		if (records != null) {
+			Map<String, String> proptags = new LinkedHashMap<String, String>();
+			for (byte[] r : records) {
+				applyRecord(r, proptags);
+			}
 			Iterator<Entry<String, String>> iterator = proptags.entrySet().iterator();
 			while (iterator.hasNext()) {
 				Entry<String, String> ts = iterator.next();
 				if (e.getTag(ts.getKey()) == null) {
 					String vl = ts.getValue();
 					if(vl != null) {
-						vl = vl.replaceAll(SPLIT_VALUE, ", ");
+						vl = vl.replace(SPLIT_VALUE, ", ");
 					}
 					e.putTag(ts.getKey(), vl);
 				}
@@ -92,10 +134,144 @@ public class TagsTransformer {
 	}
 	
 	public void registerPropogatedTag(EntityId id, String t, String value ) {
-		if (!propogatedTags.containsKey(id)) {
-			propogatedTags.put(id, new LinkedHashMap<String, String>());
+		size = 0;
+		writeVarint(1);
+		writeVarint(1 << 1);
+		writeTag(t, value, false);
+		getStore().link(getKey(id), addRecord());
+	}
+
+	/**
+	 * Closes store of propagated tags and deletes its temporary file
+	 */
+	public void close() throws IOException {
+		if (propogatedTags != null) {
+			propogatedTags.close();
+			propogatedTags = null;
+		}
+	}
+
+	private long addRecord() {
+		try {
+			return getStore().addRecord(buffer, size);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private void applyRecord(byte[] r, Map<String, String> map) {
+		int[] pos = new int[] { 0 };
+		int groups = readVarint(r, pos);
+		for (int g = 0; g < groups; g++) {
+			int header = readVarint(r, pos);
+			int cnt = header >>> 1;
+			if ((header & 1) == 1) {
+				String s = readString(r, pos);
+				int modifier = 1;
+				while (map.containsKey(s + modifier)) {
+					modifier++;
+				}
+				map.put(s + modifier, s);
+				for (int i = 0; i < cnt; i++) {
+					String key = readString(r, pos);
+					int flags = r[pos[0]++];
+					map.put(key + "_" + modifier, (flags & HAS_VALUE) != 0 ? readString(r, pos) : null);
+				}
+			} else {
+				for (int i = 0; i < cnt; i++) {
+					String key = readString(r, pos);
+					int flags = r[pos[0]++];
+					String value = (flags & HAS_VALUE) != 0 ? readString(r, pos) : null;
+					if ((flags & TEXT) != 0 && map.containsKey(key)) {
+						String res = sortAndAttachUniqueValue(map.get(key), value);
+						map.put(key, res);
+					} else {
+						map.put(key, value);
+					}
+				}
+			}
+		}
+	}
+
+	private void writeTag(String key, String value, boolean text) {
+		writeString(key, true);
+		writeByte((text ? TEXT : 0) | (value != null ? HAS_VALUE : 0));
+		if (value != null) {
+			writeString(value, value.length() <= MAX_INTERNED_VALUE_LENGTH);
+		}
+	}
+
+	private void writeString(String s, boolean intern) {
+		Integer id = ids.get(s);
+		if (id == null && intern && strings.size() < MAX_DICTIONARY_SIZE) {
+			id = strings.size();
+			strings.add(s);
+			ids.put(s, id);
+		}
+		if (id != null) {
+			writeVarint((id << 1) | 1);
+		} else {
+			byte[] bts;
+			try {
+				bts = s.getBytes("UTF-8");
+			} catch (UnsupportedEncodingException e) {
+				throw new RuntimeException(e);
+			}
+			writeVarint(bts.length << 1);
+			ensureCapacity(bts.length);
+			System.arraycopy(bts, 0, buffer, size, bts.length);
+			size += bts.length;
+		}
+	}
+
+	private String readString(byte[] r, int[] pos) {
+		int code = readVarint(r, pos);
+		if ((code & 1) == 1) {
+			return strings.get(code >>> 1);
+		}
+		int len = code >>> 1;
+		String s;
+		try {
+			s = new String(r, pos[0], len, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+		pos[0] += len;
+		return s;
+	}
+
+	private void ensureCapacity(int add) {
+		if (size + add > buffer.length) {
+			byte[] nb = new byte[Math.max(buffer.length * 2, size + add)];
+			System.arraycopy(buffer, 0, nb, 0, size);
+			buffer = nb;
+		}
+	}
+
+	private void writeByte(int b) {
+		ensureCapacity(1);
+		buffer[size++] = (byte) b;
+	}
+
+	private void writeVarint(int value) {
+		while ((value & ~0x7F) != 0) {
+			writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		writeByte(value);
+	}
+
+	private static int readVarint(byte[] r, int[] pos) {
+		int result = 0;
+		int shift = 0;
+		while (true) {
+			byte b = r[pos[0]++];
+			result |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return result;
+			}
+			shift += 7;
 		}
-		propogatedTags.get(id).put(t, value);
 	}
 	
 	
@@ -119,14 +295,14 @@ public class TagsTransformer {
 		for(String l : ls) {
 			set.add(l.trim());
 		}
-		String r = "";
+		StringBuilder r = new StringBuilder();
 		for(String a : set) {
 			if(r.length() > 0) {
-				r += SPLIT_VALUE;
+				r.append(SPLIT_VALUE);
 			}
-			r+= a;
+			r.append(a);
 		}
-		return r;
+		return r.toString();
 	}
 
 	
@@ -33,19 +33,32 @@ public class MapRenderingTypesEncoder extends MapRenderingTypes {
 	// stored information to convert from osm tags to int type
 	private List<MapRouteTag> routeTags = new ArrayList<MapRouteTag>();
 	private Map<String, List<EntityConvert>> convertTags = new HashMap<String, List<EntityConvert>>();
+	// compiled convertTags for every pattern and application type
+	private volatile List<Map<String, KeyConverts>> compiledConverts;
 	private MapRulType coastlineRuleType;
 	private String regionName;
+	private final String fileName;
+	private final String originalRegionName;
 	public static final String OSMAND_REGION_NAME_TAG = "osmand_region_name";
 
 
 	public MapRenderingTypesEncoder(String fileName, String regionName) {
 		super(fileName != null && fileName.length() == 0 ? null : fileName);
+		this.fileName = fileName;
+		this.originalRegionName = regionName;
 		this.regionName = "$" + regionName.toLowerCase() + "^";
 	}
 
 	public MapRenderingTypesEncoder(String regionName) {
-		super(null);
-		this.regionName = "$" + regionName.toLowerCase() + "^";
+		this(null, regionName);
+	}
+
+	/**
+	 * Encoder registers types while index is created, so every index created in parallel needs its own one
+	 * @return new encoder with the same rules and without registered types
+	 */
+	public MapRenderingTypesEncoder newInstance() {
+		return new MapRenderingTypesEncoder(fileName, originalRegionName);
 	}
 
 
@@ -184,6 +197,7 @@ public class MapRenderingTypesEncoder extends MapRenderingTypes {
 					convertTags.put(ec.fromTag.tag, new ArrayList<MapRenderingTypesEncoder.EntityConvert>());
 				}
 				convertTags.get(ec.fromTag.tag).add(ec);
+				compiledConverts = null;
 			}
 			String appTo = mp.get("apply_to"); //$NON-NLS-1$
 			if (appTo != null) {
@@ -597,51 +611,139 @@ public class MapRenderingTypesEncoder extends MapRenderingTypes {
 
 	protected List<EntityConvert> getApplicableConverts(Map<String, String> tags, EntityType entity,
 			EntityConvertType filter, EntityConvertApplyType appFilter) {
+		Map<String, KeyConverts> converts = getCompiledConverts(filter, appFilter);
 		List<EntityConvert> listToConvert = null;
-		for(Map.Entry<String, String> e : tags.entrySet()) {
-			List<EntityConvert> list = convertTags.get(e.getKey());
-			if (list != null) {
-				for (EntityConvert ec : list) {
-					if (checkConvertValue(ec.fromTag, e.getValue())) {
-						String verbose = null;
-						if(ec.verbose) {
-							verbose = "Apply entity convert from '"+ec.fromTag+"' to " + tags + " in " +
-									appFilter;
+		for (Map.Entry<String, String> e : tags.entrySet()) {
+			KeyConverts kc = converts.get(e.getKey());
+			if (kc == null || e.getValue() == null) {
+				continue;
+			}
+			ConvertRule[] value = kc.byValue == null ? null : kc.byValue.get(lowerCase(e.getValue()));
+			ConvertRule[] any = kc.anyValue;
+			int vi = 0;
+			int ai = 0;
+			int vl = value == null ? 0 : value.length;
+			int al = any == null ? 0 : any.length;
+			// rules are checked in the order of declaration
+			while (vi < vl || ai < al) {
+				ConvertRule r;
+				if (ai >= al || (vi < vl && value[vi].order < any[ai].order)) {
+					r = value[vi++];
+				} else {
+					r = any[ai++];
+				}
+				EntityConvert ec = r.ec;
+				boolean applicable = ec.type == filter && ec.applyToType.contains(appFilter)
+						&& r.matches(tags, entity, regionName);
+				if (applicable) {
+					if (listToConvert == null) {
+						listToConvert = new ArrayList<EntityConvert>();
+					}
+					listToConvert.add(ec);
+				}
+				if (ec.verbose) {
+					logVerboseConvert(r, tags, entity, filter, appFilter, applicable);
+				}
+			}
+		}
+		return listToConvert;
+	}
+
+	private void logVerboseConvert(ConvertRule r, Map<String, String> tags, EntityType entity,
+			EntityConvertType filter, EntityConvertApplyType appFilter, boolean applicable) {
+		EntityConvert ec = r.ec;
+		String verbose = "Apply entity convert from '" + ec.fromTag + "' to " + tags + " in " + appFilter;
+		if (applicable) {
+			verbose += " - has succeeded";
+		} else {
+			verbose += " - has failed due to ";
+			if (!r.matches(tags, entity, regionName)) {
+				verbose += "if conditions;";
+			}
+			if (ec.type != filter) {
+				verbose += " transform " + filter + "!= " + ec.type + ";";
+			}
+			if (!ec.applyToType.contains(appFilter)) {
+				verbose += " appFilter " + appFilter + ";";
+			}
+		}
+		log.info(verbose);
+	}
+
+	private Map<String, KeyConverts> getCompiledConverts(EntityConvertType filter, EntityConvertApplyType appFilter) {
+		List<Map<String, KeyConverts>> c = compiledConverts;
+		if (c == null) {
+			c = compileConverts();
+		}
+		return c.get(filter.ordinal() * EntityConvertApplyType.values().length + appFilter.ordinal());
+	}
+
+	/**
+	 * Builds dispatch table by tag and lowercased value for every pattern and application type,
+	 * verbose converts are kept in all tables to log why they are not applied.
+	 */
+	private synchronized List<Map<String, KeyConverts>> compileConverts() {
+		if (compiledConverts != null) {
+			return compiledConverts;
+		}
+		List<Map<String, KeyConverts>> c = new ArrayList<Map<String, KeyConverts>>();
+		for (EntityConvertType filter : EntityConvertType.values()) {
+			for (EntityConvertApplyType appFilter : EntityConvertApplyType.values()) {
+				Map<String, KeyConverts> converts = new HashMap<String, KeyConverts>();
+				for (Map.Entry<String, List<EntityConvert>> e : convertTags.entrySet()) {
+					Map<String, List<ConvertRule>> byValue = new HashMap<String, List<ConvertRule>>();
+					List<ConvertRule> anyValue = new ArrayList<ConvertRule>();
+					int order = 0;
+					for (EntityConvert ec : e.getValue()) {
+						order++;
+						if (!ec.verbose && (ec.type != filter || !ec.applyToType.contains(appFilter))) {
+							continue;
 						}
-						if (checkConvert(tags, ec, entity) && ec.type == filter &&
-								ec.applyToType.contains(appFilter)) {
-							if (listToConvert == null) {
-								listToConvert = new ArrayList<EntityConvert>();
-							}
-							listToConvert.add(ec);
-							if (verbose != null) {
-								verbose += " - has succeeded";
-							}
+						ConvertRule r = new ConvertRule(ec, order);
+						if (ec.fromTag.value == null) {
+							anyValue.add(r);
 						} else {
-							if (verbose != null) {
-								verbose += " - has failed due to ";
-								if(!checkConvert(tags, ec, entity)) {
-									verbose += "if conditions;";
-								}
-								if(ec.type != filter ) {
-									verbose += " transform " + filter + "!= " + ec.type + ";";
-								}
-								if(!ec.applyToType.contains(appFilter)) {
-									verbose += " appFilter "+appFilter+";";
-								}
-
+							String vl = ec.fromTag.value.toLowerCase();
+							if (!byValue.containsKey(vl)) {
+								byValue.put(vl, new ArrayList<ConvertRule>());
 							}
+							byValue.get(vl).add(r);
 						}
-						if(verbose != null) {
-							log.info(verbose);
+					}
+					if (byValue.isEmpty() && anyValue.isEmpty()) {
+						continue;
+					}
+					KeyConverts kc = new KeyConverts();
+					if (!anyValue.isEmpty()) {
+						kc.anyValue = anyValue.toArray(new ConvertRule[anyValue.size()]);
+					}
+					if (!byValue.isEmpty()) {
+						kc.byValue = new HashMap<String, ConvertRule[]>();
+						for (Map.Entry<String, List<ConvertRule>> v : byValue.entrySet()) {
+							kc.byValue.put(v.getKey(), v.getValue().toArray(new ConvertRule[v.getValue().size()]));
 						}
 					}
+					converts.put(e.getKey(), kc);
 				}
+				c.add(converts);
 			}
 		}
-		return listToConvert;
+		compiledConverts = c;
+		return c;
 	}
 
+	/**
+	 * @return lowercased string, the same instance if it doesn't contain upper case letters
+	 */
+	private static String lowerCase(String s) {
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if ((c >= 'A' && c <= 'Z') || c > 127) {
+				return s.toLowerCase();
+			}
+		}
+		return s;
+	}
 
 
 	private void applyTagTransforms(Map<String, String> tags, EntityConvert ec, EntityType entity,
@@ -694,151 +796,121 @@ public class MapRenderingTypesEncoder extends MapRenderingTypes {
 	}
 
 
-	protected boolean checkConvert(Map<String, String> tags, EntityConvert ec, EntityType entity) {
-		if(ec.applyTo != null) {
-			if(!ec.applyTo.contains(entity)) {
-				return false;
-			}
-		}
-		boolean empty = ec.ifRegionName.isEmpty();
-		if (!empty) {
-			boolean found = false;
-			String rg = tags.get(OSMAND_REGION_NAME_TAG);
-			if(Algorithms.isEmpty(rg)) {
-				rg = regionName;
-			} else {
-				rg = "$" + rg + "^";
-			}
-			for (String s : ec.ifRegionName) {
-				if (rg.contains(s)) {
-					found = true;
-					break;
-				}
-			}
-			if (!found) {
-				return false;
-			}
-		}
-		for (String s : ec.ifNotRegionName) {
-			String rg = tags.get(OSMAND_REGION_NAME_TAG);
-			if(Algorithms.isEmpty(rg)) {
-				rg = regionName;
-			} else {
-				rg = "$" + rg + "^";
-			}
-			if (rg.contains(s)) {
-				return false;
-			}
-		}
-		for(TagValuePattern ift : ec.ifTags) {
-			String val = tags.get(ift.tag);
-			if(!checkConvertValue(ift, val)) {
-				return false;
-			}
-		}
-		for(TagValuePattern ift : ec.ifNotTags) {
-			String val = tags.get(ift.tag);
-			if(checkConvertValue(ift, val)) {
-				return false;
-			}
-		}
-		for(TagValuePattern ift : ec.ifStartsTags) {
-			String val = tags.get(ift.tag);
-			if(!checkStartsWithValue(ift, val)) {
-				return false;
-			}
-		}
-		for(TagValuePattern ift : ec.ifNotStartsTags) {
-			String val = tags.get(ift.tag);
-			if(checkStartsWithValue(ift, val)) {
-				return false;
-			}
-		}
+	private static class KeyConverts {
+		Map<String, ConvertRule[]> byValue;
+		ConvertRule[] anyValue;
+	}
 
-		for(TagValuePattern ift : ec.ifEndsTags) {
-			String val = tags.get(ift.tag);
-			if(!checkEndsWithValue(ift, val)) {
-				return false;
-			}
-		}
-		for(TagValuePattern ift : ec.ifNotEndsTags) {
-			String val = tags.get(ift.tag);
-			if(checkEndsWithValue(ift, val)) {
-				return false;
-			}
-		}
-		for(TagValuePattern ift : ec.ifContainsTags) {
-			String val = tags.get(ift.tag);
-			if(!checkContainsValue(ift, val)) {
+	/**
+	 * Entity convert with conditions prepared to be checked without string conversions
+	 */
+	private static class ConvertRule {
+		final EntityConvert ec;
+		final int order;
+		final TagCondition[] conditions;
+
+		ConvertRule(EntityConvert ec, int order) {
+			this.ec = ec;
+			this.order = order;
+			List<TagCondition> list = new ArrayList<TagCondition>();
+			TagCondition.add(list, ec.ifTags, TagCondition.EQUALS, false);
+			TagCondition.add(list, ec.ifNotTags, TagCondition.EQUALS, true);
+			TagCondition.add(list, ec.ifStartsTags, TagCondition.STARTS, false);
+			TagCondition.add(list, ec.ifNotStartsTags, TagCondition.STARTS, true);
+			TagCondition.add(list, ec.ifEndsTags, TagCondition.ENDS, false);
+			TagCondition.add(list, ec.ifNotEndsTags, TagCondition.ENDS, true);
+			TagCondition.add(list, ec.ifContainsTags, TagCondition.CONTAINS, false);
+			TagCondition.add(list, ec.ifNotContainsTags, TagCondition.CONTAINS, true);
+			TagCondition.add(list, ec.ifTagsNotLess, TagCondition.LESS, true);
+			TagCondition.add(list, ec.ifTagsLess, TagCondition.LESS, false);
+			conditions = list.toArray(new TagCondition[list.size()]);
+		}
+
+		boolean matches(Map<String, String> tags, EntityType entity, String regionName) {
+			if (ec.applyTo != null && !ec.applyTo.contains(entity)) {
 				return false;
 			}
-		}
-		for(TagValuePattern ift : ec.ifNotContainsTags) {
-			String val = tags.get(ift.tag);
-			if(checkContainsValue(ift, val)) {
-				return false;
-			}
-		}
-		for(TagValuePattern ift : ec.ifTagsNotLess) {
-			String val = tags.get(ift.tag);
-			double nt = Double.parseDouble(ift.value);
-			long vl = Algorithms.parseLongSilently(val, 0);
-			if(vl < nt) {
-				return false;
+			if (!ec.ifRegionName.isEmpty() || !ec.ifNotRegionName.isEmpty()) {
+				String rg = tags.get(OSMAND_REGION_NAME_TAG);
+				if (Algorithms.isEmpty(rg)) {
+					rg = regionName;
+				} else {
+					rg = "$" + rg + "^";
+				}
+				if (!ec.ifRegionName.isEmpty()) {
+					boolean found = false;
+					for (String s : ec.ifRegionName) {
+						if (rg.contains(s)) {
+							found = true;
+							break;
+						}
+					}
+					if (!found) {
+						return false;
+					}
+				}
+				for (String s : ec.ifNotRegionName) {
+					if (rg.contains(s)) {
+						return false;
+					}
+				}
 			}
-		}
-		for(TagValuePattern ift : ec.ifTagsLess) {
-			String val = tags.get(ift.tag);
-			double nt = Double.parseDouble(ift.value);
-			long vl = Algorithms.parseLongSilently(val, 0);
-			if(vl >= nt) {
-				return false;
+			for (TagCondition c : conditions) {
+				if (!c.matches(tags.get(c.tag))) {
+					return false;
+				}
 			}
-		}
-		return true;
-	}
-
-
-
-	private boolean checkConvertValue(TagValuePattern fromTag, String value) {
-		if(value == null ) {
-			return false;
-		}
-		if(fromTag.value == null) {
-			return true;
-		}
-		return fromTag.value.toLowerCase().equals(value.toLowerCase());
-	}
-
-	private boolean checkStartsWithValue(TagValuePattern fromTag, String value) {
-		if(value == null) {
-			return false;
-		}
-		if(fromTag.value == null) {
 			return true;
 		}
-		return value.toLowerCase().startsWith(fromTag.value.toLowerCase());
 	}
 
-
-	private boolean checkContainsValue(TagValuePattern fromTag, String value) {
-		if(value == null) {
-			return false;
-		}
-		if(fromTag.value == null) {
-			return true;
-		}
-		return value.toLowerCase().contains(fromTag.value.toLowerCase());
-	}
-
-	private boolean checkEndsWithValue(TagValuePattern fromTag, String value) {
-		if(value == null) {
-			return false;
-		}
-		if(fromTag.value == null) {
-			return true;
+	private static class TagCondition {
+		static final int EQUALS = 0;
+		static final int STARTS = 1;
+		static final int ENDS = 2;
+		static final int CONTAINS = 3;
+		static final int LESS = 4;
+
+		final String tag;
+		// lowercased
+		final String value;
+		final double number;
+		final int type;
+		final boolean not;
+
+		TagCondition(TagValuePattern p, int type, boolean not) {
+			this.tag = p.tag;
+			this.type = type;
+			this.not = not;
+			this.value = p.value == null ? null : p.value.toLowerCase();
+			this.number = type == LESS ? Double.parseDouble(p.value) : 0;
+		}
+
+		static void add(List<TagCondition> list, List<TagValuePattern> patterns, int type, boolean not) {
+			for (TagValuePattern p : patterns) {
+				list.add(new TagCondition(p, type, not));
+			}
+		}
+
+		boolean matches(String val) {
+			boolean res;
+			if (type == LESS) {
+				res = Algorithms.parseLongSilently(val, 0) < number;
+			} else if (val == null) {
+				res = false;
+			} else if (value == null) {
+				res = true;
+			} else if (type == EQUALS) {
+				res = value.equals(lowerCase(val));
+			} else if (type == STARTS) {
+				res = lowerCase(val).startsWith(value);
+			} else if (type == ENDS) {
+				res = lowerCase(val).endsWith(value);
+			} else {
+				res = lowerCase(val).contains(value);
+			}
+			return not ? !res : res;
 		}
-		return value.toLowerCase().endsWith(fromTag.value.toLowerCase());
 	}
 
 
@@ -0,0 +1,19 @@
+package net.osmand.osm.io;
+
+/**
+ * Receives dense nodes of pbf file as primitives before Node entity is created for them.
+ */
+public interface IOsmDenseNodeFilter {
+
+	// coordinates are passed as integers with this precision
+	public static final double COORDINATES_PRECISION = 1e7;
+
+	/**
+	 * @param lat latitude * {@link #COORDINATES_PRECISION}
+	 * @param lon longitude * {@link #COORDINATES_PRECISION}
+	 * @param tags reused buffer of key, value pairs (valid only during the call)
+	 * @param tagsLength number of used elements in tags buffer (0 for node without tags)
+	 * @return true if node is consumed and shouldn't be created and passed to storage filters
+	 */
+	public boolean consumeDenseNode(long id, int lat, int lon, String[] tags, int tagsLength);
+}
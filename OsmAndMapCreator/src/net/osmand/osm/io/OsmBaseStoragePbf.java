@@ -1,9 +1,14 @@
 package net.osmand.osm.io;
 
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TLongArrayList;
+
 import java.io.IOException;
 import java.io.InputStream;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 
@@ -21,201 +26,368 @@ import crosby.binary.Osmformat.HeaderBlock;
 import crosby.binary.Osmformat.Info;
 import crosby.binary.Osmformat.Relation.MemberType;
 import crosby.binary.file.BlockInputStream;
+import crosby.binary.file.FileBlock;
+import crosby.binary.file.FileBlockPosition;
+import crosby.binary.file.ParallelBlockInputStream;
 
 public class OsmBaseStoragePbf extends OsmBaseStorage {
 
+	private int decodingThreads = 1;
+	private IOsmDenseNodeFilter denseNodeFilter;
+
+	public int getDecodingThreads() {
+		return decodingThreads;
+	}
+
+	/**
+	 * Number of threads to inflate and decode pbf blocks (entities are passed to filters in file order anyway)
+	 */
+	public void setDecodingThreads(int decodingThreads) {
+		this.decodingThreads = decodingThreads;
+	}
+
+	public IOsmDenseNodeFilter getDenseNodeFilter() {
+		return denseNodeFilter;
+	}
+
+	/**
+	 * Filter receives dense nodes before Node entities are created, consumed nodes are not passed to storage filters
+	 */
+	public void setDenseNodeFilter(IOsmDenseNodeFilter denseNodeFilter) {
+		this.denseNodeFilter = denseNodeFilter;
+	}
+
 	public synchronized void parseOSMPbf(final InputStream stream, final IProgress progress, final boolean entityInfo) throws IOException {
-		BinaryParser parser = new BinaryParser() {
-			public void updateProgress(int count) {
-				progressEntity += count;
-				if (progress != null && progressEntity > moduleProgress && !progress.isIndeterminate()) {
-					try {
-						progressEntity = 0;
-						progress.remaining(stream.available());
-					} catch (IOException e) {
-						progress.startWork(-1);
-					}
+		this.progressEntity = 0;
+		this.entities.clear();
+		this.entityInfo.clear();
+		if(progress != null){
+			progress.startWork(stream.available());
+		}
+
+		if (decodingThreads > 1) {
+			ParallelBlockInputStream<ParsedBlock> bis = new ParallelBlockInputStream<ParsedBlock>(stream,
+					decodingThreads, new ParallelBlockInputStream.BlockDecoder<ParsedBlock>() {
+
+						@Override
+						public boolean skipBlock(FileBlockPosition block) {
+							return !block.getType().equals("OSMData") && !block.getType().equals("OSMHeader");
+						}
+
+						@Override
+						public ParsedBlock decode(FileBlock block) throws IOException {
+							final ParsedBlock parsed = new ParsedBlock();
+							new EntityBlockParser(entityInfo) {
+								@Override
+								protected void registerEntity(EntityType type, Entity e, EntityInfo info) {
+									parsed.add(type, e, info);
+								}
+
+								@Override
+								protected void registerDenseNode(long id, int lat, int lon, String[] tags, int tagsLength,
+										EntityInfo info) {
+									parsed.addDenseNode(id, lat, lon, tags, tagsLength, info);
+								}
+							}.handleBlock(block);
+							return parsed;
+						}
+					}, new ParallelBlockInputStream.DecodedBlockHandler<ParsedBlock>() {
+						private String[] tagsBuffer = new String[16];
+
+						@Override
+						public void handleBlock(ParsedBlock parsed) throws IOException {
+							int sz = parsed.entities.size();
+							int dense = 0;
+							int tagsStart = 0;
+							for (int i = 0; i < sz; i++) {
+								Entity e = parsed.entities.get(i);
+								if (e != null) {
+									registerEntity(parsed.types.get(i), e, parsed.infos.get(i));
+									continue;
+								}
+								// dense node is kept as primitives
+								int tagsEnd = parsed.denseTagsEnd.get(dense);
+								int tagsLength = tagsEnd - tagsStart;
+								if (tagsLength > tagsBuffer.length) {
+									tagsBuffer = new String[tagsLength];
+								}
+								for (int j = 0; j < tagsLength; j++) {
+									tagsBuffer[j] = parsed.denseTags.get(tagsStart + j);
+								}
+								registerDenseNode(parsed.denseIds.get(dense), parsed.denseCoordinates.get(2 * dense),
+										parsed.denseCoordinates.get(2 * dense + 1), tagsBuffer, tagsLength,
+										parsed.infos.get(i));
+								tagsStart = tagsEnd;
+								dense++;
+							}
+							updateProgress(stream, progress, sz);
+						}
+					});
+			bis.process();
+		} else {
+			BinaryParser parser = new EntityBlockParser(entityInfo) {
+
+				@Override
+				protected void updateProgress(int count) {
+					OsmBaseStoragePbf.this.updateProgress(stream, progress, count);
 				}
-			}
 
-			public void registerEntity(EntityType type, Entity e, EntityInfo info) {
-				EntityId entityId = new EntityId(type, e.getId());
-				if (acceptEntityToLoad(entityId, e)) {
-					Entity oldEntity = entities.put(entityId, e);
-					if (info != null) {
-						OsmBaseStoragePbf.this.entityInfo.put(entityId, info);
-					}
-					if (!supressWarnings && oldEntity != null) {
-						throw new UnsupportedOperationException("Entity with id=" + oldEntity.getId() + " is duplicated in osm map"); //$NON-NLS-1$ //$NON-NLS-2$
-					}
+				@Override
+				protected void registerEntity(EntityType type, Entity e, EntityInfo info) {
+					OsmBaseStoragePbf.this.registerEntity(type, e, info);
 				}
+
+				@Override
+				protected void registerDenseNode(long id, int lat, int lon, String[] tags, int tagsLength,
+						EntityInfo info) {
+					OsmBaseStoragePbf.this.registerDenseNode(id, lat, lon, tags, tagsLength, info);
+				}
+			};
+			BlockInputStream bis = new BlockInputStream(stream, parser);
+			bis.process();
+		}
+
+		if(progress != null){
+			progress.finishTask();
+		}
+		completeReading();
+	}
+
+	private void updateProgress(InputStream stream, IProgress progress, int count) {
+		progressEntity += count;
+		if (progress != null && progressEntity > moduleProgress && !progress.isIndeterminate()) {
+			try {
+				progressEntity = 0;
+				progress.remaining(stream.available());
+			} catch (IOException e) {
+				progress.startWork(-1);
 			}
+		}
+	}
 
-			@Override
-			protected void parse(HeaderBlock header) {
+	private void registerEntity(EntityType type, Entity e, EntityInfo info) {
+		EntityId entityId = new EntityId(type, e.getId());
+		if (acceptEntityToLoad(entityId, e)) {
+			Entity oldEntity = entities.put(entityId, e);
+			if (info != null) {
+				this.entityInfo.put(entityId, info);
 			}
+			if (!supressWarnings && oldEntity != null) {
+				throw new UnsupportedOperationException("Entity with id=" + oldEntity.getId() + " is duplicated in osm map"); //$NON-NLS-1$ //$NON-NLS-2$
+			}
+		}
+	}
 
-			private DateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'"); //$NON-NLS-1$
+	private void registerDenseNode(long id, int lat, int lon, String[] tags, int tagsLength, EntityInfo info) {
+		if (denseNodeFilter != null && denseNodeFilter.consumeDenseNode(id, lat, lon, tags, tagsLength)) {
+			return;
+		}
+		Node node = new Node(lat / IOsmDenseNodeFilter.COORDINATES_PRECISION,
+				lon / IOsmDenseNodeFilter.COORDINATES_PRECISION, id);
+		for (int i = 0; i < tagsLength; i += 2) {
+			node.putTag(tags[i], tags[i + 1]);
+		}
+		registerEntity(EntityType.NODE, node, info);
+	}
 
-			@Override
-			protected void parseDense(DenseNodes n) {
-				EntityInfo info = null;
-				long changeset = 0;
-				long timestamp = 0;
-				int uid = 0;
-				int user = 0;
-				long id = 0;
-				long lat = 0;
-				long lon = 0;
-				int keyInd = 0;
-				boolean tagsEmpty = n.getKeysValsCount() == 0;
-				for (int i = 0; i < n.getIdCount(); i++) {
-					id += n.getId(i);
-					lat += n.getLat(i);
-					lon += n.getLon(i);
-					Node node = new Node(parseLat(lat), parseLon(lon), id);
-
-					if (entityInfo && n.getDenseinfo() != null) {
-						info = new EntityInfo();
-						changeset += n.getDenseinfo().getChangeset(i);
-						timestamp += n.getDenseinfo().getTimestamp(i);
-						uid += n.getDenseinfo().getUid(i);
-						user += n.getDenseinfo().getUserSid(i);
-						info.setChangeset(String.valueOf(changeset)); //$NON-NLS-1$
-						info.setTimestamp(format.format(new Date(date_granularity * (timestamp))));
-						info.setUser(getStringById(user));
-						info.setUid(String.valueOf(uid)); //$NON-NLS-1$
-						info.setVersion(String.valueOf(n.getDenseinfo().getVersion(i))); //$NON-NLS-1$
-						info.setVisible("true"); //$NON-NLS-1$
-					}
-					if (!tagsEmpty) {
-						while (n.getKeysVals(keyInd) != 0) {
-							String key = getStringById(n.getKeysVals(keyInd));
-							String val = getStringById(n.getKeysVals(keyInd + 1));
-							node.putTag(key, val);
-							keyInd += 2;
-						}
-						keyInd++;
-					}
-					registerEntity(EntityType.NODE, node, info);
-				}
-				updateProgress(n.getIdCount());
-			}
+	private static class ParsedBlock {
+		private final List<EntityType> types = new ArrayList<EntityType>();
+		private final List<Entity> entities = new ArrayList<Entity>();
+		private final List<EntityInfo> infos = new ArrayList<EntityInfo>();
+		// dense nodes (null in entities list)
+		private final TLongArrayList denseIds = new TLongArrayList();
+		private final TIntArrayList denseCoordinates = new TIntArrayList();
+		private final TIntArrayList denseTagsEnd = new TIntArrayList();
+		private final List<String> denseTags = new ArrayList<String>();
+
+		public void add(EntityType type, Entity e, EntityInfo info) {
+			types.add(type);
+			entities.add(e);
+			infos.add(info);
+		}
 
-			protected EntityInfo parseEntityInfo(Info i) {
-				EntityInfo info = new EntityInfo();
-				info.setChangeset(String.valueOf(i.getChangeset())); //$NON-NLS-1$
-				info.setTimestamp(format.format(getDate(i)));
-				info.setUser(getStringById(i.getUserSid()));
-				info.setUid(String.valueOf(i.getUid())); //$NON-NLS-1$
-				info.setVersion(String.valueOf(i.getVersion())); //$NON-NLS-1$
-				info.setVisible("true"); //$NON-NLS-1$
-				return info;
+		public void addDenseNode(long id, int lat, int lon, String[] tags, int tagsLength, EntityInfo info) {
+			add(EntityType.NODE, null, info);
+			denseIds.add(id);
+			denseCoordinates.add(lat);
+			denseCoordinates.add(lon);
+			for (int i = 0; i < tagsLength; i++) {
+				denseTags.add(tags[i]);
 			}
+			denseTagsEnd.add(denseTags.size());
+		}
+	}
 
-			@Override
-			protected void parseNodes(List<crosby.binary.Osmformat.Node> n) {
-				EntityInfo info = null;
-				int nsize = n.size();
-				for (int i = 0; i < nsize; i++) {
-					crosby.binary.Osmformat.Node nod = n.get(i);
-					Node e = new Node(parseLat(nod.getLat()), parseLon(nod.getLon()), nod.getId());
-					for (int j = 0; j < nod.getKeysCount(); j++) {
-						String key = getStringById(nod.getKeys(j));
-						String val = getStringById(nod.getVals(j));
-						e.putTag(key, val);
-					}
-					if (entityInfo) {
-						info = parseEntityInfo(nod.getInfo());
+	private static abstract class EntityBlockParser extends BinaryParser {
+		private final boolean entityInfo;
+
+		public EntityBlockParser(boolean entityInfo) {
+			this.entityInfo = entityInfo;
+		}
+
+		private String[] tagsBuffer = new String[16];
+
+		protected abstract void registerEntity(EntityType type, Entity e, EntityInfo info);
+
+		protected abstract void registerDenseNode(long id, int lat, int lon, String[] tags, int tagsLength,
+				EntityInfo info);
+
+		protected void updateProgress(int count) {
+		}
+
+		@Override
+		protected void parse(HeaderBlock header) {
+		}
+
+		private DateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'"); //$NON-NLS-1$
+
+		@Override
+		protected void parseDense(DenseNodes n) {
+			EntityInfo info = null;
+			long changeset = 0;
+			long timestamp = 0;
+			int uid = 0;
+			int user = 0;
+			long id = 0;
+			long lat = 0;
+			long lon = 0;
+			int keyInd = 0;
+			boolean tagsEmpty = n.getKeysValsCount() == 0;
+			for (int i = 0; i < n.getIdCount(); i++) {
+				id += n.getId(i);
+				lat += n.getLat(i);
+				lon += n.getLon(i);
+
+				if (entityInfo && n.getDenseinfo() != null) {
+					info = new EntityInfo();
+					changeset += n.getDenseinfo().getChangeset(i);
+					timestamp += n.getDenseinfo().getTimestamp(i);
+					uid += n.getDenseinfo().getUid(i);
+					user += n.getDenseinfo().getUserSid(i);
+					info.setChangeset(String.valueOf(changeset)); //$NON-NLS-1$
+					info.setTimestamp(format.format(new Date(date_granularity * (timestamp))));
+					info.setUser(getStringById(user));
+					info.setUid(String.valueOf(uid)); //$NON-NLS-1$
+					info.setVersion(String.valueOf(n.getDenseinfo().getVersion(i))); //$NON-NLS-1$
+					info.setVisible("true"); //$NON-NLS-1$
+				}
+				int tagsLength = 0;
+				if (!tagsEmpty) {
+					while (n.getKeysVals(keyInd) != 0) {
+						if (tagsLength + 2 > tagsBuffer.length) {
+							tagsBuffer = Arrays.copyOf(tagsBuffer, tagsBuffer.length * 2);
+						}
+						tagsBuffer[tagsLength++] = getStringById(n.getKeysVals(keyInd));
+						tagsBuffer[tagsLength++] = getStringById(n.getKeysVals(keyInd + 1));
+						keyInd += 2;
 					}
-					registerEntity(EntityType.NODE, e, info);
+					keyInd++;
 				}
-				updateProgress(nsize);
+				registerDenseNode(id, (int) Math.round(parseLat(lat) * IOsmDenseNodeFilter.COORDINATES_PRECISION),
+						(int) Math.round(parseLon(lon) * IOsmDenseNodeFilter.COORDINATES_PRECISION), tagsBuffer,
+						tagsLength, info);
 			}
+			updateProgress(n.getIdCount());
+		}
 
-			@Override
-			protected void parseRelations(List<crosby.binary.Osmformat.Relation> r) {
-				EntityInfo info = null;
-				int rsize = r.size();
-				for (int i = 0; i < rsize; i++) {
-					crosby.binary.Osmformat.Relation rel = r.get(i);
-					Relation e = new Relation(rel.getId());
-					long id = 0;
-					for (int j = 0; j < rel.getMemidsCount(); j++) {
-						id += rel.getMemids(j);
-						String role = getStringById(rel.getRolesSid(j));
-						MemberType t = rel.getTypes(j);
-						EntityType ts = EntityType.NODE;
-						switch (t) {
-						case NODE:
-							ts = EntityType.NODE;
-							break;
-						case WAY:
-							ts = EntityType.WAY;
-							break;
-						case RELATION:
-							ts = EntityType.RELATION;
-							break;
-						}
-						e.addMember(id, ts, role);
-					}
-					for (int j = 0; j < rel.getKeysCount(); j++) {
-						String key = getStringById(rel.getKeys(j));
-						String val = getStringById(rel.getVals(j));
-						e.putTag(key, val);
-					}
-					if (entityInfo) {
-						info = parseEntityInfo(rel.getInfo());
-					}
-					registerEntity(EntityType.RELATION, e, info);
+		protected EntityInfo parseEntityInfo(Info i) {
+			EntityInfo info = new EntityInfo();
+			info.setChangeset(String.valueOf(i.getChangeset())); //$NON-NLS-1$
+			info.setTimestamp(format.format(getDate(i)));
+			info.setUser(getStringById(i.getUserSid()));
+			info.setUid(String.valueOf(i.getUid())); //$NON-NLS-1$
+			info.setVersion(String.valueOf(i.getVersion())); //$NON-NLS-1$
+			info.setVisible("true"); //$NON-NLS-1$
+			return info;
+		}
+
+		@Override
+		protected void parseNodes(List<crosby.binary.Osmformat.Node> n) {
+			EntityInfo info = null;
+			int nsize = n.size();
+			for (int i = 0; i < nsize; i++) {
+				crosby.binary.Osmformat.Node nod = n.get(i);
+				Node e = new Node(parseLat(nod.getLat()), parseLon(nod.getLon()), nod.getId());
+				for (int j = 0; j < nod.getKeysCount(); j++) {
+					String key = getStringById(nod.getKeys(j));
+					String val = getStringById(nod.getVals(j));
+					e.putTag(key, val);
+				}
+				if (entityInfo) {
+					info = parseEntityInfo(nod.getInfo());
 				}
-				updateProgress(rsize);
+				registerEntity(EntityType.NODE, e, info);
 			}
+			updateProgress(nsize);
+		}
 
-			@Override
-			protected void parseWays(List<crosby.binary.Osmformat.Way> w) {
-				EntityInfo info = null;
-				int wsize = w.size();
-				for (int i = 0; i < wsize; i++) {
-					crosby.binary.Osmformat.Way way = w.get(i);
-					Way e = new Way(way.getId());
-					long id = 0;
-					for (int j = 0; j < way.getRefsCount(); j++) {
-						id += way.getRefs(j);
-						e.addNode(id);
-					}
-					for (int j = 0; j < way.getKeysCount(); j++) {
-						String key = getStringById(way.getKeys(j));
-						String val = getStringById(way.getVals(j));
-						e.putTag(key, val);
-					}
-					if (entityInfo) {
-						info = parseEntityInfo(way.getInfo());
+		@Override
+		protected void parseRelations(List<crosby.binary.Osmformat.Relation> r) {
+			EntityInfo info = null;
+			int rsize = r.size();
+			for (int i = 0; i < rsize; i++) {
+				crosby.binary.Osmformat.Relation rel = r.get(i);
+				Relation e = new Relation(rel.getId());
+				long id = 0;
+				for (int j = 0; j < rel.getMemidsCount(); j++) {
+					id += rel.getMemids(j);
+					String role = getStringById(rel.getRolesSid(j));
+					MemberType t = rel.getTypes(j);
+					EntityType ts = EntityType.NODE;
+					switch (t) {
+					case NODE:
+						ts = EntityType.NODE;
+						break;
+					case WAY:
+						ts = EntityType.WAY;
+						break;
+					case RELATION:
+						ts = EntityType.RELATION;
+						break;
 					}
-					registerEntity(EntityType.WAY, e, info);
+					e.addMember(id, ts, role);
+				}
+				for (int j = 0; j < rel.getKeysCount(); j++) {
+					String key = getStringById(rel.getKeys(j));
+					String val = getStringById(rel.getVals(j));
+					e.putTag(key, val);
 				}
-				updateProgress(wsize);
+				if (entityInfo) {
+					info = parseEntityInfo(rel.getInfo());
+				}
+				registerEntity(EntityType.RELATION, e, info);
 			}
+			updateProgress(rsize);
+		}
 
-			@Override
-			public void complete() {
+		@Override
+		protected void parseWays(List<crosby.binary.Osmformat.Way> w) {
+			EntityInfo info = null;
+			int wsize = w.size();
+			for (int i = 0; i < wsize; i++) {
+				crosby.binary.Osmformat.Way way = w.get(i);
+				Way e = new Way(way.getId());
+				long id = 0;
+				for (int j = 0; j < way.getRefsCount(); j++) {
+					id += way.getRefs(j);
+					e.addNode(id);
+				}
+				for (int j = 0; j < way.getKeysCount(); j++) {
+					String key = getStringById(way.getKeys(j));
+					String val = getStringById(way.getVals(j));
+					e.putTag(key, val);
+				}
+				if (entityInfo) {
+					info = parseEntityInfo(way.getInfo());
+				}
+				registerEntity(EntityType.WAY, e, info);
 			}
-
-		};
-
-		this.progressEntity = 0;
-		this.entities.clear();
-		this.entityInfo.clear();
-		if(progress != null){
-			progress.startWork(stream.available());
+			updateProgress(wsize);
 		}
 
-		BlockInputStream bis = new BlockInputStream(stream, parser);
-		bis.process();
-
-		if(progress != null){
-			progress.finishTask();
+		@Override
+		public void complete() {
 		}
-		completeReading();
+
 	}
 }
@@ -1,4 +1,4 @@
-//BufferHeader.java,CachedNodes.java
+//CachedNodes.java
 //
 //This library is free software; you can redistribute it and/or
 //modify it under the terms of the GNU Lesser General Public
@@ -12,294 +12,152 @@
 package rtree;
 //package rtree;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.io.*;
 import rtree.seeded.SdNode;
 /**
-   <b>A circular linked list of cached nodes using hashtable ?!!</b>
-   <p>This class will wrap a list of recently used nodes.
-   If the requested node is in <tt>Hashtable</tt> of the class then the node would
-   be returned from the <tt>Hashtable</tt>, else it would be read from the
-   disk.
-   <br>This will be a static object in the class RTree. Therefore no matter how
-   many RTree objects you create they all would have one cache for all the files
-   the object handles.
+   <b>Cache of recently used nodes.</b>
+   <p>If the requested node is in the cache of its file then the node would be returned from the
+   cache, else it would be read from the disk.
+   <br>Every rtree file has its own {@link NodeCache} of the configured capacity, so trees packed
+   in the same JVM do not evict each other's nodes. There is no global limit, memory used is bounded
+   by the number of files with cached nodes times their capacity, caches of released files are
+   dropped. Lookups are synchronized per cache segment only,
+   reading of a node from the disk is synchronized on the file.
+   <br>This will be a static object in the class RTree.
    TODO : keep a set that keeps all the nodes that are dirty. With each node registering themselves
    hara when thhey are dity, this is maageable.
    @author Prachuryya Barua
 */
-class BufferHeader
-{
-  int recent;//the most recently inserted node
-  int last;//the least recently inserted node
-  int size;//max size of the link list
-  Hashtable cache;
-  BufferHeader(int size,Hashtable ch)
-  {
-    this.cache = ch;
-    this.size = size;
-  }
-
-  void flush()
-    throws NodeWriteException
-  {
-    //if(!RTree.writeThr){
-    for (Iterator it = cache.values().iterator(); it.hasNext();){
-      NodeValue node = (NodeValue)it.next();
-      node.node.flush();
-    } // end of for (Iterator  = .iterator(); .hasNext();)
-    //}
-  }
-  /*for a fresh key when the array is not full.This will be called when the
-    buffer is not fully warm*/
-  void put(int key, Node node)
-  {
-    try{
-      //the following two conditions  happens in multithreaded programs
-      if(cache.containsKey(new Integer(key))){
-        update(key);
-        return;
-      }
-      if(cache.size() == size){
-        replace(key,node);
-        return;
-      }
-      if(cache.size() == 0){
-        last = key;
-        cache.put(new Integer(key), new NodeValue(node,key,key));
-      }else{
-        //remove recent
-        NodeValue tmpPrev = (NodeValue)(cache.remove(new Integer(recent)));
-        if(last == recent){//there is only one node in cache
-          cache.put(new Integer(key), new NodeValue(node,tmpPrev.next,tmpPrev.next));
-          cache.put(new Integer(recent), new NodeValue(tmpPrev.node,key,key));
-        }
-        else{
-          //remove next of previous
-          NodeValue tmpPNext = (NodeValue)(cache.remove(new Integer(tmpPrev.next)));
-          cache.put(new Integer(key), new NodeValue(node,tmpPrev.next,recent));
-          cache.put(new Integer(tmpPrev.next), new NodeValue(tmpPNext.node,tmpPNext.next,key));
-          cache.put(new Integer(recent), new NodeValue(tmpPrev.node,key,tmpPrev.prev));
-        }
-      }
-      recent = key;
-    }
-    catch(Exception e){
-      e.printStackTrace();
-    }
-  }
-  /*a new key in a filled array*/
-  void replace(int key,Node node)
-    throws NodeWriteException
-  {
-    try{
-      if(cache.containsKey(new Integer(key))){
-        update(key);
-        return;
-      }
-      if(cache.size() < size){
-        put(key,node);
-        return;
-      }
-      //remove the 'last' node
-      NodeValue lastNode = (NodeValue)(cache.remove(new Integer(last)));
-      lastNode.node.flush();
-      NodeValue pNode = (NodeValue)(cache.remove(new Integer(lastNode.prev)));
-      NodeValue nNode = (NodeValue)(cache.remove(new Integer(lastNode.next)));
-      //put back the three nodes
-      cache.put(new Integer(key), new NodeValue(node,lastNode.next, lastNode.prev));
-      cache.put(new Integer(lastNode.prev), new NodeValue(pNode.node,key,pNode.prev));
-      cache.put(new Integer(lastNode.next), new NodeValue(nNode.node,nNode.next,key));
-      recent = key;//this is the latest node
-      last = lastNode.next;//set the next in chain as the new 'last'
-
-    }
-    catch(Exception e){
-      e.printStackTrace();
-    }
-  }
-  /**make a node that is present as 'recent'*/
-  void update(int key)
-  {
-    try{
-      if(key != recent){
-        NodeValue node,nextNode,prevNode,rcntNode,lastNode;//temp variables
-        node = (NodeValue)(cache.remove(new Integer(key)));
-        if(node == null){//will not happen
-          System.out.println("CachedNodes.update: unlikely flow");
-          return;
-        }
-        if(key == last){
-          last = node.next;
-          cache.put(new Integer(key), new NodeValue(node.node, node.next, node.prev));
-        }
-        else{
-          //adjust next node and the recent node
-          nextNode = (NodeValue)(cache.remove(new Integer(node.next)));
-          if(recent != node.next){//if next node is not the recent node
-            rcntNode = (NodeValue)(cache.remove(new Integer(recent)));
-            rcntNode.next = key;
-            cache.put(new Integer(recent), new NodeValue(rcntNode.node, rcntNode.next,rcntNode.prev));
-          }
-          else{//next node is the recent node
-            nextNode.next = key;
-          }
-          cache.put(new Integer(node.next), new NodeValue(nextNode.node, nextNode.next,node.prev));
-
-          //adjust previous node and the last node - if unequal
-          prevNode = (NodeValue)(cache.remove(new Integer(node.prev)));
-          if(last != node.prev){//if last node is not the prev node
-            lastNode = (NodeValue)(cache.remove(new Integer(last)));
-            lastNode.prev = key;
-            cache.put(new Integer(last),new NodeValue(lastNode.node, lastNode.next,lastNode.prev));
-          }
-          else{//if the last node is the prev node.
-            prevNode.prev = key;
-          }
-          cache.put(new Integer(node.prev), new NodeValue(prevNode.node, node.next,prevNode.prev));
-
-          //put the new node
-          cache.put(new Integer(key), new NodeValue(node.node,last,recent));
-        }
-        //update local variables
-      }
-      recent = key;
-    }
-    catch(Exception e){
-      e.printStackTrace();
-    }
-  }
-  void remove(int key)
-    throws NodeWriteException
-  {
-    try{
-      NodeValue node = (NodeValue)(cache.remove(new Integer(key)));
-      if((cache.size() != 0) && (node != null)){
-        //if(!RTree.writeThr)
-        node.node.flush();
-        if(cache.size() == 1){
-          NodeValue oNode = (NodeValue)(cache.remove(new Integer(node.prev)));
-          cache.put(new Integer(node.prev), new NodeValue(oNode.node, node.prev,node.prev));
-          recent = last = node.prev;
-        }
-        else{
-          //if(!RTree.writeThr)
-          node.node.flush();
-          NodeValue pNode = (NodeValue)(cache.remove(new Integer(node.prev)));
-          NodeValue nNode = (NodeValue)(cache.remove(new Integer(node.next)));
-          cache.put(new Integer(node.prev), new NodeValue(pNode.node, node.next,pNode.prev));
-          cache.put(new Integer(node.next), new NodeValue(nNode.node, nNode.next,node.prev));
-          if(key == recent)
-            recent = node.prev;
-          if(key == last)
-            last = node.next;
-        }
-      }
-    }
-    catch(Exception e){
-      e.printStackTrace();
-    }
-  }
-  void reset()
-    throws NodeWriteException
-  {
-    //if(!RTree.writeThr)
-    flush();
-    cache.clear();
-  }
-}
 public class CachedNodes
 {
   private static final int NODE = 0;
   private static final int SDNODE = 1;
-  Hashtable cache;
-  BufferHeader buffHeader;
-  int size = Node.CACHE_SIZE;
+  private final Map<String, NodeCache> caches = new ConcurrentHashMap<String, NodeCache>();
+  private volatile int size = Node.CACHE_SIZE;
   CachedNodes()
   {
-    //System.out.println("CachedNodes : cache called");
-    cache = new Hashtable(Node.CACHE_SIZE+1,1);
-    buffHeader = new BufferHeader(Node.CACHE_SIZE,cache);
-    size = Node.CACHE_SIZE;
+    this(Node.CACHE_SIZE);
   }
   /**
-     This one is still under construction.
+     @param size capacity of the cache of every file
   */
   CachedNodes(int size)
   {
     if(size < 0)
       throw new IllegalArgumentException("CachedNodes:: size is less than zero");
-    cache = new Hashtable(size+1,1);
-    buffHeader = new BufferHeader(size, cache);
     this.size = size;
   }
+  /**
+     Sets capacity of the caches of all the files. Existing caches are flushed and emptied.
+  */
   public synchronized void setCacheSize(int size)
     throws NodeWriteException
   {
     if(size < 0)
       throw new IllegalArgumentException("CachedNodes:: size is less than zero");
     removeAll();
-    cache = new Hashtable(size+1,1);
-    buffHeader = new BufferHeader(size, cache);
     this.size = size;
   }
-  public synchronized int getSize()
+  /**
+     Sets capacity of the cache of one file. Existing cache of the file is flushed and emptied.
+  */
+  public synchronized void setCacheSize(String fileName, int size)
+    throws NodeWriteException
   {
-    return cache.size();
+    if(size < 0)
+      throw new IllegalArgumentException("CachedNodes:: size is less than zero");
+    NodeCache old = caches.put(fileName, new NodeCache(size));
+    if(old != null)
+      flush(old.nodes(true));
+  }
+  /**
+     @return total number of the cached nodes
+  */
+  public int getSize()
+  {
+    int s = 0;
+    for(NodeCache c : caches.values())
+      s += c.getSize();
+    return s;
+  }
+  /**
+     @return cache of the file (with its hit, miss and eviction counters) or null
+  */
+  public NodeCache getCache(String fileName)
+  {
+    return caches.get(fileName);
+  }
+  private NodeCache cache(String fileName)
+  {
+    if(fileName == null)
+      throw new IllegalArgumentException("CachedNodes: fileName null");
+    NodeCache c = caches.get(fileName);
+    if(c == null){
+      synchronized(this){
+        c = caches.get(fileName);
+        if(c == null){
+          c = new NodeCache(size);
+          caches.put(fileName, c);
+        }
+      }
+    }
+    return c;
   }
   private Node getNode(RandomAccessFile file,String fileName,long lndIndex,FileHdr flHdr, int type)
     throws IllegalValueException, NodeReadException, FileNotFoundException, IOException, NodeWriteException
   {
-    int ndIndex = (int)lndIndex;
-    int key = calKey(fileName,ndIndex);
-    NodeValue node = (NodeValue)(cache.get(new Integer(key)));
-    Node nNode;
+    NodeCache c = cache(fileName);
+    Node node = c.get(lndIndex);
     if(node == null){//Node not in cache
-      if(type == NODE){
-        nNode = new Node(file, fileName, ndIndex, flHdr);
-      }else{
-        nNode = new SdNode(file, fileName, ndIndex, flHdr);
-      }
-      key = calKey(fileName, (int)nNode.getNodeIndex());//this is for the case where index is NOT_DEFINED
-      nNode.sweepSort();
-      //cache not full
-      if(cache.size() < Node.CACHE_SIZE){
-        buffHeader.put(key,nNode);//(Node)nNode.clone());
-      }else if(cache.size() == Node.CACHE_SIZE){//cache Is full
-        buffHeader.replace(key,nNode);//(Node)nNode.clone());
+      synchronized(file){
+        node = c.get(lndIndex);
+        if(node == null){
+          int ndIndex = (int)lndIndex;
+          if(type == NODE){
+            node = new Node(file, fileName, ndIndex, flHdr);
+          }else{
+            node = new SdNode(file, fileName, ndIndex, flHdr);
+          }
+          node.sweepSort();
+          //index may be NOT_DEFINED
+          Node evicted = c.put(node.getNodeIndex(), node);
+          if(evicted != null)
+            evicted.flush();
+          return node;
+        }
       }
-      return nNode;
     }
-    else{//node found in the cache
-      buffHeader.update(key);
-      node.node.sweepSort();
-      return (node.node);
+    //node found in the cache
+    synchronized(node){
+      node.sweepSort();
     }
+    return node;
   }
   private Node getNode(RandomAccessFile file,String fileName,long parentIndex, int elmtType, FileHdr flHdr,
                        int type)
     throws IllegalValueException, NodeReadException, FileNotFoundException, IOException, NodeWriteException
   {
-    Node nNode;
-    if(type == NODE){
-      nNode = new Node(file,fileName,parentIndex, elmtType, flHdr);
-    }else{
-      nNode = new SdNode(file,fileName,parentIndex, elmtType, flHdr);
+    NodeCache c = cache(fileName);
+    synchronized(file){
+      Node nNode;
+      if(type == NODE){
+        nNode = new Node(file,fileName,parentIndex, elmtType, flHdr);
+      }else{
+        nNode = new SdNode(file,fileName,parentIndex, elmtType, flHdr);
+      }
+      nNode.sweepSort();
+      Node evicted = c.put(nNode.getNodeIndex(), nNode);
+      if(evicted != null)
+        evicted.flush();
+      return nNode;
     }
-    int key = calKey(fileName, (int)nNode.getNodeIndex());
-    nNode.sweepSort();
-    //cache not full
-    if(cache.size() < Node.CACHE_SIZE)
-      buffHeader.put(key,nNode);
-    //cache Is full
-    else if(cache.size() == Node.CACHE_SIZE)
-      buffHeader.replace(key,nNode);
-    return nNode;
   }
   //-----------------------Methods for client to get Node they prefer------------
   /**
      This one returns an existing <code>SdNode</code>
   */
-  public synchronized SdNode getSdNode(RandomAccessFile file,String fileName,long lndIndex,FileHdr flHdr)
+  public SdNode getSdNode(RandomAccessFile file,String fileName,long lndIndex,FileHdr flHdr)
     throws IllegalValueException, NodeReadException, FileNotFoundException, IOException, NodeWriteException
   {
     return (SdNode)getNode(file,fileName,lndIndex,flHdr, SDNODE);
@@ -307,7 +165,7 @@ public class CachedNodes
   /**
      This one returns an existing <code>SdNode</code>.
   */
-  public synchronized SdNode getSdNode(RandomAccessFile file,String fileName,long parentIndex,
+  public SdNode getSdNode(RandomAccessFile file,String fileName,long parentIndex,
                                        int elmtType, FileHdr flHdr)
     throws IllegalValueException, NodeReadException, FileNotFoundException, IOException, NodeWriteException
   {
@@ -316,7 +174,7 @@ public class CachedNodes
   /**
      This one returns an existing <code>Node</code>.
   */
-  public synchronized Node getNode(RandomAccessFile file,String fileName,long lndIndex,FileHdr flHdr)
+  public Node getNode(RandomAccessFile file,String fileName,long lndIndex,FileHdr flHdr)
     throws IllegalValueException, NodeReadException, FileNotFoundException, IOException, NodeWriteException
   {
     return getNode(file,fileName,lndIndex,flHdr, NODE);
@@ -324,7 +182,7 @@ public class CachedNodes
   /**
      This one returns an new <code>SdNode</code>.
   */
-  public synchronized Node getNode(RandomAccessFile file,String fileName,long parentIndex,
+  public Node getNode(RandomAccessFile file,String fileName,long parentIndex,
                                    int elmtType, FileHdr flHdr)
     throws IllegalValueException, NodeReadException, FileNotFoundException, IOException, NodeWriteException
   {
@@ -333,7 +191,7 @@ public class CachedNodes
   /**
      This one returns an new <code>Node</code>.
   */
-  public synchronized Node getNode(RandomAccessFile file,String fileName,long parentIndex,
+  public Node getNode(RandomAccessFile file,String fileName,long parentIndex,
                                    int elmtType, FileHdr flHdr, Node type)
     throws IllegalValueException, NodeReadException, FileNotFoundException, IOException, NodeWriteException
   {
@@ -348,7 +206,7 @@ public class CachedNodes
      return a clones ReadNode, so that concurrent reads can take place (because none of the methods
      of <code>Node</code> are <code>synchronized</code>.
   */
-  public synchronized ReadNode getReadNode(RandomAccessFile file,String fileName,long lndIndex,FileHdr flHdr)
+  public ReadNode getReadNode(RandomAccessFile file,String fileName,long lndIndex,FileHdr flHdr)
     throws IllegalValueException, NodeReadException, FileNotFoundException, IOException, NodeWriteException
   {
     return ReadNode.makeReadNode(getNode(file,fileName,lndIndex,flHdr));
@@ -359,62 +217,42 @@ public class CachedNodes
   synchronized void flush()
     throws NodeWriteException
   {
-    //if(!RTree.writeThr)
-    buffHeader.flush();
+    for(NodeCache c : caches.values())
+      flush(c.nodes(false));
+  }
+  private void flush(List<Node> nodes)
+    throws NodeWriteException
+  {
+    for(Node node : nodes)
+      node.flush();
   }
   /**
      This method would be called only by those threads that need to modify the
      tree. Hence this method is automatically synchronized.
   */
-  synchronized void remove(String fileName,long ndIndex)
+  void remove(String fileName,long ndIndex)
     throws NodeWriteException
   {
-    int key = calKey(fileName,(int)ndIndex);
-    buffHeader.remove(key);
+    NodeCache c = caches.get(fileName);
+    Node node = c == null ? null : c.remove(ndIndex);
+    if(node != null)
+      node.flush();
   }
 
 
-  synchronized void removeAll()
-    throws NodeWriteException
+  /**
+     Drops the cached nodes of the file without writing them.
+  */
+  void discard(String fileName)
   {
-    buffHeader.reset();
-  }
-
-  static Map<String, Integer> fileNamesMap = new LinkedHashMap<String, Integer>();
-
-  static void clearFileNamesMap(){
-	  fileNamesMap.clear();
+    caches.remove(fileName);
   }
 
-  int calKey(String fileName,int idx)
-  {
-    if(fileName != null) {
-    	Integer i = fileNamesMap.get(fileName);
-    	if(i == null){
-    		if(fileNamesMap.size() > 1023){
-    			throw new ArrayIndexOutOfBoundsException();
-    		}
-    		fileNamesMap.put(fileName, fileNamesMap.size());
-    		i = fileNamesMap.get(fileName);
-    	}
-//      System.out.println(idx + " " + fileName + " " + ((idx << 5)+ fileName.toLowerCase().hashCode() % 32));
-      return ((idx << 10)+ i);
-    } else{
-      System.out.println("CachedNodes.calKey: fileName null");
-      return 0;
-    }
-  }
-}
-class NodeValue
-{
-  Node node;
-  int next;//the next node's key
-  int prev;//the prev node's key
-  NodeValue(Node node,int n,int p)
+  synchronized void removeAll()
+    throws NodeWriteException
   {
-    this.node = node;
-    next = n;
-    prev = p;
+    for(NodeCache c : caches.values())
+      flush(c.nodes(true));
   }
 }
 /**
@@ -38,7 +38,7 @@ public class Node implements Cloneable //can be made abstract if leaf and non le
   /**min. no. of entries in a node*/
 //  public final static int MIN= 84;//51; //25;//testing 2
   public final static int MIN= 20;//51; //25;//testing 2
-  /**The size of the cache.<br>
+  /**The size of the cache of one rtree file, every file has its own cache of this size.<br>
      Minimum cache size is 50% of total no. of elements (1lakh records has 597 nodes).
      <br>Maximum cache size should be 70%, beyound that there may not be major improvements but the
      overheads will increase.
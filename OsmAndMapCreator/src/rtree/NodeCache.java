@@ -0,0 +1,238 @@
+//NodeCache.java
+//
+//This library is free software; you can redistribute it and/or
+//modify it under the terms of the GNU Lesser General Public
+//License as published by the Free Software Foundation; either
+//version 2.1 of the License, or (at your option) any later version.
+//
+//This library is distributed in the hope that it will be useful,
+//but WITHOUT ANY WARRANTY; without even the implied warranty of
+//MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+//Lesser General Public License for more details.
+package rtree;
+
+import gnu.trove.map.hash.TLongObjectHashMap;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+   <b>LRU cache of the nodes of one rtree file.</b>
+   <p>Nodes are keyed by their index in the file. The cache is split into segments by key, every
+   segment has its own lock and its own LRU list, so lookups of different nodes do not contend.
+   Capacity is divided equally between the segments. It is the capacity of one file, so all the
+   open files together may cache up to the number of files times the capacity.
+   <p>The cache does not read or write nodes itself, evicted nodes are returned to the caller
+   which must flush them.
+*/
+public class NodeCache
+{
+  private static final int SEGMENTS = 16;
+
+  private final Segment[] segments;
+  private final int capacity;
+
+  NodeCache(int capacity)
+  {
+    if(capacity < 0)
+      throw new IllegalArgumentException("NodeCache:: capacity is less than zero");
+    this.capacity = capacity;
+    segments = new Segment[SEGMENTS];
+    int segmentCapacity = (capacity + SEGMENTS - 1) / SEGMENTS;
+    for(int i = 0; i < SEGMENTS; i++)
+      segments[i] = new Segment(segmentCapacity);
+  }
+
+  private Segment segment(long key)
+  {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return segments[(int)(h >>> 60) & (SEGMENTS - 1)];
+  }
+
+  /**
+     @return the cached node (marked as most recently used) or null
+  */
+  Node get(long key)
+  {
+    return segment(key).get(key);
+  }
+
+  /**
+     @return the node to write back or null: the least recently used node evicted to free space for
+     the new one or the dirty node replaced by the new one
+  */
+  Node put(long key, Node node)
+  {
+    return segment(key).put(key, node);
+  }
+
+  Node remove(long key)
+  {
+    return segment(key).remove(key);
+  }
+
+  /**
+     @return all the cached nodes, the cache is emptied if <code>clear</code> is true
+  */
+  List<Node> nodes(boolean clear)
+  {
+    List<Node> list = new ArrayList<Node>();
+    for(Segment s : segments)
+      s.nodes(list, clear);
+    return list;
+  }
+
+  public int getCapacity()
+  {
+    return capacity;
+  }
+
+  public int getSize()
+  {
+    int size = 0;
+    for(Segment s : segments)
+      synchronized(s){
+        size += s.map.size();
+      }
+    return size;
+  }
+
+  public long getHits()
+  {
+    long hits = 0;
+    for(Segment s : segments)
+      synchronized(s){
+        hits += s.hits;
+      }
+    return hits;
+  }
+
+  public long getMisses()
+  {
+    long misses = 0;
+    for(Segment s : segments)
+      synchronized(s){
+        misses += s.misses;
+      }
+    return misses;
+  }
+
+  public long getEvictions()
+  {
+    long evictions = 0;
+    for(Segment s : segments)
+      synchronized(s){
+        evictions += s.evictions;
+      }
+    return evictions;
+  }
+
+  public String toString()
+  {
+    return "size " + getSize() + "/" + capacity + ", hits " + getHits() + ", misses " + getMisses()
+      + ", evictions " + getEvictions();
+  }
+
+  private static class Entry
+  {
+    long key;
+    Node node;
+    Entry prev;
+    Entry next;
+  }
+
+  /**A hash of entries with a doubly linked list from the most (head.next) to the least (head.prev)
+     recently used*/
+  private static class Segment
+  {
+    final int capacity;
+    final TLongObjectHashMap<Entry> map = new TLongObjectHashMap<Entry>();
+    final Entry head = new Entry();
+    long hits;
+    long misses;
+    long evictions;
+
+    Segment(int capacity)
+    {
+      this.capacity = capacity;
+      head.prev = head;
+      head.next = head;
+    }
+
+    synchronized Node get(long key)
+    {
+      Entry e = map.get(key);
+      if(e == null){
+        misses++;
+        return null;
+      }
+      hits++;
+      unlink(e);
+      linkFirst(e);
+      return e.node;
+    }
+
+    synchronized Node put(long key, Node node)
+    {
+      Entry e = map.get(key);
+      if(e != null){//another thread has loaded the same node
+        Node old = e.node;
+        e.node = node;
+        unlink(e);
+        linkFirst(e);
+        //the replaced node may have pending changes
+        return old != node && old.isDirty() ? old : null;
+      }
+      if(capacity == 0)
+        return node;
+      Node evicted = null;
+      if(map.size() >= capacity){
+        Entry last = head.prev;
+        unlink(last);
+        map.remove(last.key);
+        evicted = last.node;
+        evictions++;
+      }
+      e = new Entry();
+      e.key = key;
+      e.node = node;
+      map.put(key, e);
+      linkFirst(e);
+      return evicted;
+    }
+
+    synchronized Node remove(long key)
+    {
+      Entry e = map.remove(key);
+      if(e == null)
+        return null;
+      unlink(e);
+      return e.node;
+    }
+
+    synchronized void nodes(List<Node> list, boolean clear)
+    {
+      for(Entry e = head.next; e != head; e = e.next)
+        list.add(e.node);
+      if(clear){
+        map.clear();
+        head.prev = head;
+        head.next = head;
+      }
+    }
+
+    private void unlink(Entry e)
+    {
+      e.prev.next = e.next;
+      e.next.prev = e.prev;
+    }
+
+    private void linkFirst(Entry e)
+    {
+      e.next = head.next;
+      e.prev = head;
+      head.next.prev = e;
+      head.next = e;
+    }
+  }
+}
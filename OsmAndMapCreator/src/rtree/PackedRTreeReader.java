@@ -0,0 +1,160 @@
+//PackedRTreeReader.java
+//
+//This library is free software; you can redistribute it and/or
+//modify it under the terms of the GNU Lesser General Public
+//License as published by the Free Software Foundation; either
+//version 2.1 of the License, or (at your option) any later version.
+//
+//This library is distributed in the hope that it will be useful,
+//but WITHOUT ANY WARRANTY; without even the implied warranty of
+//MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+//Lesser General Public License for more details.
+package rtree;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+/**
+   Read only access to an rtree file which is not modified anymore (for example packed one).
+   <p>The file is memory mapped and elements are decoded in place: nodes are addressed by their index
+   and elements by their position in the node, no <code>Node</code> or <code>Element</code> objects
+   are created and the cache is not used.
+   <br>Only absolute reads of the mapped buffers are done, so one reader can be used by many threads.
+   <p><b>Flush the <code>RTree</code> before opening the reader.</b>
+*/
+public class PackedRTreeReader
+{
+  /**Nodes of one mapped buffer (1 GByte)*/
+  private static final int NODES_PER_BUFFER = (1 << 30) / Node.NODE_SIZE;
+  private static final int ELEMENT_SIZE = LeafElement.sizeInBytes();
+
+  private final String fileName;
+  private final MappedByteBuffer[] buffers;
+  private final int totalNodes;
+  private final long rootIndex;
+
+  public PackedRTreeReader(String fileName)
+    throws IOException
+  {
+    this.fileName = fileName;
+    RandomAccessFile raf = new RandomAccessFile(new File(fileName), "r");
+    try{
+      totalNodes = raf.readInt();
+      rootIndex = raf.readLong();
+      FileChannel channel = raf.getChannel();
+      long length = Math.max(0, channel.size() - Node.FILE_HDR_SIZE);
+      long bufferSize = (long)NODES_PER_BUFFER * Node.NODE_SIZE;
+      buffers = new MappedByteBuffer[(int)((length + bufferSize - 1) / bufferSize)];
+      for(int i = 0; i < buffers.length; i++){
+        long start = i * bufferSize;
+        buffers[i] = channel.map(FileChannel.MapMode.READ_ONLY, Node.FILE_HDR_SIZE + start,
+                                 Math.min(bufferSize, length - start));
+      }
+    }finally{
+      //mapping stays valid after the file is closed
+      raf.close();
+    }
+  }
+
+  public String getFileName()
+  {
+    return fileName;
+  }
+
+  public long getRootIndex()
+  {
+    return rootIndex;
+  }
+
+  public int getTotalNodes()
+  {
+    return totalNodes;
+  }
+
+  private MappedByteBuffer buffer(long node)
+  {
+    if(node < 0 || node >= totalNodes)
+      throw new IllegalArgumentException("PackedRTreeReader: node " + node + " is out of bound");
+    return buffers[(int)(node / NODES_PER_BUFFER)];
+  }
+
+  private static int offset(long node)
+  {
+    return (int)(node % NODES_PER_BUFFER) * Node.NODE_SIZE;
+  }
+
+  public int getTotalElements(long node)
+  {
+    return buffer(node).getInt(offset(node));
+  }
+
+  public long getParent(long node)
+  {
+    return buffer(node).getLong(offset(node) + Node.INTEGER_SIZE);
+  }
+
+  /**
+     @return <code>Node.LEAF_NODE</code> or <code>Node.NONLEAF_NODE</code>, the type of all the elements
+  */
+  public int getElementType(long node)
+  {
+    return buffer(node).getInt(offset(node) + 2 * Node.INTEGER_SIZE + Node.LONG_SIZE);
+  }
+
+  public boolean isLeaf(long node)
+  {
+    return getElementType(node) == Node.LEAF_NODE;
+  }
+
+  private int element(long node, int i)
+  {
+    return offset(node) + Node.NODE_HDR_SIZE + i * ELEMENT_SIZE;
+  }
+
+  public int getMinX(long node, int i)
+  {
+    return buffer(node).getInt(element(node, i));
+  }
+
+  public int getMinY(long node, int i)
+  {
+    return buffer(node).getInt(element(node, i) + Node.INTEGER_SIZE);
+  }
+
+  public int getMaxX(long node, int i)
+  {
+    return buffer(node).getInt(element(node, i) + 2 * Node.INTEGER_SIZE);
+  }
+
+  public int getMaxY(long node, int i)
+  {
+    return buffer(node).getInt(element(node, i) + 3 * Node.INTEGER_SIZE);
+  }
+
+  /**
+     @return the record id for the leaf element or the child node index
+  */
+  public long getPtr(long node, int i)
+  {
+    return buffer(node).getLong(element(node, i) + 4 * Node.INTEGER_SIZE);
+  }
+
+  /**
+     @return bounds of all elements of the node as {minX, minY, maxX, maxY} or null if the node is empty
+  */
+  public int[] getBounds(long node)
+  {
+    int total = getTotalElements(node);
+    if(total == 0)
+      return null;
+    int[] r = new int[]{Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE};
+    for(int i = 0; i < total; i++){
+      r[0] = Math.min(r[0], getMinX(node, i));
+      r[1] = Math.min(r[1], getMinY(node, i));
+      r[2] = Math.max(r[2], getMaxX(node, i));
+      r[3] = Math.max(r[3], getMaxY(node, i));
+    }
+    return r;
+  }
+}
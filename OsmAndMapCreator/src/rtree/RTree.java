@@ -53,7 +53,7 @@ public class RTree //the tree that would be made
      of the fact that this package was developed on a Linux(RH7.0) platform.
   */
   protected String fileName;
-  static Map fileList;//the no. of files open
+  static Map fileList = new HashMap();//the no. of files open
   // static for the other way
   protected FileHdr fileHdr;
   public static CachedNodes chdNodes;
@@ -71,7 +71,24 @@ public class RTree //the tree that would be made
   public static void clearCache(){
 	  chdNodes = new CachedNodes();
 	  fileList = new HashMap();
-	  CachedNodes.clearFileNamesMap();
+  }
+
+  /**
+     Forgets the header and the cached nodes of the file and closes it, it is used before the file is
+     overwritten and when the tree is not used anymore (headers and caches are kept for all opened files).
+  */
+  public static void releaseFile(String fileName)
+    throws IOException
+  {
+    if(fileList != null){
+      synchronized(fileList){
+        Header h = (Header)fileList.remove(fileName);
+        if(h != null)
+          h.flHdr.getFile().close();
+      }
+    }
+    if(chdNodes != null)
+      chdNodes.discard(fileName);
   }
 
   public RTree(String fileName)
@@ -79,8 +96,6 @@ public class RTree //the tree that would be made
   {
     try{
       this.fileName = fileName;
-      if(fileList == null)
-        fileList = new HashMap();
       synchronized(fileList){//this may give problem
         if(fileList.get(fileName) != null){
           fileHdr = ((Header)fileList.get(fileName)).flHdr;
@@ -89,7 +104,7 @@ public class RTree //the tree that would be made
         //a new file
         fileList.put(fileName, new Header(new FileHdr(Node.FREE_LIST_LIMIT, fileName),fileName));
         fileHdr = ((Header)fileList.get(fileName)).flHdr;
-        //the cache of nodes - one cache for all the tree files.
+        //the cache of nodes - it keeps separate cache for every tree file.
         if(chdNodes == null)
           chdNodes = new CachedNodes();
       }
@@ -125,6 +140,25 @@ public class RTree //the tree that would be made
   {
     return fileName;
   }
+  /**
+     Sets the number of cached nodes of this tree file (see <code>Node.CACHE_SIZE</code>).
+  */
+  public void setCacheSize(int size)
+    throws RTreeException
+  {
+    try{
+      chdNodes.setCacheSize(fileName, size);
+    }catch(Exception e){
+      throw new RTreeException("RTree.setCacheSize: " + e.getMessage());
+    }
+  }
+  /**
+     @return node cache of this tree file with its hit, miss and eviction counters or null
+  */
+  public NodeCache getNodeCache()
+  {
+    return chdNodes.getCache(fileName);
+  }
   /**
      Another package private method for getting the file header
   */
@@ -0,0 +1,459 @@
+//RTreeBulkLoader.java
+//
+//This library is free software; you can redistribute it and/or
+//modify it under the terms of the GNU Lesser General Public
+//License as published by the Free Software Foundation; either
+//version 2.1 of the License, or (at your option) any later version.
+//
+//This library is distributed in the hope that it will be useful,
+//but WITHOUT ANY WARRANTY; without even the implied warranty of
+//MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+//Lesser General Public License for more details.
+package rtree;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+/**
+   Builds a packed rtree without inserting elements into a non packed tree.
+   <p>Leaf rectangles are collected into primitive arrays, full arrays are sorted on X axis and
+   spilled as runs to a temporary file. <code>build</code> merges the runs and writes the tree with the
+   same Sort-Tile-Recursive algo. as <code>Pack</code>: every vertical slice is sorted on Y axis and
+   written to leaf nodes, upper levels (which are <code>Node.MAX</code> times smaller) are packed in
+   memory. Nodes are written sequentially, parents of the nodes are patched at the end.
+   <p>The class is not thread safe except <code>add</code>.
+*/
+public class RTreeBulkLoader
+{
+  private static final int RUN_SIZE = 1 << 19;
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  private final File spillFile;
+  private DataOutputStream spill;
+  private final List<long[]> runs = new ArrayList<long[]>();//start record and size of spilled runs
+  private long spilled;
+
+  private int[] rects = new int[1024 * 4];
+  private long[] ids = new long[1024];
+  private int count;
+
+  /**
+     @param spillFileName temporary file for the sorted runs, it is deleted after <code>build</code>
+  */
+  public RTreeBulkLoader(String spillFileName)
+  {
+    this.spillFile = new File(spillFileName);
+  }
+
+  public synchronized void add(int minX, int minY, int maxX, int maxY, long id)
+    throws IOException
+  {
+    if(count == ids.length){
+      if(count < RUN_SIZE){
+        ids = Arrays.copyOf(ids, count * 2);
+        rects = Arrays.copyOf(rects, count * 2 * 4);
+      }else
+        spillRun();
+    }
+    int p = count * 4;
+    rects[p] = minX;
+    rects[p + 1] = minY;
+    rects[p + 2] = maxX;
+    rects[p + 3] = maxY;
+    ids[count++] = id;
+  }
+
+  public synchronized long size()
+  {
+    return spilled + count;
+  }
+
+  private void spillRun()
+    throws IOException
+  {
+    if(spill == null){
+      if(spillFile.exists())
+        spillFile.delete();
+      spill = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile), BUFFER_SIZE));
+    }
+    int[] order = sortOrder(rects, 0, count, 0);
+    for(int i = 0; i < count; i++){
+      int p = order[i] * 4;
+      spill.writeInt(rects[p]);
+      spill.writeInt(rects[p + 1]);
+      spill.writeInt(rects[p + 2]);
+      spill.writeInt(rects[p + 3]);
+      spill.writeLong(ids[order[i]]);
+    }
+    runs.add(new long[]{spilled, count});
+    spilled += count;
+    count = 0;
+  }
+
+  /**
+     @return order of <code>length</code> rectangles from <code>start</code> sorted by their middle on the
+     axis (0 - X, 1 - Y)
+  */
+  private static int[] sortOrder(int[] rects, int start, int length, int on)
+  {
+    long[] keys = new long[length];
+    for(int i = 0; i < length; i++){
+      int p = (start + i) * 4 + on;
+      // double middle (min + max) doesn't overflow as long, ties keep the insertion order
+      keys[i] = (((long)rects[p] + rects[p + 2]) << 30) | i;
+    }
+    Arrays.sort(keys);
+    int[] order = new int[length];
+    for(int i = 0; i < length; i++)
+      order[i] = start + (int)(keys[i] & ((1 << 30) - 1));
+    return order;
+  }
+
+  /**
+     Writes the packed tree. The file is overwritten if it exists.
+     @return the tree opened on the new file
+  */
+  public synchronized RTree build(String fileName)
+    throws IOException, RTreeException
+  {
+    RTree.releaseFile(fileName);
+    Source source;
+    if(runs.isEmpty()){
+      source = new ArraySource(rects, ids, sortOrder(rects, 0, count, 0));
+    }else{
+      if(count > 0)
+        spillRun();
+      spill.close();
+      spill = null;
+      source = new MergeSource(spillFile, runs);
+    }
+    long total = source.size();
+    NodeWriter writer = new NodeWriter(fileName);
+    try{
+      Level level = new Level((int)Math.min(Integer.MAX_VALUE, (total + Node.MAX - 1) / Node.MAX));
+      if(total == 0){
+        writer.writeNode(Node.LEAF_NODE, new int[0], new long[0], 0, null, level);
+      }else{
+        //no. of leaves and of vertical slices
+        long leaves = (total + Node.MAX - 1) / Node.MAX;
+        int slices = (int)Math.ceil(Math.sqrt(leaves));
+        int sliceSize = slices * Node.MAX;
+        int[] sliceRects = new int[sliceSize * 4];
+        long[] sliceIds = new long[sliceSize];
+        while(true){
+          int n = 0;
+          while(n < sliceSize && source.next(sliceRects, n, sliceIds))
+            n++;
+          if(n == 0)
+            break;
+          writer.writeSlice(Node.LEAF_NODE, sliceRects, sliceIds, n, level);
+        }
+      }
+      while(level.size > 1)
+        level = writer.writeLevel(level);
+      writer.close();
+    }finally{
+      source.close();
+      writer.abort();
+      close();
+    }
+    return new RTree(fileName);
+  }
+
+  /**
+     Deletes the temporary file.
+  */
+  public synchronized void close()
+    throws IOException
+  {
+    if(spill != null){
+      spill.close();
+      spill = null;
+    }
+    spillFile.delete();
+  }
+
+  /**Rectangles and pointers of the nodes of one level*/
+  private static class Level
+  {
+    int[] rects;
+    long[] ptrs;
+    int size;
+    Level(int capacity)
+    {
+      rects = new int[Math.max(capacity, 1) * 4];
+      ptrs = new long[Math.max(capacity, 1)];
+    }
+    void add(int minX, int minY, int maxX, int maxY, long ptr)
+    {
+      if(size == ptrs.length){
+        ptrs = Arrays.copyOf(ptrs, size * 2);
+        rects = Arrays.copyOf(rects, size * 2 * 4);
+      }
+      int p = size * 4;
+      rects[p] = minX;
+      rects[p + 1] = minY;
+      rects[p + 2] = maxX;
+      rects[p + 3] = maxY;
+      ptrs[size++] = ptr;
+    }
+  }
+
+  private class NodeWriter
+  {
+    final String fileName;
+    DataOutputStream out;
+    int[] parents = new int[1024];
+    int nodes;
+    final byte[] padding = new byte[Node.NODE_SIZE];
+
+    NodeWriter(String fileName)
+      throws IOException
+    {
+      this.fileName = fileName;
+      File f = new File(fileName);
+      if(f.exists())
+        f.delete();
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), BUFFER_SIZE));
+      //file header is written at the end
+      out.write(new byte[Node.FILE_HDR_SIZE]);
+    }
+
+    /**
+       Sorts the slice on Y axis and writes it to nodes, the new nodes are added to the upper level.
+    */
+    void writeSlice(int type, int[] rects, long[] ptrs, int length, Level upper)
+      throws IOException
+    {
+      int[] order = sortOrder(rects, 0, length, 1);
+      for(int start = 0; start < length; start += Node.MAX)
+        writeNode(type, rects, ptrs, start, Arrays.copyOfRange(order, start,
+                                                              Math.min(length, start + Node.MAX)), upper);
+    }
+
+    /**
+       Packs the level into the nodes of the next level.
+    */
+    Level writeLevel(Level level)
+      throws IOException
+    {
+      int nodesCount = (level.size + Node.MAX - 1) / Node.MAX;
+      int slices = (int)Math.ceil(Math.sqrt(nodesCount));
+      int sliceSize = slices * Node.MAX;
+      Level upper = new Level(nodesCount);
+      int[] order = sortOrder(level.rects, 0, level.size, 0);
+      int[] sliceRects = new int[Math.min(sliceSize, level.size) * 4];
+      long[] slicePtrs = new long[Math.min(sliceSize, level.size)];
+      for(int start = 0; start < level.size; start += sliceSize){
+        int n = Math.min(sliceSize, level.size - start);
+        for(int i = 0; i < n; i++){
+          int p = order[start + i];
+          System.arraycopy(level.rects, p * 4, sliceRects, i * 4, 4);
+          slicePtrs[i] = level.ptrs[p];
+        }
+        writeSlice(Node.NONLEAF_NODE, sliceRects, slicePtrs, n, upper);
+      }
+      return upper;
+    }
+
+    /**
+       @param order indexes of the elements of the node or null if it is empty
+    */
+    void writeNode(int type, int[] rects, long[] ptrs, int start, int[] order, Level upper)
+      throws IOException
+    {
+      int index = nodes++;
+      if(index == parents.length)
+        parents = Arrays.copyOf(parents, index * 2);
+      parents[index] = Node.NOT_DEFINED;
+      int total = order == null ? 0 : order.length;
+      out.writeInt(total);
+      out.writeLong(Node.NOT_DEFINED);//parent
+      out.writeInt(type == Node.LEAF_NODE ? LeafElement.sizeInBytes() : NonLeafElement.sizeInBytes());
+      out.writeInt(type);
+      int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
+      int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+      for(int i = 0; i < total; i++){
+        int p = order[i] * 4;
+        out.writeInt(rects[p]);
+        out.writeInt(rects[p + 1]);
+        out.writeInt(rects[p + 2]);
+        out.writeInt(rects[p + 3]);
+        out.writeLong(ptrs[order[i]]);
+        minX = Math.min(minX, rects[p]);
+        minY = Math.min(minY, rects[p + 1]);
+        maxX = Math.max(maxX, rects[p + 2]);
+        maxY = Math.max(maxY, rects[p + 3]);
+        if(type == Node.NONLEAF_NODE)
+          parents[(int)ptrs[order[i]]] = index;
+      }
+      out.write(padding, 0, Node.NODE_SIZE - Node.NODE_HDR_SIZE - total * LeafElement.sizeInBytes());
+      upper.add(minX, minY, maxX, maxY, index);
+    }
+
+    void close()
+      throws IOException
+    {
+      out.close();
+      out = null;
+      RandomAccessFile raf = new RandomAccessFile(fileName, "rw");
+      try{
+        raf.seek(0);
+        raf.writeInt(nodes);
+        raf.writeLong(nodes - 1);//root is the last node
+        raf.writeInt(Node.NOT_DEFINED);//empty stack of free nodes
+        for(int i = 0; i < nodes; i++){
+          if(parents[i] != Node.NOT_DEFINED){
+            raf.seek(Node.FILE_HDR_SIZE + (long)i * Node.NODE_SIZE + Node.INTEGER_SIZE);
+            raf.writeLong(parents[i]);
+          }
+        }
+      }finally{
+        raf.close();
+      }
+    }
+
+    void abort()
+      throws IOException
+    {
+      if(out != null){
+        out.close();
+        out = null;
+        new File(fileName).delete();
+      }
+    }
+  }
+
+  /**Leaf rectangles sorted on X axis*/
+  private static abstract class Source
+  {
+    abstract long size();
+    abstract boolean next(int[] rects, int ind, long[] ids) throws IOException;
+    void close() throws IOException
+    {
+    }
+  }
+
+  private static class ArraySource extends Source
+  {
+    final int[] rects;
+    final long[] ids;
+    final int[] order;
+    int pos;
+    ArraySource(int[] rects, long[] ids, int[] order)
+    {
+      this.rects = rects;
+      this.ids = ids;
+      this.order = order;
+    }
+    long size()
+    {
+      return order.length;
+    }
+    boolean next(int[] r, int ind, long[] i)
+    {
+      if(pos == order.length)
+        return false;
+      int p = order[pos++];
+      System.arraycopy(rects, p * 4, r, ind * 4, 4);
+      i[ind] = ids[p];
+      return true;
+    }
+  }
+
+  private static class MergeSource extends Source
+  {
+    final PriorityQueue<Run> queue = new PriorityQueue<Run>();
+    final List<Run> all = new ArrayList<Run>();
+    long size;
+    MergeSource(File file, List<long[]> runs)
+      throws IOException
+    {
+      for(int i = 0; i < runs.size(); i++){
+        Run r = new Run(file, runs.get(i)[0], runs.get(i)[1], i);
+        all.add(r);
+        size += runs.get(i)[1];
+        if(r.read())
+          queue.add(r);
+      }
+    }
+    long size()
+    {
+      return size;
+    }
+    boolean next(int[] r, int ind, long[] i)
+      throws IOException
+    {
+      Run run = queue.poll();
+      if(run == null)
+        return false;
+      r[ind * 4] = run.minX;
+      r[ind * 4 + 1] = run.minY;
+      r[ind * 4 + 2] = run.maxX;
+      r[ind * 4 + 3] = run.maxY;
+      i[ind] = run.id;
+      if(run.read())
+        queue.add(run);
+      return true;
+    }
+    void close()
+      throws IOException
+    {
+      for(Run r : all)
+        r.in.close();
+    }
+  }
+
+  private static class Run implements Comparable<Run>
+  {
+    final DataInputStream in;
+    final int order;
+    long left;
+    int minX, minY, maxX, maxY;
+    long id;
+    Run(File file, long start, long size, int order)
+      throws IOException
+    {
+      FileInputStream fis = new FileInputStream(file);
+      fis.getChannel().position(start * (LeafElement.sizeInBytes()));
+      this.in = new DataInputStream(new BufferedInputStream(fis, BUFFER_SIZE));
+      this.left = size;
+      this.order = order;
+    }
+    boolean read()
+      throws IOException
+    {
+      if(left == 0)
+        return false;
+      left--;
+      try{
+        minX = in.readInt();
+        minY = in.readInt();
+        maxX = in.readInt();
+        maxY = in.readInt();
+        id = in.readLong();
+      }catch(EOFException e){
+        throw new IOException("RTreeBulkLoader: unexpected end of " + order + " run");
+      }
+      return true;
+    }
+    public int compareTo(Run o)
+    {
+      long m = (long)minX + maxX;
+      long om = (long)o.minX + o.maxX;
+      if(m != om)
+        return m < om ? -1 : 1;
+      return order < o.order ? -1 : (order == o.order ? 0 : 1);
+    }
+  }
+}